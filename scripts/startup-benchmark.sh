@@ -0,0 +1,88 @@
+#!/usr/bin/env bash
+#
+# 起動時間・初回リクエストのレイテンシの計測
+#
+# 次の3つの構成でアプリケーションをRUNS回（デフォルト5回）ずつ起動し、中央値を出力する。
+#   default  : 現在の設定（ddl-auto=update・schema.sqlの実行あり）
+#   prod     : prodプロファイル（スキーマの検証のみ）
+#   prod-aot : prodプロファイル + AOT処理済みのjar + CDSアーカイブ
+#
+# 計測項目
+#   started : ログの「Started DiaryApplication in X seconds」（JVM起動からコンテキストの起動完了まで）
+#   ready   : プロセスの起動から/actuator/healthが200を返すまで
+#   first   : 起動後の最初のGET /diary/?limit=20の所要時間
+#
+# 実行前にMySQLを起動し、schema.sqlでテーブルを作成しておくこと。
+# 使い方: scripts/startup-benchmark.sh [RUNS]
+
+set -euo pipefail
+
+cd "$(dirname "$0")/.."
+
+RUNS="${1:-5}"
+PORT="${PORT:-8080}"
+WORK_DIR=target/startup-benchmark
+JAR_NAME=diary-0.0.1-SNAPSHOT.jar
+
+mkdir -p "$WORK_DIR"
+
+echo "building default jar..."
+./mvnw -q -DskipTests package
+cp "target/$JAR_NAME" "$WORK_DIR/default.jar"
+
+echo "building AOT jar..."
+./mvnw -q -DskipTests -Pstartup package
+rm -rf "$WORK_DIR/aot"
+java -Djarmode=tools -jar "target/$JAR_NAME" extract --destination "$WORK_DIR/aot"
+
+echo "creating CDS archive..."
+# コンテキストの起動完了時に終了する学習実行で、読み込んだクラスをアーカイブに出力する
+java -XX:ArchiveClassesAtExit="$WORK_DIR/aot/application.jsa" \
+  -Dspring.context.exit=onRefresh -Dspring.aot.enabled=true -Dspring.profiles.active=prod \
+  -jar "$WORK_DIR/aot/$JAR_NAME" > "$WORK_DIR/cds-training.log" 2>&1
+
+# 1回起動して計測し、「started ready first」を出力
+run_once() {
+  local log_file="$WORK_DIR/run.log"
+  local start end ready_ms first_ms started
+  start=$(date +%s%N)
+  java "$@" --server.port="$PORT" > "$log_file" 2>&1 &
+  local pid=$!
+  until curl -sf "http://localhost:$PORT/actuator/health" > /dev/null; do
+    if ! kill -0 "$pid" 2> /dev/null; then
+      echo "application exited, see $log_file" >&2
+      exit 1
+    fi
+    sleep 0.05
+  done
+  end=$(date +%s%N)
+  ready_ms=$(((end - start) / 1000000))
+  first_ms=$(curl -s -o /dev/null -w '%{time_total}' "http://localhost:$PORT/diary/?limit=20" | awk '{printf "%d", $1 * 1000}')
+  started=$(sed -n 's/.*Started DiaryApplication in \([0-9.]*\) seconds.*/\1/p' "$log_file")
+  kill "$pid"
+  wait "$pid" 2> /dev/null || true
+  echo "$started $ready_ms $first_ms"
+}
+
+# RUNS回起動し、各計測項目の中央値を出力
+measure() {
+  local name=$1
+  shift
+  local results=()
+  for ((i = 0; i < RUNS; i++)); do
+    results+=("$(run_once "$@")")
+  done
+  printf '%s\n' "${results[@]}" | awk -v name="$name" '
+    { started[NR] = $1; ready[NR] = $2; first[NR] = $3 }
+    function median(values, n,    i, j, t) {
+      for (i = 1; i <= n; i++) for (j = i + 1; j <= n; j++) if (values[j] < values[i]) { t = values[i]; values[i] = values[j]; values[j] = t }
+      return n % 2 ? values[(n + 1) / 2] : (values[n / 2] + values[n / 2 + 1]) / 2
+    }
+    END { printf "%-10s %12.3f %12d %12d\n", name, median(started, NR), median(ready, NR), median(first, NR) }'
+}
+
+printf '%-10s %12s %12s %12s\n' "setup" "started(s)" "ready(ms)" "first(ms)"
+measure default -jar "$WORK_DIR/default.jar"
+measure prod -Dspring.profiles.active=prod -jar "$WORK_DIR/default.jar"
+measure prod-aot -XX:SharedArchiveFile="$WORK_DIR/aot/application.jsa" \
+  -Dspring.aot.enabled=true -Dspring.profiles.active=prod -jar "$WORK_DIR/aot/$JAR_NAME"
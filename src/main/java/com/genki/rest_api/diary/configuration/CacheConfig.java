@@ -0,0 +1,39 @@
+package com.genki.rest_api.diary.configuration;
+
+import com.genki.rest_api.diary.dto.DiaryResponseDto;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+
+@Configuration
+public class CacheConfig {
+
+    /**
+     * 日記1件取得のキャッシュ
+     * <p>
+     * 件数上限とTTLで追い出し、ヒット・ミス・追い出し件数はcache.*メトリクスとして公開する
+     *
+     * @param maximumSize      最大件数
+     * @param expireAfterWrite 登録後の有効期間
+     * @param meterRegistry    メーターレジストリ
+     * @return 日記ID -> 日記レスポンスDTOのキャッシュ
+     */
+    @Bean
+    public Cache<Long, DiaryResponseDto> diaryCache(
+            @Value("${diary.cache.maximum-size}") long maximumSize,
+            @Value("${diary.cache.expire-after-write}") Duration expireAfterWrite,
+            MeterRegistry meterRegistry) {
+        Cache<Long, DiaryResponseDto> diaryCache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWrite)
+                .recordStats()
+                .build();
+        return CaffeineCacheMetrics.monitor(meterRegistry, diaryCache, "diary");
+    }
+}
@@ -0,0 +1,104 @@
+package com.genki.rest_api.diary.configuration;
+
+import com.genki.rest_api.diary.repository.DiaryReplicaDataSource;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.sql.DataSource;
+import java.time.Duration;
+
+/**
+ * 読み取りをレプリカに振り分けるデータソースの設定
+ * <p>
+ * diary.datasource.replica.enabled=trueの場合のみ有効。プライマリはspring.datasource、
+ * レプリカはdiary.datasource.replicaの設定で接続する
+ */
+@Configuration
+@ConditionalOnProperty(name = "diary.datasource.replica.enabled", havingValue = "true")
+public class DataSourceConfig {
+
+    @Bean
+    @Primary
+    @ConfigurationProperties("spring.datasource")
+    public DataSourceProperties primaryDataSourceProperties() {
+        return new DataSourceProperties();
+    }
+
+    @Bean
+    @ConfigurationProperties("diary.datasource.replica")
+    public DataSourceProperties replicaDataSourceProperties() {
+        return new DataSourceProperties();
+    }
+
+    @Bean
+    @ConfigurationProperties("spring.datasource.hikari")
+    public HikariDataSource primaryDataSource(
+            @Qualifier("primaryDataSourceProperties") DataSourceProperties primaryDataSourceProperties) {
+        return primaryDataSourceProperties.initializeDataSourceBuilder()
+                .type(HikariDataSource.class)
+                .build();
+    }
+
+    @Bean
+    @ConfigurationProperties("diary.datasource.replica.hikari")
+    public HikariDataSource replicaDataSource(
+            @Qualifier("replicaDataSourceProperties") DataSourceProperties replicaDataSourceProperties) {
+        HikariDataSource replicaDataSource = replicaDataSourceProperties.initializeDataSourceBuilder()
+                .type(HikariDataSource.class)
+                .build();
+        replicaDataSource.setReadOnly(true);
+        return replicaDataSource;
+    }
+
+    /**
+     * 読み取り専用トランザクション用のデータソース
+     *
+     * @param primaryDataSource プライマリ
+     * @param replicaDataSource レプリカ
+     * @param meterRegistry     メーターレジストリ
+     * @param lagQuery          レプリカの遅延秒数を取得するクエリ
+     * @param maxLag            レプリカから読み取る遅延の上限
+     * @param fallbackOnLag     遅延がmax-lagを超えた場合にプライマリから読み取るか
+     * @return 遅延に応じてプライマリ・レプリカを切り替えるデータソース
+     */
+    @Bean
+    public DiaryReplicaDataSource diaryReplicaDataSource(
+            @Qualifier("primaryDataSource") DataSource primaryDataSource,
+            @Qualifier("replicaDataSource") DataSource replicaDataSource,
+            MeterRegistry meterRegistry,
+            @Value("${diary.datasource.replica.lag-query}") String lagQuery,
+            @Value("${diary.datasource.replica.max-lag}") Duration maxLag,
+            @Value("${diary.datasource.replica.fallback-on-lag}") boolean fallbackOnLag) {
+        return new DiaryReplicaDataSource(
+                primaryDataSource, replicaDataSource, meterRegistry, lagQuery, maxLag, fallbackOnLag);
+    }
+
+    /**
+     * JPA・JDBCで使うデータソース
+     * <p>
+     * トランザクション開始時には接続を取得せず、最初のSQLの実行時に読み取り専用トランザクションであれば
+     * diaryReplicaDataSource、それ以外はプライマリから接続を取得する
+     *
+     * @param primaryDataSource      プライマリ
+     * @param diaryReplicaDataSource 読み取り専用トランザクション用のデータソース
+     * @return データソース
+     */
+    @Bean
+    @Primary
+    public DataSource dataSource(
+            @Qualifier("primaryDataSource") DataSource primaryDataSource,
+            DiaryReplicaDataSource diaryReplicaDataSource) {
+        LazyConnectionDataSourceProxy dataSource = new LazyConnectionDataSourceProxy(primaryDataSource);
+        dataSource.setReadOnlyDataSource(diaryReplicaDataSource);
+        return dataSource;
+    }
+}
@@ -0,0 +1,24 @@
+package com.genki.rest_api.diary.configuration;
+
+import io.micrometer.core.aop.TimedAspect;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class MetricsConfig {
+
+    /**
+     * {@code @Timed}を付けたクラス・メソッドの所要時間を記録
+     * <p>
+     * コントローラーはhttp.server.requests、Spring DataのリポジトリはSpring Boot標準の
+     * spring.data.repository.invocationsとして記録される
+     *
+     * @param meterRegistry メーターレジストリ
+     * @return TimedAspect
+     */
+    @Bean
+    public TimedAspect timedAspect(MeterRegistry meterRegistry) {
+        return new TimedAspect(meterRegistry);
+    }
+}
@@ -0,0 +1,12 @@
+package com.genki.rest_api.diary.configuration;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableScheduling;
+
+/**
+ * 定期処理（画像削除の再試行・孤立した画像の削除）を有効化
+ */
+@Configuration
+@EnableScheduling
+public class SchedulingConfig {
+}
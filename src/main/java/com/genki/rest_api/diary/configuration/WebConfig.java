@@ -1,8 +1,10 @@
 package com.genki.rest_api.diary.configuration;
 
+import com.genki.rest_api.diary.interceptor.DiaryThrottleInterceptor;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 @Configuration
@@ -15,9 +17,26 @@ public class WebConfig {
             public void addCorsMappings(CorsRegistry registry) {
                 registry.addMapping("/**") // 全エンドポイントに適用
                         .allowedOrigins("http://localhost:5173") // ReactアプリのURL
-                        .allowedMethods("GET", "POST", "PUT", "DELETE") // 許可するHTTPメソッド
-                        .allowedHeaders("*"); // 全てのヘッダーを許可
+                        .allowedMethods("GET", "POST", "PUT", "PATCH", "DELETE") // 許可するHTTPメソッド
+                        .allowedHeaders("*") // 全てのヘッダーを許可
+                        .exposedHeaders("Upload-Offset", "Location"); // 分割アップロードの再開位置
             }
         };
     }
-}
\ No newline at end of file
+
+    /**
+     * {@code @Throttled}を付けたAPIの流量制限
+     *
+     * @param diaryThrottleInterceptor 流量制限インターセプター
+     * @return WebMvcConfigurer
+     */
+    @Bean
+    public WebMvcConfigurer throttleConfigurer(DiaryThrottleInterceptor diaryThrottleInterceptor) {
+        return new WebMvcConfigurer() {
+            @Override
+            public void addInterceptors(InterceptorRegistry registry) {
+                registry.addInterceptor(diaryThrottleInterceptor);
+            }
+        };
+    }
+}
@@ -1,40 +1,76 @@
 package com.genki.rest_api.diary.controller;
 
+import com.genki.rest_api.diary.dto.DiaryCalendarResponseDto;
+import com.genki.rest_api.diary.dto.DiaryPageResponseDto;
 import com.genki.rest_api.diary.dto.DiaryResponseDto;
 import com.genki.rest_api.diary.form.DairySearchForm;
+import com.genki.rest_api.diary.form.DiaryBatchRegistrationForm;
+import com.genki.rest_api.diary.form.DiaryCalendarForm;
 import com.genki.rest_api.diary.form.DiaryRegistrationForm;
 import com.genki.rest_api.diary.form.DiaryUpdateForm;
+import com.genki.rest_api.diary.service.DiaryJsonCache;
+import com.genki.rest_api.diary.interceptor.Throttled;
+import com.genki.rest_api.diary.service.DiaryImage;
+import com.genki.rest_api.diary.service.DiaryImageMetadata;
 import com.genki.rest_api.diary.service.DiaryService;
+import com.genki.rest_api.diary.service.DiaryThrottleService;
 import io.micrometer.common.util.StringUtils;
-import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.util.DigestUtils;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import java.nio.file.Path;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.List;
 
 /**
  * 日記コントローラー
  */
-@RequiredArgsConstructor
 @RestController
 @RequestMapping("/diary")
 public class DiaryController {
     private final DiaryService diaryService;
+    private final DiaryJsonCache diaryJsonCache;
+
+    /**
+     * 日時の保存に使うタイムゾーン（Last-Modifiedへの変換に使う）
+     */
+    private final ZoneId zoneId;
+
+    public DiaryController(
+            DiaryService diaryService,
+            DiaryJsonCache diaryJsonCache,
+            @Value("${spring.jpa.properties.hibernate.jdbc.time_zone}") ZoneId zoneId) {
+        this.diaryService = diaryService;
+        this.diaryJsonCache = diaryJsonCache;
+        this.zoneId = zoneId;
+    }
 
     /**
      * 日記登録API
+     * <p>
+     * クライアントごとのリクエスト数・バイト数の上限を超えた場合や過負荷の場合は429 Too Many Requestsを返す
      *
      * @param diaryRegistrationForm 日記登録フォーム
      * @return 日記レスポンスDTO
      */
     @PostMapping("/")
     @ResponseStatus(HttpStatus.CREATED)
+    @Throttled(DiaryThrottleService.EndpointClass.UPLOAD)
     public DiaryResponseDto registerDiary(
             @Validated DiaryRegistrationForm diaryRegistrationForm,
             @RequestParam("diaryImage") MultipartFile multipartFile) {
@@ -42,55 +78,185 @@ public class DiaryController {
     }
 
     /**
-     * 日記取得API（複数件）
+     * 日記一括登録API
+     * <p>
+     * 画像なしの日記をまとめて登録する。1件でも登録できない場合は全件を登録しない
      *
+     * @param diaryBatchRegistrationForm 日記一括登録フォーム
      * @return 日記レスポンスDTOリスト
      */
+    @PostMapping("/batch")
+    @ResponseStatus(HttpStatus.CREATED)
+    public List<DiaryResponseDto> registerDiaries(
+            @RequestBody @Validated DiaryBatchRegistrationForm diaryBatchRegistrationForm) {
+        return diaryService.registerDiaries(diaryBatchRegistrationForm);
+    }
+
+    /**
+     * 日記取得API（複数件）
+     * <p>
+     * 作成日時の降順でページングして返す。次ページはレスポンスのnextをcursorに指定して取得する。
+     * qを指定した場合はタイトル・本文を全文検索し、スコアの高い順に最大limit件を返す。
+     * from・toを指定した場合は作成日がその範囲内の日記のみを返す（qを指定した場合は無視する）。
+     * view=summaryを指定した場合は本文を含まないサマリーを返す。
+     * 本文を含む場合はキャッシュ済みの日記ごとのJSONから組み立てる
+     *
+     * @param diarySearchForm 日記検索フォーム
+     * @return 日記ページレスポンスDTO
+     */
     @GetMapping("/")
-    public List<DiaryResponseDto> getDiaries(@Validated DairySearchForm diarySearchForm) {
-        if (StringUtils.isNotBlank(diarySearchForm.title())) {
-            return diaryService.getDiaries(diarySearchForm.title());
+    public ResponseEntity<?> getDiaries(@Validated DairySearchForm diarySearchForm) {
+        if (diarySearchForm.isSummary()) {
+            return ResponseEntity.ok(StringUtils.isNotBlank(diarySearchForm.q())
+                    ? diaryService.searchDiarySummaries(diarySearchForm.q(), diarySearchForm.limit())
+                    : diaryService.getDiarySummaryPage(
+                    diarySearchForm.title(), diarySearchForm.from(), diarySearchForm.to(),
+                    diarySearchForm.limit(), diarySearchForm.cursor()));
         }
-        return diaryService.getAllDiaries();
+        DiaryPageResponseDto<DiaryResponseDto> diaryPageResponseDto = StringUtils.isNotBlank(diarySearchForm.q())
+                ? diaryService.searchDiaries(diarySearchForm.q(), diarySearchForm.limit())
+                : diaryService.getDiaryPage(
+                diarySearchForm.title(), diarySearchForm.from(), diarySearchForm.to(),
+                diarySearchForm.limit(), diarySearchForm.cursor());
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(diaryJsonCache.getPageJson(diaryPageResponseDto));
+    }
+
+    /**
+     * 日記取得API（全件）
+     * <p>
+     * all=trueを明示した場合のみ、ページングせずに全件を返す
+     *
+     * @param diarySearchForm 日記検索フォーム
+     * @return 日記レスポンスDTOリスト
+     */
+    @GetMapping(value = "/", params = "all=true")
+    public ResponseEntity<byte[]> getAllDiaries(@Validated DairySearchForm diarySearchForm) {
+        List<DiaryResponseDto> diaryResponseDtoList = StringUtils.isNotBlank(diarySearchForm.title())
+                ? diaryService.getDiaries(diarySearchForm.title())
+                : diaryService.getAllDiaries();
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(diaryJsonCache.getListJson(diaryResponseDtoList));
+    }
+
+    /**
+     * 日記カレンダー取得API
+     * <p>
+     * 指定した月の日記の件数を作成日ごとに返す
+     *
+     * @param diaryCalendarForm 日記カレンダー取得フォーム
+     * @return 日記カレンダーレスポンスDTO
+     */
+    @GetMapping("/calendar")
+    public DiaryCalendarResponseDto getCalendar(@Validated DiaryCalendarForm diaryCalendarForm) {
+        return diaryService.getCalendar(diaryCalendarForm.year(), diaryCalendarForm.month());
+    }
+
+    /**
+     * 日記エクスポートAPI
+     * <p>
+     * 全件を1行1件のNDJSON形式でストリーミングする
+     *
+     * @return 日記NDJSONストリーム
+     */
+    @GetMapping("/export")
+    public ResponseEntity<StreamingResponseBody> exportDiaries() {
+        HttpHeaders httpHeaders = new HttpHeaders();
+        httpHeaders.setContentType(MediaType.APPLICATION_NDJSON);
+        httpHeaders.setContentDisposition(ContentDisposition.attachment().filename("diary.ndjson").build());
+        StreamingResponseBody streamingResponseBody = diaryService::exportDiaries;
+        return new ResponseEntity<>(streamingResponseBody, httpHeaders, HttpStatus.OK);
     }
 
     /**
      * 日記取得API（1件）
+     * <p>
+     * If-None-Match・If-Modified-Sinceが最新の日記と一致する場合は304 Not Modifiedを返す。
+     * キャッシュ済みのJSONを返し、Accept-Encodingにgzipを含む場合は圧縮済みのJSONを返す。
+     * 強いETagはバイト列ごとに変える必要があるため、圧縮したレスポンスのETagには-gzを付ける
      *
-     * @param id ID
+     * @param id         ID
+     * @param webRequest リクエスト
      * @return 日記レスポンスDTO
      */
     @GetMapping("/{id}")
-    public DiaryResponseDto getDiary(@PathVariable("id") long id) {
-        return diaryService.getDiaryById(id);
+    public ResponseEntity<byte[]> getDiary(@PathVariable("id") long id, WebRequest webRequest) {
+        DiaryResponseDto diaryResponseDto = diaryService.getDiaryById(id);
+        byte[] gzip = acceptsGzip(webRequest) ? diaryJsonCache.getGzip(diaryResponseDto) : null;
+        String eTag = createETag(id, diaryResponseDto.updatedAt(), diaryResponseDto.imagePath(), gzip != null);
+        if (webRequest.checkNotModified(eTag, toEpochMilli(diaryResponseDto.updatedAt()))) {
+            // 共有キャッシュが304をもとに別のエンコーディングのレスポンスを使わないよう、304にもVaryを付ける
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                    .varyBy(HttpHeaders.ACCEPT_ENCODING)
+                    .build();
+        }
+        ResponseEntity.BodyBuilder bodyBuilder = ResponseEntity.ok()
+                .cacheControl(CacheControl.noCache())
+                .contentType(MediaType.APPLICATION_JSON)
+                .varyBy(HttpHeaders.ACCEPT_ENCODING);
+        if (gzip != null) {
+            return bodyBuilder.header(HttpHeaders.CONTENT_ENCODING, "gzip").body(gzip);
+        }
+        return bodyBuilder.body(diaryJsonCache.getJson(diaryResponseDto));
     }
 
     /**
      * 日記画像取得API
+     * <p>
+     * sizeを指定した場合は長辺がsize以上で最も小さい縮小画像を返す（作成中の場合は元画像を返す）。
+     * Rangeヘッダが指定された場合は206 Partial Contentで指定範囲のみを返す。
+     * If-None-Match・If-Modified-Sinceが最新の画像と一致する場合は画像ファイルを開かずに304 Not Modifiedを返す。
+     * 元画像はアップロード時に保存したメタデータからContent-Type・Content-Lengthを設定し、HEADリクエストには画像ファイルを開かずに応答する
      *
-     * @param id ID
+     * @param id         ID
+     * @param size       長辺のピクセル数
+     * @param webRequest リクエスト
      * @return 日記画像
      */
     @GetMapping("{id}/image")
-    public ResponseEntity<byte[]> getDiaryImage(@PathVariable("id") long id) {
-        Path diaryImagePath = diaryService.getImagePathById(id);
-        byte[] diaryByteImage = diaryService.readImageAsBytes(diaryImagePath, id);
-        MediaType contentType = diaryService.getMediaType(diaryImagePath.getFileName().toString());
-
+    public ResponseEntity<Resource> getDiaryImage(
+            @PathVariable("id") long id,
+            @RequestParam(name = "size", required = false) Integer size,
+            WebRequest webRequest) {
+        DiaryResponseDto diaryResponseDto = diaryService.getDiaryById(id);
+        DiaryImage diaryImage = diaryService.getImageById(id, size);
+        // Last-Modifiedと同じく日記の更新日時で変わるようにし、2つの検証子で判定が食い違わないようにする
+        String eTag = createETag(id, diaryResponseDto.updatedAt(), diaryImage.key());
+        if (webRequest.checkNotModified(eTag, toEpochMilli(diaryResponseDto.updatedAt()))) {
+            return null;
+        }
+        DiaryImageMetadata diaryImageMetadata = diaryImage.metadata();
         HttpHeaders httpHeaders = new HttpHeaders();
-        httpHeaders.setContentType(contentType);
-        httpHeaders.setContentLength(diaryByteImage.length);
-        return new ResponseEntity<>(diaryByteImage, httpHeaders, HttpStatus.OK);
+        httpHeaders.setCacheControl(CacheControl.noCache());
+        if (diaryImageMetadata == null) {
+            httpHeaders.setContentType(diaryService.getMediaType(diaryImage.imagePath()));
+            return new ResponseEntity<>(diaryService.getImageResource(diaryImage, id), httpHeaders, HttpStatus.OK);
+        }
+        httpHeaders.setContentType(MediaType.parseMediaType(diaryImageMetadata.contentType()));
+        // 部分取得の場合のContent-Lengthは指定範囲から算出される
+        if (webRequest.getHeader(HttpHeaders.RANGE) == null) {
+            httpHeaders.setContentLength(diaryImageMetadata.contentLength());
+        }
+        if (webRequest instanceof ServletWebRequest servletWebRequest
+                && HttpMethod.HEAD.equals(servletWebRequest.getHttpMethod())) {
+            return new ResponseEntity<>(httpHeaders, HttpStatus.OK);
+        }
+        return new ResponseEntity<>(diaryService.getImageResource(diaryImage, id), httpHeaders, HttpStatus.OK);
     }
 
     /**
      * 日記更新API
+     * <p>
+     * クライアントごとのリクエスト数・バイト数の上限を超えた場合や過負荷の場合は429 Too Many Requestsを返す
      *
      * @param id              ID
      * @param diaryUpdateForm 日記更新フォーム
      * @return 日記レスポンスDTO
      */
     @PutMapping("/{id}")
+    @Throttled(DiaryThrottleService.EndpointClass.UPLOAD)
     public DiaryResponseDto updateDiary(
             @PathVariable("id") long id,
             @Validated DiaryUpdateForm diaryUpdateForm,
@@ -108,4 +274,62 @@ public class DiaryController {
     public void deleteDiary(@PathVariable("id") long id) {
         diaryService.deleteDiary(id);
     }
+
+    /**
+     * 強いETagを作成
+     *
+     * @param id        ID
+     * @param updatedAt 更新日時
+     * @param imagePath 画像パス
+     * @return ETag
+     */
+    private String createETag(long id, LocalDateTime updatedAt, String imagePath) {
+        return createETag(id, updatedAt, imagePath, false);
+    }
+
+    /**
+     * 強いETagを作成
+     *
+     * @param id        ID
+     * @param updatedAt 更新日時
+     * @param imagePath 画像パス
+     * @param gzip      true=gzip圧縮したレスポンス
+     * @return ETag
+     */
+    private String createETag(long id, LocalDateTime updatedAt, String imagePath, boolean gzip) {
+        String source = id + ":" + updatedAt + ":" + imagePath;
+        return "\"" + DigestUtils.md5DigestAsHex(source.getBytes(StandardCharsets.UTF_8)) + (gzip ? "-gz" : "") + "\"";
+    }
+
+    /**
+     * Accept-Encodingにgzipを含むか
+     *
+     * @param webRequest リクエスト
+     * @return true=gzipを受け付ける
+     */
+    private boolean acceptsGzip(WebRequest webRequest) {
+        String acceptEncoding = webRequest.getHeader(HttpHeaders.ACCEPT_ENCODING);
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.trim().split("\\s*;\\s*");
+            if ("gzip".equalsIgnoreCase(parameters[0])) {
+                return parameters.length == 1 || !parameters[1].matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 日時をエポックミリ秒に変換
+     * <p>
+     * DBの日時はhibernate.jdbc.time_zoneのタイムゾーンで保存されているため、JVMのデフォルトではなくそのタイムゾーンで変換する
+     *
+     * @param localDateTime 日時
+     * @return エポックミリ秒
+     */
+    private long toEpochMilli(LocalDateTime localDateTime) {
+        return localDateTime.atZone(zoneId).toInstant().toEpochMilli();
+    }
 }
@@ -0,0 +1,143 @@
+package com.genki.rest_api.diary.controller;
+
+import com.genki.rest_api.diary.dto.DiaryImageUploadResponseDto;
+import com.genki.rest_api.diary.dto.DiaryResponseDto;
+import com.genki.rest_api.diary.form.DiaryImageUploadForm;
+import com.genki.rest_api.diary.interceptor.Throttled;
+import com.genki.rest_api.diary.service.DiaryImageUploadService;
+import com.genki.rest_api.diary.service.DiaryThrottleService;
+import jakarta.servlet.http.HttpServletRequest;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.validation.annotation.Validated;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.InputStream;
+import java.net.URI;
+
+/**
+ * 日記画像分割アップロードコントローラー
+ * <p>
+ * 画像を複数のチャンクに分けて送信する。通信が切れた場合は受信済みのバイト数（Upload-Offset）から再開できる
+ * <ol>
+ *     <li>POST /diary/{id}/image/uploads でアップロードを開始</li>
+ *     <li>PATCH /diary/{id}/image/uploads/{uploadId} でUpload-Offsetにチャンクの先頭位置を指定して送信</li>
+ *     <li>POST /diary/{id}/image/uploads/{uploadId}/complete で日記画像として保存</li>
+ * </ol>
+ */
+@RequiredArgsConstructor
+@RestController
+@RequestMapping("/diary/{id}/image/uploads")
+public class DiaryImageUploadController {
+    static final String UPLOAD_OFFSET = "Upload-Offset";
+
+    private final DiaryImageUploadService diaryImageUploadService;
+
+    /**
+     * 日記画像アップロード開始API
+     * <p>
+     * 開始はクライアントごとのリクエスト数の制限の対象とする。
+     * アップロード中の件数が全体またはクライアントごとの上限に達している場合は429 Too Many Requestsを返す
+     *
+     * @param id                   ID
+     * @param diaryImageUploadForm 日記画像アップロード開始フォーム
+     * @param request              リクエスト
+     * @return 日記画像アップロードレスポンスDTO
+     */
+    @PostMapping
+    @Throttled(DiaryThrottleService.EndpointClass.UPLOAD)
+    public ResponseEntity<DiaryImageUploadResponseDto> startUpload(
+            @PathVariable("id") long id,
+            @RequestBody @Validated DiaryImageUploadForm diaryImageUploadForm,
+            HttpServletRequest request) {
+        DiaryImageUploadResponseDto diaryImageUploadResponseDto =
+                diaryImageUploadService.start(id, diaryImageUploadForm, request.getRemoteAddr());
+        return ResponseEntity.created(URI.create("/diary/" + id + "/image/uploads/" + diaryImageUploadResponseDto.uploadId()))
+                .header(UPLOAD_OFFSET, String.valueOf(diaryImageUploadResponseDto.offset()))
+                .body(diaryImageUploadResponseDto);
+    }
+
+    /**
+     * 日記画像アップロード状態取得API
+     * <p>
+     * 再開時はレスポンスのoffset（Upload-Offset）からチャンクを送信する
+     *
+     * @param id       ID
+     * @param uploadId アップロードID
+     * @return 日記画像アップロードレスポンスDTO
+     */
+    @GetMapping("/{uploadId}")
+    public ResponseEntity<DiaryImageUploadResponseDto> getUpload(
+            @PathVariable("id") long id,
+            @PathVariable("uploadId") String uploadId) {
+        return toResponse(diaryImageUploadService.get(id, uploadId));
+    }
+
+    /**
+     * 日記画像チャンク送信API
+     * <p>
+     * Upload-Offsetが受信済みのバイト数と一致しない場合は409 Conflictと受信済みのバイト数を返す。
+     * チャンクは開始と同じ画像の一部のため、クライアントごとのバイト数のみ消費する（リクエスト数は消費しない）。
+     * バイト数の上限を超えた場合や過負荷の場合は429 Too Many Requestsを返す
+     *
+     * @param id          ID
+     * @param uploadId    アップロードID
+     * @param offset      チャンクの先頭のオフセット
+     * @param inputStream チャンク
+     * @return 日記画像アップロードレスポンスDTO
+     */
+    @PatchMapping("/{uploadId}")
+    @Throttled(value = DiaryThrottleService.EndpointClass.UPLOAD, countsRequest = false)
+    public ResponseEntity<DiaryImageUploadResponseDto> appendChunk(
+            @PathVariable("id") long id,
+            @PathVariable("uploadId") String uploadId,
+            @RequestHeader(UPLOAD_OFFSET) long offset,
+            InputStream inputStream) {
+        return toResponse(diaryImageUploadService.append(id, uploadId, offset, inputStream));
+    }
+
+    /**
+     * 日記画像アップロード完了API
+     * <p>
+     * すべてのチャンクを受信済みの場合に日記画像として保存する
+     *
+     * @param id       ID
+     * @param uploadId アップロードID
+     * @return 日記レスポンスDTO
+     */
+    @PostMapping("/{uploadId}/complete")
+    public DiaryResponseDto completeUpload(
+            @PathVariable("id") long id,
+            @PathVariable("uploadId") String uploadId) {
+        return diaryImageUploadService.complete(id, uploadId);
+    }
+
+    /**
+     * 日記画像アップロード中止API
+     *
+     * @param id       ID
+     * @param uploadId アップロードID
+     */
+    @DeleteMapping("/{uploadId}")
+    @ResponseStatus(HttpStatus.NO_CONTENT)
+    public void cancelUpload(
+            @PathVariable("id") long id,
+            @PathVariable("uploadId") String uploadId) {
+        diaryImageUploadService.cancel(id, uploadId);
+    }
+
+    /**
+     * 受信済みのバイト数をUpload-Offsetヘッダに設定したレスポンスを作成
+     *
+     * @param diaryImageUploadResponseDto 日記画像アップロードレスポンスDTO
+     * @return レスポンス
+     */
+    private ResponseEntity<DiaryImageUploadResponseDto> toResponse(DiaryImageUploadResponseDto diaryImageUploadResponseDto) {
+        return ResponseEntity.ok()
+                .cacheControl(CacheControl.noStore())
+                .header(UPLOAD_OFFSET, String.valueOf(diaryImageUploadResponseDto.offset()))
+                .body(diaryImageUploadResponseDto);
+    }
+}
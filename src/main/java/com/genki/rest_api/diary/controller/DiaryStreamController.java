@@ -0,0 +1,41 @@
+package com.genki.rest_api.diary.controller;
+
+import com.genki.rest_api.diary.service.DiaryChangeFeed;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/**
+ * 日記変更フィードコントローラー
+ * <p>
+ * 日記の一覧をポーリングせずに、登録・更新・削除をServer-Sent Eventsで受け取る
+ * <ul>
+ *     <li>created・updated: dataに日記変更イベント（変更後の日記を含む）</li>
+ *     <li>deleted: dataに日記変更イベント（日記IDのみ）</li>
+ *     <li>reset: 切断中のイベントを再送できないため、一覧を再取得すること</li>
+ * </ul>
+ */
+@RequiredArgsConstructor
+@RestController
+@RequestMapping("/diary")
+public class DiaryStreamController {
+    private final DiaryChangeFeed diaryChangeFeed;
+
+    /**
+     * 日記変更フィードAPI
+     * <p>
+     * Last-Event-IDを指定した場合は、そのイベントより後のイベントを再送してから配信する
+     *
+     * @param lastEventId 最後に受信したイベントID
+     * @return SSEエミッター
+     */
+    @GetMapping(value = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamDiaryChanges(
+            @RequestHeader(name = "Last-Event-ID", required = false) String lastEventId) {
+        return diaryChangeFeed.subscribe(lastEventId);
+    }
+}
@@ -0,0 +1,17 @@
+package com.genki.rest_api.diary.dto;
+
+import java.time.LocalDate;
+
+/**
+ * 日記カレンダーの日別件数レスポンスDTO
+ * <p>
+ * リポジトリのコンストラクタ式でGROUP BYの結果から直接生成する
+ *
+ * @param date  作成日
+ * @param count 日記の件数
+ */
+public record DiaryCalendarDayResponseDto(
+        LocalDate date,
+        long count
+) {
+}
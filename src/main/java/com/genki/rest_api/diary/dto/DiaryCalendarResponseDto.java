@@ -0,0 +1,17 @@
+package com.genki.rest_api.diary.dto;
+
+import java.util.List;
+
+/**
+ * 日記カレンダーレスポンスDTO
+ *
+ * @param year  年
+ * @param month 月
+ * @param days  日別件数リスト（日記のある日のみ、日付の昇順）
+ */
+public record DiaryCalendarResponseDto(
+        int year,
+        int month,
+        List<DiaryCalendarDayResponseDto> days
+) {
+}
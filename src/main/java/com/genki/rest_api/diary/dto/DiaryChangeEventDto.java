@@ -0,0 +1,15 @@
+package com.genki.rest_api.diary.dto;
+
+/**
+ * 日記変更イベントDTO
+ *
+ * @param type  変更の種類（created・updated・deleted）
+ * @param id    日記ID
+ * @param diary 変更後の日記（削除の場合はnull）
+ */
+public record DiaryChangeEventDto(
+        String type,
+        long id,
+        DiaryResponseDto diary
+) {
+}
@@ -0,0 +1,19 @@
+package com.genki.rest_api.diary.dto;
+
+import java.time.LocalDateTime;
+
+/**
+ * 日記画像アップロードレスポンスDTO
+ *
+ * @param uploadId  アップロードID
+ * @param offset    受信済みのバイト数（次のチャンクのオフセット）
+ * @param size      画像全体のバイト数
+ * @param expiresAt 有効期限（以降はチャンクを受け付けない）
+ */
+public record DiaryImageUploadResponseDto(
+        String uploadId,
+        long offset,
+        long size,
+        LocalDateTime expiresAt
+) {
+}
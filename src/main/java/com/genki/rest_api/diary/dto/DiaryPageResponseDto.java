@@ -0,0 +1,16 @@
+package com.genki.rest_api.diary.dto;
+
+import java.util.List;
+
+/**
+ * 日記ページレスポンスDTO
+ *
+ * @param diaries 日記レスポンスDTOリスト（view=summaryの場合は日記サマリーレスポンスDTOリスト）
+ * @param next    次ページ取得用カーソル（最終ページの場合はnull）
+ * @param <T>     日記レスポンスDTOの型
+ */
+public record DiaryPageResponseDto<T>(
+        List<T> diaries,
+        String next
+) {
+}
@@ -0,0 +1,21 @@
+package com.genki.rest_api.diary.dto;
+
+import java.time.LocalDateTime;
+
+/**
+ * 日記サマリーレスポンスDTO
+ * <p>
+ * 一覧表示用に本文を除いた項目のみを持つ。リポジトリのコンストラクタ式で直接生成するため、本文は読み込まれない
+ *
+ * @param id        日記ID
+ * @param title     日記タイトル
+ * @param imagePath 画像パス
+ * @param createdAt 登録日時
+ */
+public record DiarySummaryResponseDto(
+        long id,
+        String title,
+        String imagePath,
+        LocalDateTime createdAt
+) {
+}
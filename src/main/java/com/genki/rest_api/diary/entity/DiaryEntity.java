@@ -3,6 +3,7 @@ package com.genki.rest_api.diary.entity;
 import jakarta.persistence.*;
 import lombok.Data;
 import org.hibernate.annotations.CreationTimestamp;
+import org.hibernate.annotations.FractionalSeconds;
 import org.hibernate.annotations.UpdateTimestamp;
 
 import java.time.LocalDateTime;
@@ -12,7 +13,7 @@ import java.time.LocalDateTime;
  */
 @Data
 @Entity
-@Table(name = "diary")
+@Table(name = "diary", indexes = @Index(name = "idx_diary_created_at_id", columnList = "created_at, id"))
 public class DiaryEntity {
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
@@ -22,11 +23,19 @@ public class DiaryEntity {
 
     private String content;
 
+    /**
+     * schema.sqlではtext型のため、ddl-auto=validateで型が一致するよう列定義を指定する
+     */
+    @Column(columnDefinition = "text")
     private String imagePath;
 
     @CreationTimestamp
     private LocalDateTime createdAt;
 
+    /**
+     * 1秒以内の更新でも値が変わるよう、schema.sqlと同じくマイクロ秒まで保持する（ETag・日記JSONキャッシュのキーに使う）
+     */
     @UpdateTimestamp
+    @FractionalSeconds(6)
     private LocalDateTime updatedAt;
 }
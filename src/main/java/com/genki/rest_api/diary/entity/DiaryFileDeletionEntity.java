@@ -0,0 +1,33 @@
+package com.genki.rest_api.diary.entity;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import lombok.Data;
+import org.hibernate.annotations.CreationTimestamp;
+
+import java.time.LocalDateTime;
+
+/**
+ * 日記画像削除エンティティ
+ * <p>
+ * 日記の削除・画像の差し替えと同じトランザクションで登録し、コミット後にファイルを削除してから削除する
+ */
+@Data
+@Entity
+@Table(name = "diary_file_deletion")
+public class DiaryFileDeletionEntity {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private long id;
+
+    /**
+     * ブロブの画像パス、または画像ディレクトリからの相対パス（旧形式の画像・日記IDごとのディレクトリ）
+     */
+    private String imagePath;
+
+    @CreationTimestamp
+    private LocalDateTime createdAt;
+}
@@ -0,0 +1,36 @@
+package com.genki.rest_api.diary.entity;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import lombok.Data;
+import org.hibernate.annotations.CreationTimestamp;
+
+import java.time.LocalDateTime;
+
+/**
+ * 日記画像ブロブエンティティ
+ * <p>
+ * 内容のSHA-256をファイル名とする画像ごとに、参照している日記の件数と、保存時に読み取った画像のメタデータを保持する。
+ * メタデータを追加する前に保存された画像は、初回の参照時に画像から読み取って保存する
+ */
+@Data
+@Entity
+@Table(name = "diary_image_blob")
+public class DiaryImageBlobEntity {
+    @Id
+    private String imagePath;
+
+    private int referenceCount;
+
+    private String contentType;
+
+    private Long contentLength;
+
+    private Integer width;
+
+    private Integer height;
+
+    @CreationTimestamp
+    private LocalDateTime createdAt;
+}
@@ -0,0 +1,7 @@
+package com.genki.rest_api.diary.exception;
+
+public class DiaryInvalidCursorException extends RuntimeException {
+    public DiaryInvalidCursorException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
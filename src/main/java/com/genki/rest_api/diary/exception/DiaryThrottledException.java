@@ -0,0 +1,18 @@
+package com.genki.rest_api.diary.exception;
+
+import lombok.Getter;
+
+import java.time.Duration;
+
+@Getter
+public class DiaryThrottledException extends RuntimeException {
+    /**
+     * 再試行までの待ち時間
+     */
+    private final Duration retryAfter;
+
+    public DiaryThrottledException(String message, Duration retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+}
@@ -0,0 +1,7 @@
+package com.genki.rest_api.diary.exception;
+
+public class DiaryUploadChecksumMismatchException extends RuntimeException {
+    public DiaryUploadChecksumMismatchException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,19 @@
+package com.genki.rest_api.diary.exception;
+
+import lombok.Getter;
+
+/**
+ * 分割アップロードの受信済みバイト数と要求が一致しない例外
+ */
+@Getter
+public class DiaryUploadConflictException extends RuntimeException {
+    /**
+     * 受信済みのバイト数（次のチャンクのオフセット）
+     */
+    private final long offset;
+
+    public DiaryUploadConflictException(String message, long offset) {
+        super(message);
+        this.offset = offset;
+    }
+}
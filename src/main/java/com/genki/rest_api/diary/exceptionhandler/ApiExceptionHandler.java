@@ -4,7 +4,11 @@ import com.genki.rest_api.diary.dto.ApiDetailErrorResponseDto;
 import com.genki.rest_api.diary.dto.ApiErrorResponseDto;
 import com.genki.rest_api.diary.exception.DiaryIOException;
 import com.genki.rest_api.diary.exception.DiaryImageNotSupportedException;
+import com.genki.rest_api.diary.exception.DiaryInvalidCursorException;
 import com.genki.rest_api.diary.exception.DiaryNotFoundException;
+import com.genki.rest_api.diary.exception.DiaryThrottledException;
+import com.genki.rest_api.diary.exception.DiaryUploadChecksumMismatchException;
+import com.genki.rest_api.diary.exception.DiaryUploadConflictException;
 import jakarta.annotation.Nullable;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -14,10 +18,12 @@ import org.springframework.context.MessageSource;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.HttpStatusCode;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.converter.HttpMessageNotReadableException;
 import org.springframework.http.converter.HttpMessageNotWritableException;
 import org.springframework.validation.BindingResult;
+import org.springframework.validation.FieldError;
 import org.springframework.web.ErrorResponseException;
 import org.springframework.web.HttpMediaTypeNotAcceptableException;
 import org.springframework.web.HttpMediaTypeNotSupportedException;
@@ -152,15 +158,22 @@ public class ApiExceptionHandler extends ResponseEntityExceptionHandler {
             MethodArgumentNotValidException ex, HttpHeaders headers, HttpStatusCode status, WebRequest request) {
         BindingResult bindingResult = ex.getBindingResult();
         ApiDetailErrorResponseDto apiDetailErrorResponseDto = new ApiDetailErrorResponseDto();
-        Optional.ofNullable(bindingResult.getFieldError("title"))
+        // 一括登録では「diaries[0].title」のように何件目の日記のフィールドかを含む
+        bindingResult.getFieldErrors().stream()
+                .filter(fieldError -> fieldError.getField().matches("(diaries\\[\\d+]\\.)?title"))
+                .findFirst()
                 .ifPresent(fieldError -> apiDetailErrorResponseDto.setTitle(fieldError.getDefaultMessage()));
-        Optional.ofNullable(bindingResult.getFieldError("content"))
+        bindingResult.getFieldErrors().stream()
+                .filter(fieldError -> fieldError.getField().matches("(diaries\\[\\d+]\\.)?content"))
+                .findFirst()
                 .ifPresent(fieldError -> apiDetailErrorResponseDto.setContent(fieldError.getDefaultMessage()));
-        String errorMessage = messageSource.getMessage(
-                "errors.general",
-                null,
-                Locale.getDefault()
-        );
+        String errorMessage = Optional.ofNullable(bindingResult.getFieldError("diaries"))
+                .map(FieldError::getDefaultMessage)
+                .orElseGet(() -> messageSource.getMessage(
+                        "errors.general",
+                        null,
+                        Locale.getDefault()
+                ));
         ApiErrorResponseDto apiErrorResponseDto = new ApiErrorResponseDto(errorMessage, apiDetailErrorResponseDto);
         return createErrorResponse(ex, apiErrorResponseDto, headers, status, request);
     }
@@ -296,4 +309,64 @@ public class ApiExceptionHandler extends ResponseEntityExceptionHandler {
         log.error(ex.getMessage(), ex);
         return new ApiErrorResponseDto(ex.getMessage());
     }
+
+    /**
+     * 日記一覧カーソルの不正例外エラーハンドラ
+     *
+     * @param ex 例外エラー
+     * @return APIエラーレスポンスDTO
+     */
+    @ExceptionHandler(DiaryInvalidCursorException.class)
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    public ApiErrorResponseDto handleDiaryInvalidCursorException(DiaryInvalidCursorException ex) {
+        log.warn(ex.getMessage(), ex);
+        return new ApiErrorResponseDto(ex.getMessage());
+    }
+
+    /**
+     * 流量制限・過負荷の例外エラーハンドラ
+     * <p>
+     * 再試行までの秒数をRetry-Afterヘッダに設定する。
+     * 変更フィードのようにtext/event-streamのみを受け付けるクライアントにも返せるよう、Content-Typeは指定する
+     *
+     * @param ex 例外エラー
+     * @return APIエラーレスポンスDTO
+     */
+    @ExceptionHandler(DiaryThrottledException.class)
+    public ResponseEntity<ApiErrorResponseDto> handleDiaryThrottledException(DiaryThrottledException ex) {
+        log.warn(ex.getMessage());
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfter().toSeconds()))
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(new ApiErrorResponseDto(ex.getMessage()));
+    }
+
+    /**
+     * 分割アップロードのオフセット不一致の例外エラーハンドラ
+     * <p>
+     * 受信済みのバイト数をUpload-Offsetヘッダに設定する
+     *
+     * @param ex 例外エラー
+     * @return APIエラーレスポンスDTO
+     */
+    @ExceptionHandler(DiaryUploadConflictException.class)
+    public ResponseEntity<ApiErrorResponseDto> handleDiaryUploadConflictException(DiaryUploadConflictException ex) {
+        log.warn(ex.getMessage());
+        return ResponseEntity.status(HttpStatus.CONFLICT)
+                .header("Upload-Offset", String.valueOf(ex.getOffset()))
+                .body(new ApiErrorResponseDto(ex.getMessage()));
+    }
+
+    /**
+     * 分割アップロードのSHA-256不一致の例外エラーハンドラ
+     *
+     * @param ex 例外エラー
+     * @return APIエラーレスポンスDTO
+     */
+    @ExceptionHandler(DiaryUploadChecksumMismatchException.class)
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    public ApiErrorResponseDto handleDiaryUploadChecksumMismatchException(DiaryUploadChecksumMismatchException ex) {
+        log.warn(ex.getMessage(), ex);
+        return new ApiErrorResponseDto(ex.getMessage());
+    }
 }
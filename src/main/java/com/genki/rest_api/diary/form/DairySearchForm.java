@@ -1,9 +1,77 @@
 package com.genki.rest_api.diary.form;
 
+import jakarta.validation.constraints.AssertTrue;
+import jakarta.validation.constraints.Max;
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.Pattern;
 import jakarta.validation.constraints.Size;
+import org.springframework.format.annotation.DateTimeFormat;
 
+import java.time.LocalDate;
+
+/**
+ * 日記検索フォーム
+ *
+ * @param title  日記タイトル
+ * @param q      全文検索語（指定した場合はタイトル・本文をスコア順に検索）
+ * @param limit  1ページあたりの取得件数
+ * @param cursor 次ページ取得用カーソル
+ * @param view   レスポンスの形式（full=本文を含む, summary=本文を含まない）
+ * @param from   作成日の下限（この日を含む）
+ * @param to     作成日の上限（この日を含む）
+ */
 public record DairySearchForm(
         @Size(max = 100, message = "{errors.api.diary.search.title.max.length}")
-        String title
+        String title,
+
+        @Size(max = 100, message = "{errors.api.diary.search.q.max.length}")
+        String q,
+
+        @Min(value = 1, message = "{errors.api.diary.search.limit.range}")
+        @Max(value = 100, message = "{errors.api.diary.search.limit.range}")
+        Integer limit,
+
+        String cursor,
+
+        @Pattern(regexp = "full|summary", message = "{errors.api.diary.search.view.invalid}")
+        String view,
+
+        @DateTimeFormat(iso = DateTimeFormat.ISO.DATE)
+        LocalDate from,
+
+        @DateTimeFormat(iso = DateTimeFormat.ISO.DATE)
+        LocalDate to
 ) {
+    /**
+     * 本文を含まない形式か
+     *
+     * @return true=summary
+     */
+    public boolean isSummary() {
+        return "summary".equals(view);
+    }
+
+    /**
+     * 作成日の範囲が正しいか
+     *
+     * @return true=fromとtoのどちらかが未指定、またはfrom <= to
+     */
+    @AssertTrue(message = "{errors.api.diary.search.date.range.invalid}")
+    public boolean isDateRangeValid() {
+        return from == null || to == null || !from.isAfter(to);
+    }
+
+    /**
+     * 作成日の年がDBの日時の範囲内か
+     *
+     * @return true=fromとtoの年が未指定、または1000以上9999以下
+     */
+    @AssertTrue(message = "{errors.api.diary.search.date.year.range}")
+    public boolean isDateYearValid() {
+        return isYearValid(from) && isYearValid(to);
+    }
+
+    private static boolean isYearValid(LocalDate date) {
+        return date == null || (date.getYear() >= 1000 && date.getYear() <= 9999);
+    }
 }
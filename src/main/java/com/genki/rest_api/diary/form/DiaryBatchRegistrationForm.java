@@ -0,0 +1,19 @@
+package com.genki.rest_api.diary.form;
+
+import jakarta.validation.Valid;
+import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Size;
+
+import java.util.List;
+
+/**
+ * 日記一括登録フォーム
+ *
+ * @param diaries 日記登録フォームリスト
+ */
+public record DiaryBatchRegistrationForm(
+        @NotNull(message = "{errors.api.diary.register.diaries.size}")
+        @Size(min = 1, max = 1000, message = "{errors.api.diary.register.diaries.size}")
+        List<@Valid DiaryRegistrationForm> diaries
+) {
+}
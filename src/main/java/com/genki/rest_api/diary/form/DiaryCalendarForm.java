@@ -0,0 +1,24 @@
+package com.genki.rest_api.diary.form;
+
+import jakarta.validation.constraints.Max;
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotNull;
+
+/**
+ * 日記カレンダー取得フォーム
+ *
+ * @param year  年
+ * @param month 月
+ */
+public record DiaryCalendarForm(
+        @NotNull(message = "{errors.api.diary.calendar.year.range}")
+        @Min(value = 1000, message = "{errors.api.diary.calendar.year.range}")
+        @Max(value = 9999, message = "{errors.api.diary.calendar.year.range}")
+        Integer year,
+
+        @NotNull(message = "{errors.api.diary.calendar.month.range}")
+        @Min(value = 1, message = "{errors.api.diary.calendar.month.range}")
+        @Max(value = 12, message = "{errors.api.diary.calendar.month.range}")
+        Integer month
+) {
+}
@@ -0,0 +1,26 @@
+package com.genki.rest_api.diary.form;
+
+import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Pattern;
+import jakarta.validation.constraints.Positive;
+
+/**
+ * 日記画像アップロード開始フォーム
+ *
+ * @param fileName ファイル名（拡張子の判定に使用）
+ * @param size     画像全体のバイト数
+ * @param sha256   画像全体のSHA-256（16進数、指定した場合は完了時に照合する）
+ */
+public record DiaryImageUploadForm(
+        @NotBlank(message = "{errors.api.diary.upload.file.name.required}")
+        String fileName,
+
+        @NotNull(message = "{errors.api.diary.upload.size.required}")
+        @Positive(message = "{errors.api.diary.upload.size.required}")
+        Long size,
+
+        @Pattern(regexp = "[0-9a-fA-F]{64}", message = "{errors.api.diary.upload.sha256.invalid}")
+        String sha256
+) {
+}
@@ -0,0 +1,65 @@
+package com.genki.rest_api.diary.interceptor;
+
+import com.genki.rest_api.diary.service.DiaryThrottleService;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+/**
+ * {@link Throttled}を付けたハンドラーの流量制限
+ * <p>
+ * マルチパートはハンドラーの引数の解決時に読み込む（spring.servlet.multipart.resolve-lazily=true）ため、
+ * 制限を超えたリクエストは本文をディスクに書き込む前にContent-Lengthで判定して拒否する。
+ * Content-Lengthのないリクエスト（Transfer-Encoding: chunked）は、受け付ける最大のバイト数を送信するものとみなす。
+ * クライアントはリモートアドレスで識別する（プロキシ経由の場合はserver.forward-headers-strategyでX-Forwarded-Forから復元する）
+ */
+@Component
+public class DiaryThrottleInterceptor implements HandlerInterceptor {
+    private static final String ACQUIRED_ATTRIBUTE = DiaryThrottleInterceptor.class.getName() + ".ACQUIRED";
+
+    private final DiaryThrottleService diaryThrottleService;
+    private final long maxRequestBytes;
+
+    public DiaryThrottleInterceptor(
+            DiaryThrottleService diaryThrottleService,
+            @Value("${diary.throttle.max-request-size}") DataSize maxRequestSize) {
+        this.diaryThrottleService = diaryThrottleService;
+        this.maxRequestBytes = maxRequestSize.toBytes();
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        Throttled throttled = getThrottled(handler);
+        if (throttled == null) {
+            return true;
+        }
+        long contentLength = request.getContentLengthLong();
+        diaryThrottleService.acquire(
+                throttled.value(), request.getRemoteAddr(), throttled.countsRequest(),
+                contentLength >= 0 ? contentLength : maxRequestBytes);
+        request.setAttribute(ACQUIRED_ATTRIBUTE, throttled.value());
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        if (request.getAttribute(ACQUIRED_ATTRIBUTE) instanceof DiaryThrottleService.EndpointClass endpointClass) {
+            request.removeAttribute(ACQUIRED_ATTRIBUTE);
+            diaryThrottleService.release(endpointClass);
+        }
+    }
+
+    /**
+     * ハンドラーに付けられた流量制限を取得
+     *
+     * @param handler ハンドラー
+     * @return 流量制限（対象外の場合はnull）
+     */
+    private Throttled getThrottled(Object handler) {
+        return handler instanceof HandlerMethod handlerMethod ? handlerMethod.getMethodAnnotation(Throttled.class) : null;
+    }
+}
@@ -0,0 +1,27 @@
+package com.genki.rest_api.diary.interceptor;
+
+import com.genki.rest_api.diary.service.DiaryThrottleService;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * クライアントごとの流量制限・過負荷時の破棄の対象とするハンドラーメソッド
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Throttled {
+    /**
+     * @return 流量制限を共有するエンドポイントの種類
+     */
+    DiaryThrottleService.EndpointClass value();
+
+    /**
+     * @return リクエスト数を消費するか（falseの場合はバイト数のみ消費する）
+     */
+    boolean countsRequest() default true;
+}
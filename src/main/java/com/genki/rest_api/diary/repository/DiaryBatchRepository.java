@@ -0,0 +1,91 @@
+package com.genki.rest_api.diary.repository;
+
+import com.genki.rest_api.diary.entity.DiaryEntity;
+import io.micrometer.core.annotation.Timed;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
+import org.springframework.stereotype.Repository;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * 日記一括登録リポジトリ
+ * <p>
+ * 日記のIDはauto_incrementで採番するため、JPAではINSERTをバッチにできない。
+ * JDBCのバッチで登録し、MySQLでは{@code rewriteBatchedStatements=true}により1バッチを1回の複数行INSERTとして送信する
+ */
+@Repository
+@Timed("diary.repository")
+public class DiaryBatchRepository {
+    private static final String INSERT_SQL =
+            "insert into diary (title, content, image_path, created_at, updated_at) values (?, ?, ?, ?, ?)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TimeZone jdbcTimeZone;
+    private final int batchSize;
+
+    public DiaryBatchRepository(
+            JdbcTemplate jdbcTemplate,
+            @Value("${spring.jpa.properties.hibernate.jdbc.time_zone}") TimeZone jdbcTimeZone,
+            @Value("${diary.batch.size}") int batchSize) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.jdbcTimeZone = jdbcTimeZone;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * 日記を一括登録し、採番されたIDを設定
+     *
+     * @param diaryEntityList 日記エンティティリスト
+     */
+    public void insertAll(List<DiaryEntity> diaryEntityList) {
+        insertAll(diaryEntityList, batchSize);
+    }
+
+    /**
+     * 日記をbatchSize件ずつ一括登録し、採番されたIDを設定
+     *
+     * @param diaryEntityList 日記エンティティリスト
+     * @param batchSize       1回のバッチで登録する件数
+     */
+    public void insertAll(List<DiaryEntity> diaryEntityList, int batchSize) {
+        for (int from = 0; from < diaryEntityList.size(); from += batchSize) {
+            List<DiaryEntity> batch = diaryEntityList.subList(from, Math.min(from + batchSize, diaryEntityList.size()));
+            KeyHolder keyHolder = new GeneratedKeyHolder();
+            jdbcTemplate.batchUpdate(
+                    connection -> connection.prepareStatement(INSERT_SQL, new String[]{"id"}),
+                    new BatchPreparedStatementSetter() {
+                        @Override
+                        public void setValues(PreparedStatement ps, int i) throws SQLException {
+                            DiaryEntity diaryEntity = batch.get(i);
+                            ps.setString(1, diaryEntity.getTitle());
+                            ps.setString(2, diaryEntity.getContent());
+                            ps.setString(3, diaryEntity.getImagePath());
+                            // JPAで登録した日記と同じく、hibernate.jdbc.time_zoneの日時として保存する
+                            ps.setTimestamp(4, Timestamp.valueOf(diaryEntity.getCreatedAt()), Calendar.getInstance(jdbcTimeZone));
+                            ps.setTimestamp(5, Timestamp.valueOf(diaryEntity.getUpdatedAt()), Calendar.getInstance(jdbcTimeZone));
+                        }
+
+                        @Override
+                        public int getBatchSize() {
+                            return batch.size();
+                        }
+                    },
+                    keyHolder);
+
+            List<Map<String, Object>> keyList = keyHolder.getKeyList();
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).setId(((Number) keyList.get(i).values().iterator().next()).longValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.genki.rest_api.diary.repository;
+
+import com.genki.rest_api.diary.entity.DiaryFileDeletionEntity;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+/**
+ * 日記画像削除リポジトリ
+ */
+@Repository
+public interface DiaryFileDeletionRepository extends JpaRepository<DiaryFileDeletionEntity, Long> {
+    /**
+     * 未削除の画像をID昇順で取得
+     *
+     * @param id    このIDより後ろの画像を取得する
+     * @param limit 取得件数
+     * @return 日記画像削除エンティティリスト
+     */
+    List<DiaryFileDeletionEntity> findByIdGreaterThanOrderByIdAsc(long id, Limit limit);
+}
@@ -0,0 +1,89 @@
+package com.genki.rest_api.diary.repository;
+
+import com.genki.rest_api.diary.entity.DiaryImageBlobEntity;
+import jakarta.persistence.LockModeType;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.Optional;
+
+/**
+ * 日記画像ブロブリポジトリ
+ */
+@Repository
+public interface DiaryImageBlobRepository extends JpaRepository<DiaryImageBlobEntity, String> {
+    /**
+     * 参照件数を1増やす（未登録の場合は参照件数1で登録）
+     * <p>
+     * メタデータが保存されていない場合は保存する
+     *
+     * @param imagePath     画像パス
+     * @param contentType   MIMEタイプ
+     * @param contentLength バイト数
+     * @param width         幅のピクセル数
+     * @param height        高さのピクセル数
+     */
+    @Modifying
+    @Query(value = """
+            insert into diary_image_blob (image_path, reference_count, content_type, content_length, width, height, created_at)
+            values (:imagePath, 1, :contentType, :contentLength, :width, :height, current_timestamp)
+            on duplicate key update reference_count = reference_count + 1,
+                                    content_type = coalesce(content_type, :contentType),
+                                    content_length = coalesce(content_length, :contentLength),
+                                    width = coalesce(width, :width),
+                                    height = coalesce(height, :height)
+            """, nativeQuery = true)
+    void acquire(
+            @Param("imagePath") String imagePath,
+            @Param("contentType") String contentType,
+            @Param("contentLength") long contentLength,
+            @Param("width") Integer width,
+            @Param("height") Integer height);
+
+    /**
+     * メタデータを保存（保存済みの場合は更新しない）
+     *
+     * @param imagePath     画像パス
+     * @param contentType   MIMEタイプ
+     * @param contentLength バイト数
+     * @param width         幅のピクセル数
+     * @param height        高さのピクセル数
+     * @return 更新件数
+     */
+    @Modifying
+    @Query("""
+            update DiaryImageBlobEntity b
+            set b.contentType = :contentType, b.contentLength = :contentLength, b.width = :width, b.height = :height
+            where b.imagePath = :imagePath and b.contentType is null
+            """)
+    int updateMetadata(
+            @Param("imagePath") String imagePath,
+            @Param("contentType") String contentType,
+            @Param("contentLength") long contentLength,
+            @Param("width") Integer width,
+            @Param("height") Integer height);
+
+    /**
+     * 参照件数を1減らす
+     *
+     * @param imagePath 画像パス
+     * @return 更新件数
+     */
+    @Modifying
+    @Query("update DiaryImageBlobEntity b set b.referenceCount = b.referenceCount - 1 where b.imagePath = :imagePath")
+    int release(@Param("imagePath") String imagePath);
+
+    /**
+     * 行ロックを取得して1件取得
+     *
+     * @param imagePath 画像パス
+     * @return 日記画像ブロブエンティティ
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("select b from DiaryImageBlobEntity b where b.imagePath = :imagePath")
+    Optional<DiaryImageBlobEntity> findForUpdate(@Param("imagePath") String imagePath);
+}
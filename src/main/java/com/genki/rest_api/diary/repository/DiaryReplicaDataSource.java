@@ -0,0 +1,134 @@
+package com.genki.rest_api.diary.repository;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import javax.sql.DataSource;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 読み取り専用トランザクション用のデータソース
+ * <p>
+ * 通常はレプリカの接続を返し、fallback-on-lag=trueの場合はレプリカの遅延がmax-lagを超えている間、
+ * または遅延を確認できない間はプライマリの接続を返す。遅延はlag-check-intervalごとにlag-queryで確認し、
+ * {@code diary.datasource.replica.lag}（秒）として公開する
+ */
+@Slf4j
+public class DiaryReplicaDataSource extends AbstractRoutingDataSource {
+    /**
+     * MySQLの{@code SHOW REPLICA STATUS}で遅延秒数を表す列
+     */
+    private static final String SECONDS_BEHIND_SOURCE = "Seconds_Behind_Source";
+
+    private final JdbcTemplate replicaJdbcTemplate;
+    private final String lagQuery;
+    private final Duration maxLag;
+    private final boolean fallbackOnLag;
+
+    /**
+     * 直近に確認したレプリカの遅延（確認できなかった場合はnull）
+     */
+    private volatile Duration lag;
+
+    private enum Target {
+        PRIMARY,
+        REPLICA
+    }
+
+    public DiaryReplicaDataSource(
+            DataSource primaryDataSource,
+            DataSource replicaDataSource,
+            MeterRegistry meterRegistry,
+            String lagQuery,
+            Duration maxLag,
+            boolean fallbackOnLag) {
+        this.replicaJdbcTemplate = new JdbcTemplate(replicaDataSource);
+        this.lagQuery = lagQuery;
+        this.maxLag = maxLag;
+        this.fallbackOnLag = fallbackOnLag;
+        setTargetDataSources(Map.of(Target.PRIMARY, primaryDataSource, Target.REPLICA, replicaDataSource));
+        Gauge.builder("diary.datasource.replica.lag", this, dataSource -> {
+                    Duration currentLag = dataSource.lag;
+                    return currentLag != null ? currentLag.toMillis() / 1000.0 : Double.NaN;
+                })
+                .description("レプリカの遅延（確認できない場合はNaN）")
+                .baseUnit("seconds")
+                .register(meterRegistry);
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        return isLagging() ? Target.PRIMARY : Target.REPLICA;
+    }
+
+    /**
+     * 読み取りをプライマリに振り分けるか
+     *
+     * @return true=プライマリから読み取る, false=レプリカから読み取る
+     */
+    public boolean isLagging() {
+        if (!fallbackOnLag) {
+            return false;
+        }
+        Duration currentLag = lag;
+        return currentLag == null || currentLag.compareTo(maxLag) > 0;
+    }
+
+    /**
+     * レプリカの遅延を確認
+     * <p>
+     * 結果にSeconds_Behind_Source列がある場合はその値、ない場合は1列目の値を遅延秒数とみなす。
+     * 結果が0行・NULLの場合や確認に失敗した場合は、レプリケーションが停止しているものとして扱う
+     */
+    @Scheduled(fixedDelayString = "${diary.datasource.replica.lag-check-interval}")
+    public void checkLag() {
+        try {
+            lag = replicaJdbcTemplate.query(lagQuery, resultSet -> resultSet.next() ? getLag(resultSet) : null);
+        } catch (DataAccessException e) {
+            log.warn("failed to check replica lag", e);
+            lag = null;
+        }
+    }
+
+    /**
+     * 遅延秒数を読み込み
+     *
+     * @param resultSet 遅延確認クエリの結果
+     * @return 遅延（NULLの場合はnull）
+     * @throws SQLException 読み込みに失敗した場合
+     */
+    private Duration getLag(ResultSet resultSet) throws SQLException {
+        int column = 1;
+        ResultSetMetaData metaData = resultSet.getMetaData();
+        for (int i = 1; i <= metaData.getColumnCount(); i++) {
+            if (SECONDS_BEHIND_SOURCE.equalsIgnoreCase(metaData.getColumnLabel(i))) {
+                column = i;
+                break;
+            }
+        }
+        long seconds = resultSet.getLong(column);
+        return resultSet.wasNull() ? null : Duration.ofSeconds(seconds);
+    }
+
+    /**
+     * レプリカにプライマリの更新が反映されるまで待ってから処理を実行
+     * <p>
+     * 更新直後にレプリカから古い値を読み込んでキャッシュした場合に、もう一度キャッシュを削除するために使う
+     *
+     * @param action 処理
+     */
+    public void runAfterMaxLag(Runnable action) {
+        CompletableFuture.delayedExecutor(maxLag.toMillis(), TimeUnit.MILLISECONDS).execute(action);
+    }
+}
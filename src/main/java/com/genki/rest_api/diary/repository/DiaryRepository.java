@@ -1,10 +1,22 @@
 package com.genki.rest_api.diary.repository;
 
+import com.genki.rest_api.diary.dto.DiaryCalendarDayResponseDto;
+import com.genki.rest_api.diary.dto.DiarySummaryResponseDto;
 import com.genki.rest_api.diary.entity.DiaryEntity;
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
+import java.util.stream.Stream;
 
 /**
  * 日記リポジトリ
@@ -18,4 +30,264 @@ public interface DiaryRepository extends JpaRepository<DiaryEntity, Long> {
      * @return 日記エンティティリスト
      */
     List<DiaryEntity> findByTitleContaining(String title);
+
+    /**
+     * 先頭ページを作成日時・IDの降順で取得
+     *
+     * @param limit 取得件数
+     * @return 日記エンティティリスト
+     */
+    List<DiaryEntity> findByOrderByCreatedAtDescIdDesc(Limit limit);
+
+    /**
+     * タイトル部分一致検索の先頭ページを作成日時・IDの降順で取得
+     *
+     * @param title 日記タイトル
+     * @param limit 取得件数
+     * @return 日記エンティティリスト
+     */
+    List<DiaryEntity> findByTitleContainingOrderByCreatedAtDescIdDesc(String title, Limit limit);
+
+    /**
+     * カーソル以降のページを作成日時・IDの降順で取得
+     * <p>
+     * OFFSETを使わず、行値比較{@code (created_at, id) < (?, ?)}で(created_at, id)のインデックスをカーソルの位置から範囲走査する
+     *
+     * @param createdAt カーソルの作成日時
+     * @param id        カーソルのID
+     * @param limit     取得件数
+     * @return 日記エンティティリスト
+     */
+    @Query("""
+            select d from DiaryEntity d
+            where (d.createdAt, d.id) < (:createdAt, :id)
+            order by d.createdAt desc, d.id desc
+            """)
+    List<DiaryEntity> findPageAfter(
+            @Param("createdAt") LocalDateTime createdAt,
+            @Param("id") long id,
+            Limit limit);
+
+    /**
+     * タイトル部分一致検索のカーソル以降のページを作成日時・IDの降順で取得
+     *
+     * @param title     日記タイトル
+     * @param createdAt カーソルの作成日時
+     * @param id        カーソルのID
+     * @param limit     取得件数
+     * @return 日記エンティティリスト
+     */
+    @Query("""
+            select d from DiaryEntity d
+            where d.title like concat('%', :title, '%')
+              and (d.createdAt, d.id) < (:createdAt, :id)
+            order by d.createdAt desc, d.id desc
+            """)
+    List<DiaryEntity> findPageByTitleContainingAfter(
+            @Param("title") String title,
+            @Param("createdAt") LocalDateTime createdAt,
+            @Param("id") long id,
+            Limit limit);
+
+    /**
+     * 先頭ページのサマリーを作成日時・IDの降順で取得
+     * <p>
+     * 本文を読み込まないよう、id・title・image_path・created_atのみを選択する
+     *
+     * @param limit 取得件数
+     * @return 日記サマリーレスポンスDTOリスト
+     */
+    @Query("""
+            select new com.genki.rest_api.diary.dto.DiarySummaryResponseDto(d.id, d.title, d.imagePath, d.createdAt)
+            from DiaryEntity d
+            order by d.createdAt desc, d.id desc
+            """)
+    List<DiarySummaryResponseDto> findSummaryPage(Limit limit);
+
+    /**
+     * タイトル部分一致検索の先頭ページのサマリーを作成日時・IDの降順で取得
+     *
+     * @param title 日記タイトル
+     * @param limit 取得件数
+     * @return 日記サマリーレスポンスDTOリスト
+     */
+    @Query("""
+            select new com.genki.rest_api.diary.dto.DiarySummaryResponseDto(d.id, d.title, d.imagePath, d.createdAt)
+            from DiaryEntity d
+            where d.title like concat('%', :title, '%')
+            order by d.createdAt desc, d.id desc
+            """)
+    List<DiarySummaryResponseDto> findSummaryPageByTitleContaining(@Param("title") String title, Limit limit);
+
+    /**
+     * カーソル以降のページのサマリーを作成日時・IDの降順で取得
+     *
+     * @param createdAt カーソルの作成日時
+     * @param id        カーソルのID
+     * @param limit     取得件数
+     * @return 日記サマリーレスポンスDTOリスト
+     */
+    @Query("""
+            select new com.genki.rest_api.diary.dto.DiarySummaryResponseDto(d.id, d.title, d.imagePath, d.createdAt)
+            from DiaryEntity d
+            where (d.createdAt, d.id) < (:createdAt, :id)
+            order by d.createdAt desc, d.id desc
+            """)
+    List<DiarySummaryResponseDto> findSummaryPageAfter(
+            @Param("createdAt") LocalDateTime createdAt,
+            @Param("id") long id,
+            Limit limit);
+
+    /**
+     * タイトル部分一致検索のカーソル以降のページのサマリーを作成日時・IDの降順で取得
+     *
+     * @param title     日記タイトル
+     * @param createdAt カーソルの作成日時
+     * @param id        カーソルのID
+     * @param limit     取得件数
+     * @return 日記サマリーレスポンスDTOリスト
+     */
+    @Query("""
+            select new com.genki.rest_api.diary.dto.DiarySummaryResponseDto(d.id, d.title, d.imagePath, d.createdAt)
+            from DiaryEntity d
+            where d.title like concat('%', :title, '%')
+              and (d.createdAt, d.id) < (:createdAt, :id)
+            order by d.createdAt desc, d.id desc
+            """)
+    List<DiarySummaryResponseDto> findSummaryPageByTitleContainingAfter(
+            @Param("title") String title,
+            @Param("createdAt") LocalDateTime createdAt,
+            @Param("id") long id,
+            Limit limit);
+
+    /**
+     * 作成日時の範囲内でカーソル以降のページを作成日時・IDの降順で取得
+     * <p>
+     * (created_at, id)のインデックスを範囲の上限から辿る。先頭ページは範囲の上限をカーソルに指定する
+     *
+     * @param from      作成日時の下限（この日時を含む）
+     * @param to        作成日時の上限（この日時を含まない）
+     * @param title     日記タイトル（nullの場合は絞り込まない）
+     * @param createdAt カーソルの作成日時
+     * @param id        カーソルのID
+     * @param limit     取得件数
+     * @return 日記エンティティリスト
+     */
+    @Query("""
+            select d from DiaryEntity d
+            where d.createdAt >= :from
+              and d.createdAt < :to
+              and (:title is null or d.title like concat('%', :title, '%'))
+              and (d.createdAt, d.id) < (:createdAt, :id)
+            order by d.createdAt desc, d.id desc
+            """)
+    List<DiaryEntity> findPageBetween(
+            @Param("from") LocalDateTime from,
+            @Param("to") LocalDateTime to,
+            @Param("title") String title,
+            @Param("createdAt") LocalDateTime createdAt,
+            @Param("id") long id,
+            Limit limit);
+
+    /**
+     * 作成日時の範囲内でカーソル以降のページのサマリーを作成日時・IDの降順で取得
+     *
+     * @param from      作成日時の下限（この日時を含む）
+     * @param to        作成日時の上限（この日時を含まない）
+     * @param title     日記タイトル（nullの場合は絞り込まない）
+     * @param createdAt カーソルの作成日時
+     * @param id        カーソルのID
+     * @param limit     取得件数
+     * @return 日記サマリーレスポンスDTOリスト
+     */
+    @Query("""
+            select new com.genki.rest_api.diary.dto.DiarySummaryResponseDto(d.id, d.title, d.imagePath, d.createdAt)
+            from DiaryEntity d
+            where d.createdAt >= :from
+              and d.createdAt < :to
+              and (:title is null or d.title like concat('%', :title, '%'))
+              and (d.createdAt, d.id) < (:createdAt, :id)
+            order by d.createdAt desc, d.id desc
+            """)
+    List<DiarySummaryResponseDto> findSummaryPageBetween(
+            @Param("from") LocalDateTime from,
+            @Param("to") LocalDateTime to,
+            @Param("title") String title,
+            @Param("createdAt") LocalDateTime createdAt,
+            @Param("id") long id,
+            Limit limit);
+
+    /**
+     * 作成日時の範囲内の日記の件数を作成日ごとに集計
+     * <p>
+     * GROUP BYで集計し、(created_at, id)のインデックスのみを範囲走査する。
+     * 作成日はDB上の日時（hibernate.jdbc.time_zoneの日時）の日付のため、範囲も同じタイムゾーンの日の境界を
+     * エンティティの日時に変換して指定すること
+     *
+     * @param from 作成日時の下限（この日時を含む）
+     * @param to   作成日時の上限（この日時を含まない）
+     * @return 日別件数リスト（日記のある日のみ、日付の昇順。日付はhibernate.jdbc.time_zoneの日付）
+     */
+    @Query("""
+            select new com.genki.rest_api.diary.dto.DiaryCalendarDayResponseDto(cast(d.createdAt as LocalDate), count(d))
+            from DiaryEntity d
+            where d.createdAt >= :from
+              and d.createdAt < :to
+            group by cast(d.createdAt as LocalDate)
+            order by cast(d.createdAt as LocalDate)
+            """)
+    List<DiaryCalendarDayResponseDto> countByCreatedDate(
+            @Param("from") LocalDateTime from,
+            @Param("to") LocalDateTime to);
+
+    /**
+     * 指定IDの日記のサマリーを取得
+     *
+     * @param idList IDリスト
+     * @return 日記サマリーレスポンスDTOリスト（順序は不定）
+     */
+    @Query("""
+            select new com.genki.rest_api.diary.dto.DiarySummaryResponseDto(d.id, d.title, d.imagePath, d.createdAt)
+            from DiaryEntity d
+            where d.id in :idList
+            """)
+    List<DiarySummaryResponseDto> findSummaryByIdIn(@Param("idList") Collection<Long> idList);
+
+    /**
+     * 全件をID昇順でストリーム取得
+     * <p>
+     * フェッチサイズ単位で順方向カーソルから読み込むため、トランザクション内で消費しcloseすること
+     *
+     * @return 日記エンティティストリーム
+     */
+    @QueryHints({
+            @QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "1000"),
+            @QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true")
+    })
+    @Query("select d from DiaryEntity d order by d.id")
+    Stream<DiaryEntity> streamAll();
+
+    /**
+     * 画像が登録されている日記をID昇順で取得
+     *
+     * @param id    このIDより後ろの日記を取得する
+     * @param limit 取得件数
+     * @return 日記エンティティリスト
+     */
+    List<DiaryEntity> findByIdGreaterThanAndImagePathIsNotNullOrderByIdAsc(long id, Limit limit);
+
+    /**
+     * 画像パスが変更されていない場合のみ画像パスを更新
+     *
+     * @param id           ID
+     * @param oldImagePath 更新前の画像パス
+     * @param newImagePath 更新後の画像パス
+     * @return 更新件数
+     */
+    @Modifying
+    @Query("update DiaryEntity d set d.imagePath = :newImagePath where d.id = :id and d.imagePath = :oldImagePath")
+    int updateImagePath(
+            @Param("id") long id,
+            @Param("oldImagePath") String oldImagePath,
+            @Param("newImagePath") String newImagePath);
 }
@@ -0,0 +1,93 @@
+package com.genki.rest_api.diary.service;
+
+import org.springframework.core.io.AbstractResource;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * バッファ上の日記画像のリソース
+ * <p>
+ * メモリマップしたセグメントやキャッシュのダイレクトバッファから、ファイルを開かずに直接転送する。内容はコピーしない
+ */
+class DiaryByteBufferResource extends AbstractResource {
+    private final ByteBuffer buffer;
+    private final String description;
+
+    /**
+     * @param buffer      画像のデータ（読み込み専用）
+     * @param description 説明（キー）
+     */
+    DiaryByteBufferResource(ByteBuffer buffer, String description) {
+        this.buffer = buffer;
+        this.description = description;
+    }
+
+    @Override
+    public boolean exists() {
+        return true;
+    }
+
+    @Override
+    public long contentLength() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        ByteBuffer source = buffer.duplicate();
+        return new InputStream() {
+            @Override
+            public int read() {
+                return source.hasRemaining() ? source.get() & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!source.hasRemaining()) {
+                    return -1;
+                }
+                int length = Math.min(len, source.remaining());
+                source.get(b, off, length);
+                return length;
+            }
+
+            @Override
+            public long skip(long n) {
+                int length = (int) Math.max(0, Math.min(n, source.remaining()));
+                source.position(source.position() + length);
+                return length;
+            }
+
+            @Override
+            public int available() {
+                return source.remaining();
+            }
+        };
+    }
+
+    @Override
+    public byte[] getContentAsByteArray() {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public String getDescription() {
+        return "Diary image buffer [" + description + "]";
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return this == other;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(this);
+    }
+}
@@ -0,0 +1,399 @@
+package com.genki.rest_api.diary.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.genki.rest_api.diary.dto.DiaryChangeEventDto;
+import com.genki.rest_api.diary.dto.DiaryResponseDto;
+import com.genki.rest_api.diary.exception.DiaryThrottledException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.MessageSource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 日記変更フィード
+ * <p>
+ * DiaryServiceがコミット後に発行した日記の登録・更新・削除を、Server-Sent Eventsで接続中のクライアントへ配信する。
+ * 直近buffer-size件のイベントをリングバッファに保持し、再接続したクライアントにはLast-Event-IDより後のイベントを再送する。
+ * Last-Event-IDのイベントがすでにバッファにない場合や、再起動前のイベントIDの場合は、resetイベントを送って一覧の再取得を促す。
+ * <p>
+ * 発行はリングバッファへの追加と配信タスクの登録のみで、書き込み処理を待たせない。配信はクライアントごとに仮想スレッドで行い、
+ * 受信の遅いクライアントがほかのクライアントへの配信を遅らせることはない。
+ * 待機中の接続はスレッドを占有しないため、数千件の接続もソケットとバッファのメモリのみで保持できる。
+ * 接続数がmax-connectionsに達している場合は、既存の接続を切断せずに新しい接続を拒否する
+ */
+@Slf4j
+@Service
+public class DiaryChangeFeed {
+    private static final String RESET_EVENT_NAME = "reset";
+    private static final Duration RETRY_AFTER_FULL = Duration.ofMinutes(1);
+
+    private final ObjectMapper objectMapper;
+    private final MessageSource messageSource;
+    private final int maxConnections;
+    private final long timeoutMillis;
+    private final Counter resetCounter;
+
+    /**
+     * イベントIDの接頭辞（起動ごとに異なるため、再起動前のイベントIDを区別できる）
+     */
+    private final String bootId = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+
+    /**
+     * 直近のイベント（連番をバッファの長さで割った余りの位置に保持する）
+     */
+    private final Event[] ring;
+    private final ReentrantLock ringLock = new ReentrantLock();
+    private long latestSequence;
+
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    /**
+     * 予約済みの接続数（subscribersへの追加前に予約し、subscribersから削除した時に戻す）
+     */
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final ExecutorService executor =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("diary-stream-", 1).factory());
+    private final AtomicBoolean dispatchScheduled = new AtomicBoolean();
+
+    /**
+     * 変更の種類
+     */
+    public enum ChangeType {
+        CREATED("created"),
+        UPDATED("updated"),
+        DELETED("deleted");
+
+        private final String eventName;
+
+        ChangeType(String eventName) {
+            this.eventName = eventName;
+        }
+    }
+
+    /**
+     * バッファに保持するイベント
+     *
+     * @param sequence 連番
+     * @param name     イベント名
+     * @param data     JSONに変換した日記変更イベントDTO（接続数によらず1度だけ変換する）
+     */
+    record Event(long sequence, String name, String data) {
+    }
+
+    public DiaryChangeFeed(
+            ObjectMapper objectMapper,
+            MessageSource messageSource,
+            MeterRegistry meterRegistry,
+            @Value("${diary.stream.buffer-size}") int bufferSize,
+            @Value("${diary.stream.max-connections}") int maxConnections,
+            @Value("${diary.stream.timeout}") Duration timeout) {
+        this.objectMapper = objectMapper;
+        this.messageSource = messageSource;
+        this.ring = new Event[bufferSize];
+        this.maxConnections = maxConnections;
+        this.timeoutMillis = timeout.toMillis();
+        Gauge.builder("diary.stream.connections", subscribers, Set::size)
+                .description("日記変更フィードの接続数")
+                .register(meterRegistry);
+        this.resetCounter = Counter.builder("diary.stream.resets")
+                .description("イベントを再送できず一覧の再取得を促した件数")
+                .register(meterRegistry);
+    }
+
+    /**
+     * 日記の変更を発行
+     * <p>
+     * コミット後に呼び出すこと。配信は別スレッドで行うため、接続数や受信の遅いクライアントによらずすぐに戻る
+     *
+     * @param changeType 変更の種類
+     * @param id         日記ID
+     * @param diary      変更後の日記（削除の場合はnull）
+     */
+    public void publish(ChangeType changeType, long id, DiaryResponseDto diary) {
+        String data;
+        try {
+            data = objectMapper.writeValueAsString(new DiaryChangeEventDto(changeType.eventName, id, diary));
+        } catch (JsonProcessingException e) {
+            // コミット済みの更新は取り消せないため、配信できないイベントは記録のみ行う
+            log.warn("failed to serialize diary change event: {} {}", changeType, id, e);
+            return;
+        }
+        ringLock.lock();
+        try {
+            long sequence = ++latestSequence;
+            ring[index(sequence)] = new Event(sequence, changeType.eventName, data);
+        } finally {
+            ringLock.unlock();
+        }
+        dispatch();
+    }
+
+    /**
+     * 日記変更フィードに接続
+     *
+     * @param lastEventId 最後に受信したイベントID（初回接続の場合はnull）
+     * @return SSEエミッター
+     * @throws DiaryThrottledException 接続数が上限に達している場合
+     */
+    public SseEmitter subscribe(String lastEventId) {
+        reserveConnection();
+        SseEmitter sseEmitter = new SseEmitter(timeoutMillis);
+        long latest = getLatestSequence();
+        Long requestedSequence = parseEventId(lastEventId);
+        Subscriber subscriber;
+        if (lastEventId == null) {
+            subscriber = new Subscriber(sseEmitter, latest);
+        } else if (requestedSequence == null || requestedSequence > latest) {
+            subscriber = new Subscriber(sseEmitter, latest);
+            subscriber.resetPending = true;
+        } else {
+            subscriber = new Subscriber(sseEmitter, requestedSequence);
+        }
+        subscribers.add(subscriber);
+        sseEmitter.onCompletion(() -> unsubscribe(subscriber));
+        sseEmitter.onTimeout(() -> unsubscribe(subscriber));
+        sseEmitter.onError(e -> unsubscribe(subscriber));
+        subscriber.schedule();
+        return sseEmitter;
+    }
+
+    /**
+     * 接続中のクライアントへコメントを送信
+     * <p>
+     * 中継するプロキシに待機中の接続を切断されないようにし、切断済みの接続を検出して解放する
+     */
+    @Scheduled(
+            initialDelayString = "${diary.stream.heartbeat-interval}",
+            fixedDelayString = "${diary.stream.heartbeat-interval}")
+    public void sendHeartbeats() {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.heartbeatPending = true;
+            subscriber.schedule();
+        }
+    }
+
+    /**
+     * 接続をすべて終了して配信を停止
+     */
+    @PreDestroy
+    public void close() {
+        executor.shutdownNow();
+        for (Subscriber subscriber : subscribers) {
+            subscriber.sseEmitter.complete();
+        }
+        subscribers.clear();
+    }
+
+    /**
+     * 指定の連番より後のイベントを取得
+     *
+     * @param sequence 連番
+     * @return イベントリスト（すでにバッファにないイベントが含まれる場合はnull）
+     */
+    List<Event> getEventsAfter(long sequence) {
+        ringLock.lock();
+        try {
+            long oldestSequence = Math.max(1, latestSequence - ring.length + 1);
+            if (sequence > latestSequence || sequence < oldestSequence - 1) {
+                return null;
+            }
+            List<Event> eventList = new ArrayList<>((int) (latestSequence - sequence));
+            for (long s = sequence + 1; s <= latestSequence; s++) {
+                eventList.add(ring[index(s)]);
+            }
+            return eventList;
+        } finally {
+            ringLock.unlock();
+        }
+    }
+
+    /**
+     * イベントIDから連番を取得
+     *
+     * @param eventId イベントID（{@code 起動ID-連番}）
+     * @return 連番（形式が異なる場合・再起動前のイベントIDの場合はnull）
+     */
+    Long parseEventId(String eventId) {
+        if (eventId == null || !eventId.startsWith(bootId + "-")) {
+            return null;
+        }
+        try {
+            return Long.parseLong(eventId.substring(bootId.length() + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 連番からイベントIDを作成
+     *
+     * @param sequence 連番
+     * @return イベントID
+     */
+    String formatEventId(long sequence) {
+        return bootId + "-" + sequence;
+    }
+
+    /**
+     * 接続数を予約
+     *
+     * @throws DiaryThrottledException 接続数が上限に達している場合
+     */
+    private void reserveConnection() {
+        if (connectionCount.getAndUpdate(count -> count < maxConnections ? count + 1 : count) < maxConnections) {
+            return;
+        }
+        throw new DiaryThrottledException(
+                messageSource.getMessage(
+                        "errors.api.diary.stream.too.many",
+                        new Object[]{RETRY_AFTER_FULL.toSeconds()},
+                        Locale.getDefault()
+                ),
+                RETRY_AFTER_FULL);
+    }
+
+    /**
+     * 配信対象から外し、予約した接続数を戻す（複数回呼び出しても1度だけ戻す）
+     *
+     * @param subscriber 接続中のクライアント
+     */
+    private void unsubscribe(Subscriber subscriber) {
+        if (subscribers.remove(subscriber)) {
+            connectionCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * 最新のイベントの連番を取得
+     *
+     * @return 連番（イベントがない場合は0）
+     */
+    private long getLatestSequence() {
+        ringLock.lock();
+        try {
+            return latestSequence;
+        } finally {
+            ringLock.unlock();
+        }
+    }
+
+    /**
+     * 接続中のクライアントへの配信を登録
+     * <p>
+     * 接続ごとの登録は配信用のスレッドで行い、発行元は接続数によらず1件のタスクの登録のみ行う
+     */
+    private void dispatch() {
+        if (!dispatchScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                dispatchScheduled.set(false);
+                subscribers.forEach(Subscriber::schedule);
+            });
+        } catch (RejectedExecutionException e) {
+            // 停止中は配信しない
+            dispatchScheduled.set(false);
+        }
+    }
+
+    /**
+     * 連番に対応するバッファの位置を取得
+     *
+     * @param sequence 連番
+     * @return 位置
+     */
+    private int index(long sequence) {
+        return (int) (sequence % ring.length);
+    }
+
+    /**
+     * 接続中のクライアント
+     * <p>
+     * 送信は同時に1つのタスクのみが行い、送信済みのイベントの連番（cursor）より後のイベントを順に送る
+     */
+    private final class Subscriber {
+        private final SseEmitter sseEmitter;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private long cursor;
+        private volatile boolean resetPending;
+        private volatile boolean heartbeatPending;
+
+        private Subscriber(SseEmitter sseEmitter, long cursor) {
+            this.sseEmitter = sseEmitter;
+            this.cursor = cursor;
+        }
+
+        /**
+         * 送信タスクを登録（登録済みの場合は何もしない）
+         */
+        private void schedule() {
+            if (!scheduled.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                scheduled.set(false);
+            }
+        }
+
+        /**
+         * 未送信のイベントを送信
+         * <p>
+         * 送信中に発行されたイベントは、送信後に再度登録して送る
+         */
+        private void drain() {
+            try {
+                List<Event> eventList = resetPending ? null : getEventsAfter(cursor);
+                if (eventList == null) {
+                    resetPending = false;
+                    cursor = getLatestSequence();
+                    resetCounter.increment();
+                    sseEmitter.send(SseEmitter.event().id(formatEventId(cursor)).name(RESET_EVENT_NAME).data(""));
+                    eventList = List.of();
+                }
+                for (Event event : eventList) {
+                    sseEmitter.send(SseEmitter.event()
+                            .id(formatEventId(event.sequence()))
+                            .name(event.name())
+                            .data(event.data()));
+                    cursor = event.sequence();
+                }
+                if (heartbeatPending) {
+                    heartbeatPending = false;
+                    sseEmitter.send(SseEmitter.event().comment("heartbeat"));
+                }
+            } catch (IOException | IllegalStateException e) {
+                // 切断済み・終了済みの接続は、コンテナからの通知を待たずに配信対象から外す
+                unsubscribe(this);
+                return;
+            } finally {
+                scheduled.set(false);
+            }
+            if (resetPending || heartbeatPending || cursor < getLatestSequence()) {
+                schedule();
+            }
+        }
+    }
+}
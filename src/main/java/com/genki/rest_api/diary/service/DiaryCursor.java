@@ -0,0 +1,71 @@
+package com.genki.rest_api.diary.service;
+
+import com.genki.rest_api.diary.dto.DiaryResponseDto;
+import com.genki.rest_api.diary.dto.DiarySummaryResponseDto;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Base64;
+
+/**
+ * 日記一覧のキーセットページング用カーソル
+ *
+ * @param createdAt 直前ページ最終行の作成日時
+ * @param id        直前ページ最終行のID
+ */
+public record DiaryCursor(LocalDateTime createdAt, long id) {
+    private static final String SEPARATOR = "|";
+
+    /**
+     * 日記レスポンスDTOからカーソルを作成
+     *
+     * @param diaryResponseDto 日記レスポンスDTO
+     * @return カーソル
+     */
+    public static DiaryCursor of(DiaryResponseDto diaryResponseDto) {
+        return new DiaryCursor(diaryResponseDto.createdAt(), diaryResponseDto.id());
+    }
+
+    /**
+     * 日記サマリーレスポンスDTOからカーソルを作成
+     *
+     * @param diarySummaryResponseDto 日記サマリーレスポンスDTO
+     * @return カーソル
+     */
+    public static DiaryCursor of(DiarySummaryResponseDto diarySummaryResponseDto) {
+        return new DiaryCursor(diarySummaryResponseDto.createdAt(), diarySummaryResponseDto.id());
+    }
+
+    /**
+     * カーソルを不透明なトークンに変換
+     *
+     * @return カーソルトークン
+     */
+    public String encode() {
+        String raw = createdAt + SEPARATOR + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * トークンからカーソルを復元
+     *
+     * @param token カーソルトークン
+     * @return カーソル
+     * @throws IllegalArgumentException トークンが不正な場合
+     */
+    public static DiaryCursor decode(String token) {
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            int separatorIndex = raw.lastIndexOf(SEPARATOR);
+            if (separatorIndex < 0) {
+                throw new IllegalArgumentException("separator not found: " + token);
+            }
+            return new DiaryCursor(
+                    LocalDateTime.parse(raw.substring(0, separatorIndex)),
+                    Long.parseLong(raw.substring(separatorIndex + 1))
+            );
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("invalid cursor: " + token, e);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.genki.rest_api.diary.service;
+
+import com.genki.rest_api.diary.entity.DiaryFileDeletionEntity;
+import com.genki.rest_api.diary.repository.DiaryFileDeletionRepository;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Limit;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 日記画像削除サービス
+ * <p>
+ * 削除する画像を日記の削除・画像の差し替えと同じトランザクションでdiary_file_deletionに登録し、
+ * コミット後にバックグラウンドで削除する。ファイルの削除がトランザクションを長引かせず、
+ * ロールバックされた場合は削除しない。削除に失敗した画像や停止により残った画像は定期的に再試行する
+ */
+@Slf4j
+@Service
+public class DiaryFileDeletionService {
+    private static final int BATCH_SIZE = 100;
+
+    private final DiaryFileDeletionRepository diaryFileDeletionRepository;
+    private final DiaryImageBlobService diaryImageBlobService;
+    private final DiaryStorageMetrics diaryStorageMetrics;
+    private final ExecutorService executor;
+
+    /**
+     * 削除の実行を登録済みか（コミットのたびに重複して登録しないため）
+     */
+    private final AtomicBoolean drainRequested = new AtomicBoolean();
+
+    public DiaryFileDeletionService(
+            DiaryFileDeletionRepository diaryFileDeletionRepository,
+            DiaryImageBlobService diaryImageBlobService,
+            DiaryStorageMetrics diaryStorageMetrics,
+            @Value("${spring.threads.virtual.enabled:false}") boolean virtualThreadsEnabled) {
+        this.diaryFileDeletionRepository = diaryFileDeletionRepository;
+        this.diaryImageBlobService = diaryImageBlobService;
+        this.diaryStorageMetrics = diaryStorageMetrics;
+        this.executor = Executors.newSingleThreadExecutor(virtualThreadsEnabled
+                ? Thread.ofVirtual().name("diary-file-deletion-", 1).factory()
+                : new CustomizableThreadFactory("diary-file-deletion-"));
+    }
+
+    /**
+     * ブロブの参照件数を減らした後、参照されなくなっていれば削除するよう登録
+     *
+     * @param imagePath 画像パス
+     */
+    public void enqueueBlob(String imagePath) {
+        enqueue(imagePath);
+    }
+
+    /**
+     * 旧形式の画像の削除を登録
+     *
+     * @param id        ID
+     * @param imagePath 画像パス（nullの場合は日記IDごとのディレクトリ全体）
+     */
+    public void enqueueLegacy(long id, String imagePath) {
+        enqueue(imagePath == null ? String.valueOf(id) : id + "/" + imagePath);
+    }
+
+    /**
+     * 旧形式の日記IDごとのディレクトリが残っている場合のみ削除を登録
+     * <p>
+     * 日記の削除のコミット後に呼び出す。ディレクトリの確認と登録はワーカーで行うため、トランザクション中にファイルシステムを参照しない。
+     * 登録前に停止した場合も、残ったファイルはどの日記からも参照されないため{@link DiaryImageReconciler}が削除する
+     *
+     * @param id ID
+     */
+    public void enqueueLegacyDirIfExists(long id) {
+        try {
+            executor.execute(() -> {
+                if (Files.exists(diaryImageBlobService.getLegacyImageDirPath(id))) {
+                    enqueueLegacy(id, null);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 停止中の場合は孤立した画像として削除する
+        }
+    }
+
+    /**
+     * 登録済みの画像の削除を実行するよう要求
+     * <p>
+     * コミット後のほか、削除に失敗した画像を再試行するため定期的に呼び出す
+     */
+    @Scheduled(
+            initialDelayString = "${diary.image.deletion.retry-interval}",
+            fixedDelayString = "${diary.image.deletion.retry-interval}")
+    public void requestDrain() {
+        if (!drainRequested.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            // 停止中の場合は次回起動時に削除する
+            drainRequested.set(false);
+        }
+    }
+
+    /**
+     * 実行中の削除を中断してワーカーを停止
+     */
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 削除を登録し、コミット後に実行を要求
+     *
+     * @param imagePath 画像パス
+     */
+    private void enqueue(String imagePath) {
+        DiaryFileDeletionEntity diaryFileDeletionEntity = new DiaryFileDeletionEntity();
+        diaryFileDeletionEntity.setImagePath(imagePath);
+        diaryFileDeletionRepository.save(diaryFileDeletionEntity);
+
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            requestDrain();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                requestDrain();
+            }
+        });
+    }
+
+    /**
+     * 登録済みの画像をID順に削除
+     */
+    private void drain() {
+        drainRequested.set(false);
+        long lastId = 0;
+        List<DiaryFileDeletionEntity> diaryFileDeletionEntityList;
+        do {
+            diaryFileDeletionEntityList = diaryFileDeletionRepository.findByIdGreaterThanOrderByIdAsc(
+                    lastId, Limit.of(BATCH_SIZE));
+            for (DiaryFileDeletionEntity diaryFileDeletionEntity : diaryFileDeletionEntityList) {
+                lastId = diaryFileDeletionEntity.getId();
+                try {
+                    delete(diaryFileDeletionEntity.getImagePath());
+                    diaryFileDeletionRepository.deleteById(lastId);
+                } catch (IOException | RuntimeException e) {
+                    log.warn("failed to delete diary image: {}", diaryFileDeletionEntity.getImagePath(), e);
+                }
+            }
+        } while (diaryFileDeletionEntityList.size() == BATCH_SIZE && !Thread.currentThread().isInterrupted());
+    }
+
+    /**
+     * 画像を削除
+     *
+     * @param imagePath ブロブの画像パス、または画像ディレクトリからの相対パス
+     * @throws IOException 削除できない場合
+     */
+    private void delete(String imagePath) throws IOException {
+        if (DiaryImageBlobService.isBlobName(imagePath)) {
+            diaryImageBlobService.deleteIfUnreferenced(imagePath);
+            return;
+        }
+        Path imageDirPath = diaryImageBlobService.getImageDirPath().normalize();
+        Path filePath = imageDirPath.resolve(imagePath).normalize();
+        if (!filePath.startsWith(imageDirPath) || filePath.equals(imageDirPath)) {
+            log.warn("ignored diary image outside image directory: {}", imagePath);
+            return;
+        }
+        diaryStorageMetrics.record("delete_recursively", () -> FileSystemUtils.deleteRecursively(filePath));
+    }
+}
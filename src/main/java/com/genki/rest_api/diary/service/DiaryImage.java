@@ -0,0 +1,17 @@
+package com.genki.rest_api.diary.service;
+
+import org.springframework.core.io.Resource;
+
+/**
+ * 日記画像
+ *
+ * @param key       画像を一意に識別するキー（ETagの生成に使う。元画像は画像パス、縮小画像は「サイズ/画像パス」、旧形式の画像は「日記ID/画像パス」）
+ * @param imagePath 画像パス
+ * @param resource  画像のリソース（保存されていない場合は読み込めない）
+ * @param metadata  メタデータ（ブロブの元画像のみ。縮小画像・旧形式の画像・メタデータを読み取れない場合はnull）
+ */
+public record DiaryImage(String key, String imagePath, Resource resource, DiaryImageMetadata metadata) {
+    public DiaryImage(String key, String imagePath, Resource resource) {
+        this(key, imagePath, resource, null);
+    }
+}
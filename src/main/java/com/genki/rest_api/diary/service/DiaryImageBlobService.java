@@ -0,0 +1,637 @@
+package com.genki.rest_api.diary.service;
+
+import com.genki.rest_api.diary.entity.DiaryImageBlobEntity;
+import com.genki.rest_api.diary.exception.DiaryIOException;
+import com.genki.rest_api.diary.exception.DiaryImageNotSupportedException;
+import com.genki.rest_api.diary.repository.DiaryImageBlobRepository;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.MessageSource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 日記画像ブロブサービス
+ * <p>
+ * 画像を内容のSHA-256をファイル名として{@link DiaryImageStore}に1つだけ保存し、同じ画像を参照する日記の件数を数える。
+ * 参照件数が0になった画像は{@link DiaryFileDeletionService}がコミット後に縮小画像とともに削除する。
+ * 同じ画像の保存・削除・移行はdiary_image_blobの行ロックで直列化する（JVM内のロックは使わないため、複数のインスタンスで共有するストアでも競合しない）。
+ * 保存時に読み取ったメタデータ（{@link DiaryImageMetadata}）を参照件数とともに保存し、画像を返す際はファイルではなくメタデータからヘッダを作成する。
+ * 分割前の形式（{@code images/blobs/{画像パス}}）の画像は{@link DiaryImageLayoutMigrator}がストアへ移行するまで読み込み・削除の対象とする。
+ * 移行前の旧形式の画像は{@code images/{日記ID}/{UUID}.{拡張子}}に保存されている
+ */
+@Service
+public class DiaryImageBlobService {
+    private static final String BLOB_DIR_NAME = "blobs";
+    private static final String TMP_DIR_NAME = "tmp";
+    private static final String UPLOAD_DIR_NAME = "uploads";
+    private static final String VARIANT_DIR_NAME = "variants";
+    private static final Pattern BLOB_NAME_PATTERN = Pattern.compile("[0-9a-f]{64}\\.[0-9a-z]+");
+    private static final int METADATA_CACHE_SIZE = 10_000;
+
+    private final DiaryImageBlobRepository diaryImageBlobRepository;
+    private final MessageSource messageSource;
+    private final TransactionTemplate requiresNewTransactionTemplate;
+    private final DiaryStorageMetrics diaryStorageMetrics;
+    private final DiaryImageStore diaryImageStore;
+    private final Path imageDirPath;
+
+    /**
+     * 分割前の形式で保存された画像が残っているか（{@link DiaryImageLayoutMigrator}が移行後に更新する）
+     */
+    private volatile boolean unshardedImagesRemaining;
+
+    /**
+     * 画像パスごとのメタデータ（画像パスは内容のSHA-256のため、一度読み込んだメタデータは変わらない）
+     */
+    private final Cache<String, DiaryImageMetadata> metadataCache =
+            Caffeine.newBuilder().maximumSize(METADATA_CACHE_SIZE).build();
+
+    public DiaryImageBlobService(
+            DiaryImageBlobRepository diaryImageBlobRepository,
+            MessageSource messageSource,
+            PlatformTransactionManager transactionManager,
+            DiaryStorageMetrics diaryStorageMetrics,
+            DiaryImageStore diaryImageStore,
+            @Value("${diary.image.dir}") Path imageDirPath) {
+        this.diaryImageBlobRepository = diaryImageBlobRepository;
+        this.messageSource = messageSource;
+        this.requiresNewTransactionTemplate = new TransactionTemplate(transactionManager);
+        this.requiresNewTransactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.diaryStorageMetrics = diaryStorageMetrics;
+        this.diaryImageStore = diaryImageStore;
+        this.imageDirPath = imageDirPath;
+        try {
+            this.unshardedImagesRemaining = hasUnshardedImages();
+        } catch (IOException e) {
+            // 確認できない場合は残っているものとして扱う
+            this.unshardedImagesRemaining = true;
+        }
+    }
+
+    /**
+     * 画像パスがブロブを指しているか
+     *
+     * @param imagePath 画像パス
+     * @return true=ブロブ, false=日記IDごとのディレクトリに保存された旧形式の画像
+     */
+    public static boolean isBlobName(String imagePath) {
+        return imagePath != null && BLOB_NAME_PATTERN.matcher(imagePath).matches();
+    }
+
+    /**
+     * 画像ディレクトリのパスを取得
+     *
+     * @return ディレクトリパス
+     */
+    public Path getImageDirPath() {
+        return imageDirPath;
+    }
+
+    /**
+     * 分割前の形式のブロブのディレクトリのパスを取得
+     * <p>
+     * 分割前の形式では元画像を{@code images/blobs/{画像パス}}に保存していた
+     *
+     * @return ディレクトリパス
+     */
+    public Path getUnshardedBlobDirPath() {
+        return imageDirPath.resolve(BLOB_DIR_NAME);
+    }
+
+    /**
+     * 分割前の形式の縮小画像のディレクトリのパスを取得
+     * <p>
+     * 分割前の形式では縮小画像を{@code images/variants/{サイズ}/{画像パス}}に保存していた
+     *
+     * @return ディレクトリパス（この下にサイズごとのディレクトリがある）
+     */
+    public Path getUnshardedVariantDirPath() {
+        return imageDirPath.resolve(VARIANT_DIR_NAME);
+    }
+
+    /**
+     * 一時ファイル用ディレクトリのパスを取得
+     *
+     * @return ディレクトリパス
+     */
+    public Path getTmpDirPath() {
+        return imageDirPath.resolve(TMP_DIR_NAME);
+    }
+
+    /**
+     * 分割アップロード中のファイルのディレクトリのパスを取得
+     * <p>
+     * 未使用の一時ファイルとして削除されないよう、一時ファイル用ディレクトリとは分ける
+     *
+     * @return ディレクトリパス
+     */
+    public Path getUploadDirPath() {
+        return imageDirPath.resolve(UPLOAD_DIR_NAME);
+    }
+
+    /**
+     * 一時ファイル用ディレクトリを作成してパスを取得
+     *
+     * @return ディレクトリパス
+     * @throws IOException ディレクトリを作成できない場合
+     */
+    public Path createTmpDir() throws IOException {
+        return diaryStorageMetrics.record("create_directories", () -> Files.createDirectories(getTmpDirPath()));
+    }
+
+    /**
+     * ブロブの画像が保存されているか（分割前の形式で保存された画像を含む）
+     *
+     * @param imagePath 画像パス
+     * @param size      縮小後の長辺のピクセル数（元画像は{@link DiaryImageStore#ORIGINAL}）
+     * @return true=保存されている
+     */
+    public boolean exists(String imagePath, int size) {
+        return diaryImageStore.exists(imagePath, size)
+                || unshardedImagesRemaining && Files.exists(resolveUnsharded(imagePath, size));
+    }
+
+    /**
+     * ブロブの画像をリソースとして取得
+     * <p>
+     * ストアに保存されていない場合は、移行前の分割前の形式のファイルを返す
+     *
+     * @param imagePath 画像パス
+     * @param size      縮小後の長辺のピクセル数（元画像は{@link DiaryImageStore#ORIGINAL}）
+     * @return リソース（保存されていない場合は読み込めない）
+     */
+    public Resource getResource(String imagePath, int size) {
+        Resource resource = diaryImageStore.get(imagePath, size);
+        if (unshardedImagesRemaining && !resource.exists()) {
+            Path unshardedFilePath = resolveUnsharded(imagePath, size);
+            if (Files.exists(unshardedFilePath)) {
+                return new FileSystemResource(unshardedFilePath);
+            }
+        }
+        return resource;
+    }
+
+    /**
+     * 日記の元画像をリソースとして取得（旧形式の画像は日記IDごとのディレクトリから解決）
+     *
+     * @param id        ID
+     * @param imagePath 画像パス
+     * @return リソース（保存されていない場合は読み込めない）
+     */
+    public Resource getResource(long id, String imagePath) {
+        if (isBlobName(imagePath)) {
+            return getResource(imagePath, DiaryImageStore.ORIGINAL);
+        }
+        return new FileSystemResource(getLegacyImageDirPath(id).resolve(imagePath));
+    }
+
+    /**
+     * ブロブの元画像のメタデータを取得
+     * <p>
+     * メタデータを追加する前に保存された画像は、元画像から読み取って別トランザクションで保存する
+     *
+     * @param imagePath 画像パス
+     * @return メタデータ（画像が保存されていない場合は空）
+     */
+    public Optional<DiaryImageMetadata> getMetadata(String imagePath) {
+        return Optional.ofNullable(metadataCache.get(imagePath, this::loadMetadata));
+    }
+
+    /**
+     * ブロブの元画像のメタデータを読み込む
+     *
+     * @param imagePath 画像パス
+     * @return メタデータ（画像が保存されていない場合はnull）
+     */
+    private DiaryImageMetadata loadMetadata(String imagePath) {
+        DiaryImageMetadata diaryImageMetadata = diaryImageBlobRepository.findById(imagePath)
+                .map(DiaryImageMetadata::of)
+                .orElse(null);
+        if (diaryImageMetadata != null) {
+            return diaryImageMetadata;
+        }
+        Resource resource = getResource(imagePath, DiaryImageStore.ORIGINAL);
+        if (!resource.isReadable()) {
+            return null;
+        }
+        try {
+            DiaryImageMetadata readMetadata = DiaryImageMetadata.read(resource);
+            if (readMetadata == null) {
+                // 形式を判定できない画像はメタデータを保存せず、拡張子から返す
+                return null;
+            }
+            requiresNewTransactionTemplate.executeWithoutResult(status -> diaryImageBlobRepository.updateMetadata(
+                    imagePath, readMetadata.contentType(), readMetadata.contentLength(),
+                    readMetadata.width(), readMetadata.height()));
+            return readMetadata;
+        } catch (IOException | DataAccessException e) {
+            // 読み取り・保存できない場合は次の参照時に再度読み取る
+            return null;
+        }
+    }
+
+    /**
+     * 参照件数が1以上の画像パスを取得
+     *
+     * @param imagePaths 画像パス
+     * @return 参照されている画像パス（参照件数が0・未登録の画像パスは含まない）
+     */
+    public Set<String> getReferencedImagePaths(Collection<String> imagePaths) {
+        return diaryImageBlobRepository.findAllById(imagePaths).stream()
+                .filter(diaryImageBlobEntity -> diaryImageBlobEntity.getReferenceCount() > 0)
+                .map(DiaryImageBlobEntity::getImagePath)
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * 縮小画像を保存
+     *
+     * @param imagePath 画像パス
+     * @param size      縮小後の長辺のピクセル数
+     * @param filePath  画像ディレクトリ上の縮小画像のファイルパス（保存後は移動または削除されている）
+     * @throws IOException 保存できない場合
+     */
+    public void putVariant(String imagePath, int size, Path filePath) throws IOException {
+        diaryImageStore.put(imagePath, size, filePath);
+    }
+
+    /**
+     * 元画像と同じ内容の縮小画像を保存
+     *
+     * @param imagePath 画像パス
+     * @param size      縮小後の長辺のピクセル数
+     * @throws IOException 保存できない場合
+     */
+    public void putOriginalAsVariant(String imagePath, int size) throws IOException {
+        diaryImageStore.putOriginalAs(imagePath, size);
+    }
+
+    /**
+     * 分割前の形式で保存された画像をストアへ移動
+     * <p>
+     * 同じ画像の保存・削除と競合しないよう、別トランザクションで行ロックを取得して行う。ストアに保存済みの場合はファイルを削除する
+     *
+     * @param imagePath 画像パス
+     * @param size      縮小後の長辺のピクセル数（元画像は{@link DiaryImageStore#ORIGINAL}）
+     * @throws IOException 移動できない場合
+     */
+    void migrateUnsharded(String imagePath, int size) throws IOException {
+        try {
+            requiresNewTransactionTemplate.executeWithoutResult(status -> {
+                diaryImageBlobRepository.findForUpdate(imagePath);
+                Path unshardedFilePath = resolveUnsharded(imagePath, size);
+                if (Files.notExists(unshardedFilePath)) {
+                    return;
+                }
+                try {
+                    if (diaryImageStore.exists(imagePath, size)) {
+                        Files.delete(unshardedFilePath);
+                    } else {
+                        diaryImageStore.put(imagePath, size, unshardedFilePath);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * 分割前の形式で保存された画像が残っているか
+     * <p>
+     * 残っていない場合は、ストアに無い画像について分割前の形式のファイルを確認しない
+     *
+     * @return true=残っている
+     */
+    public boolean isUnshardedImagesRemaining() {
+        return unshardedImagesRemaining;
+    }
+
+    /**
+     * 分割前の形式で保存された画像が残っているかを再確認
+     *
+     * @return true=残っている
+     * @throws IOException 確認できない場合
+     */
+    boolean refreshUnshardedImagesRemaining() throws IOException {
+        unshardedImagesRemaining = hasUnshardedImages();
+        return unshardedImagesRemaining;
+    }
+
+    /**
+     * 分割前の形式のファイルが1件でもあるか
+     * <p>
+     * 各ディレクトリの直下を最初のファイルが見つかるまで走査する。分割後のディレクトリ直下は分割用のディレクトリのみのため、
+     * 移行済みの場合も走査は数百件で終わる
+     *
+     * @return true=ある
+     * @throws IOException 走査できない場合
+     */
+    private boolean hasUnshardedImages() throws IOException {
+        if (containsBlobFile(getUnshardedBlobDirPath())) {
+            return true;
+        }
+        Path unshardedVariantDirPath = getUnshardedVariantDirPath();
+        if (!Files.isDirectory(unshardedVariantDirPath)) {
+            return false;
+        }
+        try (Stream<Path> sizeDirPaths = Files.list(unshardedVariantDirPath)) {
+            for (Path sizeDirPath : (Iterable<Path>) sizeDirPaths::iterator) {
+                if (containsBlobFile(sizeDirPath)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * ディレクトリの直下にブロブのファイルがあるか
+     *
+     * @param dirPath ディレクトリパス
+     * @return true=ある
+     * @throws IOException 走査できない場合
+     */
+    private boolean containsBlobFile(Path dirPath) throws IOException {
+        if (!Files.isDirectory(dirPath)) {
+            return false;
+        }
+        try (Stream<Path> filePaths = Files.list(dirPath)) {
+            return filePaths.anyMatch(filePath ->
+                    isBlobName(filePath.getFileName().toString()) && Files.isRegularFile(filePath));
+        }
+    }
+
+    /**
+     * 分割前の形式の画像のファイルパスを取得
+     *
+     * @param imagePath 画像パス
+     * @param size      縮小後の長辺のピクセル数（元画像は{@link DiaryImageStore#ORIGINAL}）
+     * @return ファイルパス
+     */
+    private Path resolveUnsharded(String imagePath, int size) {
+        if (size == DiaryImageStore.ORIGINAL) {
+            return getUnshardedBlobDirPath().resolve(imagePath);
+        }
+        return getUnshardedVariantDirPath().resolve(String.valueOf(size)).resolve(imagePath);
+    }
+
+    /**
+     * 旧形式の日記IDごとの画像ディレクトリのパスを取得
+     *
+     * @param id ID
+     * @return ディレクトリパス
+     */
+    public Path getLegacyImageDirPath(long id) {
+        return imageDirPath.resolve(String.valueOf(id));
+    }
+
+    /**
+     * 画像を保存し、参照件数を1増やす
+     * <p>
+     * 読み込みながらSHA-256を計算して一時ファイルに書き込み、同じ画像が未保存の場合のみ所定の位置へ移動する。
+     * 呼び出し元のトランザクションがロールバックされた場合は、参照されなくなった画像を削除する
+     *
+     * @param inputStream 画像の入力ストリーム
+     * @param extension   拡張子
+     * @return 画像パス
+     * @throws DiaryImageNotSupportedException 内容がサポートしている形式の画像でない場合
+     */
+    public String store(InputStream inputStream, String extension) {
+        Path tmpFilePath = null;
+        try (inputStream) {
+            Path tmpDirPath = createTmpDir();
+            tmpFilePath = Files.createTempFile(tmpDirPath, "upload", ".tmp");
+
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            Path uploadFilePath = tmpFilePath;
+            try (DigestInputStream digestInputStream = new DigestInputStream(inputStream, messageDigest)) {
+                diaryStorageMetrics.record("transfer",
+                        () -> Files.copy(digestInputStream, uploadFilePath, StandardCopyOption.REPLACE_EXISTING));
+            }
+            DiaryImageMetadata diaryImageMetadata = readMetadata(uploadFilePath);
+            String imagePath = HexFormat.of().formatHex(messageDigest.digest()) + "."
+                    + diaryImageMetadata.getExtension(extension).toLowerCase();
+            moveToBlob(tmpFilePath, imagePath, diaryImageMetadata);
+            return imagePath;
+        } catch (IOException | NoSuchAlgorithmException e) {
+            deleteQuietly(tmpFilePath);
+            throw new DiaryIOException(
+                    messageSource.getMessage(
+                            "errors.api.diary.image.file.is.blank",
+                            null,
+                            Locale.getDefault()
+                    ),
+                    e);
+        }
+    }
+
+    /**
+     * SHA-256を計算済みのファイルを画像として保存し、参照件数を1増やす
+     * <p>
+     * ファイルは画像ディレクトリと同じファイルシステム上にあること（コピーせずに移動する）。
+     * 同じ画像が保存済みの場合はファイルを削除する
+     *
+     * @param filePath  ファイルパス
+     * @param sha256    ファイルの内容のSHA-256
+     * @param extension 拡張子
+     * @return 画像パス
+     * @throws DiaryImageNotSupportedException 内容がサポートしている形式の画像でない場合
+     */
+    public String store(Path filePath, byte[] sha256, String extension) {
+        try {
+            DiaryImageMetadata diaryImageMetadata = readMetadata(filePath);
+            String imagePath = HexFormat.of().formatHex(sha256) + "."
+                    + diaryImageMetadata.getExtension(extension).toLowerCase();
+            moveToBlob(filePath, imagePath, diaryImageMetadata);
+            return imagePath;
+        } catch (IOException e) {
+            deleteQuietly(filePath);
+            throw new DiaryIOException(
+                    messageSource.getMessage(
+                            "errors.api.diary.image.file.is.blank",
+                            null,
+                            Locale.getDefault()
+                    ),
+                    e);
+        }
+    }
+
+    /**
+     * 保存するファイルのメタデータを読み取る
+     *
+     * @param filePath ファイルパス
+     * @return メタデータ
+     * @throws IOException                     読み込めない場合
+     * @throws DiaryImageNotSupportedException 内容がサポートしている形式の画像でない場合（ファイルは削除する）
+     */
+    private DiaryImageMetadata readMetadata(Path filePath) throws IOException {
+        DiaryImageMetadata diaryImageMetadata = DiaryImageMetadata.read(new FileSystemResource(filePath));
+        if (diaryImageMetadata == null) {
+            deleteQuietly(filePath);
+            throw new DiaryImageNotSupportedException(
+                    messageSource.getMessage(
+                            "errors.api.diary.image.format.not.supported",
+                            null,
+                            Locale.getDefault()
+                    )
+            );
+        }
+        return diaryImageMetadata;
+    }
+
+    /**
+     * ファイルをストアへ保存し、参照件数を1増やす
+     * <p>
+     * 先に参照件数を増やして行ロックを取得し、呼び出し元のトランザクションの終了まで保持する。
+     * 削除中の同じ画像があれば削除のコミットを待ってから保存するため、保存した画像が削除されることはない。
+     * 呼び出し元のトランザクションがロールバックされた場合は、参照されなくなった画像を削除する
+     *
+     * @param filePath           ファイルパス
+     * @param imagePath          画像パス
+     * @param diaryImageMetadata メタデータ
+     * @throws IOException 移動できない場合
+     */
+    private void moveToBlob(Path filePath, String imagePath, DiaryImageMetadata diaryImageMetadata)
+            throws IOException {
+        diaryImageBlobRepository.acquire(
+                imagePath, diaryImageMetadata.contentType(), diaryImageMetadata.contentLength(),
+                diaryImageMetadata.width(), diaryImageMetadata.height());
+        if (exists(imagePath, DiaryImageStore.ORIGINAL)) {
+            Files.delete(filePath);
+        } else {
+            diaryImageStore.put(imagePath, DiaryImageStore.ORIGINAL, filePath);
+        }
+        afterRollback(() -> deleteIfUnreferenced(imagePath));
+    }
+
+    /**
+     * 参照件数を1減らす（参照されなくなった画像の削除は呼び出し元で登録する）
+     *
+     * @param imagePath 画像パス
+     */
+    public void release(String imagePath) {
+        diaryImageBlobRepository.release(imagePath);
+    }
+
+    /**
+     * 参照件数が0の画像を削除
+     * <p>
+     * 別トランザクションで行ロック（行がない場合は画像パスのギャップロック）を取得して参照件数を判定し、
+     * ロックを保持したままファイルを削除してからコミットする。同じ画像の保存は参照件数を増やす時点でこのコミットを待つ。
+     * ファイルを削除できない場合はロールバックして行を残し、再試行で削除する
+     *
+     * @param imagePath 画像パス
+     */
+    public void deleteIfUnreferenced(String imagePath) {
+        try {
+            requiresNewTransactionTemplate.executeWithoutResult(status -> {
+                Optional<DiaryImageBlobEntity> diaryImageBlobEntity = diaryImageBlobRepository.findForUpdate(imagePath);
+                if (diaryImageBlobEntity.isPresent() && diaryImageBlobEntity.get().getReferenceCount() > 0) {
+                    return;
+                }
+                diaryImageBlobEntity.ifPresent(diaryImageBlobRepository::delete);
+                diaryImageBlobRepository.flush();
+                try {
+                    diaryImageStore.deleteAll(imagePath);
+                    if (unshardedImagesRemaining) {
+                        deleteUnsharded(imagePath);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw new DiaryIOException(
+                    messageSource.getMessage(
+                            "errors.api.diary.image.file.is.blank",
+                            null,
+                            Locale.getDefault()
+                    ),
+                    e.getCause());
+        }
+    }
+
+    /**
+     * 分割前の形式で保存された元画像・縮小画像をすべて削除
+     *
+     * @param imagePath 画像パス
+     * @throws IOException 削除できない場合
+     */
+    private void deleteUnsharded(String imagePath) throws IOException {
+        Files.deleteIfExists(resolveUnsharded(imagePath, DiaryImageStore.ORIGINAL));
+        Path variantDirPath = getUnshardedVariantDirPath();
+        if (!Files.isDirectory(variantDirPath)) {
+            return;
+        }
+        try (Stream<Path> sizeDirPaths = Files.list(variantDirPath)) {
+            for (Path sizeDirPath : (Iterable<Path>) sizeDirPaths::iterator) {
+                Files.deleteIfExists(sizeDirPath.resolve(imagePath));
+            }
+        }
+    }
+
+    /**
+     * トランザクションのロールバック後に処理を実行（トランザクション外の場合は実行しない）
+     *
+     * @param action 処理
+     */
+    private void afterRollback(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                if (status == STATUS_ROLLED_BACK) {
+                    action.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * 例外を送出せずにファイルを削除
+     *
+     * @param filePath ファイルパス
+     */
+    private void deleteQuietly(Path filePath) {
+        if (filePath == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(filePath);
+        } catch (IOException ignored) {
+            // 一時ファイルの削除失敗は元の例外を優先する
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.genki.rest_api.diary.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * 日記画像キャッシュ
+ * <p>
+ * よく読まれる画像の内容をヒープ外のダイレクトバッファに保持し、ストアを読まずに返す。
+ * 合計バイト数をmaximum-size以下に保ち、追い出す画像はCaffeine（W-TinyLFU）が参照頻度から選ぶため、
+ * 1度しか読まれない画像が頻繁に読まれる画像を追い出すことはない。max-entry-sizeを超える画像はキャッシュしない。
+ * 直近doorkeeper-size件の中で初めて読まれた画像はキーのみ記録して元のリソースを返し、2度目の読み込みでバッファを確保する。
+ * W-TinyLFUの判定はバッファの確保後に行われるため、1度しか読まれない画像のためにダイレクトバッファを確保しないようにする。
+ * キーは内容ごと・縮小サイズごとに異なる画像のキーのため古い内容が返ることはなく、日記の画像の差し替え・削除のコミット後に
+ * 元の画像のエントリを削除してメモリを解放する。
+ * ダイレクトバッファのメモリは追い出し後のGCで解放されるため、-XX:MaxDirectMemorySizeはmaximum-sizeより十分大きくすること
+ */
+@Component
+public class DiaryImageCache {
+    private final Cache<String, ByteBuffer> cache;
+    private final long maxEntryBytes;
+
+    /**
+     * 直近に読まれた画像のキー（キャッシュに読み込むのは2度目の読み込みから）
+     */
+    private final Cache<String, Boolean> doorkeeper;
+
+    public DiaryImageCache(
+            MeterRegistry meterRegistry,
+            @Value("${diary.image.cache.maximum-size}") DataSize maximumSize,
+            @Value("${diary.image.cache.max-entry-size}") DataSize maxEntrySize,
+            @Value("${diary.image.cache.doorkeeper-size}") long doorkeeperSize) {
+        this.cache = CaffeineCacheMetrics.monitor(meterRegistry, Caffeine.newBuilder()
+                .maximumWeight(maximumSize.toBytes())
+                .<String, ByteBuffer>weigher((key, buffer) -> buffer.capacity())
+                .recordStats()
+                .build(), "diary.image");
+        this.maxEntryBytes = maxEntrySize.toBytes();
+        this.doorkeeper = Caffeine.newBuilder()
+                .maximumSize(doorkeeperSize)
+                .build();
+        Gauge.builder("diary.image.cache.bytes", cache,
+                        c -> c.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L))
+                .description("キャッシュしている画像の合計バイト数（ダイレクトバッファ）")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    /**
+     * 日記画像をキャッシュから取得
+     * <p>
+     * キャッシュにない場合は、2度目の読み込みであればストアから読み込んでキャッシュする。同じ画像を同時に要求された場合、読み込みは1度だけ行う。
+     * 初めて読まれた画像、max-entry-sizeを超える画像、すでにメモリ上にある画像（メモリマップしたセグメントなど）は
+     * キャッシュせずにそのまま返す
+     *
+     * @param diaryImage 日記画像
+     * @return 日記画像リソース（読み込めない場合は元のリソース）
+     */
+    public Resource get(DiaryImage diaryImage) {
+        Resource resource = diaryImage.resource();
+        if (resource instanceof DiaryByteBufferResource) {
+            return resource;
+        }
+        String key = diaryImage.key();
+        if (cache.policy().getIfPresentQuietly(key) == null && doorkeeper.asMap().putIfAbsent(key, Boolean.TRUE) == null) {
+            // 初めて読まれた画像はバッファを確保しない。取得数には取りこぼしとして記録する
+            cache.getIfPresent(key);
+            return resource;
+        }
+        ByteBuffer buffer;
+        try {
+            buffer = cache.get(key, ignored -> load(resource));
+        } catch (UncheckedIOException e) {
+            // 読み込めない場合は呼び出し元で元のリソースとして扱う
+            return resource;
+        }
+        if (buffer == null) {
+            return resource;
+        }
+        return new DiaryByteBufferResource(buffer.asReadOnlyBuffer(), key);
+    }
+
+    /**
+     * 画像のエントリ（元画像・縮小画像・旧形式の画像）をすべて削除
+     *
+     * @param imagePath 画像パス
+     */
+    public void invalidate(String imagePath) {
+        String suffix = "/" + imagePath;
+        cache.asMap().keySet().removeIf(key -> key.equals(imagePath) || key.endsWith(suffix));
+    }
+
+    /**
+     * 画像の内容をダイレクトバッファに読み込む
+     *
+     * @param resource 日記画像リソース
+     * @return 内容を読み込んだバッファ（読み込めない場合・max-entry-sizeを超える場合はnull）
+     */
+    private ByteBuffer load(Resource resource) {
+        try {
+            if (!resource.isReadable() || resource.contentLength() > maxEntryBytes) {
+                return null;
+            }
+            try (ReadableByteChannel channel = resource.readableChannel()) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect((int) resource.contentLength());
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        // 読み込み中に短くなった場合はキャッシュしない
+                        throw new IOException("unexpected end of diary image: " + resource.getDescription());
+                    }
+                }
+                return buffer.flip();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
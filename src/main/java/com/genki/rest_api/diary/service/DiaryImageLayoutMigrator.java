@@ -0,0 +1,129 @@
+package com.genki.rest_api.diary.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * 日記画像レイアウト移行処理
+ * <p>
+ * 分割前の形式（{@code images/blobs/{画像パス}}・{@code images/variants/{サイズ}/{画像パス}}）で保存された画像を
+ * {@link DiaryImageStore}へ移動する。起動後にバックグラウンドで1件ずつ移動し、移行中も画像の読み込み・保存は受け付ける
+ * （ストアに無い画像は{@link DiaryImageBlobService}が分割前の形式のファイルから読み込む）。
+ * 途中で停止しても再実行でき、すべて移動した後は分割前の形式のファイルを確認しない
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "diary.image.migrate-on-startup", havingValue = "true")
+public class DiaryImageLayoutMigrator {
+    private final DiaryImageBlobService diaryImageBlobService;
+
+    private volatile Thread migrationThread;
+
+    public DiaryImageLayoutMigrator(DiaryImageBlobService diaryImageBlobService) {
+        this.diaryImageBlobService = diaryImageBlobService;
+    }
+
+    /**
+     * 分割前の形式の画像の移行をバックグラウンドで開始
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!diaryImageBlobService.isUnshardedImagesRemaining()) {
+            return;
+        }
+        migrationThread = new CustomizableThreadFactory("diary-image-layout-migrator-").newThread(this::migrate);
+        migrationThread.start();
+    }
+
+    /**
+     * 移行を中断（次回の起動時に続きから移行する）
+     */
+    @PreDestroy
+    public void stop() {
+        Thread thread = migrationThread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * 分割前の形式の画像をすべてストアへ移動
+     *
+     * @return 移動した画像の件数
+     */
+    public int migrate() {
+        int migratedCount = 0;
+        try {
+            migratedCount += migrate(diaryImageBlobService.getUnshardedBlobDirPath(), DiaryImageStore.ORIGINAL);
+            for (Path sizeDirPath : listSizeDirectories()) {
+                migratedCount += migrate(sizeDirPath, Integer.parseInt(sizeDirPath.getFileName().toString()));
+            }
+            if (!Thread.currentThread().isInterrupted() && !diaryImageBlobService.refreshUnshardedImagesRemaining()) {
+                log.info("migrated {} unsharded diary images", migratedCount);
+            }
+        } catch (IOException e) {
+            log.warn("failed to migrate unsharded diary images", e);
+        }
+        return migratedCount;
+    }
+
+    /**
+     * ディレクトリ直下の分割前の形式の画像をストアへ移動
+     *
+     * @param dirPath ディレクトリパス
+     * @param size    縮小後の長辺のピクセル数（元画像は{@link DiaryImageStore#ORIGINAL}）
+     * @return 移動した画像の件数
+     * @throws IOException ディレクトリを読み込めない場合
+     */
+    private int migrate(Path dirPath, int size) throws IOException {
+        if (!Files.isDirectory(dirPath)) {
+            return 0;
+        }
+        int migratedCount = 0;
+        try (Stream<Path> filePaths = Files.list(dirPath)) {
+            Iterator<Path> iterator = filePaths
+                    .filter(filePath -> DiaryImageBlobService.isBlobName(filePath.getFileName().toString()))
+                    .iterator();
+            while (iterator.hasNext() && !Thread.currentThread().isInterrupted()) {
+                String imagePath = iterator.next().getFileName().toString();
+                try {
+                    diaryImageBlobService.migrateUnsharded(imagePath, size);
+                    migratedCount++;
+                } catch (IOException e) {
+                    log.warn("failed to migrate unsharded diary image: {}", imagePath, e);
+                }
+            }
+        }
+        return migratedCount;
+    }
+
+    /**
+     * 分割前の形式の縮小画像のサイズごとのディレクトリを取得
+     *
+     * @return ディレクトリパスリスト
+     * @throws IOException ディレクトリを読み込めない場合
+     */
+    private List<Path> listSizeDirectories() throws IOException {
+        Path unshardedVariantDirPath = diaryImageBlobService.getUnshardedVariantDirPath();
+        if (!Files.isDirectory(unshardedVariantDirPath)) {
+            return List.of();
+        }
+        try (Stream<Path> paths = Files.list(unshardedVariantDirPath)) {
+            return paths
+                    .filter(path -> Files.isDirectory(path) && path.getFileName().toString().matches("\\d+"))
+                    .toList();
+        }
+    }
+}
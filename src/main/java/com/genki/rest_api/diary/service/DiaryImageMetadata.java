@@ -0,0 +1,165 @@
+package com.genki.rest_api.diary.service;
+
+import com.genki.rest_api.diary.entity.DiaryImageBlobEntity;
+import org.springframework.core.io.Resource;
+import org.springframework.http.MediaType;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * 日記画像のメタデータ
+ * <p>
+ * 保存時に画像の先頭のバイト列（マジックナンバー）から形式を判定し、ヘッダのみを読み込んで縦横のピクセル数を取得する。
+ * 拡張子は形式の判定に使わないため、PNG・JPEG・GIFのいずれでもない内容は拡張子によらず画像として扱わない。
+ * 画像パスは内容のSHA-256のため、同じ画像パスのメタデータは変わらない
+ *
+ * @param contentType   MIMEタイプ
+ * @param contentLength バイト数
+ * @param width         幅のピクセル数（形式を判定できない場合はnull）
+ * @param height        高さのピクセル数（形式を判定できない場合はnull）
+ */
+public record DiaryImageMetadata(String contentType, long contentLength, Integer width, Integer height) {
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final byte[] JPEG_SIGNATURE = {(byte) 0xff, (byte) 0xd8, (byte) 0xff};
+    private static final byte[] GIF87A_SIGNATURE = {'G', 'I', 'F', '8', '7', 'a'};
+    private static final byte[] GIF89A_SIGNATURE = {'G', 'I', 'F', '8', '9', 'a'};
+    private static final int SIGNATURE_LENGTH = 8;
+
+    private static final Map<String, String> CONTENT_TYPE_BY_EXTENSION = Map.of(
+            "png", MediaType.IMAGE_PNG_VALUE,
+            "jpg", MediaType.IMAGE_JPEG_VALUE,
+            "jpeg", MediaType.IMAGE_JPEG_VALUE,
+            "gif", MediaType.IMAGE_GIF_VALUE);
+    private static final Map<String, String> EXTENSION_BY_CONTENT_TYPE = Map.of(
+            MediaType.IMAGE_PNG_VALUE, "png",
+            MediaType.IMAGE_JPEG_VALUE, "jpg",
+            MediaType.IMAGE_GIF_VALUE, "gif");
+
+    /**
+     * 画像からメタデータを読み取る
+     * <p>
+     * 画像全体はデコードせず、形式の判定と縦横のピクセル数の取得に必要なヘッダのみを読み込む
+     *
+     * @param resource 画像のリソース
+     * @return メタデータ（先頭のバイト列がサポートしている形式のものでない場合はnull）
+     * @throws IOException 読み込めない場合
+     */
+    public static DiaryImageMetadata read(Resource resource) throws IOException {
+        long contentLength = resource.contentLength();
+        try (InputStream inputStream = resource.getInputStream();
+             ImageInputStream imageInputStream = new MemoryCacheImageInputStream(inputStream)) {
+            byte[] signature = new byte[SIGNATURE_LENGTH];
+            imageInputStream.mark();
+            int length = 0;
+            int read;
+            while (length < SIGNATURE_LENGTH
+                    && (read = imageInputStream.read(signature, length, SIGNATURE_LENGTH - length)) > 0) {
+                length += read;
+            }
+            imageInputStream.reset();
+            String contentType = detectContentType(Arrays.copyOf(signature, length));
+            if (contentType == null) {
+                return null;
+            }
+            Iterator<ImageReader> imageReaders = ImageIO.getImageReadersByMIMEType(contentType);
+            if (!imageReaders.hasNext()) {
+                return new DiaryImageMetadata(contentType, contentLength, null, null);
+            }
+            ImageReader imageReader = imageReaders.next();
+            try {
+                imageReader.setInput(imageInputStream, true, true);
+                return new DiaryImageMetadata(
+                        contentType, contentLength, imageReader.getWidth(0), imageReader.getHeight(0));
+            } catch (IOException | RuntimeException e) {
+                // ヘッダが壊れている場合も形式とバイト数は返す
+                return new DiaryImageMetadata(contentType, contentLength, null, null);
+            } finally {
+                imageReader.dispose();
+            }
+        }
+    }
+
+    /**
+     * 日記画像ブロブエンティティからメタデータを取得
+     *
+     * @param diaryImageBlobEntity 日記画像ブロブエンティティ
+     * @return メタデータ（保存されていない場合はnull）
+     */
+    public static DiaryImageMetadata of(DiaryImageBlobEntity diaryImageBlobEntity) {
+        if (diaryImageBlobEntity.getContentType() == null || diaryImageBlobEntity.getContentLength() == null) {
+            return null;
+        }
+        return new DiaryImageMetadata(
+                diaryImageBlobEntity.getContentType(),
+                diaryImageBlobEntity.getContentLength(),
+                diaryImageBlobEntity.getWidth(),
+                diaryImageBlobEntity.getHeight());
+    }
+
+    /**
+     * 保存する画像パスの拡張子を取得
+     * <p>
+     * アップロードされたファイルの拡張子が判定した形式と異なる場合は、判定した形式の拡張子を返す
+     * （縮小画像は画像パスの拡張子の形式で作成するため）
+     *
+     * @param extension アップロードされたファイルの拡張子
+     * @return 拡張子
+     */
+    public String getExtension(String extension) {
+        if (contentType.equals(CONTENT_TYPE_BY_EXTENSION.get(extension.toLowerCase()))) {
+            return extension;
+        }
+        return EXTENSION_BY_CONTENT_TYPE.getOrDefault(contentType, extension);
+    }
+
+    /**
+     * 長辺のピクセル数を取得
+     *
+     * @return 長辺のピクセル数（不明な場合はnull）
+     */
+    public Integer getLongSide() {
+        if (width == null || height == null) {
+            return null;
+        }
+        return Math.max(width, height);
+    }
+
+    /**
+     * 先頭のバイト列から画像の形式を判定
+     *
+     * @param signature 先頭のバイト列
+     * @return MIMEタイプ（判定できない場合はnull）
+     */
+    private static String detectContentType(byte[] signature) {
+        if (startsWith(signature, PNG_SIGNATURE)) {
+            return MediaType.IMAGE_PNG_VALUE;
+        }
+        if (startsWith(signature, JPEG_SIGNATURE)) {
+            return MediaType.IMAGE_JPEG_VALUE;
+        }
+        if (startsWith(signature, GIF87A_SIGNATURE) || startsWith(signature, GIF89A_SIGNATURE)) {
+            return MediaType.IMAGE_GIF_VALUE;
+        }
+        return null;
+    }
+
+    /**
+     * バイト列が指定の接頭辞で始まるか
+     *
+     * @param bytes  バイト列
+     * @param prefix 接頭辞
+     * @return true=始まる
+     */
+    private static boolean startsWith(byte[] bytes, byte[] prefix) {
+        return bytes.length >= prefix.length
+                && Arrays.equals(bytes, 0, prefix.length, prefix, 0, prefix.length);
+    }
+}
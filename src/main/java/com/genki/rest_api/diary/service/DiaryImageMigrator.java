@@ -0,0 +1,121 @@
+package com.genki.rest_api.diary.service;
+
+import com.genki.rest_api.diary.dto.DiaryResponseDto;
+import com.genki.rest_api.diary.entity.DiaryEntity;
+import com.genki.rest_api.diary.repository.DiaryRepository;
+import com.github.benmanes.caffeine.cache.Cache;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FilenameUtils;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Limit;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * 日記画像移行処理
+ * <p>
+ * 日記IDごとのディレクトリに保存された旧形式の画像をブロブへ移行する。
+ * 日記1件ごとにブロブの保存と画像パスの更新をコミットしてから旧ファイルを削除するため、途中で停止しても再実行できる
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "diary.image.migrate-on-startup", havingValue = "true")
+public class DiaryImageMigrator {
+    private static final int BATCH_SIZE = 500;
+
+    private final DiaryRepository diaryRepository;
+    private final DiaryImageBlobService diaryImageBlobService;
+    private final Cache<Long, DiaryResponseDto> diaryCache;
+    private final TransactionTemplate transactionTemplate;
+
+    public DiaryImageMigrator(
+            DiaryRepository diaryRepository,
+            DiaryImageBlobService diaryImageBlobService,
+            Cache<Long, DiaryResponseDto> diaryCache,
+            PlatformTransactionManager transactionManager) {
+        this.diaryRepository = diaryRepository;
+        this.diaryImageBlobService = diaryImageBlobService;
+        this.diaryCache = diaryCache;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * 旧形式の画像をすべてブロブへ移行
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrate() {
+        long lastId = 0;
+        int migratedCount = 0;
+        List<DiaryEntity> diaryEntityList;
+        do {
+            diaryEntityList = diaryRepository.findByIdGreaterThanAndImagePathIsNotNullOrderByIdAsc(
+                    lastId, Limit.of(BATCH_SIZE));
+            for (DiaryEntity diaryEntity : diaryEntityList) {
+                lastId = diaryEntity.getId();
+                if (DiaryImageBlobService.isBlobName(diaryEntity.getImagePath())) {
+                    continue;
+                }
+                try {
+                    if (migrate(diaryEntity)) {
+                        migratedCount++;
+                    }
+                } catch (RuntimeException e) {
+                    log.warn("failed to migrate legacy diary image: id={}", lastId, e);
+                }
+            }
+        } while (diaryEntityList.size() == BATCH_SIZE);
+        log.info("migrated {} legacy diary images", migratedCount);
+    }
+
+    /**
+     * 日記1件の画像をブロブへ移行
+     *
+     * @param diaryEntity 日記エンティティ
+     * @return true=移行した, false=画像ファイルがない・移行中に画像が更新された
+     */
+    private boolean migrate(DiaryEntity diaryEntity) {
+        long id = diaryEntity.getId();
+        String legacyImagePath = diaryEntity.getImagePath();
+        Path legacyImageFilePath = diaryImageBlobService.getLegacyImageDirPath(id).resolve(legacyImagePath);
+        if (!Files.isRegularFile(legacyImageFilePath)) {
+            log.warn("legacy diary image not found: {}", legacyImageFilePath);
+            return false;
+        }
+
+        Boolean migrated = transactionTemplate.execute(status -> {
+            try {
+                String imagePath = diaryImageBlobService.store(
+                        Files.newInputStream(legacyImageFilePath),
+                        FilenameUtils.getExtension(legacyImagePath));
+                if (diaryRepository.updateImagePath(id, legacyImagePath, imagePath) == 0) {
+                    // 移行中に画像が更新された場合は参照件数の加算ごと取り消す
+                    status.setRollbackOnly();
+                    return false;
+                }
+                return true;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        if (!Boolean.TRUE.equals(migrated)) {
+            return false;
+        }
+        diaryCache.invalidate(id);
+        try {
+            FileSystemUtils.deleteRecursively(diaryImageBlobService.getLegacyImageDirPath(id));
+        } catch (IOException e) {
+            log.warn("failed to delete legacy diary image directory: {}", legacyImageFilePath.getParent(), e);
+        }
+        return true;
+    }
+}
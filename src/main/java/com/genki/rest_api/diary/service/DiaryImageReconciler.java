@@ -0,0 +1,377 @@
+package com.genki.rest_api.diary.service;
+
+import com.genki.rest_api.diary.entity.DiaryEntity;
+import com.genki.rest_api.diary.repository.DiaryRepository;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.Limit;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 孤立した日記画像の削除処理
+ * <p>
+ * 保存後にロールバック・停止した画像や削除漏れの画像を定期的に探して削除する。
+ * ストアの画像・画像ディレクトリを並列に走査し、更新からmin-age以上経過していて参照件数が0の画像を削除候補とする。
+ * 日記の画像パスをID順に1ページずつ読み込んで参照されている候補を除き、残った候補を1秒あたりdeletes-per-second件までの速度で削除する。
+ * 全日記の画像パスをメモリに読み込まないため、メモリ使用量は日記件数ではなく候補の件数（最大MAX_CANDIDATES件）で決まる。
+ * 保存中の画像を削除しないよう、更新からmin-age以上経過したファイルのみ対象とし、元画像は削除直前に参照件数を行ロックで確認する
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "diary.image.reconcile.enabled", havingValue = "true")
+public class DiaryImageReconciler {
+    private static final int BATCH_SIZE = 500;
+    private static final int FILES_PER_TASK = 1000;
+    private static final int MAX_CANDIDATES = 100_000;
+    private static final Pattern LEGACY_DIR_NAME_PATTERN = Pattern.compile("\\d+");
+
+    private final DiaryRepository diaryRepository;
+    private final DiaryImageBlobService diaryImageBlobService;
+    private final DiaryImageStore diaryImageStore;
+    private final Duration minAge;
+    private final long deleteIntervalNanos;
+    private final ExecutorService executor;
+
+    /**
+     * 次に削除してよい時刻（System.nanoTime()）
+     */
+    private final AtomicLong nextDeleteNanos = new AtomicLong(System.nanoTime());
+
+    public DiaryImageReconciler(
+            DiaryRepository diaryRepository,
+            DiaryImageBlobService diaryImageBlobService,
+            DiaryImageStore diaryImageStore,
+            @Value("${diary.image.reconcile.min-age}") Duration minAge,
+            @Value("${diary.image.reconcile.parallelism}") int parallelism,
+            @Value("${diary.image.reconcile.deletes-per-second}") int deletesPerSecond) {
+        this.diaryRepository = diaryRepository;
+        this.diaryImageBlobService = diaryImageBlobService;
+        this.diaryImageStore = diaryImageStore;
+        this.minAge = minAge;
+        this.deleteIntervalNanos = TimeUnit.SECONDS.toNanos(1) / deletesPerSecond;
+        this.executor = Executors.newFixedThreadPool(parallelism, new CustomizableThreadFactory("diary-image-reconciler-"));
+    }
+
+    /**
+     * 孤立した画像をすべて削除
+     * <p>
+     * 削除候補がMAX_CANDIDATES件に達した場合、残りは次回以降に削除する
+     *
+     * @return 削除したファイル件数
+     */
+    @Scheduled(
+            initialDelayString = "${diary.image.reconcile.interval}",
+            fixedDelayString = "${diary.image.reconcile.interval}")
+    public int reconcile() {
+        long start = System.nanoTime();
+        Instant modifiedBefore = Instant.now().minus(minAge);
+        AtomicInteger deletedCount = new AtomicInteger();
+        // 参照キー（ブロブの画像パス、または旧形式の画像の「日記ID/画像パス」）ごとの削除処理
+        Map<String, List<BooleanSupplier>> candidates = new ConcurrentHashMap<>();
+
+        try {
+            List<Future<?>> futureList = new ArrayList<>();
+            try (Stream<DiaryImageStore.StoredImage> storedImages = diaryImageStore.list()) {
+                submit(futureList, storedImages.filter(storedImage -> storedImage.lastModified().isBefore(modifiedBefore)),
+                        storedImageList -> addUnreferencedStoredImages(candidates, storedImageList));
+            }
+            submit(futureList, diaryImageBlobService.getTmpDirPath(), filePathList -> filePathList.forEach(filePath -> {
+                if (deleteIfModifiedBefore(filePath, modifiedBefore)) {
+                    deletedCount.incrementAndGet();
+                }
+            }));
+            for (Path legacyDirPath : listDirectories(diaryImageBlobService.getImageDirPath())) {
+                String dirName = legacyDirPath.getFileName().toString();
+                if (!LEGACY_DIR_NAME_PATTERN.matcher(dirName).matches()) {
+                    continue;
+                }
+                submit(futureList, legacyDirPath, filePathList -> filePathList.forEach(filePath -> {
+                    if (isModifiedBefore(filePath, modifiedBefore)) {
+                        addCandidate(candidates, dirName + "/" + filePath.getFileName(),
+                                () -> deleteIfModifiedBefore(filePath, modifiedBefore));
+                    }
+                }));
+            }
+            await(futureList);
+
+            removeReferenced(candidates);
+            futureList.clear();
+            submit(futureList, candidates.values().stream().flatMap(List::stream), deleterList -> {
+                for (BooleanSupplier deleter : deleterList) {
+                    try {
+                        if (deleter.getAsBoolean()) {
+                            deletedCount.incrementAndGet();
+                        }
+                    } catch (RuntimeException e) {
+                        log.warn("failed to delete orphan diary image", e);
+                    }
+                }
+            });
+            await(futureList);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | IOException e) {
+            log.warn("failed to reconcile diary images", e);
+        }
+        deleteEmptyLegacyDirs();
+        log.info("deleted {} orphan diary images in {} ms",
+                deletedCount.get(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return deletedCount.get();
+    }
+
+    /**
+     * 実行中の削除を中断してワーカーを停止
+     */
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * ストアの画像のうち、参照件数が0または未登録の画像を削除候補に追加
+     * <p>
+     * 参照件数は画像パスの主キーでまとめて検索する
+     *
+     * @param candidates      削除候補
+     * @param storedImageList 保存されている画像リスト
+     */
+    private void addUnreferencedStoredImages(
+            Map<String, List<BooleanSupplier>> candidates, List<DiaryImageStore.StoredImage> storedImageList) {
+        Set<String> referencedImagePaths = diaryImageBlobService.getReferencedImagePaths(storedImageList.stream()
+                .map(DiaryImageStore.StoredImage::imagePath)
+                .collect(Collectors.toSet()));
+        for (DiaryImageStore.StoredImage storedImage : storedImageList) {
+            if (!referencedImagePaths.contains(storedImage.imagePath())) {
+                addCandidate(candidates, storedImage.imagePath(), () -> delete(storedImage));
+            }
+        }
+    }
+
+    /**
+     * 削除候補を追加（候補がMAX_CANDIDATES件に達した場合は追加しない）
+     *
+     * @param candidates   削除候補
+     * @param referenceKey 参照キー
+     * @param deleter      削除した場合にtrueを返す処理
+     */
+    private void addCandidate(Map<String, List<BooleanSupplier>> candidates, String referenceKey, BooleanSupplier deleter) {
+        if (candidates.size() >= MAX_CANDIDATES && !candidates.containsKey(referenceKey)) {
+            return;
+        }
+        candidates.computeIfAbsent(referenceKey, key -> Collections.synchronizedList(new ArrayList<>())).add(deleter);
+    }
+
+    /**
+     * 日記から参照されている削除候補を除く
+     * <p>
+     * 日記の画像パスをID昇順にBATCH_SIZE件ずつ読み込み、候補がなくなった時点で読み込みを終える
+     *
+     * @param candidates 削除候補
+     */
+    private void removeReferenced(Map<String, List<BooleanSupplier>> candidates) {
+        long lastId = 0;
+        List<DiaryEntity> diaryEntityList;
+        do {
+            if (candidates.isEmpty()) {
+                return;
+            }
+            diaryEntityList = diaryRepository.findByIdGreaterThanAndImagePathIsNotNullOrderByIdAsc(
+                    lastId, Limit.of(BATCH_SIZE));
+            for (DiaryEntity diaryEntity : diaryEntityList) {
+                lastId = diaryEntity.getId();
+                String imagePath = diaryEntity.getImagePath();
+                candidates.remove(DiaryImageBlobService.isBlobName(imagePath) ? imagePath : lastId + "/" + imagePath);
+            }
+        } while (diaryEntityList.size() == BATCH_SIZE);
+    }
+
+    /**
+     * ディレクトリ内のファイルをFILES_PER_TASK件ずつ並列に処理するよう登録
+     *
+     * @param futureList 登録した処理の格納先
+     * @param dirPath    ディレクトリパス
+     * @param task       ファイルパスリストを処理する処理
+     * @throws IOException ディレクトリを読み込めない場合
+     */
+    private void submit(List<Future<?>> futureList, Path dirPath, Consumer<List<Path>> task) throws IOException {
+        if (!Files.isDirectory(dirPath)) {
+            return;
+        }
+        try (Stream<Path> filePaths = Files.list(dirPath)) {
+            submit(futureList, filePaths.filter(Files::isRegularFile), task);
+        }
+    }
+
+    /**
+     * 要素をFILES_PER_TASK件ずつ並列に処理するよう登録
+     *
+     * @param futureList 登録した処理の格納先
+     * @param items      要素のストリーム（登録後に呼び出し元で閉じる）
+     * @param task       要素リストを処理する処理
+     * @param <T>        要素の型
+     */
+    private <T> void submit(List<Future<?>> futureList, Stream<T> items, Consumer<List<T>> task) {
+        Iterator<T> iterator = items.iterator();
+        while (iterator.hasNext()) {
+            List<T> itemList = new ArrayList<>(FILES_PER_TASK);
+            while (iterator.hasNext() && itemList.size() < FILES_PER_TASK) {
+                itemList.add(iterator.next());
+            }
+            futureList.add(executor.submit(() -> task.accept(itemList)));
+        }
+    }
+
+    /**
+     * 登録した処理の完了を待つ
+     *
+     * @param futureList 登録した処理
+     * @throws InterruptedException 待機中に割り込まれた場合
+     * @throws ExecutionException   処理が例外で終了した場合
+     */
+    private void await(List<Future<?>> futureList) throws InterruptedException, ExecutionException {
+        for (Future<?> future : futureList) {
+            future.get();
+        }
+    }
+
+    /**
+     * ストアの画像を削除
+     * <p>
+     * 元画像は参照件数を行ロックで確認してから縮小画像とともに削除する。縮小画像は元画像が削除済みの場合のみ削除する
+     *
+     * @param storedImage 保存されている画像
+     * @return true=削除した
+     */
+    private boolean delete(DiaryImageStore.StoredImage storedImage) {
+        String imagePath = storedImage.imagePath();
+        if (storedImage.size() == DiaryImageStore.ORIGINAL) {
+            acquireDeletePermit();
+            diaryImageBlobService.deleteIfUnreferenced(imagePath);
+            return !diaryImageStore.exists(imagePath, DiaryImageStore.ORIGINAL);
+        }
+        if (diaryImageBlobService.exists(imagePath, DiaryImageStore.ORIGINAL)) {
+            return false;
+        }
+        acquireDeletePermit();
+        try {
+            return diaryImageStore.delete(imagePath, storedImage.size());
+        } catch (IOException e) {
+            log.warn("failed to delete orphan diary image: {}", storedImage, e);
+            return false;
+        }
+    }
+
+    /**
+     * 更新からmin-age以上経過していれば削除
+     *
+     * @param filePath       ファイルパス
+     * @param modifiedBefore この日時より前に更新されたファイルのみ削除する
+     * @return true=削除した
+     */
+    private boolean deleteIfModifiedBefore(Path filePath, Instant modifiedBefore) {
+        if (!isModifiedBefore(filePath, modifiedBefore)) {
+            return false;
+        }
+        acquireDeletePermit();
+        try {
+            return Files.deleteIfExists(filePath);
+        } catch (IOException e) {
+            log.warn("failed to delete orphan diary image: {}", filePath, e);
+            return false;
+        }
+    }
+
+    /**
+     * 指定日時より前に更新されたファイルか
+     *
+     * @param filePath       ファイルパス
+     * @param modifiedBefore 日時
+     * @return true=指定日時より前に更新された
+     */
+    private boolean isModifiedBefore(Path filePath, Instant modifiedBefore) {
+        try {
+            return Files.getLastModifiedTime(filePath).toInstant().isBefore(modifiedBefore);
+        } catch (IOException e) {
+            // 走査中に削除された場合
+            return false;
+        }
+    }
+
+    /**
+     * 削除の速度が1秒あたりdeletes-per-second件を超えないよう待機
+     */
+    private void acquireDeletePermit() {
+        long now = System.nanoTime();
+        long permitNanos = nextDeleteNanos.getAndUpdate(next -> Math.max(next, now) + deleteIntervalNanos);
+        long waitNanos = permitNanos - now;
+        if (waitNanos > 0) {
+            LockSupport.parkNanos(waitNanos);
+        }
+    }
+
+    /**
+     * 空になった旧形式の日記IDごとのディレクトリを削除
+     */
+    private void deleteEmptyLegacyDirs() {
+        try {
+            for (Path legacyDirPath : listDirectories(diaryImageBlobService.getImageDirPath())) {
+                if (!LEGACY_DIR_NAME_PATTERN.matcher(legacyDirPath.getFileName().toString()).matches()) {
+                    continue;
+                }
+                try (Stream<Path> filePaths = Files.list(legacyDirPath)) {
+                    if (filePaths.findAny().isEmpty()) {
+                        Files.deleteIfExists(legacyDirPath);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.warn("failed to delete empty legacy diary image directories", e);
+        }
+    }
+
+    /**
+     * ディレクトリ直下のディレクトリを取得
+     *
+     * @param dirPath ディレクトリパス
+     * @return ディレクトリパスリスト（ディレクトリがない場合は空）
+     * @throws IOException ディレクトリを読み込めない場合
+     */
+    private List<Path> listDirectories(Path dirPath) throws IOException {
+        if (!Files.isDirectory(dirPath)) {
+            return List.of();
+        }
+        try (Stream<Path> paths = Files.list(dirPath)) {
+            return paths.filter(Files::isDirectory).toList();
+        }
+    }
+}
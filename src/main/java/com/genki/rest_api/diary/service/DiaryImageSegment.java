@@ -0,0 +1,403 @@
+package com.genki.rest_api.diary.service;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * 日記画像のセグメントファイル
+ * <p>
+ * 画像（レコード）を追記していくファイル。レコードはヘッダ（マジックナンバー・種別・キー長・データ長・更新日時・
+ * 削除対象の位置・CRC32）・キー・データの順に並ぶ。書き込み中のセグメントは上限サイズまで領域を確保してマッピングし、
+ * 上限に達したら末尾にすべてのレコードの目次（フッタ）を書き込んで封印する。
+ * 起動時は封印済みのセグメントはフッタのみ、書き込み中のセグメントはレコードを先頭から読み込んで索引を再構築する。
+ * マッピングしたままファイルを削除しても、読み込み中の画像は最後まで読める
+ */
+class DiaryImageSegment {
+    /**
+     * レコードの種別（画像）
+     */
+    static final byte PUT = 1;
+    /**
+     * レコードの種別（削除）
+     */
+    static final byte DELETE = 2;
+
+    private static final int RECORD_MAGIC = 0x44524543;
+    private static final int FOOTER_MAGIC = 0x44465452;
+    private static final int RECORD_HEADER_SIZE = 4 + 1 + 2 + 4 + 8 + 8 + 8 + 4;
+    private static final int FOOTER_ENTRY_SIZE = 1 + 2 + 8 + 4 + 8 + 8 + 8;
+    private static final int TRAILER_SIZE = 8 + 4 + 4;
+    private static final String FILE_SUFFIX = ".seg";
+
+    /**
+     * セグメント内のレコード
+     *
+     * @param type            種別（{@link #PUT}, {@link #DELETE}）
+     * @param key             キー
+     * @param recordOffset    レコードの先頭位置
+     * @param dataLength      データ長（削除は0）
+     * @param lastModified    更新日時（エポックミリ秒）
+     * @param targetSegmentId 削除するレコードのセグメントID（画像は-1）
+     * @param targetOffset    削除するレコードの先頭位置（画像は-1）
+     */
+    record Entry(byte type, String key, long recordOffset, int dataLength, long lastModified,
+                 long targetSegmentId, long targetOffset) {
+
+        /**
+         * データの先頭位置を取得
+         *
+         * @return データの先頭位置
+         */
+        long dataOffset() {
+            return recordOffset + RECORD_HEADER_SIZE + key.getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        /**
+         * レコード全体の長さを取得
+         *
+         * @return レコード長
+         */
+        long recordLength() {
+            return dataOffset() - recordOffset + dataLength;
+        }
+    }
+
+    @Getter
+    private final long id;
+    @Getter
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer mappedBuffer;
+    private final List<Entry> entryList;
+    private final AtomicLong deadBytes = new AtomicLong();
+
+    /**
+     * 書き込み位置（封印済みの場合はレコードの末尾）
+     */
+    @Getter
+    private volatile long size;
+    @Getter
+    private volatile boolean sealed;
+
+    private DiaryImageSegment(long id, Path path, FileChannel channel, MappedByteBuffer mappedBuffer,
+                              List<Entry> entryList, long size, boolean sealed) {
+        this.id = id;
+        this.path = path;
+        this.channel = channel;
+        this.mappedBuffer = mappedBuffer;
+        this.entryList = entryList;
+        this.size = size;
+        this.sealed = sealed;
+    }
+
+    /**
+     * セグメントファイル名を取得
+     *
+     * @param id セグメントID
+     * @return ファイル名
+     */
+    static String getFileName(long id) {
+        return String.format("%016d%s", id, FILE_SUFFIX);
+    }
+
+    /**
+     * ファイル名からセグメントIDを取得
+     *
+     * @param fileName ファイル名
+     * @return セグメントID（セグメントファイルでない場合は-1）
+     */
+    static long parseId(String fileName) {
+        if (!fileName.endsWith(FILE_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(fileName.substring(0, fileName.length() - FILE_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 書き込み用のセグメントを作成
+     *
+     * @param dirPath  セグメントのディレクトリパス
+     * @param id       セグメントID
+     * @param capacity 上限サイズ（バイト）
+     * @return セグメント
+     * @throws IOException 作成できない場合
+     */
+    static DiaryImageSegment create(Path dirPath, long id, long capacity) throws IOException {
+        Path path = dirPath.resolve(getFileName(id));
+        FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            // 疎なファイルとして確保するため、書き込むまでディスクは消費しない
+            channel.write(ByteBuffer.allocate(1), capacity - 1);
+            return new DiaryImageSegment(id, path, channel,
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, capacity), new ArrayList<>(), 0, false);
+        } catch (IOException e) {
+            channel.close();
+            Files.deleteIfExists(path);
+            throw e;
+        }
+    }
+
+    /**
+     * 既存のセグメントを開く
+     * <p>
+     * 封印済みの場合はフッタからレコードの一覧を読み込む。書き込み中の場合はレコードを先頭から読み込み、
+     * 書き込み途中で停止したレコード以降は無視する
+     *
+     * @param path     ファイルパス
+     * @param capacity 上限サイズ（バイト）
+     * @return セグメント
+     * @throws IOException 読み込めない場合
+     */
+    static DiaryImageSegment open(Path path, long capacity) throws IOException {
+        long id = parseId(path.getFileName().toString());
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long fileSize = channel.size();
+            MappedByteBuffer fileBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            List<Entry> footerEntryList = readFooter(fileBuffer, fileSize);
+            if (footerEntryList != null) {
+                long size = footerEntryList.isEmpty()
+                        ? 0 : footerEntryList.getLast().recordOffset() + footerEntryList.getLast().recordLength();
+                return new DiaryImageSegment(id, path, channel, fileBuffer, footerEntryList, size, true);
+            }
+            if (fileSize < capacity) {
+                channel.write(ByteBuffer.allocate(1), capacity - 1);
+            }
+            MappedByteBuffer mappedBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.max(fileSize, capacity));
+            List<Entry> entryList = new ArrayList<>();
+            long size = scan(mappedBuffer, Math.min(fileSize, capacity), entryList);
+            return new DiaryImageSegment(id, path, channel, mappedBuffer, entryList, size, false);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * レコードを追記（呼び出し元で書き込みを直列化すること）
+     *
+     * @param type            種別
+     * @param key             キー
+     * @param data            データ（削除は空）
+     * @param lastModified    更新日時（エポックミリ秒）
+     * @param targetSegmentId 削除するレコードのセグメントID（画像は-1）
+     * @param targetOffset    削除するレコードの先頭位置（画像は-1）
+     * @return 追記したレコード
+     * @throws IOException 書き込めない場合
+     */
+    Entry append(byte type, String key, ByteBuffer data, long lastModified,
+                 long targetSegmentId, long targetOffset) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int dataLength = data.remaining();
+        CRC32 crc32 = new CRC32();
+        crc32.update(keyBytes);
+        crc32.update(data.duplicate());
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE + keyBytes.length)
+                .putInt(RECORD_MAGIC)
+                .put(type)
+                .putShort((short) keyBytes.length)
+                .putInt(dataLength)
+                .putLong(lastModified)
+                .putLong(targetSegmentId)
+                .putLong(targetOffset)
+                .putInt((int) crc32.getValue())
+                .put(keyBytes)
+                .flip();
+        long recordOffset = size;
+        long position = recordOffset;
+        while (header.hasRemaining()) {
+            position += channel.write(header, position);
+        }
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+        Entry entry = new Entry(type, key, recordOffset, dataLength, lastModified, targetSegmentId, targetOffset);
+        entryList.add(entry);
+        size = position;
+        return entry;
+    }
+
+    /**
+     * レコードを追記できる残りの容量があるか
+     *
+     * @param key        キー
+     * @param dataLength データ長
+     * @return true=追記できる
+     */
+    boolean hasRoomFor(String key, long dataLength) {
+        long recordLength = RECORD_HEADER_SIZE + key.getBytes(StandardCharsets.UTF_8).length + dataLength;
+        return size + recordLength <= mappedBuffer.capacity();
+    }
+
+    /**
+     * 末尾にフッタを書き込んで封印
+     *
+     * @throws IOException 書き込めない場合
+     */
+    void seal() throws IOException {
+        int footerLength = TRAILER_SIZE;
+        for (Entry entry : entryList) {
+            footerLength += FOOTER_ENTRY_SIZE + entry.key().getBytes(StandardCharsets.UTF_8).length;
+        }
+        ByteBuffer footer = ByteBuffer.allocate(footerLength);
+        for (Entry entry : entryList) {
+            byte[] keyBytes = entry.key().getBytes(StandardCharsets.UTF_8);
+            footer.put(entry.type())
+                    .putShort((short) keyBytes.length)
+                    .put(keyBytes)
+                    .putLong(entry.recordOffset())
+                    .putInt(entry.dataLength())
+                    .putLong(entry.lastModified())
+                    .putLong(entry.targetSegmentId())
+                    .putLong(entry.targetOffset());
+        }
+        footer.putLong(size)
+                .putInt(entryList.size())
+                .putInt(FOOTER_MAGIC)
+                .flip();
+        channel.truncate(size);
+        long position = size;
+        while (footer.hasRemaining()) {
+            position += channel.write(footer, position);
+        }
+        channel.force(true);
+        sealed = true;
+    }
+
+    /**
+     * 追記した内容をディスクへ書き出す
+     *
+     * @throws IOException 書き出せない場合
+     */
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * データを読み込み専用のバッファとして取得（コピーしない）
+     *
+     * @param dataOffset データの先頭位置
+     * @param dataLength データ長
+     * @return バッファ
+     */
+    ByteBuffer slice(long dataOffset, int dataLength) {
+        return mappedBuffer.slice((int) dataOffset, dataLength).asReadOnlyBuffer();
+    }
+
+    /**
+     * レコードの一覧を取得
+     *
+     * @return レコードのリスト
+     */
+    List<Entry> getEntryList() {
+        return Collections.unmodifiableList(entryList);
+    }
+
+    /**
+     * 不要になったレコードのバイト数を加算
+     *
+     * @param bytes バイト数
+     */
+    void addDeadBytes(long bytes) {
+        deadBytes.addAndGet(bytes);
+    }
+
+    /**
+     * 不要になったレコードのバイト数を取得
+     *
+     * @return バイト数
+     */
+    long getDeadBytes() {
+        return deadBytes.get();
+    }
+
+    /**
+     * ファイルを閉じる（マッピングはガベージコレクションで解放される）
+     */
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // 読み込み専用のマッピングのみ残るため無視する
+        }
+    }
+
+    /**
+     * フッタを読み込む
+     *
+     * @param buffer   セグメント全体のバッファ
+     * @param fileSize ファイルサイズ
+     * @return レコードのリスト（封印されていない場合はnull）
+     */
+    private static List<Entry> readFooter(ByteBuffer buffer, long fileSize) {
+        if (fileSize < TRAILER_SIZE || buffer.getInt((int) fileSize - 4) != FOOTER_MAGIC) {
+            return null;
+        }
+        long footerOffset = buffer.getLong((int) fileSize - TRAILER_SIZE);
+        int count = buffer.getInt((int) fileSize - TRAILER_SIZE + 8);
+        ByteBuffer footer = buffer.slice((int) footerOffset, (int) (fileSize - TRAILER_SIZE - footerOffset));
+        List<Entry> entryList = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte type = footer.get();
+            byte[] keyBytes = new byte[footer.getShort()];
+            footer.get(keyBytes);
+            entryList.add(new Entry(type, new String(keyBytes, StandardCharsets.UTF_8),
+                    footer.getLong(), footer.getInt(), footer.getLong(), footer.getLong(), footer.getLong()));
+        }
+        return entryList;
+    }
+
+    /**
+     * 書き込み中のセグメントのレコードを先頭から読み込む
+     *
+     * @param buffer    セグメント全体のバッファ
+     * @param limit     読み込む範囲の末尾
+     * @param entryList 読み込んだレコードの格納先
+     * @return 最後の完全なレコードの末尾（次の書き込み位置）
+     */
+    private static long scan(ByteBuffer buffer, long limit, List<Entry> entryList) {
+        int position = 0;
+        while (position + RECORD_HEADER_SIZE <= limit && buffer.getInt(position) == RECORD_MAGIC) {
+            byte type = buffer.get(position + 4);
+            int keyLength = buffer.getShort(position + 5);
+            int dataLength = buffer.getInt(position + 7);
+            long lastModified = buffer.getLong(position + 11);
+            long targetSegmentId = buffer.getLong(position + 19);
+            long targetOffset = buffer.getLong(position + 27);
+            int crc = buffer.getInt(position + 35);
+            long end = (long) position + RECORD_HEADER_SIZE + keyLength + dataLength;
+            if (keyLength < 0 || dataLength < 0 || end > limit) {
+                break;
+            }
+            CRC32 crc32 = new CRC32();
+            crc32.update(buffer.slice(position + RECORD_HEADER_SIZE, keyLength + dataLength));
+            if ((int) crc32.getValue() != crc) {
+                break;
+            }
+            byte[] keyBytes = new byte[keyLength];
+            buffer.get(position + RECORD_HEADER_SIZE, keyBytes);
+            entryList.add(new Entry(type, new String(keyBytes, StandardCharsets.UTF_8),
+                    position, dataLength, lastModified, targetSegmentId, targetOffset));
+            position = (int) end;
+        }
+        return position;
+    }
+}
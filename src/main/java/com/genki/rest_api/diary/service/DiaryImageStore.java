@@ -0,0 +1,101 @@
+package com.genki.rest_api.diary.service;
+
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.stream.Stream;
+
+/**
+ * 日記画像ストア
+ * <p>
+ * ブロブの元画像・縮小画像の保存先。画像は画像パス（内容のSHA-256.拡張子）とサイズ（元画像は{@link #ORIGINAL}）で指定する。
+ * 参照件数の管理や、同じ画像の保存と削除の直列化は{@link DiaryImageBlobService}で行う。
+ * 実装はdiary.image.storeで選択する（sharded: ハッシュで分割したディレクトリ, object: ローカルのオブジェクトストレージの代用）
+ */
+public interface DiaryImageStore {
+    /**
+     * 元画像のサイズ
+     */
+    int ORIGINAL = 0;
+
+    /**
+     * 保存されている画像
+     *
+     * @param imagePath    画像パス
+     * @param size         縮小後の長辺のピクセル数（元画像は{@link #ORIGINAL}）
+     * @param lastModified 更新日時
+     */
+    record StoredImage(String imagePath, int size, Instant lastModified) {
+    }
+
+    /**
+     * 画像が保存されているか
+     *
+     * @param imagePath 画像パス
+     * @param size      縮小後の長辺のピクセル数（元画像は{@link #ORIGINAL}）
+     * @return true=保存されている
+     */
+    boolean exists(String imagePath, int size);
+
+    /**
+     * 画像ディレクトリ上のファイルを保存
+     * <p>
+     * 保存済みの場合は置き換える。保存後のファイルは移動または削除されている
+     *
+     * @param imagePath 画像パス
+     * @param size      縮小後の長辺のピクセル数（元画像は{@link #ORIGINAL}）
+     * @param filePath  ファイルパス
+     * @throws IOException 保存できない場合
+     */
+    void put(String imagePath, int size, Path filePath) throws IOException;
+
+    /**
+     * 元画像と同じ内容の縮小画像を保存
+     *
+     * @param imagePath 画像パス
+     * @param size      縮小後の長辺のピクセル数
+     * @throws IOException 保存できない場合
+     */
+    void putOriginalAs(String imagePath, int size) throws IOException;
+
+    /**
+     * 画像をリソースとして取得
+     * <p>
+     * 内容は読み込み時に逐次転送する。保存されていない場合は読み込めないリソースを返す
+     *
+     * @param imagePath 画像パス
+     * @param size      縮小後の長辺のピクセル数（元画像は{@link #ORIGINAL}）
+     * @return リソース
+     */
+    Resource get(String imagePath, int size);
+
+    /**
+     * 画像を削除
+     *
+     * @param imagePath 画像パス
+     * @param size      縮小後の長辺のピクセル数（元画像は{@link #ORIGINAL}）
+     * @return true=削除した
+     * @throws IOException 削除できない場合
+     */
+    boolean delete(String imagePath, int size) throws IOException;
+
+    /**
+     * 元画像とすべての縮小画像を削除
+     *
+     * @param imagePath 画像パス
+     * @throws IOException 削除できない場合
+     */
+    void deleteAll(String imagePath) throws IOException;
+
+    /**
+     * 保存されている画像をすべて列挙
+     * <p>
+     * 返したストリームは呼び出し元で閉じること
+     *
+     * @return 保存されている画像のストリーム
+     * @throws IOException 列挙できない場合
+     */
+    Stream<StoredImage> list() throws IOException;
+}
@@ -0,0 +1,54 @@
+package com.genki.rest_api.diary.service;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 分割アップロード中の日記画像
+ * <p>
+ * 受信済みの先頭offsetバイトのSHA-256をmessageDigestに保持する。
+ * チャンクの書き込み・完了・破棄はlockを取得して行う
+ */
+@Getter
+@RequiredArgsConstructor
+class DiaryImageUpload {
+    private final String uploadId;
+    private final long diaryId;
+
+    /**
+     * 開始したクライアント（IPアドレス）
+     */
+    private final String client;
+    private final String extension;
+    private final long size;
+
+    /**
+     * 画像全体のSHA-256（指定されていない場合はnull）
+     */
+    private final byte[] expectedSha256;
+
+    /**
+     * 画像全体のサイズで作成したファイルのパス
+     */
+    private final Path filePath;
+
+    private final MessageDigest messageDigest;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * 受信済みのバイト数
+     */
+    @Setter
+    private long offset;
+
+    /**
+     * 完了・破棄済みか（以降はファイルを操作しない）
+     */
+    @Setter
+    private boolean closed;
+}
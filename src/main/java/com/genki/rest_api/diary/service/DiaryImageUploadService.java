@@ -0,0 +1,487 @@
+package com.genki.rest_api.diary.service;
+
+import com.genki.rest_api.diary.dto.DiaryImageUploadResponseDto;
+import com.genki.rest_api.diary.dto.DiaryResponseDto;
+import com.genki.rest_api.diary.exception.DiaryIOException;
+import com.genki.rest_api.diary.exception.DiaryNotFoundException;
+import com.genki.rest_api.diary.exception.DiaryThrottledException;
+import com.genki.rest_api.diary.exception.DiaryUploadChecksumMismatchException;
+import com.genki.rest_api.diary.exception.DiaryUploadConflictException;
+import com.genki.rest_api.diary.form.DiaryImageUploadForm;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Scheduler;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.MessageSource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * 日記画像の分割アップロードサービス
+ * <p>
+ * 開始時に画像全体のサイズのファイルを作成し、チャンクはバッファ経由でオフセットの位置へ直接書き込む。
+ * SHA-256はチャンクの受信に合わせて計算するため、完了時にファイルを読み直さない。
+ * チャンクは受信済みのバイト数と同じオフセットからのみ受け付け、通信が切れた場合はそれまでに書き込んだ分から再開できる。
+ * アップロードの状態はメモリ上に保持するため、再起動すると最初からやり直しになる。
+ * アップロード中の件数が全体またはクライアントごとの上限に達している場合は、既存のアップロードを破棄せずに新しい開始を拒否する
+ */
+@Slf4j
+@Service
+public class DiaryImageUploadService {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String UPLOAD_FILE_SUFFIX = ".part";
+    /**
+     * アップロード中の件数が上限に達している場合の再試行までの待ち時間
+     */
+    private static final Duration RETRY_AFTER_FULL = Duration.ofMinutes(1);
+
+    private final DiaryService diaryService;
+    private final DiaryImageBlobService diaryImageBlobService;
+    private final DiaryStorageMetrics diaryStorageMetrics;
+    private final MessageSource messageSource;
+    private final long maxSize;
+    private final long maxUploads;
+    private final int maxUploadsPerClient;
+    private final Duration expireAfter;
+
+    /**
+     * アップロードID -> アップロード中の日記画像（一定時間チャンクを受信しないものは破棄する）
+     * <p>
+     * 件数による追い出しは行わない。上限はstartで予約した件数で判定する
+     */
+    private final Cache<String, DiaryImageUpload> uploadCache;
+
+    /**
+     * 予約済みのアップロードの件数（uploadCountLockで保護する）
+     */
+    private long uploadCount;
+
+    /**
+     * クライアント -> 予約済みのアップロードの件数（uploadCountLockで保護する。0件のクライアントは削除する）
+     */
+    private final Map<String, Integer> uploadCountByClient = new HashMap<>();
+    private final Object uploadCountLock = new Object();
+
+    public DiaryImageUploadService(
+            DiaryService diaryService,
+            DiaryImageBlobService diaryImageBlobService,
+            DiaryStorageMetrics diaryStorageMetrics,
+            MessageSource messageSource,
+            @Value("${diary.image.upload.max-size}") DataSize maxSize,
+            @Value("${diary.image.upload.max-uploads}") long maxUploads,
+            @Value("${diary.image.upload.max-uploads-per-client}") int maxUploadsPerClient,
+            @Value("${diary.image.upload.expire-after}") Duration expireAfter) {
+        this.diaryService = diaryService;
+        this.diaryImageBlobService = diaryImageBlobService;
+        this.diaryStorageMetrics = diaryStorageMetrics;
+        this.messageSource = messageSource;
+        this.maxSize = maxSize.toBytes();
+        this.maxUploads = maxUploads;
+        this.maxUploadsPerClient = maxUploadsPerClient;
+        this.expireAfter = expireAfter;
+        this.uploadCache = Caffeine.newBuilder()
+                .expireAfterAccess(expireAfter)
+                .scheduler(Scheduler.systemScheduler())
+                // 完了・中止の直後に件数を戻すため、削除を通知したスレッドで実行する
+                .executor(Runnable::run)
+                .removalListener((String uploadId, DiaryImageUpload diaryImageUpload, RemovalCause cause) -> {
+                    if (diaryImageUpload != null) {
+                        release(diaryImageUpload.getClient());
+                        discard(diaryImageUpload);
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * 分割アップロードを開始
+     *
+     * @param diaryId              日記ID
+     * @param diaryImageUploadForm 日記画像アップロード開始フォーム
+     * @param client               クライアント（IPアドレス）
+     * @return 日記画像アップロードレスポンスDTO
+     * @throws DiaryThrottledException アップロード中の件数が全体またはクライアントごとの上限に達している場合
+     */
+    public DiaryImageUploadResponseDto start(long diaryId, DiaryImageUploadForm diaryImageUploadForm, String client) {
+        diaryService.getDiaryById(diaryId);
+        String extension = diaryService.getDiaryImageExtension(diaryImageUploadForm.fileName());
+        long size = diaryImageUploadForm.size();
+        if (size > maxSize) {
+            throw new MaxUploadSizeExceededException(maxSize);
+        }
+        byte[] expectedSha256 = diaryImageUploadForm.sha256() != null
+                ? HexFormat.of().parseHex(diaryImageUploadForm.sha256().toLowerCase(Locale.ROOT))
+                : null;
+
+        reserve(client);
+        String uploadId = UUID.randomUUID().toString();
+        Path filePath = diaryImageBlobService.getUploadDirPath().resolve(uploadId + UPLOAD_FILE_SUFFIX);
+        boolean started = false;
+        try {
+            diaryStorageMetrics.record("create_directories",
+                    () -> Files.createDirectories(diaryImageBlobService.getUploadDirPath()));
+            // 書き込み位置によらずファイルの長さが変わらないよう、画像全体のサイズで作成する
+            diaryStorageMetrics.record("preallocate", () -> {
+                try (RandomAccessFile randomAccessFile = new RandomAccessFile(filePath.toFile(), "rw")) {
+                    randomAccessFile.setLength(size);
+                }
+                return null;
+            });
+            DiaryImageUpload diaryImageUpload = new DiaryImageUpload(
+                    uploadId, diaryId, client, extension, size, expectedSha256, filePath,
+                    MessageDigest.getInstance("SHA-256"));
+            uploadCache.put(uploadId, diaryImageUpload);
+            started = true;
+            return toResponse(diaryImageUpload);
+        } catch (IOException | NoSuchAlgorithmException e) {
+            deleteQuietly(filePath);
+            throw new DiaryIOException(
+                    messageSource.getMessage(
+                            "errors.api.diary.image.file.is.blank",
+                            null,
+                            Locale.getDefault()
+                    ),
+                    e);
+        } finally {
+            // キャッシュに登録した後は、削除時に件数を戻す
+            if (!started) {
+                release(client);
+            }
+        }
+    }
+
+    /**
+     * 分割アップロードの状態を取得
+     * <p>
+     * 通信が切れた場合は、レスポンスのoffsetから送信を再開する
+     *
+     * @param diaryId  日記ID
+     * @param uploadId アップロードID
+     * @return 日記画像アップロードレスポンスDTO
+     */
+    public DiaryImageUploadResponseDto get(long diaryId, String uploadId) {
+        return toResponse(getUpload(diaryId, uploadId));
+    }
+
+    /**
+     * チャンクを書き込み
+     * <p>
+     * 読み込んだ分ずつファイルへ書き込んでSHA-256に反映するため、途中で通信が切れても書き込み済みの分は受信済みになる
+     *
+     * @param diaryId     日記ID
+     * @param uploadId    アップロードID
+     * @param offset      チャンクの先頭のオフセット（受信済みのバイト数と一致すること）
+     * @param inputStream チャンクの入力ストリーム
+     * @return 日記画像アップロードレスポンスDTO
+     */
+    public DiaryImageUploadResponseDto append(long diaryId, String uploadId, long offset, InputStream inputStream) {
+        DiaryImageUpload diaryImageUpload = getUpload(diaryId, uploadId);
+        lock(diaryImageUpload);
+        try {
+            if (offset != diaryImageUpload.getOffset()) {
+                throw createConflictException(
+                        "errors.api.diary.upload.offset.mismatch", diaryImageUpload, diaryImageUpload.getOffset());
+            }
+            diaryStorageMetrics.record("upload_chunk", () -> {
+                write(diaryImageUpload, inputStream);
+                return null;
+            });
+            return toResponse(diaryImageUpload);
+        } catch (IOException e) {
+            throw new DiaryIOException(
+                    messageSource.getMessage(
+                            "errors.api.diary.image.file.is.blank",
+                            null,
+                            Locale.getDefault()
+                    ),
+                    e);
+        } finally {
+            diaryImageUpload.getLock().unlock();
+        }
+    }
+
+    /**
+     * 入力ストリームを受信済みの位置から書き込み
+     *
+     * @param diaryImageUpload アップロード中の日記画像
+     * @param inputStream      チャンクの入力ストリーム
+     * @throws IOException 読み込み・書き込みに失敗した場合
+     */
+    private void write(DiaryImageUpload diaryImageUpload, InputStream inputStream) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        try (FileChannel fileChannel = FileChannel.open(diaryImageUpload.getFilePath(), StandardOpenOption.WRITE)) {
+            long position = diaryImageUpload.getOffset();
+            int length;
+            while ((length = inputStream.read(buffer.array())) != -1) {
+                if (position + length > diaryImageUpload.getSize()) {
+                    throw createConflictException("errors.api.diary.upload.size.exceeded", diaryImageUpload, position);
+                }
+                buffer.clear().limit(length);
+                while (buffer.hasRemaining()) {
+                    position += fileChannel.write(buffer, position);
+                }
+                diaryImageUpload.getMessageDigest().update(buffer.array(), 0, length);
+                diaryImageUpload.setOffset(position);
+            }
+        }
+    }
+
+    /**
+     * 分割アップロードを完了し、日記画像として保存
+     * <p>
+     * 開始時にSHA-256を指定した場合は、受信した画像と一致しなければアップロードを破棄する
+     *
+     * @param diaryId  日記ID
+     * @param uploadId アップロードID
+     * @return 日記レスポンスDTO
+     */
+    public DiaryResponseDto complete(long diaryId, String uploadId) {
+        DiaryImageUpload diaryImageUpload = getUpload(diaryId, uploadId);
+        lock(diaryImageUpload);
+        try {
+            if (diaryImageUpload.getOffset() != diaryImageUpload.getSize()) {
+                throw createConflictException(
+                        "errors.api.diary.upload.incomplete", diaryImageUpload, diaryImageUpload.getOffset());
+            }
+            byte[] sha256 = diaryImageUpload.getMessageDigest().digest();
+            // 以降は成否によらずこのアップロードを再利用しない。ファイルの削除は下のfinallyで行う
+            diaryImageUpload.setClosed(true);
+            uploadCache.invalidate(uploadId);
+            if (diaryImageUpload.getExpectedSha256() != null
+                    && !MessageDigest.isEqual(diaryImageUpload.getExpectedSha256(), sha256)) {
+                throw new DiaryUploadChecksumMismatchException(
+                        messageSource.getMessage(
+                                "errors.api.diary.upload.checksum.mismatch",
+                                null,
+                                Locale.getDefault()
+                        )
+                );
+            }
+            return diaryService.saveUploadedDiaryImage(
+                    diaryId, diaryImageUpload.getFilePath(), sha256, diaryImageUpload.getExtension());
+        } finally {
+            // ブロブへ移動済みの場合は何もしない
+            if (diaryImageUpload.isClosed()) {
+                deleteQuietly(diaryImageUpload.getFilePath());
+            }
+            diaryImageUpload.getLock().unlock();
+        }
+    }
+
+    /**
+     * 分割アップロードを中止
+     *
+     * @param diaryId  日記ID
+     * @param uploadId アップロードID
+     */
+    public void cancel(long diaryId, String uploadId) {
+        getUpload(diaryId, uploadId);
+        uploadCache.invalidate(uploadId);
+    }
+
+    /**
+     * 状態が失われたアップロード中のファイルを削除
+     * <p>
+     * 再起動前のアップロードは再開できないため、有効期限を過ぎても更新されていないファイルを削除する
+     */
+    @Scheduled(fixedDelayString = "${diary.image.upload.expire-after}")
+    public void deleteAbandonedFiles() {
+        Path uploadDirPath = diaryImageBlobService.getUploadDirPath();
+        if (!Files.isDirectory(uploadDirPath)) {
+            return;
+        }
+        FileTime modifiedBefore = FileTime.from(Instant.now().minus(expireAfter));
+        try (Stream<Path> filePaths = Files.list(uploadDirPath)) {
+            filePaths.filter(filePath -> {
+                String fileName = filePath.getFileName().toString();
+                return fileName.endsWith(UPLOAD_FILE_SUFFIX)
+                        && uploadCache.getIfPresent(fileName.substring(0, fileName.length() - UPLOAD_FILE_SUFFIX.length())) == null;
+            }).forEach(filePath -> {
+                try {
+                    if (Files.getLastModifiedTime(filePath).compareTo(modifiedBefore) < 0) {
+                        Files.deleteIfExists(filePath);
+                    }
+                } catch (IOException e) {
+                    log.warn("failed to delete abandoned diary image upload: {}", filePath, e);
+                }
+            });
+        } catch (IOException e) {
+            log.warn("failed to list diary image uploads", e);
+        }
+    }
+
+    /**
+     * アップロード中の日記画像を取得
+     *
+     * @param diaryId  日記ID
+     * @param uploadId アップロードID
+     * @return アップロード中の日記画像
+     */
+    private DiaryImageUpload getUpload(long diaryId, String uploadId) {
+        DiaryImageUpload diaryImageUpload = uploadCache.getIfPresent(uploadId);
+        if (diaryImageUpload == null || diaryImageUpload.getDiaryId() != diaryId) {
+            throw new DiaryNotFoundException(
+                    messageSource.getMessage(
+                            "errors.api.diary.upload.not.found",
+                            new Object[]{uploadId},
+                            Locale.getDefault()
+                    )
+            );
+        }
+        return diaryImageUpload;
+    }
+
+    /**
+     * アップロードの件数を予約
+     * <p>
+     * 上限に達している場合は、既存のアップロードを追い出さずに新しいアップロードを拒否する
+     *
+     * @param client クライアント（IPアドレス）
+     * @throws DiaryThrottledException アップロード中の件数が全体またはクライアントごとの上限に達している場合
+     */
+    private void reserve(String client) {
+        synchronized (uploadCountLock) {
+            int clientUploadCount = uploadCountByClient.getOrDefault(client, 0);
+            if (uploadCount < maxUploads && clientUploadCount < maxUploadsPerClient) {
+                uploadCount++;
+                uploadCountByClient.put(client, clientUploadCount + 1);
+                return;
+            }
+        }
+        throw new DiaryThrottledException(
+                messageSource.getMessage(
+                        "errors.api.diary.upload.too.many",
+                        new Object[]{RETRY_AFTER_FULL.toSeconds()},
+                        Locale.getDefault()
+                ),
+                RETRY_AFTER_FULL);
+    }
+
+    /**
+     * 予約したアップロードの件数を戻す
+     *
+     * @param client クライアント（IPアドレス）
+     */
+    private void release(String client) {
+        synchronized (uploadCountLock) {
+            uploadCount--;
+            uploadCountByClient.computeIfPresent(client, (key, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+
+    /**
+     * アップロード中の日記画像のロックを取得
+     * <p>
+     * 同じアップロードへのチャンクの送信が重複している場合は待たずに拒否する
+     *
+     * @param diaryImageUpload アップロード中の日記画像
+     */
+    private void lock(DiaryImageUpload diaryImageUpload) {
+        if (!diaryImageUpload.getLock().tryLock()) {
+            throw createConflictException("errors.api.diary.upload.busy", diaryImageUpload, diaryImageUpload.getOffset());
+        }
+        if (diaryImageUpload.isClosed()) {
+            diaryImageUpload.getLock().unlock();
+            throw new DiaryNotFoundException(
+                    messageSource.getMessage(
+                            "errors.api.diary.upload.not.found",
+                            new Object[]{diaryImageUpload.getUploadId()},
+                            Locale.getDefault()
+                    )
+            );
+        }
+    }
+
+    /**
+     * アップロード中の日記画像を破棄し、ファイルを削除
+     * <p>
+     * チャンクの書き込み中はファイルを残し、deleteAbandonedFilesで削除する
+     *
+     * @param diaryImageUpload アップロード中の日記画像
+     */
+    private void discard(DiaryImageUpload diaryImageUpload) {
+        if (!diaryImageUpload.getLock().tryLock()) {
+            return;
+        }
+        try {
+            if (diaryImageUpload.isClosed()) {
+                return;
+            }
+            diaryImageUpload.setClosed(true);
+            deleteQuietly(diaryImageUpload.getFilePath());
+        } finally {
+            diaryImageUpload.getLock().unlock();
+        }
+    }
+
+    /**
+     * オフセットが一致しない例外を作成
+     *
+     * @param code             メッセージコード
+     * @param diaryImageUpload アップロード中の日記画像
+     * @param offset           受信済みのバイト数
+     * @return 例外
+     */
+    private DiaryUploadConflictException createConflictException(
+            String code, DiaryImageUpload diaryImageUpload, long offset) {
+        return new DiaryUploadConflictException(
+                messageSource.getMessage(
+                        code,
+                        new Object[]{offset, diaryImageUpload.getSize()},
+                        Locale.getDefault()
+                ),
+                offset);
+    }
+
+    /**
+     * 日記画像アップロードレスポンスDTOに変換
+     *
+     * @param diaryImageUpload アップロード中の日記画像
+     * @return 日記画像アップロードレスポンスDTO
+     */
+    private DiaryImageUploadResponseDto toResponse(DiaryImageUpload diaryImageUpload) {
+        return new DiaryImageUploadResponseDto(
+                diaryImageUpload.getUploadId(),
+                diaryImageUpload.getOffset(),
+                diaryImageUpload.getSize(),
+                LocalDateTime.now().plus(expireAfter));
+    }
+
+    /**
+     * 例外を送出せずにファイルを削除
+     *
+     * @param filePath ファイルパス
+     */
+    private void deleteQuietly(Path filePath) {
+        try {
+            Files.deleteIfExists(filePath);
+        } catch (IOException e) {
+            log.warn("failed to delete diary image upload: {}", filePath, e);
+        }
+    }
+}
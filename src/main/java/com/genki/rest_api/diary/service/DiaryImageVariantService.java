@@ -0,0 +1,279 @@
+package com.genki.rest_api.diary.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FilenameUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 日記画像縮小サービス
+ * <p>
+ * 画像の保存をコミットした後に、長辺を指定サイズに縮小した画像を上限付きのプラットフォームスレッドのプールで作成する。
+ * 縮小画像はブロブごとに作成するため、同じ画像を共有する日記では1度だけ作成される。
+ * 元画像はヘッダから縦横のピクセル数を読み取り、上限を超える場合はデコードせずに縮小画像を作成しない
+ */
+@Slf4j
+@Service
+public class DiaryImageVariantService {
+    private final DiaryImageBlobService diaryImageBlobService;
+    private final DiaryStorageMetrics diaryStorageMetrics;
+    private final int[] variantSizes;
+    private final long maxPixels;
+    private final ThreadPoolExecutor executor;
+    private final Timer processingTimer;
+    private final Counter rejectedCounter;
+    private final Counter oversizedCounter;
+
+    /**
+     * 作成待ち・作成中の画像パス（同じ画像を重複して登録しないため）
+     */
+    private final Set<String> pendingImagePaths = ConcurrentHashMap.newKeySet();
+
+    public DiaryImageVariantService(
+            DiaryImageBlobService diaryImageBlobService,
+            DiaryStorageMetrics diaryStorageMetrics,
+            MeterRegistry meterRegistry,
+            @Value("${diary.image.variant.sizes}") int[] variantSizes,
+            @Value("${diary.image.variant.max-pixels}") long maxPixels,
+            @Value("${diary.image.variant.threads}") int threads,
+            @Value("${diary.image.variant.queue-capacity}") int queueCapacity) {
+        this.diaryImageBlobService = diaryImageBlobService;
+        this.diaryStorageMetrics = diaryStorageMetrics;
+        this.variantSizes = Arrays.stream(variantSizes).sorted().distinct().toArray();
+        this.maxPixels = maxPixels;
+        this.executor = new ThreadPoolExecutor(
+                threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                // 縮小はCPUを使い続けるため、spring.threads.virtual.enabledに関わらずプラットフォームスレッドで行う
+                new CustomizableThreadFactory("diary-image-variant-"),
+                new ThreadPoolExecutor.AbortPolicy());
+        Gauge.builder("diary.image.variant.queue.depth", executor, e -> e.getQueue().size())
+                .description("縮小画像の作成待ち件数")
+                .register(meterRegistry);
+        this.processingTimer = Timer.builder("diary.image.variant.processing")
+                .description("画像1件あたりの縮小画像の作成時間")
+                .register(meterRegistry);
+        this.rejectedCounter = Counter.builder("diary.image.variant.rejected")
+                .description("作成待ちが上限に達したため作成しなかった件数")
+                .register(meterRegistry);
+        this.oversizedCounter = Counter.builder("diary.image.variant.oversized")
+                .description("元画像のピクセル数が上限を超えたため作成しなかった件数")
+                .register(meterRegistry);
+    }
+
+    /**
+     * 縮小画像の作成をコミット後に登録
+     *
+     * @param imagePath 画像パス
+     */
+    public void generateAfterCommit(String imagePath) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            generate(imagePath);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                generate(imagePath);
+            }
+        });
+    }
+
+    /**
+     * 縮小画像の作成を登録
+     * <p>
+     * 作成待ちが上限に達している場合は作成せず、要求されたサイズには元画像を返し続ける
+     *
+     * @param imagePath 画像パス
+     */
+    public void generate(String imagePath) {
+        if (!DiaryImageBlobService.isBlobName(imagePath) || !pendingImagePaths.add(imagePath)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    processingTimer.record(() -> createVariants(imagePath));
+                } finally {
+                    pendingImagePaths.remove(imagePath);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pendingImagePaths.remove(imagePath);
+            rejectedCounter.increment();
+        }
+    }
+
+    /**
+     * 要求されたサイズに最も近い画像を取得
+     * <p>
+     * 要求サイズ以上で最小の縮小画像を返す。縮小画像が作成されていない場合は作成を登録し、
+     * 作成済みのより大きい縮小画像または元画像を返す。
+     * 要求サイズが元画像の長辺以上の場合は、縮小画像を確認せずに元画像を返す
+     *
+     * @param id        ID
+     * @param imagePath 画像パス
+     * @param size      要求する長辺のピクセル数（nullの場合は元画像）
+     * @return 日記画像
+     */
+    public DiaryImage resolve(long id, String imagePath, Integer size) {
+        if (!DiaryImageBlobService.isBlobName(imagePath)) {
+            return new DiaryImage(id + "/" + imagePath, imagePath, diaryImageBlobService.getResource(id, imagePath));
+        }
+        DiaryImageMetadata diaryImageMetadata = diaryImageBlobService.getMetadata(imagePath).orElse(null);
+        Integer longSide = diaryImageMetadata != null ? diaryImageMetadata.getLongSide() : null;
+        if (size != null && (longSide == null || size < longSide)) {
+            for (int variantSize : variantSizes) {
+                if (variantSize < size) {
+                    continue;
+                }
+                if (diaryImageBlobService.exists(imagePath, variantSize)) {
+                    return new DiaryImage(variantSize + "/" + imagePath, imagePath,
+                            diaryImageBlobService.getResource(imagePath, variantSize));
+                }
+                generate(imagePath);
+            }
+        }
+        return new DiaryImage(imagePath, imagePath,
+                diaryImageBlobService.getResource(imagePath, DiaryImageStore.ORIGINAL), diaryImageMetadata);
+    }
+
+    /**
+     * 作成待ちの縮小画像を破棄してワーカーを停止
+     */
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 元画像から各サイズの縮小画像を作成
+     * <p>
+     * 元画像の長辺以上のサイズは元画像と同じ内容とする（ストアによってはハードリンク・サーバー側のコピー）。
+     * 一時ファイルに書き込んでからストアへ保存するため、作成途中の画像が読まれることはない
+     *
+     * @param imagePath 画像パス
+     */
+    private void createVariants(String imagePath) {
+        try {
+            BufferedImage originalImage = readOriginalImage(imagePath);
+            if (originalImage == null) {
+                return;
+            }
+            String formatName = FilenameUtils.getExtension(imagePath);
+            int longSide = Math.max(originalImage.getWidth(), originalImage.getHeight());
+            for (int variantSize : variantSizes) {
+                if (diaryImageBlobService.exists(imagePath, variantSize)) {
+                    continue;
+                }
+                if (variantSize >= longSide) {
+                    diaryImageBlobService.putOriginalAsVariant(imagePath, variantSize);
+                    continue;
+                }
+                Path tmpFilePath = diaryImageBlobService.createTmpDir().resolve(UUID.randomUUID() + ".tmp");
+                try {
+                    BufferedImage scaledImage = scale(originalImage, variantSize, formatName);
+                    diaryStorageMetrics.record("transfer",
+                            () -> ImageIO.write(scaledImage, formatName, tmpFilePath.toFile()));
+                    diaryImageBlobService.putVariant(imagePath, variantSize, tmpFilePath);
+                } finally {
+                    Files.deleteIfExists(tmpFilePath);
+                }
+            }
+        } catch (IOException e) {
+            // 元画像が削除済みの場合などは元画像を返し続ける
+            log.warn("failed to create diary image variants: {}", imagePath, e);
+        }
+    }
+
+    /**
+     * 元画像をデコード
+     * <p>
+     * デコードする前にヘッダから縦横のピクセル数を読み取り、上限を超える画像はデコードしない
+     * （圧縮率の高い画像でもデコード後のメモリは幅×高さ×4バイトになるため）
+     *
+     * @param imagePath 画像パス
+     * @return 元画像（形式を読み込めない場合・ピクセル数が上限を超える場合はnull）
+     * @throws IOException 読み込めない場合
+     */
+    private BufferedImage readOriginalImage(String imagePath) throws IOException {
+        try (InputStream inputStream = diaryImageBlobService.getResource(imagePath, DiaryImageStore.ORIGINAL)
+                .getInputStream();
+             ImageInputStream imageInputStream = new MemoryCacheImageInputStream(inputStream)) {
+            Iterator<ImageReader> imageReaders = ImageIO.getImageReaders(imageInputStream);
+            if (!imageReaders.hasNext()) {
+                log.warn("unsupported diary image format: {}", imagePath);
+                return null;
+            }
+            ImageReader imageReader = imageReaders.next();
+            try {
+                imageReader.setInput(imageInputStream, true, true);
+                int width = imageReader.getWidth(0);
+                int height = imageReader.getHeight(0);
+                if ((long) width * height > maxPixels) {
+                    log.warn("diary image exceeds max pixels: {} ({}x{})", imagePath, width, height);
+                    oversizedCounter.increment();
+                    return null;
+                }
+                return imageReader.read(0);
+            } finally {
+                imageReader.dispose();
+            }
+        }
+    }
+
+    /**
+     * 長辺が指定サイズになるよう縦横比を保って縮小
+     *
+     * @param originalImage 元画像
+     * @param size          縮小後の長辺のピクセル数
+     * @param formatName    画像形式
+     * @return 縮小画像
+     */
+    private BufferedImage scale(BufferedImage originalImage, int size, String formatName) {
+        double ratio = (double) size / Math.max(originalImage.getWidth(), originalImage.getHeight());
+        int width = Math.max(1, (int) Math.round(originalImage.getWidth() * ratio));
+        int height = Math.max(1, (int) Math.round(originalImage.getHeight() * ratio));
+        // JPEGは透過を扱えないためRGBで描画する
+        int imageType = "png".equals(formatName) ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage scaledImage = new BufferedImage(width, height, imageType);
+        Graphics2D graphics = scaledImage.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(originalImage, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaledImage;
+    }
+}
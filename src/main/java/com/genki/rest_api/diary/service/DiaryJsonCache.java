@@ -0,0 +1,264 @@
+package com.genki.rest_api.diary.service;
+
+import com.genki.rest_api.diary.dto.DiaryPageResponseDto;
+import com.genki.rest_api.diary.dto.DiaryResponseDto;
+import com.genki.rest_api.diary.exception.DiaryIOException;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 日記JSONキャッシュ
+ * <p>
+ * 日記1件をUTF-8のJSONに変換したバイト列を(ID, 更新日時)ごとに保持し、1件・複数件のレスポンスを
+ * 再度シリアライズせずに組み立てる。更新日時はマイクロ秒まで保存するため、1秒以内の更新でも更新日時が変わり別のキーになる。
+ * 更新前のエントリは合計バイト数の上限に達したときに追い出される
+ */
+@Component
+public class DiaryJsonCache {
+    private static final byte[] PAGE_PREFIX = "{\"diaries\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NEXT_PREFIX = ",\"next\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] PAGE_SUFFIX = {'}'};
+    private static final byte[] EMPTY = {};
+
+    /**
+     * 1エントリあたりのキー・配列などのおおよそのバイト数
+     */
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    private final ObjectMapper objectMapper;
+    private final ObjectWriter objectWriter;
+    private final Cache<Key, Fragment> cache;
+    private final boolean gzipEnabled;
+    private final long gzipMinBytes;
+
+    /**
+     * キャッシュキー
+     * <p>
+     * 画像の移行は更新日時を変えずに画像パスのみ更新するため、ETagと同じく画像パスもキーに含める
+     *
+     * @param id        日記ID
+     * @param updatedAt 更新日時
+     * @param imagePath 画像パス
+     */
+    private record Key(long id, LocalDateTime updatedAt, String imagePath) {
+        static Key of(DiaryResponseDto diaryResponseDto) {
+            return new Key(diaryResponseDto.id(), diaryResponseDto.updatedAt(), diaryResponseDto.imagePath());
+        }
+    }
+
+    /**
+     * キャッシュ値
+     *
+     * @param json JSON
+     * @param gzip gzip圧縮したJSON（未作成の場合はnull）
+     */
+    private record Fragment(byte[] json, byte[] gzip) {
+        int weight() {
+            return ENTRY_OVERHEAD_BYTES + json.length + (gzip != null ? gzip.length : 0);
+        }
+    }
+
+    public DiaryJsonCache(
+            ObjectMapper objectMapper,
+            MeterRegistry meterRegistry,
+            @Value("${diary.json-cache.maximum-size}") DataSize maximumSize,
+            @Value("${diary.json-cache.gzip-enabled}") boolean gzipEnabled,
+            @Value("${diary.json-cache.gzip-min-size}") DataSize gzipMinSize) {
+        this.objectMapper = objectMapper;
+        // 一覧に埋め込めるよう整形せずに出力する
+        this.objectWriter = objectMapper.writerFor(DiaryResponseDto.class)
+                .without(SerializationFeature.INDENT_OUTPUT);
+        this.cache = CaffeineCacheMetrics.monitor(meterRegistry, Caffeine.newBuilder()
+                .maximumWeight(maximumSize.toBytes())
+                .<Key, Fragment>weigher((key, fragment) -> fragment.weight())
+                .recordStats()
+                .build(), "diary.json");
+        this.gzipEnabled = gzipEnabled;
+        this.gzipMinBytes = gzipMinSize.toBytes();
+    }
+
+    /**
+     * 日記1件のJSONを取得
+     *
+     * @param diaryResponseDto 日記レスポンスDTO
+     * @return JSON
+     */
+    public byte[] getJson(DiaryResponseDto diaryResponseDto) {
+        return getFragment(diaryResponseDto).json();
+    }
+
+    /**
+     * 日記1件のgzip圧縮したJSONを取得
+     * <p>
+     * 圧縮したJSONは初回の要求時に作成してキャッシュに追加する
+     *
+     * @param diaryResponseDto 日記レスポンスDTO
+     * @return gzip圧縮したJSON（gzipが無効、またはJSONがgzip-min-size未満の場合はnull）
+     */
+    public byte[] getGzip(DiaryResponseDto diaryResponseDto) {
+        Fragment fragment = getFragment(diaryResponseDto);
+        if (!gzipEnabled || fragment.json().length < gzipMinBytes) {
+            return null;
+        }
+        if (fragment.gzip() != null) {
+            return fragment.gzip();
+        }
+        Fragment gzippedFragment = new Fragment(fragment.json(), gzip(fragment.json()));
+        cache.put(Key.of(diaryResponseDto), gzippedFragment);
+        return gzippedFragment.gzip();
+    }
+
+    /**
+     * 日記リストのJSON配列を作成
+     *
+     * @param diaryResponseDtoList 日記レスポンスDTOリスト
+     * @return JSON
+     */
+    public byte[] getListJson(List<DiaryResponseDto> diaryResponseDtoList) {
+        return join(EMPTY, diaryResponseDtoList, EMPTY);
+    }
+
+    /**
+     * 日記ページのJSONを作成
+     *
+     * @param diaryPageResponseDto 日記ページレスポンスDTO
+     * @return JSON
+     */
+    public byte[] getPageJson(DiaryPageResponseDto<DiaryResponseDto> diaryPageResponseDto) {
+        byte[] suffix = diaryPageResponseDto.next() != null
+                ? concat(NEXT_PREFIX, serialize(objectMapper.writer(), diaryPageResponseDto.next()), PAGE_SUFFIX)
+                : PAGE_SUFFIX;
+        return join(PAGE_PREFIX, diaryPageResponseDto.diaries(), suffix);
+    }
+
+    /**
+     * 日記のJSONをカンマ区切りの配列としてつなげる
+     * <p>
+     * 件数が多い場合に配列の拡張でコピーを繰り返さないよう、合計サイズを求めてから1度だけ確保する
+     *
+     * @param prefix               配列の前に出力するバイト列
+     * @param diaryResponseDtoList 日記レスポンスDTOリスト
+     * @param suffix               配列の後に出力するバイト列
+     * @return JSON
+     */
+    private byte[] join(byte[] prefix, List<DiaryResponseDto> diaryResponseDtoList, byte[] suffix) {
+        byte[][] jsonArray = new byte[diaryResponseDtoList.size()][];
+        // 前後のバイト列、角括弧、カンマ
+        int length = prefix.length + suffix.length + 2 + Math.max(0, jsonArray.length - 1);
+        for (int i = 0; i < jsonArray.length; i++) {
+            jsonArray[i] = getJson(diaryResponseDtoList.get(i));
+            length += jsonArray[i].length;
+        }
+        byte[] bytes = new byte[length];
+        int position = put(bytes, 0, prefix);
+        bytes[position++] = '[';
+        for (int i = 0; i < jsonArray.length; i++) {
+            if (i > 0) {
+                bytes[position++] = ',';
+            }
+            position = put(bytes, position, jsonArray[i]);
+        }
+        bytes[position++] = ']';
+        put(bytes, position, suffix);
+        return bytes;
+    }
+
+    /**
+     * バイト列をつなげる
+     *
+     * @param byteArrays バイト列
+     * @return つなげたバイト列
+     */
+    private byte[] concat(byte[]... byteArrays) {
+        int length = 0;
+        for (byte[] byteArray : byteArrays) {
+            length += byteArray.length;
+        }
+        byte[] bytes = new byte[length];
+        int position = 0;
+        for (byte[] byteArray : byteArrays) {
+            position = put(bytes, position, byteArray);
+        }
+        return bytes;
+    }
+
+    /**
+     * バイト列を指定位置に書き込み
+     *
+     * @param bytes    書き込み先
+     * @param position 書き込み位置
+     * @param source   書き込むバイト列
+     * @return 書き込み後の位置
+     */
+    private int put(byte[] bytes, int position, byte[] source) {
+        System.arraycopy(source, 0, bytes, position, source.length);
+        return position + source.length;
+    }
+
+    /**
+     * キャッシュから取得し、ない場合はJSONに変換して追加
+     * <p>
+     * 日記の内容は比較せず、キー（ID・更新日時・画像パス）が一致すればキャッシュ値を使う
+     * （更新日時の精度が秒の場合、同じ秒の更新で更新前のJSONを返してしまう）
+     *
+     * @param diaryResponseDto 日記レスポンスDTO
+     * @return キャッシュ値
+     */
+    private Fragment getFragment(DiaryResponseDto diaryResponseDto) {
+        Key key = Key.of(diaryResponseDto);
+        Fragment fragment = cache.getIfPresent(key);
+        if (fragment != null) {
+            return fragment;
+        }
+        Fragment newFragment = new Fragment(serialize(objectWriter, diaryResponseDto), null);
+        cache.put(key, newFragment);
+        return newFragment;
+    }
+
+    /**
+     * 値をJSONに変換
+     *
+     * @param objectWriter 変換に使うライター
+     * @param value        値
+     * @return JSON
+     */
+    private byte[] serialize(ObjectWriter objectWriter, Object value) {
+        try {
+            return objectWriter.writeValueAsBytes(value);
+        } catch (JsonProcessingException e) {
+            throw new DiaryIOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * gzip圧縮
+     *
+     * @param bytes 圧縮するバイト列
+     * @return 圧縮したバイト列
+     */
+    private byte[] gzip(byte[] bytes) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(bytes.length / 2);
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream)) {
+            gzipOutputStream.write(bytes);
+        } catch (IOException e) {
+            throw new DiaryIOException(e.getMessage(), e);
+        }
+        return outputStream.toByteArray();
+    }
+}
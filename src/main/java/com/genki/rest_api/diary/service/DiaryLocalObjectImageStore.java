@@ -0,0 +1,189 @@
+package com.genki.rest_api.diary.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * ローカルのオブジェクトストレージで代用する日記画像ストア
+ * <p>
+ * 開発・テスト用に、オブジェクトストレージと同じ操作（キーを指定したPUT・GET・DELETE・サーバー側のコピー・キーの列挙）のみで画像を扱う。
+ * キーは元画像が{@code blobs/{画像パス}}、縮小画像が{@code variants/{サイズ}/{画像パス}}で、
+ * オブジェクトは{@code diary.image.object-store.dir}の下にキーをパスとして保存する。
+ * PUTは内容を一時オブジェクトへ転送してから置き換えるため、書き込み途中のオブジェクトは読まれない
+ */
+@Component
+@ConditionalOnProperty(name = "diary.image.store", havingValue = "object")
+public class DiaryLocalObjectImageStore implements DiaryImageStore {
+    private static final String BLOB_PREFIX = "blobs/";
+    private static final String VARIANT_PREFIX = "variants/";
+    private static final String UPLOAD_DIR_NAME = ".uploads";
+
+    private final Path objectStoreDirPath;
+    private final DiaryStorageMetrics diaryStorageMetrics;
+
+    public DiaryLocalObjectImageStore(
+            @Value("${diary.image.object-store.dir}") Path objectStoreDirPath,
+            DiaryStorageMetrics diaryStorageMetrics) {
+        this.objectStoreDirPath = objectStoreDirPath;
+        this.diaryStorageMetrics = diaryStorageMetrics;
+    }
+
+    @Override
+    public boolean exists(String imagePath, int size) {
+        return Files.exists(getObjectPath(getKey(imagePath, size)));
+    }
+
+    @Override
+    public void put(String imagePath, int size, Path filePath) throws IOException {
+        try (InputStream inputStream = Files.newInputStream(filePath)) {
+            putObject(getKey(imagePath, size), inputStream);
+        }
+        Files.delete(filePath);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * 元画像のオブジェクトをコピーする
+     */
+    @Override
+    public void putOriginalAs(String imagePath, int size) throws IOException {
+        try (InputStream inputStream = Files.newInputStream(getObjectPath(getKey(imagePath, ORIGINAL)))) {
+            putObject(getKey(imagePath, size), inputStream);
+        }
+    }
+
+    @Override
+    public Resource get(String imagePath, int size) {
+        return new FileSystemResource(getObjectPath(getKey(imagePath, size)));
+    }
+
+    @Override
+    public boolean delete(String imagePath, int size) throws IOException {
+        return Files.deleteIfExists(getObjectPath(getKey(imagePath, size)));
+    }
+
+    @Override
+    public void deleteAll(String imagePath) throws IOException {
+        delete(imagePath, ORIGINAL);
+        for (int size : listVariantSizes()) {
+            delete(imagePath, size);
+        }
+    }
+
+    @Override
+    public Stream<StoredImage> list() throws IOException {
+        Stream<StoredImage> storedImages = list(BLOB_PREFIX, ORIGINAL);
+        for (int size : listVariantSizes()) {
+            storedImages = Stream.concat(storedImages, list(VARIANT_PREFIX + size + "/", size));
+        }
+        return storedImages;
+    }
+
+    /**
+     * キーが指定したプレフィックスで始まるオブジェクトを列挙
+     *
+     * @param prefix プレフィックス（「/」で終わる）
+     * @param size   縮小後の長辺のピクセル数（元画像は{@link #ORIGINAL}）
+     * @return 保存されている画像のストリーム
+     * @throws IOException 列挙できない場合
+     */
+    private Stream<StoredImage> list(String prefix, int size) throws IOException {
+        Path prefixPath = getObjectPath(prefix);
+        if (!Files.isDirectory(prefixPath)) {
+            return Stream.empty();
+        }
+        return Files.list(prefixPath)
+                .filter(objectPath -> DiaryImageBlobService.isBlobName(objectPath.getFileName().toString()))
+                .map(objectPath -> {
+                    try {
+                        return new StoredImage(
+                                objectPath.getFileName().toString(), size, Files.getLastModifiedTime(objectPath).toInstant());
+                    } catch (IOException e) {
+                        // 列挙中に削除された場合
+                        return null;
+                    }
+                })
+                .filter(Objects::nonNull);
+    }
+
+    /**
+     * 縮小画像のサイズを列挙
+     *
+     * @return 縮小画像のオブジェクトがあるサイズのリスト
+     * @throws IOException 列挙できない場合
+     */
+    private List<Integer> listVariantSizes() throws IOException {
+        Path variantPrefixPath = getObjectPath(VARIANT_PREFIX);
+        if (!Files.isDirectory(variantPrefixPath)) {
+            return List.of();
+        }
+        try (Stream<Path> sizePrefixPaths = Files.list(variantPrefixPath)) {
+            return sizePrefixPaths
+                    .map(sizePrefixPath -> sizePrefixPath.getFileName().toString())
+                    .filter(name -> name.matches("\\d+"))
+                    .map(Integer::valueOf)
+                    .toList();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * オブジェクトを保存
+     *
+     * @param key         キー
+     * @param inputStream 内容
+     * @throws IOException 保存できない場合
+     */
+    private void putObject(String key, InputStream inputStream) throws IOException {
+        Path uploadDirPath = objectStoreDirPath.resolve(UPLOAD_DIR_NAME);
+        Path objectPath = getObjectPath(key);
+        diaryStorageMetrics.record("create_directories", () -> {
+            Files.createDirectories(uploadDirPath);
+            return Files.createDirectories(objectPath.getParent());
+        });
+        Path uploadFilePath = uploadDirPath.resolve(UUID.randomUUID().toString());
+        try {
+            diaryStorageMetrics.record("transfer", () -> Files.copy(inputStream, uploadFilePath));
+            Files.move(uploadFilePath, objectPath, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(uploadFilePath);
+        }
+    }
+
+    /**
+     * 画像のキーを取得
+     *
+     * @param imagePath 画像パス
+     * @param size      縮小後の長辺のピクセル数（元画像は{@link #ORIGINAL}）
+     * @return キー
+     */
+    private String getKey(String imagePath, int size) {
+        return size == ORIGINAL ? BLOB_PREFIX + imagePath : VARIANT_PREFIX + size + "/" + imagePath;
+    }
+
+    /**
+     * オブジェクトを保存するファイルのパスを取得
+     *
+     * @param key キー
+     * @return ファイルパス
+     */
+    private Path getObjectPath(String key) {
+        return objectStoreDirPath.resolve(key);
+    }
+}
@@ -0,0 +1,497 @@
+package com.genki.rest_api.diary.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.Resource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * 小さい画像をセグメントファイルにまとめて保存する日記画像ストア
+ * <p>
+ * max-image-size以下の画像は{@code images/segments/}のセグメントファイルに追記し、キーから位置（セグメント・オフセット・長さ）
+ * を引く索引をメモリに持つ。読み込みはメモリマップした領域から行うため、画像ごとにファイルを開かない。
+ * 削除・差し替えでは削除レコードを追記し、不要なバイト数がcompaction-thresholdを超えたセグメントは
+ * バックグラウンドで有効な画像のみを書き込み中のセグメントへ移してから削除する。
+ * 削除レコードは削除した画像が残っているセグメントがある間は有効なバイト数として数え、そのセグメントを削除した時点で不要になる。
+ * max-image-sizeを超える画像、および切り替え前に保存された画像は{@link DiaryShardedFileImageStore}で扱う
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "diary.image.store", havingValue = "packed")
+public class DiaryPackedSegmentImageStore implements DiaryImageStore {
+    private static final String SEGMENT_DIR_NAME = "segments";
+    private static final long RECORD_OVERHEAD = 1024;
+
+    /**
+     * 画像の位置
+     *
+     * @param segmentId    セグメントID
+     * @param recordOffset レコードの先頭位置
+     * @param dataOffset   データの先頭位置
+     * @param dataLength   データ長
+     * @param lastModified 更新日時（エポックミリ秒）
+     */
+    private record Location(long segmentId, long recordOffset, long dataOffset, int dataLength, long lastModified) {
+
+        long recordLength() {
+            return dataOffset - recordOffset + dataLength;
+        }
+    }
+
+    private final DiaryShardedFileImageStore largeImageStore;
+    private final Path segmentDirPath;
+    private final long segmentSize;
+    private final long maxImageSize;
+    private final double compactionThreshold;
+
+    /**
+     * キー（サイズ/画像パス）から画像の位置を引く索引
+     */
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, DiaryImageSegment> segments = new ConcurrentSkipListMap<>();
+    private final Set<Integer> variantSizes = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 追記・索引の更新を直列化するロック
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private DiaryImageSegment activeSegment;
+
+    public DiaryPackedSegmentImageStore(
+            @Value("${diary.image.dir}") Path imageDirPath,
+            @Value("${diary.image.packed.segment-size}") DataSize segmentSize,
+            @Value("${diary.image.packed.max-image-size}") DataSize maxImageSize,
+            @Value("${diary.image.packed.compaction-threshold}") double compactionThreshold,
+            DiaryStorageMetrics diaryStorageMetrics,
+            MeterRegistry meterRegistry) throws IOException {
+        if (segmentSize.toBytes() > Integer.MAX_VALUE
+                || maxImageSize.toBytes() + RECORD_OVERHEAD > segmentSize.toBytes()) {
+            throw new IllegalArgumentException(
+                    "diary.image.packed.segment-size must be at most 2GB and larger than max-image-size");
+        }
+        this.largeImageStore = new DiaryShardedFileImageStore(imageDirPath, diaryStorageMetrics);
+        this.segmentDirPath = imageDirPath.resolve(SEGMENT_DIR_NAME);
+        this.segmentSize = segmentSize.toBytes();
+        this.maxImageSize = maxImageSize.toBytes();
+        this.compactionThreshold = compactionThreshold;
+        diaryStorageMetrics.record("load_segments", () -> {
+            load();
+            return null;
+        });
+        Gauge.builder("diary.image.packed.segments", segments, Map::size)
+                .description("画像のセグメントファイル数")
+                .register(meterRegistry);
+        Gauge.builder("diary.image.packed.bytes", this, store -> store.getTotalBytes() - store.getDeadBytes())
+                .description("セグメントファイル内のバイト数")
+                .tag("state", "live")
+                .register(meterRegistry);
+        Gauge.builder("diary.image.packed.bytes", this, DiaryPackedSegmentImageStore::getDeadBytes)
+                .description("セグメントファイル内のバイト数")
+                .tag("state", "dead")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public boolean exists(String imagePath, int size) {
+        return index.containsKey(getKey(imagePath, size)) || largeImageStore.exists(imagePath, size);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * max-image-size以下の画像はセグメントに追記してファイルを削除する
+     */
+    @Override
+    public void put(String imagePath, int size, Path filePath) throws IOException {
+        if (Files.size(filePath) > maxImageSize) {
+            largeImageStore.put(imagePath, size, filePath);
+            delete(getKey(imagePath, size));
+            return;
+        }
+        byte[] data = Files.readAllBytes(filePath);
+        put(getKey(imagePath, size), ByteBuffer.wrap(data), System.currentTimeMillis());
+        if (size != ORIGINAL) {
+            variantSizes.add(size);
+        }
+        Files.delete(filePath);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * 元画像がセグメントにある場合は、マッピングした領域から書き込み中のセグメントへ複製する
+     */
+    @Override
+    public void putOriginalAs(String imagePath, int size) throws IOException {
+        String originalKey = getKey(imagePath, ORIGINAL);
+        writeLock.lock();
+        try {
+            Location location = index.get(originalKey);
+            if (location == null) {
+                largeImageStore.putOriginalAs(imagePath, size);
+                return;
+            }
+            DiaryImageSegment segment = segments.get(location.segmentId());
+            put(getKey(imagePath, size),
+                    segment.slice(location.dataOffset(), location.dataLength()), System.currentTimeMillis());
+            variantSizes.add(size);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public Resource get(String imagePath, int size) {
+        String key = getKey(imagePath, size);
+        // 圧縮で移動した直後は新しい位置を読み直す
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Location location = index.get(key);
+            if (location == null) {
+                break;
+            }
+            DiaryImageSegment segment = segments.get(location.segmentId());
+            if (segment != null) {
+                return new DiaryByteBufferResource(segment.slice(location.dataOffset(), location.dataLength()), key);
+            }
+        }
+        return largeImageStore.get(imagePath, size);
+    }
+
+    @Override
+    public boolean delete(String imagePath, int size) throws IOException {
+        boolean deleted = delete(getKey(imagePath, size));
+        return largeImageStore.delete(imagePath, size) || deleted;
+    }
+
+    @Override
+    public void deleteAll(String imagePath) throws IOException {
+        delete(getKey(imagePath, ORIGINAL));
+        for (int size : variantSizes) {
+            delete(getKey(imagePath, size));
+        }
+        largeImageStore.deleteAll(imagePath);
+    }
+
+    @Override
+    public Stream<StoredImage> list() throws IOException {
+        Stream<StoredImage> packedImages = index.entrySet().stream()
+                .map(entry -> {
+                    String key = entry.getKey();
+                    int separator = key.indexOf('/');
+                    return new StoredImage(key.substring(separator + 1), Integer.parseInt(key.substring(0, separator)),
+                            Instant.ofEpochMilli(entry.getValue().lastModified()));
+                });
+        return Stream.concat(packedImages, largeImageStore.list());
+    }
+
+    /**
+     * 不要なバイト数の割合がcompaction-threshold以上の封印済みセグメントを圧縮
+     * <p>
+     * 有効な画像を書き込み中のセグメントへ移し、移し終えたセグメントを削除する。
+     * 移動中も読み込み・書き込みは受け付け、停止した場合も次回の起動時に移動後の位置が優先される
+     *
+     * @return 圧縮したセグメント数
+     */
+    @Scheduled(
+            initialDelayString = "${diary.image.packed.compaction-interval}",
+            fixedDelayString = "${diary.image.packed.compaction-interval}")
+    public int compact() {
+        int compactedCount = 0;
+        for (DiaryImageSegment segment : List.copyOf(segments.values())) {
+            if (!segment.isSealed()
+                    || segment.getSize() > 0 && (double) segment.getDeadBytes() / segment.getSize() < compactionThreshold) {
+                continue;
+            }
+            try {
+                compact(segment);
+                compactedCount++;
+            } catch (IOException e) {
+                log.warn("failed to compact diary image segment: {}", segment.getPath(), e);
+            }
+        }
+        return compactedCount;
+    }
+
+    /**
+     * セグメントファイルを閉じる
+     */
+    @PreDestroy
+    public void close() {
+        writeLock.lock();
+        try {
+            segments.values().forEach(DiaryImageSegment::close);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * セグメントを読み込んで索引を再構築
+     * <p>
+     * セグメントID順に画像レコードを索引に登録し（同じキーは後のレコードで上書き）、
+     * 削除レコードは位置が一致する場合のみ索引から除く。
+     * 書き込み中のセグメントは途中で切れた・壊れたレコード以降を無視し、その位置から追記を再開する
+     *
+     * @throws IOException 読み込めない場合
+     */
+    private void load() throws IOException {
+        Files.createDirectories(segmentDirPath);
+        try (Stream<Path> paths = Files.list(segmentDirPath)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                if (DiaryImageSegment.parseId(path.getFileName().toString()) >= 0) {
+                    DiaryImageSegment segment = DiaryImageSegment.open(path, segmentSize);
+                    segments.put(segment.getId(), segment);
+                }
+            }
+        }
+
+        List<DiaryImageSegment.Entry> deleteEntryList = new ArrayList<>();
+        Map<Long, Long> liveBytes = new HashMap<>();
+        for (DiaryImageSegment segment : segments.values()) {
+            for (DiaryImageSegment.Entry entry : segment.getEntryList()) {
+                if (entry.type() == DiaryImageSegment.PUT) {
+                    index.put(entry.key(), toLocation(segment, entry));
+                } else {
+                    deleteEntryList.add(entry);
+                    if (segments.containsKey(entry.targetSegmentId())) {
+                        liveBytes.merge(segment.getId(), entry.recordLength(), Long::sum);
+                    }
+                }
+            }
+        }
+        for (DiaryImageSegment.Entry entry : deleteEntryList) {
+            index.computeIfPresent(entry.key(), (key, location) ->
+                    location.segmentId() == entry.targetSegmentId() && location.recordOffset() == entry.targetOffset()
+                            ? null : location);
+        }
+
+        for (Map.Entry<String, Location> entry : index.entrySet()) {
+            Location location = entry.getValue();
+            liveBytes.merge(location.segmentId(), location.recordLength(), Long::sum);
+            int separator = entry.getKey().indexOf('/');
+            int size = Integer.parseInt(entry.getKey().substring(0, separator));
+            if (size != ORIGINAL) {
+                variantSizes.add(size);
+            }
+        }
+        for (DiaryImageSegment segment : segments.values()) {
+            segment.addDeadBytes(segment.getSize() - liveBytes.getOrDefault(segment.getId(), 0L));
+            // 書き込み中に停止したセグメントは最後のもの以外を封印する
+            if (!segment.isSealed() && segment.getId() != segments.lastKey()) {
+                segment.seal();
+            }
+        }
+        activeSegment = segments.isEmpty() || segments.lastEntry().getValue().isSealed()
+                ? createSegment()
+                : segments.lastEntry().getValue();
+        log.info("loaded {} diary images from {} segments", index.size(), segments.size());
+    }
+
+    /**
+     * セグメントを1つ圧縮
+     *
+     * @param segment 封印済みのセグメント
+     * @throws IOException 書き込めない場合
+     */
+    private void compact(DiaryImageSegment segment) throws IOException {
+        for (DiaryImageSegment.Entry entry : segment.getEntryList()) {
+            writeLock.lock();
+            try {
+                if (entry.type() == DiaryImageSegment.PUT) {
+                    Location location = index.get(entry.key());
+                    if (location != null && location.segmentId() == segment.getId()
+                            && location.recordOffset() == entry.recordOffset()) {
+                        put(entry.key(), segment.slice(location.dataOffset(), location.dataLength()),
+                                location.lastModified());
+                    }
+                } else if (segments.containsKey(entry.targetSegmentId()) && entry.targetSegmentId() != segment.getId()) {
+                    // 削除した画像が残っているセグメントがある間は削除レコードを引き継ぐ
+                    appendDelete(entry.key(), entry.targetSegmentId(), entry.targetOffset());
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        writeLock.lock();
+        try {
+            // 移した画像を書き込んでから元のセグメントを削除する
+            activeSegment.force();
+            segments.remove(segment.getId());
+            addDeadDeleteBytes(segment.getId());
+        } finally {
+            writeLock.unlock();
+        }
+        segment.close();
+        Files.deleteIfExists(segment.getPath());
+        log.info("compacted diary image segment: {}", segment.getPath());
+    }
+
+    /**
+     * 画像を追記して索引を更新
+     *
+     * @param key          キー
+     * @param data         データ
+     * @param lastModified 更新日時（エポックミリ秒）
+     * @throws IOException 書き込めない場合
+     */
+    private void put(String key, ByteBuffer data, long lastModified) throws IOException {
+        writeLock.lock();
+        try {
+            DiaryImageSegment segment = getActiveSegment(key, data.remaining());
+            DiaryImageSegment.Entry entry = segment.append(DiaryImageSegment.PUT, key, data, lastModified, -1, -1);
+            Location previousLocation = index.put(key, toLocation(segment, entry));
+            if (previousLocation != null) {
+                addDeadBytes(previousLocation);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * セグメントの画像を削除
+     *
+     * @param key キー
+     * @return true=削除した
+     * @throws IOException 書き込めない場合
+     */
+    private boolean delete(String key) throws IOException {
+        writeLock.lock();
+        try {
+            Location location = index.get(key);
+            if (location == null) {
+                return false;
+            }
+            appendDelete(key, location.segmentId(), location.recordOffset());
+            index.remove(key);
+            addDeadBytes(location);
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 削除レコードを追記
+     * <p>
+     * 削除レコードは削除するレコードのセグメントが残っている間は必要なため、不要なバイト数として数えない
+     *
+     * @param key             キー
+     * @param targetSegmentId 削除するレコードのセグメントID
+     * @param targetOffset    削除するレコードの先頭位置
+     * @throws IOException 書き込めない場合
+     */
+    private void appendDelete(String key, long targetSegmentId, long targetOffset) throws IOException {
+        DiaryImageSegment segment = getActiveSegment(key, 0);
+        segment.append(DiaryImageSegment.DELETE, key, ByteBuffer.allocate(0),
+                System.currentTimeMillis(), targetSegmentId, targetOffset);
+    }
+
+    /**
+     * 削除したセグメントを対象とする削除レコードのバイト数を、各セグメントの不要なバイト数に加算（書き込みロックを取得して呼ぶこと）
+     *
+     * @param targetSegmentId 削除したセグメントのID
+     */
+    private void addDeadDeleteBytes(long targetSegmentId) {
+        for (DiaryImageSegment segment : segments.values()) {
+            for (DiaryImageSegment.Entry entry : segment.getEntryList()) {
+                if (entry.type() == DiaryImageSegment.DELETE && entry.targetSegmentId() == targetSegmentId) {
+                    segment.addDeadBytes(entry.recordLength());
+                }
+            }
+        }
+    }
+
+    /**
+     * レコードを追記できる書き込み中のセグメントを取得（容量が足りない場合は封印して新しいセグメントを作成）
+     *
+     * @param key        キー
+     * @param dataLength データ長
+     * @return セグメント
+     * @throws IOException 作成できない場合
+     */
+    private DiaryImageSegment getActiveSegment(String key, long dataLength) throws IOException {
+        if (!activeSegment.hasRoomFor(key, dataLength)) {
+            activeSegment.seal();
+            activeSegment = createSegment();
+        }
+        return activeSegment;
+    }
+
+    /**
+     * 新しいセグメントを作成
+     *
+     * @return セグメント
+     * @throws IOException 作成できない場合
+     */
+    private DiaryImageSegment createSegment() throws IOException {
+        long id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        DiaryImageSegment segment = DiaryImageSegment.create(segmentDirPath, id, segmentSize);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    /**
+     * 不要になった画像のバイト数をセグメントに加算
+     *
+     * @param location 画像の位置
+     */
+    private void addDeadBytes(Location location) {
+        DiaryImageSegment segment = segments.get(location.segmentId());
+        if (segment != null) {
+            segment.addDeadBytes(location.recordLength());
+        }
+    }
+
+    /**
+     * レコードから画像の位置を作成
+     *
+     * @param segment セグメント
+     * @param entry   レコード
+     * @return 画像の位置
+     */
+    private Location toLocation(DiaryImageSegment segment, DiaryImageSegment.Entry entry) {
+        return new Location(
+                segment.getId(), entry.recordOffset(), entry.dataOffset(), entry.dataLength(), entry.lastModified());
+    }
+
+    /**
+     * 画像のキーを取得
+     *
+     * @param imagePath 画像パス
+     * @param size      縮小後の長辺のピクセル数（元画像は{@link #ORIGINAL}）
+     * @return キー
+     */
+    private String getKey(String imagePath, int size) {
+        return size + "/" + imagePath;
+    }
+
+    private long getTotalBytes() {
+        return segments.values().stream().mapToLong(DiaryImageSegment::getSize).sum();
+    }
+
+    private long getDeadBytes() {
+        return segments.values().stream().mapToLong(DiaryImageSegment::getDeadBytes).sum();
+    }
+}
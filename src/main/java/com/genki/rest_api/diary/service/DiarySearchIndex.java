@@ -0,0 +1,670 @@
+package com.genki.rest_api.diary.service;
+
+import org.springframework.stereotype.Component;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * 日記全文検索インデックス
+ * <p>
+ * 分かち書きのない日本語でも検索できるよう、タイトルと本文を文字bigram（およびunigram）に分割した転置インデックスを
+ * メモリ上に保持する。検索語のbigramをすべて含む日記を候補とし、TF-IDFでスコアリングする。
+ * <p>
+ * 日記には登録順に内部の文書番号を振り、転置リストは(文書番号の差分, 重み付き出現回数)を可変長整数で詰めたバイト列で保持する
+ * （1件あたり2〜3バイト程度）。更新・削除では古い文書番号を削除済みとして検索時に除き、
+ * 削除済みの文書が有効な文書より多くなったら転置リストから取り除く
+ */
+@Component
+public class DiarySearchIndex {
+    /**
+     * タイトルに含まれる語の重み
+     */
+    private static final int TITLE_WEIGHT = 3;
+
+    /**
+     * 転置リストから削除済みの文書を取り除く最小の削除済み文書数
+     */
+    private static final int COMPACTION_MIN_DELETED = 1024;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * 検索に使うインデックス（再構築時は構築済みのインデックスに差し替える）
+     */
+    private Postings postings = new Postings();
+
+    /**
+     * 再構築中に反映した変更（日記ID -> 語と出現回数、削除の場合はnull）。再構築中でない場合はnull
+     */
+    private Map<Long, TermFrequencies> changesDuringRebuild;
+
+    /**
+     * 検索結果
+     *
+     * @param id    日記ID
+     * @param score スコア
+     */
+    public record Hit(long id, double score) {
+    }
+
+    /**
+     * 再構築時に日記を登録する先
+     */
+    @FunctionalInterface
+    public interface Sink {
+        /**
+         * 日記を登録
+         *
+         * @param id      日記ID
+         * @param title   日記タイトル
+         * @param content 日記本文
+         */
+        void put(long id, String title, String content);
+    }
+
+    /**
+     * 日記を登録（登録済みの場合は置き換え）
+     *
+     * @param id      日記ID
+     * @param title   日記タイトル
+     * @param content 日記本文
+     */
+    public void put(long id, String title, String content) {
+        TermFrequencies termFrequencies = TermFrequencies.of(title, content);
+        lock.writeLock().lock();
+        try {
+            postings.put(id, termFrequencies);
+            if (changesDuringRebuild != null) {
+                changesDuringRebuild.put(id, termFrequencies);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 日記を削除
+     *
+     * @param id 日記ID
+     */
+    public void remove(long id) {
+        lock.writeLock().lock();
+        try {
+            postings.remove(id);
+            if (changesDuringRebuild != null) {
+                changesDuringRebuild.put(id, null);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * インデックスを再構築
+     * <p>
+     * 新しいインデックスを構築し終えてから差し替えるため、構築中の検索は構築前のインデックスで行う。
+     * 構築中にput・removeで反映した変更は、読み込んだ日記より新しいものとして構築後のインデックスにも適用してから差し替える
+     * （読み込みと同時にコミットされた更新・削除を古い内容で上書きしない）
+     *
+     * @param loader 全件をSinkに登録する処理
+     */
+    public void rebuild(Consumer<Sink> loader) {
+        lock.writeLock().lock();
+        try {
+            if (changesDuringRebuild != null) {
+                throw new IllegalStateException("diary search index is already being rebuilt");
+            }
+            changesDuringRebuild = new HashMap<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        try {
+            Postings rebuilt = new Postings();
+            loader.accept((id, title, content) -> rebuilt.put(id, TermFrequencies.of(title, content)));
+            lock.writeLock().lock();
+            try {
+                changesDuringRebuild.forEach((id, termFrequencies) -> {
+                    if (termFrequencies == null) {
+                        rebuilt.remove(id);
+                    } else {
+                        rebuilt.put(id, termFrequencies);
+                    }
+                });
+                rebuilt.trimToSize();
+                postings = rebuilt;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            lock.writeLock().lock();
+            try {
+                changesDuringRebuild = null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * 登録済みの日記件数を取得
+     *
+     * @return 日記件数
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return postings.documents.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 検索語のbigramをすべて含む日記をスコアの降順で取得
+     *
+     * @param query 検索語
+     * @param limit 最大取得件数
+     * @return 検索結果リスト
+     */
+    public List<Hit> search(String query, int limit) {
+        long[] queryTerms = Arrays.stream(tokenize(query, false)).distinct().toArray();
+        if (queryTerms.length == 0) {
+            return List.of();
+        }
+
+        lock.readLock().lock();
+        try {
+            return postings.search(queryTerms, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 文字列をbigramに分割
+     * <p>
+     * NFKC正規化・小文字化したうえで空白を区切りとする。1文字の検索語にも一致させるため、
+     * 日記側はunigramも登録し、検索語側は1文字の語のみunigramとして扱う。
+     * 語は2つのコードポイントを1つのlongに詰めて表す（unigramは上位32bitが0）
+     *
+     * @param text         文字列
+     * @param withUnigrams true=全ての文字のunigramを含める, false=1文字の語のみunigramとする
+     * @return 語の配列（出現順）
+     */
+    static long[] tokenize(String text, boolean withUnigrams) {
+        if (text == null) {
+            return new long[0];
+        }
+        int[] codePoints = Normalizer.normalize(text, Normalizer.Form.NFKC).toLowerCase().codePoints().toArray();
+        long[] terms = new long[codePoints.length * 2];
+        int count = 0;
+        int start = 0;
+        while (start < codePoints.length) {
+            if (Character.isWhitespace(codePoints[start])) {
+                start++;
+                continue;
+            }
+            int end = start;
+            while (end < codePoints.length && !Character.isWhitespace(codePoints[end])) {
+                end++;
+            }
+            for (int i = start; i < end; i++) {
+                if (withUnigrams || end - start == 1) {
+                    terms[count++] = codePoints[i];
+                }
+                if (i + 1 < end) {
+                    terms[count++] = ((long) codePoints[i] << Integer.SIZE) | codePoints[i + 1];
+                }
+            }
+            start = end;
+        }
+        return Arrays.copyOf(terms, count);
+    }
+
+    /**
+     * 日記1件の語と重み付き出現回数
+     *
+     * @param terms       語（昇順）
+     * @param frequencies 重み付き出現回数
+     */
+    private record TermFrequencies(long[] terms, int[] frequencies) {
+        /**
+         * タイトル・本文から語と重み付き出現回数を集計
+         *
+         * @param title   日記タイトル
+         * @param content 日記本文
+         * @return 語と重み付き出現回数
+         */
+        private static TermFrequencies of(String title, String content) {
+            long[] titleTerms = tokenize(title, true);
+            long[] contentTerms = tokenize(content, true);
+            Arrays.sort(titleTerms);
+            Arrays.sort(contentTerms);
+            long[] terms = new long[titleTerms.length + contentTerms.length];
+            int[] frequencies = new int[terms.length];
+            int count = 0;
+            int i = 0;
+            int j = 0;
+            while (i < titleTerms.length || j < contentTerms.length) {
+                long term = j == contentTerms.length || (i < titleTerms.length && titleTerms[i] < contentTerms[j])
+                        ? titleTerms[i] : contentTerms[j];
+                int frequency = 0;
+                for (; i < titleTerms.length && titleTerms[i] == term; i++) {
+                    frequency += TITLE_WEIGHT;
+                }
+                for (; j < contentTerms.length && contentTerms[j] == term; j++) {
+                    frequency++;
+                }
+                terms[count] = term;
+                frequencies[count] = frequency;
+                count++;
+            }
+            return new TermFrequencies(Arrays.copyOf(terms, count), Arrays.copyOf(frequencies, count));
+        }
+    }
+
+    /**
+     * 転置インデックス
+     * <p>
+     * 排他制御は呼び出し元で行う
+     */
+    private static final class Postings {
+        /**
+         * 語 -> 転置リスト
+         */
+        private final Map<Long, PostingList> termPostings = new HashMap<>();
+
+        /**
+         * 文書番号 -> 日記ID
+         */
+        private long[] diaryIds = new long[16];
+
+        /**
+         * 払い出した文書番号の数
+         */
+        private int documentCount;
+
+        /**
+         * 日記ID -> 有効な文書番号
+         */
+        private final LongIntMap documents = new LongIntMap();
+
+        /**
+         * 削除済み（更新前を含む）の文書番号
+         */
+        private BitSet deleted = new BitSet();
+        private int deletedCount;
+
+        /**
+         * 日記を登録（登録済みの場合は古い文書を削除済みにする）
+         *
+         * @param id              日記ID
+         * @param termFrequencies 語と重み付き出現回数
+         */
+        private void put(long id, TermFrequencies termFrequencies) {
+            remove(id);
+            int document = documentCount++;
+            if (document == diaryIds.length) {
+                diaryIds = Arrays.copyOf(diaryIds, diaryIds.length * 2);
+            }
+            diaryIds[document] = id;
+            documents.put(id, document);
+            long[] terms = termFrequencies.terms();
+            int[] frequencies = termFrequencies.frequencies();
+            for (int i = 0; i < terms.length; i++) {
+                termPostings.computeIfAbsent(terms[i], term -> new PostingList()).add(document, frequencies[i]);
+            }
+        }
+
+        /**
+         * 日記を削除
+         *
+         * @param id 日記ID
+         */
+        private void remove(long id) {
+            int document = documents.remove(id);
+            if (document < 0) {
+                return;
+            }
+            deleted.set(document);
+            deletedCount++;
+            if (deletedCount >= COMPACTION_MIN_DELETED && deletedCount > documents.size()) {
+                compact();
+            }
+        }
+
+        /**
+         * 転置リストから削除済みの文書を取り除き、文書番号を詰める
+         */
+        private void compact() {
+            int[] renumbered = new int[documentCount];
+            int liveCount = 0;
+            for (int document = 0; document < documentCount; document++) {
+                renumbered[document] = deleted.get(document) ? -1 : liveCount++;
+            }
+            long[] liveDiaryIds = new long[Math.max(16, liveCount)];
+            for (int document = 0; document < documentCount; document++) {
+                if (renumbered[document] >= 0) {
+                    liveDiaryIds[renumbered[document]] = diaryIds[document];
+                    documents.put(diaryIds[document], renumbered[document]);
+                }
+            }
+            termPostings.values().removeIf(postingList -> !postingList.compact(deleted, renumbered));
+            diaryIds = liveDiaryIds;
+            documentCount = liveCount;
+            deleted = new BitSet();
+            deletedCount = 0;
+        }
+
+        /**
+         * 転置リストの余分な領域を解放
+         */
+        private void trimToSize() {
+            termPostings.values().forEach(PostingList::trimToSize);
+        }
+
+        /**
+         * 語をすべて含む日記をスコアの降順で取得
+         *
+         * @param queryTerms 語（重複なし）
+         * @param limit      最大取得件数
+         * @return 検索結果リスト
+         */
+        private List<Hit> search(long[] queryTerms, int limit) {
+            int[][] documentLists = new int[queryTerms.length][];
+            int[][] frequencyLists = new int[queryTerms.length][];
+            Integer[] order = new Integer[queryTerms.length];
+            for (int i = 0; i < queryTerms.length; i++) {
+                PostingList postingList = termPostings.get(queryTerms[i]);
+                if (postingList == null) {
+                    return List.of();
+                }
+                int[] documentList = new int[postingList.size];
+                int[] frequencyList = new int[postingList.size];
+                int count = postingList.decode(deleted, documentList, frequencyList);
+                if (count == 0) {
+                    return List.of();
+                }
+                documentLists[i] = Arrays.copyOf(documentList, count);
+                frequencyLists[i] = Arrays.copyOf(frequencyList, count);
+                order[i] = i;
+            }
+            // 出現件数の少ないbigramから積集合を取ると候補が早く絞り込める
+            Arrays.sort(order, Comparator.comparingInt(i -> documentLists[i].length));
+
+            double liveDocumentCount = documents.size();
+            int first = order[0];
+            int[] candidates = documentLists[first].clone();
+            double[] scores = new double[candidates.length];
+            double firstIdf = idf(liveDocumentCount, candidates.length);
+            for (int j = 0; j < candidates.length; j++) {
+                scores[j] = frequencyLists[first][j] * firstIdf;
+            }
+            int candidateCount = candidates.length;
+            for (int k = 1; k < order.length && candidateCount > 0; k++) {
+                int[] documentList = documentLists[order[k]];
+                int[] frequencyList = frequencyLists[order[k]];
+                double idf = idf(liveDocumentCount, documentList.length);
+                int kept = 0;
+                int position = 0;
+                for (int j = 0; j < candidateCount; j++) {
+                    while (position < documentList.length && documentList[position] < candidates[j]) {
+                        position++;
+                    }
+                    if (position < documentList.length && documentList[position] == candidates[j]) {
+                        candidates[kept] = candidates[j];
+                        scores[kept] = scores[j] + frequencyList[position] * idf;
+                        kept++;
+                    }
+                }
+                candidateCount = kept;
+            }
+
+            List<Hit> hitList = new ArrayList<>(candidateCount);
+            for (int j = 0; j < candidateCount; j++) {
+                hitList.add(new Hit(diaryIds[candidates[j]], scores[j]));
+            }
+            return hitList.stream()
+                    .sorted(Comparator.comparingDouble(Hit::score).reversed().thenComparing(Hit::id, Comparator.reverseOrder()))
+                    .limit(limit)
+                    .toList();
+        }
+
+        /**
+         * IDFを計算
+         *
+         * @param documentCount     有効な文書数
+         * @param documentFrequency 語を含む有効な文書数
+         * @return IDF
+         */
+        private static double idf(double documentCount, int documentFrequency) {
+            return Math.log(1 + documentCount / documentFrequency);
+        }
+    }
+
+    /**
+     * 1つの語の転置リスト
+     * <p>
+     * 文書番号の昇順に、前の文書番号との差分と重み付き出現回数を可変長整数（7bitずつ、最上位bitが継続）で詰めて保持する
+     */
+    private static final class PostingList {
+        private byte[] bytes = new byte[8];
+        private int length;
+        private int lastDocument = -1;
+
+        /**
+         * 保持している文書数（削除済みを含む）
+         */
+        private int size;
+
+        /**
+         * 文書を末尾に追加
+         *
+         * @param document  文書番号（追加済みの文書番号より大きいこと）
+         * @param frequency 重み付き出現回数
+         */
+        private void add(int document, int frequency) {
+            if (length + 2 * 5 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(length + 2 * 5, bytes.length + (bytes.length >> 1)));
+            }
+            length = writeVarInt(bytes, length, document - lastDocument);
+            length = writeVarInt(bytes, length, frequency);
+            lastDocument = document;
+            size++;
+        }
+
+        /**
+         * 削除済みでない文書を復号
+         *
+         * @param deleted       削除済みの文書番号
+         * @param documentList  文書番号の格納先（size以上の長さ）
+         * @param frequencyList 重み付き出現回数の格納先（size以上の長さ）
+         * @return 格納した文書数
+         */
+        private int decode(BitSet deleted, int[] documentList, int[] frequencyList) {
+            int count = 0;
+            int position = 0;
+            int document = -1;
+            while (position < length) {
+                int gap = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = bytes[position++];
+                    gap |= (b & 0x7f) << shift;
+                    if (b >= 0) {
+                        break;
+                    }
+                }
+                int frequency = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = bytes[position++];
+                    frequency |= (b & 0x7f) << shift;
+                    if (b >= 0) {
+                        break;
+                    }
+                }
+                document += gap;
+                if (!deleted.get(document)) {
+                    documentList[count] = document;
+                    frequencyList[count] = frequency;
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * 削除済みの文書を取り除き、文書番号を振り直す
+         *
+         * @param deleted    削除済みの文書番号
+         * @param renumbered 文書番号 -> 新しい文書番号
+         * @return true=有効な文書が残っている
+         */
+        private boolean compact(BitSet deleted, int[] renumbered) {
+            int[] documentList = new int[size];
+            int[] frequencyList = new int[size];
+            int count = decode(deleted, documentList, frequencyList);
+            bytes = new byte[Math.max(8, length)];
+            length = 0;
+            lastDocument = -1;
+            size = 0;
+            for (int i = 0; i < count; i++) {
+                add(renumbered[documentList[i]], frequencyList[i]);
+            }
+            trimToSize();
+            return count > 0;
+        }
+
+        /**
+         * 余分な領域を解放
+         */
+        private void trimToSize() {
+            if (bytes.length > length) {
+                bytes = Arrays.copyOf(bytes, length);
+            }
+        }
+
+        /**
+         * 可変長整数を書き込む
+         *
+         * @param bytes    書き込み先
+         * @param position 書き込み位置
+         * @param value    値（0以上）
+         * @return 書き込み後の位置
+         */
+        private static int writeVarInt(byte[] bytes, int position, int value) {
+            while ((value & ~0x7f) != 0) {
+                bytes[position++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes[position++] = (byte) value;
+            return position;
+        }
+    }
+
+    /**
+     * 日記IDから文書番号へのハッシュマップ（オープンアドレス法、値は0以上）
+     * <p>
+     * 日記ごとにLong・Integerのオブジェクトを作らないよう、キーと値をプリミティブの配列で保持する
+     */
+    private static final class LongIntMap {
+        private static final int EMPTY = -1;
+
+        private long[] keys = new long[16];
+        private int[] values = filledValues(16);
+        private int size;
+
+        private int size() {
+            return size;
+        }
+
+        /**
+         * 値を登録（登録済みの場合は置き換え）
+         *
+         * @param key   キー
+         * @param value 値（0以上）
+         */
+        private void put(long key, int value) {
+            if ((size + 1) * 4 > keys.length * 3) {
+                resize(keys.length * 2);
+            }
+            int mask = keys.length - 1;
+            int slot = slot(key, mask);
+            while (values[slot] != EMPTY) {
+                if (keys[slot] == key) {
+                    values[slot] = value;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = value;
+            size++;
+        }
+
+        /**
+         * 値を削除
+         * <p>
+         * 後続の衝突したエントリを空いた位置へ詰め、削除済みの印を残さない
+         *
+         * @param key キー
+         * @return 削除した値（登録されていない場合は-1）
+         */
+        private int remove(long key) {
+            int mask = keys.length - 1;
+            int slot = slot(key, mask);
+            while (values[slot] != EMPTY && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            int value = values[slot];
+            if (value == EMPTY) {
+                return EMPTY;
+            }
+            int hole = slot;
+            for (int i = (hole + 1) & mask; values[i] != EMPTY; i = (i + 1) & mask) {
+                int home = slot(keys[i], mask);
+                if (((i - home) & mask) >= ((i - hole) & mask)) {
+                    keys[hole] = keys[i];
+                    values[hole] = values[i];
+                    hole = i;
+                }
+            }
+            values[hole] = EMPTY;
+            size--;
+            return value;
+        }
+
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[capacity];
+            values = filledValues(capacity);
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != EMPTY) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int slot(long key, int mask) {
+            long hash = key * 0x9e3779b97f4a7c15L;
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+
+        private static int[] filledValues(int capacity) {
+            int[] values = new int[capacity];
+            Arrays.fill(values, EMPTY);
+            return values;
+        }
+    }
+}
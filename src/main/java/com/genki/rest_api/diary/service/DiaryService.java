@@ -1,49 +1,110 @@
 package com.genki.rest_api.diary.service;
 
+import com.genki.rest_api.diary.dto.DiaryCalendarDayResponseDto;
+import com.genki.rest_api.diary.dto.DiaryCalendarResponseDto;
+import com.genki.rest_api.diary.dto.DiaryPageResponseDto;
 import com.genki.rest_api.diary.dto.DiaryResponseDto;
+import com.genki.rest_api.diary.dto.DiarySummaryResponseDto;
 import com.genki.rest_api.diary.entity.DiaryEntity;
 import com.genki.rest_api.diary.exception.DiaryIOException;
 import com.genki.rest_api.diary.exception.DiaryImageNotSupportedException;
+import com.genki.rest_api.diary.exception.DiaryInvalidCursorException;
 import com.genki.rest_api.diary.exception.DiaryNotFoundException;
+import com.genki.rest_api.diary.form.DiaryBatchRegistrationForm;
 import com.genki.rest_api.diary.form.DiaryRegistrationForm;
 import com.genki.rest_api.diary.form.DiaryUpdateForm;
+import com.genki.rest_api.diary.repository.DiaryBatchRepository;
+import com.genki.rest_api.diary.repository.DiaryReplicaDataSource;
 import com.genki.rest_api.diary.repository.DiaryRepository;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.github.benmanes.caffeine.cache.Cache;
 import io.micrometer.common.util.StringUtils;
-import jakarta.transaction.Transactional;
+import io.micrometer.core.annotation.Timed;
+import jakarta.persistence.EntityManager;
 import lombok.RequiredArgsConstructor;
 import org.apache.commons.io.FilenameUtils;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.context.MessageSource;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Limit;
+import org.springframework.core.io.Resource;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
-import org.springframework.util.FileSystemUtils;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
 import java.util.List;
 import java.util.Locale;
-import java.util.UUID;
+import java.util.Map;
+import java.util.Objects;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * 日記サービス
+ * <p>
+ * publicメソッドの所要時間をdiary.serviceメトリクス（class・method・exceptionタグ付き）として記録する。
+ * 参照系のメソッドは読み取り専用トランザクションで実行し、レプリカが有効な場合はレプリカから読み取る
  */
 @Service
+@Timed("diary.service")
 @Transactional
 @RequiredArgsConstructor
 public class DiaryService {
     private final DiaryRepository diaryRepository;
+    private final DiaryBatchRepository diaryBatchRepository;
     private final MessageSource messageSource;
+    private final EntityManager entityManager;
+    private final ObjectMapper objectMapper;
+    private final DiarySearchIndex diarySearchIndex;
+    private final Cache<Long, DiaryResponseDto> diaryCache;
+    private final DiaryImageBlobService diaryImageBlobService;
+    private final DiaryImageVariantService diaryImageVariantService;
+    private final DiaryImageCache diaryImageCache;
+    private final DiaryFileDeletionService diaryFileDeletionService;
+    private final DiaryStorageMetrics diaryStorageMetrics;
+    private final DiaryChangeFeed diaryChangeFeed;
+    private final ObjectProvider<DiaryReplicaDataSource> diaryReplicaDataSource;
+    /**
+     * DBの日時のタイムゾーン（作成日の範囲・カレンダーの日付の境界）
+     */
+    @Value("${spring.jpa.properties.hibernate.jdbc.time_zone}")
+    private final ZoneId jdbcZoneId;
 
-    private final String IMAGE_DIR_PATH = "images";
     private final List<String> EXTENSION_LIST = List.of("png", "jpg", "jpeg", "gif");
+    private final int DEFAULT_PAGE_LIMIT = 20;
+    /**
+     * 作成日の範囲を片方のみ指定した場合の下限・上限（MySQLのdatetimeの範囲。DB上の日時）
+     * <p>
+     * 上限は含まない日時として使うため、9999-12-31の日記も含まれるよう日の終わり（マイクロ秒単位）とする
+     */
+    private final LocalDateTime MIN_CREATED_AT = LocalDate.of(1000, 1, 1).atStartOfDay();
+    private final LocalDateTime MAX_CREATED_AT = LocalDate.of(9999, 12, 31).atTime(23, 59, 59, 999_999_000);
 
     /**
      * 日記を全件取得
      *
      * @return 日記レスポンスDTO
      */
+    @Transactional(readOnly = true)
     public List<DiaryResponseDto> getAllDiaries() {
         return diaryRepository.findAll()
                 .stream()
@@ -57,6 +118,7 @@ public class DiaryService {
      * @param title 日記タイトル
      * @return 日記レスポンスDTOリスト
      */
+    @Transactional(readOnly = true)
     public List<DiaryResponseDto> getDiaries(String title) {
         return diaryRepository.findByTitleContaining(title)
                 .stream()
@@ -64,6 +126,311 @@ public class DiaryService {
                 .toList();
     }
 
+    /**
+     * 全文検索インデックスを全件から再構築
+     * <p>
+     * 起動完了時に実行し、以降は登録・更新・削除のコミット後に差分で反映する。
+     * レプリカの遅延で直近の更新が漏れないよう、プライマリから読み込む。
+     * 読み込み中にコミットされた登録・更新・削除は、読み込んだ内容で上書きされないよう構築後のインデックスに適用してから差し替える
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuildSearchIndex() {
+        diarySearchIndex.rebuild(sink -> {
+            try (Stream<DiaryEntity> diaryEntityStream = diaryRepository.streamAll()) {
+                diaryEntityStream.forEach(diaryEntity -> {
+                    sink.put(diaryEntity.getId(), diaryEntity.getTitle(), diaryEntity.getContent());
+                    entityManager.detach(diaryEntity);
+                });
+            }
+        });
+    }
+
+    /**
+     * タイトル・本文を全文検索し、スコアの降順で日記を取得
+     *
+     * @param query 検索語
+     * @param limit 取得件数（nullの場合はデフォルト件数）
+     * @return 日記ページレスポンスDTO
+     */
+    @Transactional(readOnly = true)
+    public DiaryPageResponseDto<DiaryResponseDto> searchDiaries(String query, Integer limit) {
+        List<Long> idList = searchIds(query, limit);
+        List<DiaryResponseDto> diaryResponseDtoList = sortByIdList(
+                idList,
+                diaryRepository.findAllById(idList).stream().map(DiaryResponseDto::of).toList(),
+                DiaryResponseDto::id);
+        return new DiaryPageResponseDto<>(diaryResponseDtoList, null);
+    }
+
+    /**
+     * タイトル・本文を全文検索し、スコアの降順で日記のサマリーを取得
+     *
+     * @param query 検索語
+     * @param limit 取得件数（nullの場合はデフォルト件数）
+     * @return 日記ページレスポンスDTO
+     */
+    @Transactional(readOnly = true)
+    public DiaryPageResponseDto<DiarySummaryResponseDto> searchDiarySummaries(String query, Integer limit) {
+        List<Long> idList = searchIds(query, limit);
+        List<DiarySummaryResponseDto> diarySummaryResponseDtoList = sortByIdList(
+                idList, diaryRepository.findSummaryByIdIn(idList), DiarySummaryResponseDto::id);
+        return new DiaryPageResponseDto<>(diarySummaryResponseDtoList, null);
+    }
+
+    /**
+     * 全文検索インデックスからスコアの降順で日記IDを取得
+     *
+     * @param query 検索語
+     * @param limit 取得件数（nullの場合はデフォルト件数）
+     * @return IDリスト
+     */
+    private List<Long> searchIds(String query, Integer limit) {
+        int pageLimit = limit != null ? limit : DEFAULT_PAGE_LIMIT;
+        return diarySearchIndex.search(query, pageLimit)
+                .stream()
+                .map(DiarySearchIndex.Hit::id)
+                .toList();
+    }
+
+    /**
+     * DBから取得した日記をIDリストの順に並べ替え
+     * <p>
+     * 検索後に削除された日記は除く
+     *
+     * @param idList  IDリスト
+     * @param dtoList DBから取得した日記DTOリスト
+     * @param idOf    日記DTOからIDを取得する関数
+     * @param <T>     日記DTOの型
+     * @return 日記DTOリスト
+     */
+    private <T> List<T> sortByIdList(List<Long> idList, List<T> dtoList, Function<T, Long> idOf) {
+        Map<Long, T> dtoMap = dtoList.stream()
+                .collect(Collectors.toMap(idOf, Function.identity()));
+        return idList.stream()
+                .map(dtoMap::get)
+                .filter(Objects::nonNull)
+                .toList();
+    }
+
+    /**
+     * 日記を全件NDJSON形式で出力
+     * <p>
+     * カーソルから1行ずつ読み込み、書き込み済みのエンティティは永続化コンテキストから切り離すため
+     * 件数によらずメモリ使用量は一定になる
+     *
+     * @param outputStream 出力先
+     */
+    @Transactional(readOnly = true)
+    public void exportDiaries(OutputStream outputStream) {
+        ObjectWriter objectWriter = objectMapper.writerFor(DiaryResponseDto.class)
+                .without(SerializationFeature.INDENT_OUTPUT)
+                .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        try (Stream<DiaryEntity> diaryEntityStream = diaryRepository.streamAll();
+             JsonGenerator jsonGenerator = objectWriter.createGenerator(outputStream)) {
+            jsonGenerator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            jsonGenerator.setRootValueSeparator(null);
+            for (DiaryEntity diaryEntity : (Iterable<DiaryEntity>) diaryEntityStream::iterator) {
+                objectWriter.writeValue(jsonGenerator, DiaryResponseDto.of(diaryEntity));
+                jsonGenerator.writeRaw('\n');
+                entityManager.detach(diaryEntity);
+            }
+        } catch (IOException e) {
+            throw new DiaryIOException(
+                    messageSource.getMessage(
+                            "errors.api.diary.export.failed",
+                            null,
+                            Locale.getDefault()
+                    ),
+                    e);
+        }
+    }
+
+    /**
+     * 日記をキーセットページングで取得
+     * <p>
+     * 作成日時・IDの降順に並べ、カーソルより後ろの日記を最大limit件取得する。
+     * from・toを指定した場合は作成日がその範囲内の日記のみを取得する
+     *
+     * @param title  日記タイトル（空の場合は絞り込まない）
+     * @param from   作成日の下限（nullの場合は絞り込まない）
+     * @param to     作成日の上限（nullの場合は絞り込まない）
+     * @param limit  取得件数（nullの場合はデフォルト件数）
+     * @param cursor 次ページ取得用カーソル（nullの場合は先頭ページ）
+     * @return 日記ページレスポンスDTO
+     */
+    @Transactional(readOnly = true)
+    public DiaryPageResponseDto<DiaryResponseDto> getDiaryPage(
+            String title, LocalDate from, LocalDate to, Integer limit, String cursor) {
+        int pageLimit = limit != null ? limit : DEFAULT_PAGE_LIMIT;
+        // 次ページの有無を判定するため1件多く取得する
+        Limit fetchLimit = Limit.of(pageLimit + 1);
+        boolean hasTitle = StringUtils.isNotBlank(title);
+
+        List<DiaryEntity> diaryEntityList;
+        if (from != null || to != null) {
+            DiaryCursor diaryCursor = getRangeCursor(to, cursor);
+            diaryEntityList = diaryRepository.findPageBetween(
+                    getRangeStart(from), getRangeEnd(to), hasTitle ? title : null,
+                    diaryCursor.createdAt(), diaryCursor.id(), fetchLimit);
+        } else if (StringUtils.isBlank(cursor)) {
+            diaryEntityList = hasTitle
+                    ? diaryRepository.findByTitleContainingOrderByCreatedAtDescIdDesc(title, fetchLimit)
+                    : diaryRepository.findByOrderByCreatedAtDescIdDesc(fetchLimit);
+        } else {
+            DiaryCursor diaryCursor = decodeCursor(cursor);
+            diaryEntityList = hasTitle
+                    ? diaryRepository.findPageByTitleContainingAfter(
+                    title, diaryCursor.createdAt(), diaryCursor.id(), fetchLimit)
+                    : diaryRepository.findPageAfter(diaryCursor.createdAt(), diaryCursor.id(), fetchLimit);
+        }
+        List<DiaryResponseDto> diaryResponseDtoList = diaryEntityList.stream()
+                .map(DiaryResponseDto::of)
+                .toList();
+        return toPage(diaryResponseDtoList, pageLimit, DiaryCursor::of);
+    }
+
+    /**
+     * 日記のサマリーをキーセットページングで取得
+     * <p>
+     * getDiaryPageと同じ順序・カーソルで、本文を読み込まずにid・title・image_path・created_atのみを取得する
+     *
+     * @param title  日記タイトル（空の場合は絞り込まない）
+     * @param from   作成日の下限（nullの場合は絞り込まない）
+     * @param to     作成日の上限（nullの場合は絞り込まない）
+     * @param limit  取得件数（nullの場合はデフォルト件数）
+     * @param cursor 次ページ取得用カーソル（nullの場合は先頭ページ）
+     * @return 日記ページレスポンスDTO
+     */
+    @Transactional(readOnly = true)
+    public DiaryPageResponseDto<DiarySummaryResponseDto> getDiarySummaryPage(
+            String title, LocalDate from, LocalDate to, Integer limit, String cursor) {
+        int pageLimit = limit != null ? limit : DEFAULT_PAGE_LIMIT;
+        // 次ページの有無を判定するため1件多く取得する
+        Limit fetchLimit = Limit.of(pageLimit + 1);
+        boolean hasTitle = StringUtils.isNotBlank(title);
+
+        List<DiarySummaryResponseDto> diarySummaryResponseDtoList;
+        if (from != null || to != null) {
+            DiaryCursor diaryCursor = getRangeCursor(to, cursor);
+            diarySummaryResponseDtoList = diaryRepository.findSummaryPageBetween(
+                    getRangeStart(from), getRangeEnd(to), hasTitle ? title : null,
+                    diaryCursor.createdAt(), diaryCursor.id(), fetchLimit);
+        } else if (StringUtils.isBlank(cursor)) {
+            diarySummaryResponseDtoList = hasTitle
+                    ? diaryRepository.findSummaryPageByTitleContaining(title, fetchLimit)
+                    : diaryRepository.findSummaryPage(fetchLimit);
+        } else {
+            DiaryCursor diaryCursor = decodeCursor(cursor);
+            diarySummaryResponseDtoList = hasTitle
+                    ? diaryRepository.findSummaryPageByTitleContainingAfter(
+                    title, diaryCursor.createdAt(), diaryCursor.id(), fetchLimit)
+                    : diaryRepository.findSummaryPageAfter(diaryCursor.createdAt(), diaryCursor.id(), fetchLimit);
+        }
+        return toPage(diarySummaryResponseDtoList, pageLimit, DiaryCursor::of);
+    }
+
+    /**
+     * 作成日の範囲の下限を作成日時に変換
+     *
+     * @param from 作成日の下限（nullの場合は下限なし）
+     * @return 作成日時の下限（この日時を含む）
+     */
+    private LocalDateTime getRangeStart(LocalDate from) {
+        return toEntityDateTime(from != null ? from.atStartOfDay() : MIN_CREATED_AT);
+    }
+
+    /**
+     * 作成日の範囲の上限を作成日時に変換
+     *
+     * @param to 作成日の上限（nullの場合は上限なし）
+     * @return 作成日時の上限（この日時を含まない。翌日がdatetimeの範囲外の場合はMAX_CREATED_AT）
+     */
+    private LocalDateTime getRangeEnd(LocalDate to) {
+        if (to == null || !to.isBefore(MAX_CREATED_AT.toLocalDate())) {
+            return toEntityDateTime(MAX_CREATED_AT);
+        }
+        return toEntityDateTime(to.plusDays(1).atStartOfDay());
+    }
+
+    /**
+     * DB上の日時（hibernate.jdbc.time_zoneの日時）を、同じ時刻を表すエンティティの日時に変換
+     * <p>
+     * HibernateはLocalDateTimeをJVMのデフォルトのタイムゾーンの日時とみなし、hibernate.jdbc.time_zoneの日時に変換して保存・比較する。
+     * 作成日の境界をDBでの作成日の集計（cast(created_at as date)）と同じ日付の境界とするため、逆の変換をしてから渡す
+     *
+     * @param dbDateTime DB上の日時
+     * @return エンティティの日時
+     */
+    private LocalDateTime toEntityDateTime(LocalDateTime dbDateTime) {
+        return dbDateTime.atZone(jdbcZoneId).withZoneSameInstant(ZoneId.systemDefault()).toLocalDateTime();
+    }
+
+    /**
+     * 作成日の範囲を指定した場合のカーソルを取得
+     * <p>
+     * 先頭ページは範囲の上限より前の日記をすべて対象とするため、上限の日時とID 0をカーソルとする
+     *
+     * @param to     作成日の上限（nullの場合は上限なし）
+     * @param cursor 次ページ取得用カーソル（nullの場合は先頭ページ）
+     * @return カーソル
+     */
+    private DiaryCursor getRangeCursor(LocalDate to, String cursor) {
+        return StringUtils.isBlank(cursor) ? new DiaryCursor(getRangeEnd(to), 0) : decodeCursor(cursor);
+    }
+
+    /**
+     * 指定した月の日記の件数を作成日ごとに取得
+     *
+     * @param year  年
+     * @param month 月
+     * @return 日記カレンダーレスポンスDTO
+     */
+    @Transactional(readOnly = true)
+    public DiaryCalendarResponseDto getCalendar(int year, int month) {
+        YearMonth yearMonth = YearMonth.of(year, month);
+        List<DiaryCalendarDayResponseDto> diaryCalendarDayResponseDtoList = diaryRepository.countByCreatedDate(
+                getRangeStart(yearMonth.atDay(1)), getRangeEnd(yearMonth.atEndOfMonth()));
+        return new DiaryCalendarResponseDto(year, month, diaryCalendarDayResponseDtoList);
+    }
+
+    /**
+     * 1件多く取得した日記DTOリストからページを作成
+     *
+     * @param dtoList   最大limit+1件の日記DTOリスト
+     * @param pageLimit 取得件数
+     * @param cursorOf  日記DTOからカーソルを作成する関数
+     * @param <T>       日記DTOの型
+     * @return 日記ページレスポンスDTO
+     */
+    private <T> DiaryPageResponseDto<T> toPage(List<T> dtoList, int pageLimit, Function<T, DiaryCursor> cursorOf) {
+        String next = null;
+        if (dtoList.size() > pageLimit) {
+            dtoList = dtoList.subList(0, pageLimit);
+            next = cursorOf.apply(dtoList.getLast()).encode();
+        }
+        return new DiaryPageResponseDto<>(dtoList, next);
+    }
+
+    /**
+     * カーソルトークンを復元
+     *
+     * @param cursor カーソルトークン
+     * @return カーソル
+     */
+    private DiaryCursor decodeCursor(String cursor) {
+        try {
+            return DiaryCursor.decode(cursor);
+        } catch (IllegalArgumentException e) {
+            throw new DiaryInvalidCursorException(
+                    messageSource.getMessage(
+                            "errors.api.diary.search.cursor.invalid",
+                            null,
+                            Locale.getDefault()
+                    ),
+                    e);
+        }
+    }
+
     /**
      * 日記を登録
      *
@@ -75,22 +442,65 @@ public class DiaryService {
         DiaryEntity diaryEntity = new DiaryEntity();
         diaryEntity.setTitle(diaryRegistrationForm.title());
         diaryEntity.setContent(diaryRegistrationForm.content());
+        // 画像パスを設定してから保存し、INSERTの後にUPDATEしない
+        if (!multipartFile.isEmpty()) {
+            diaryEntity.setImagePath(storeDiaryImage(multipartFile));
+        }
         diaryRepository.save(diaryEntity);
 
-        if (!multipartFile.isEmpty()) {
-            saveDiaryImage(diaryEntity, multipartFile);
+        if (diaryEntity.getImagePath() != null) {
+            diaryImageVariantService.generateAfterCommit(diaryEntity.getImagePath());
         }
+        indexAfterCommit(diaryEntity);
+        publishAfterCommit(DiaryChangeFeed.ChangeType.CREATED, diaryEntity);
         return DiaryResponseDto.of(diaryEntity);
     }
 
+    /**
+     * 日記を一括登録
+     * <p>
+     * JDBCのバッチで登録するため、登録件数をバッチサイズで割った回数のINSERTで済む。
+     * 登録日時は作成日時のdatetime列の精度（秒）に切り捨てる（MySQLは秒未満を四捨五入して保存するため、返した日時と保存した日時がずれないよう）
+     *
+     * @param diaryBatchRegistrationForm 日記一括登録フォーム
+     * @return 日記レスポンスDTOリスト
+     */
+    public List<DiaryResponseDto> registerDiaries(DiaryBatchRegistrationForm diaryBatchRegistrationForm) {
+        LocalDateTime now = LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+        List<DiaryEntity> diaryEntityList = diaryBatchRegistrationForm.diaries()
+                .stream()
+                .map(diaryRegistrationForm -> {
+                    DiaryEntity diaryEntity = new DiaryEntity();
+                    diaryEntity.setTitle(diaryRegistrationForm.title());
+                    diaryEntity.setContent(diaryRegistrationForm.content());
+                    diaryEntity.setCreatedAt(now);
+                    diaryEntity.setUpdatedAt(now);
+                    return diaryEntity;
+                })
+                .toList();
+        diaryBatchRepository.insertAll(diaryEntityList);
+
+        diaryEntityList.forEach(diaryEntity -> {
+            indexAfterCommit(diaryEntity);
+            publishAfterCommit(DiaryChangeFeed.ChangeType.CREATED, diaryEntity);
+        });
+        return diaryEntityList.stream()
+                .map(DiaryResponseDto::of)
+                .toList();
+    }
+
     /**
      * 日記を1件取得
+     * <p>
+     * キャッシュにない場合のみDBから読み込む。レプリカに振り分けるため読み取り専用トランザクションを開始するが、
+     * 接続は最初のSQLの実行時に取得するため、キャッシュヒット時はDBに接続しない
      *
      * @param id ID
      * @return 日記レスポンスDTO
      */
+    @Transactional(readOnly = true)
     public DiaryResponseDto getDiaryById(long id) {
-        return DiaryResponseDto.of(getDiaryEntityById(id));
+        return diaryCache.get(id, key -> DiaryResponseDto.of(getDiaryEntityById(key)));
     }
 
     /**
@@ -110,7 +520,70 @@ public class DiaryService {
         if (!multipartFile.isEmpty()) {
             saveDiaryImage(diaryEntity, multipartFile);
         }
-        return DiaryResponseDto.of(diaryRepository.save(diaryEntity));
+        DiaryEntity savedDiaryEntity = diaryRepository.save(diaryEntity);
+        // トランザクション外で呼び出された場合は即時実行されるため、保存後に登録する
+        indexAfterCommit(savedDiaryEntity);
+        evictAfterCommit(id);
+        publishAfterCommit(DiaryChangeFeed.ChangeType.UPDATED, savedDiaryEntity);
+        return DiaryResponseDto.of(savedDiaryEntity);
+    }
+
+    /**
+     * コミット後に日記をキャッシュから削除
+     * <p>
+     * キャッシュへの読み込み中に削除が要求された場合は読み込み完了を待って削除されるため、
+     * コミット後に古い日記が読まれることはない。
+     * レプリカから読み取る場合は更新の反映前に古い日記をキャッシュすることがあるため、max-lag経過後にもう一度削除する
+     *
+     * @param id ID
+     */
+    private void evictAfterCommit(long id) {
+        afterCommit(() -> {
+            diaryCache.invalidate(id);
+            diaryReplicaDataSource.ifAvailable(dataSource -> dataSource.runAfterMaxLag(() -> diaryCache.invalidate(id)));
+        });
+    }
+
+    /**
+     * コミット後に日記を全文検索インデックスへ反映
+     *
+     * @param diaryEntity 日記エンティティ
+     */
+    private void indexAfterCommit(DiaryEntity diaryEntity) {
+        long id = diaryEntity.getId();
+        String title = diaryEntity.getTitle();
+        String content = diaryEntity.getContent();
+        afterCommit(() -> diarySearchIndex.put(id, title, content));
+    }
+
+    /**
+     * コミット後に日記の変更を日記変更フィードへ発行
+     * <p>
+     * 登録日時・更新日時はコミット時に設定されるため、DTOへの変換もコミット後に行う
+     *
+     * @param changeType  変更の種類
+     * @param diaryEntity 日記エンティティ
+     */
+    private void publishAfterCommit(DiaryChangeFeed.ChangeType changeType, DiaryEntity diaryEntity) {
+        afterCommit(() -> diaryChangeFeed.publish(changeType, diaryEntity.getId(), DiaryResponseDto.of(diaryEntity)));
+    }
+
+    /**
+     * トランザクションのコミット後に処理を実行（トランザクション外の場合は即時実行）
+     *
+     * @param action 処理
+     */
+    private void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
     }
 
     /**
@@ -149,38 +622,43 @@ public class DiaryService {
      * @param id ID
      */
     public void deleteDiary(long id) {
-        Path diaryImageFilePath = getDiaryImageIdDirPath(id);
-        diaryRepository.deleteById(id);
-        deleteImageDir(diaryImageFilePath);
+        diaryRepository.findById(id).ifPresent(diaryEntity -> {
+            diaryRepository.delete(diaryEntity);
+            releaseDiaryImage(diaryEntity);
+            afterCommit(() -> diaryChangeFeed.publish(DiaryChangeFeed.ChangeType.DELETED, id, null));
+        });
+        afterCommit(() -> diaryFileDeletionService.enqueueLegacyDirIfExists(id));
+        afterCommit(() -> diarySearchIndex.remove(id));
+        evictAfterCommit(id);
     }
 
     /**
-     * ファイルを上位のディレクトリまで再帰的に削除
+     * 日記画像を保存
+     * <p>
+     * 同じ内容の画像は複数の日記で1つのファイルを共有する
      *
-     * @param filePath ファイルパス
+     * @param diaryEntity   日記エンティティ
+     * @param multipartFile 画像ファイル
      */
-    private void deleteImageDir(Path filePath) {
-        try {
-            FileSystemUtils.deleteRecursively(filePath);
-        } catch (IOException e) {
-            throw new DiaryIOException(
-                    messageSource.getMessage(
-                            "errors.api.diary.image.file.is.blank",
-                            null,
-                            Locale.getDefault()
-                    ),
-                    e);
-        }
+    private void saveDiaryImage(DiaryEntity diaryEntity, MultipartFile multipartFile) {
+        attachDiaryImage(diaryEntity, storeDiaryImage(multipartFile));
     }
 
     /**
-     * ディレクトリを作成
+     * 分割アップロードが完了したファイルを日記画像として保存
+     * <p>
+     * ファイルはコピーせずにブロブの位置へ移動し、saveDiaryImageと同様に元の画像を解放して差し替える
      *
-     * @param path ファイルパス
+     * @param id             ID
+     * @param uploadFilePath アップロードされたファイルのパス
+     * @param sha256         ファイルの内容のSHA-256
+     * @param extension      拡張子
+     * @return 日記レスポンスDTO
      */
-    public void createDirectories(Path path) {
+    public DiaryResponseDto saveUploadedDiaryImage(long id, Path uploadFilePath, byte[] sha256, String extension) {
+        DiaryEntity diaryEntity = getDiaryEntityById(id);
         try {
-            Files.createDirectories(path);
+            diaryStorageMetrics.recordUploadedBytes(Files.size(uploadFilePath));
         } catch (IOException e) {
             throw new DiaryIOException(
                     messageSource.getMessage(
@@ -190,59 +668,36 @@ public class DiaryService {
                     ),
                     e);
         }
+        attachDiaryImage(diaryEntity, diaryImageBlobService.store(uploadFilePath, sha256, extension));
+        publishAfterCommit(DiaryChangeFeed.ChangeType.UPDATED, diaryEntity);
+        return DiaryResponseDto.of(diaryEntity);
     }
 
     /**
-     * 画像ディレクトリのパスを取得
-     *
-     * @return ディレクトリパス
-     */
-    private Path getDiaryImageDirPath() {
-        return Path.of(IMAGE_DIR_PATH);
-    }
-
-    /**
-     * 日記IDごとの画像ディレクトリのパスを取得
-     *
-     * @param id ID
-     * @return ディレクトリパス
-     */
-    private Path getDiaryImageIdDirPath(long id) {
-        return Path.of(IMAGE_DIR_PATH, String.valueOf(id));
-    }
-
-    /**
-     * 日記画像のファイルパスを取得
-     *
-     * @param id       ID
-     * @param fileName 画像ファイル名
-     * @return 画像ファイルパス
-     */
-    private Path getDiaryImageFilePath(long id, String fileName) {
-        return Path.of(IMAGE_DIR_PATH, String.valueOf(id), fileName);
-    }
-
-    /**
-     * 登録する画像ファイル名を取得
+     * 保存済みの画像を日記に設定し、元の画像を解放
      *
-     * @param multipartFile 画像ファイル
-     * @return 画像ファイル名
+     * @param diaryEntity    日記エンティティ
+     * @param diaryImagePath 画像パス
      */
-    private String createDiaryImageFileName(MultipartFile multipartFile) {
-        String originalDiaryImageFileName = multipartFile.getOriginalFilename();
-        String extension = FilenameUtils.getExtension(originalDiaryImageFileName);
-        return UUID.randomUUID() + "." + extension;
+    private void attachDiaryImage(DiaryEntity diaryEntity, String diaryImagePath) {
+        releaseDiaryImage(diaryEntity);
+        diaryEntity.setImagePath(diaryImagePath);
+        diaryRepository.save(diaryEntity);
+        evictAfterCommit(diaryEntity.getId());
+        diaryImageVariantService.generateAfterCommit(diaryImagePath);
     }
 
     /**
-     * 新しい画像を保存
+     * 日記画像を保存
      *
-     * @param path          画像パス
-     * @param multipartFile 画像ファイル
+     * @param multipartFile 日記画像
+     * @return 画像パス
      */
-    private void restoreDiaryImage(Path path, MultipartFile multipartFile) {
+    private String storeDiaryImage(MultipartFile multipartFile) {
+        String extension = getDiaryImageExtension(multipartFile.getOriginalFilename());
+        diaryStorageMetrics.recordUploadedBytes(multipartFile.getSize());
         try {
-            multipartFile.transferTo(path);
+            return diaryImageBlobService.store(multipartFile.getInputStream(), extension);
         } catch (IOException e) {
             throw new DiaryIOException(
                     messageSource.getMessage(
@@ -255,69 +710,84 @@ public class DiaryService {
     }
 
     /**
-     * 日記画像を保存
+     * 日記が参照している画像を解放
+     * <p>
+     * ブロブは参照件数を減らし、コミット後に参照されなくなっていれば削除する。旧形式の画像はコミット後に削除する。
+     * いずれもコミット後に画像キャッシュから削除する
      *
-     * @param diaryEntity   日記エンティティ
-     * @param multipartFile 画像ファイル
+     * @param diaryEntity 日記エンティティ
      */
-    private void saveDiaryImage(DiaryEntity diaryEntity, MultipartFile multipartFile) {
-        if (!isDiaryImageExtensionSupported(multipartFile)) {
-            throw new DiaryImageNotSupportedException(
-                    messageSource.getMessage(
-                            "errors.api.diary.image.extension.not.supported",
-                            new Object[]{EXTENSION_LIST},
-                            Locale.getDefault()
-                    )
-            );
+    private void releaseDiaryImage(DiaryEntity diaryEntity) {
+        String imagePath = diaryEntity.getImagePath();
+        if (StringUtils.isBlank(imagePath)) {
+            return;
         }
-        createDirectories(getDiaryImageDirPath());
-        long diaryId = diaryEntity.getId();
-        createDirectories(getDiaryImageIdDirPath(diaryId));
-        String diaryImageFileName = createDiaryImageFileName(multipartFile);
-        Path diaryImageFilePath = getDiaryImageFilePath(diaryId, diaryImageFileName);
-        restoreDiaryImage(diaryImageFilePath, multipartFile);
-
-        if (StringUtils.isNotBlank(diaryEntity.getImagePath())) {
-            Path oldDiaryImageFilePath = getDiaryImageFilePath(diaryId, diaryEntity.getImagePath());
-            try {
-                Files.deleteIfExists(oldDiaryImageFilePath);
-            } catch (IOException e) {
-                throw new DiaryIOException(
-                        messageSource.getMessage(
-                                "errors.api.diary.image.file.is.blank",
-                                null,
-                                Locale.getDefault()
-                        ),
-                        e);
-            }
+        afterCommit(() -> diaryImageCache.invalidate(imagePath));
+        if (DiaryImageBlobService.isBlobName(imagePath)) {
+            diaryImageBlobService.release(imagePath);
+            diaryFileDeletionService.enqueueBlob(imagePath);
+            return;
         }
-        diaryEntity.setImagePath(diaryImageFileName);
-        diaryRepository.save(diaryEntity);
+        diaryFileDeletionService.enqueueLegacy(diaryEntity.getId(), imagePath);
     }
 
     /**
      * 画像の拡張子がサポートされているか
      *
-     * @param multipartFile 画像ファイル
+     * @param fileName ファイル名
      * @return true=サポートされている, false=サポートされていない
      */
-    private boolean isDiaryImageExtensionSupported(MultipartFile multipartFile) {
-        String originalImageFileName = multipartFile.getOriginalFilename();
-        if (StringUtils.isBlank(originalImageFileName)) {
+    private boolean isDiaryImageExtensionSupported(String fileName) {
+        if (StringUtils.isBlank(fileName)) {
             return false;
         }
-        String extension = FilenameUtils.getExtension(originalImageFileName).toLowerCase();
+        String extension = FilenameUtils.getExtension(fileName).toLowerCase();
         return EXTENSION_LIST.contains(extension);
     }
 
+    /**
+     * 画像ファイル名の拡張子を取得
+     *
+     * @param fileName ファイル名
+     * @return 拡張子
+     * @throws DiaryImageNotSupportedException 拡張子がサポートされていない場合
+     */
+    public String getDiaryImageExtension(String fileName) {
+        if (!isDiaryImageExtensionSupported(fileName)) {
+            throw new DiaryImageNotSupportedException(
+                    messageSource.getMessage(
+                            "errors.api.diary.image.extension.not.supported",
+                            new Object[]{EXTENSION_LIST},
+                            Locale.getDefault()
+                    )
+            );
+        }
+        return FilenameUtils.getExtension(fileName);
+    }
+
     /**
      * 日記画像を取得
      *
      * @param id ID
-     * @return 日記画像パス
+     * @return 日記画像
      */
-    public Path getImagePathById(long id) {
-        String imageFileName = getDiaryEntityById(id).getImagePath();
+    @Transactional(readOnly = true)
+    public DiaryImage getImageById(long id) {
+        return getImageById(id, null);
+    }
+
+    /**
+     * 要求されたサイズに最も近い日記画像を取得
+     * <p>
+     * 縮小画像が作成されていない場合は元画像を返す
+     *
+     * @param id   ID
+     * @param size 要求する長辺のピクセル数（nullの場合は元画像）
+     * @return 日記画像
+     */
+    @Transactional(readOnly = true)
+    public DiaryImage getImageById(long id, Integer size) {
+        String imageFileName = getDiaryById(id).imagePath();
         if (StringUtils.isBlank(imageFileName)) {
             throw new DiaryNotFoundException(
                     messageSource.getMessage(
@@ -327,27 +797,39 @@ public class DiaryService {
                     )
             );
         }
-        return getDiaryImageFilePath(id, imageFileName);
+        return diaryImageVariantService.resolve(id, imageFileName, size);
     }
 
     /**
-     * 日記画像をbyte配列で取得
+     * 日記画像をリソースとして取得
+     * <p>
+     * 画像全体をヒープに読み込まず、画像キャッシュにあればダイレクトバッファから、なければレスポンス書き込み時にストアから逐次転送する
      *
-     * @param imageFilePath 画像ファイルパス
-     * @return 日記画像のbyte配列
+     * @param diaryImage 日記画像
+     * @param id         ID
+     * @return 日記画像リソース
      */
-    public byte[] readImageAsBytes(Path imageFilePath, long id) {
-        try {
-            return Files.readAllBytes(imageFilePath);
-        } catch (IOException e) {
+    public Resource getImageResource(DiaryImage diaryImage, long id) {
+        Resource resource = diaryImageCache.get(diaryImage);
+        if (!resource.isReadable()) {
             throw new DiaryNotFoundException(
                     messageSource.getMessage(
                             "errors.api.diary.search.image.not.found",
                             new Object[]{id},
                             Locale.getDefault()
-                    ),
-                    e);
+                    )
+            );
+        }
+        if (diaryImage.metadata() != null) {
+            diaryStorageMetrics.recordServedBytes(diaryImage.metadata().contentLength());
+            return resource;
+        }
+        try {
+            diaryStorageMetrics.recordServedBytes(resource.contentLength());
+        } catch (IOException ignored) {
+            // 転送量の記録に失敗しても画像は返す
         }
+        return resource;
     }
 
     /**
@@ -0,0 +1,176 @@
+package com.genki.rest_api.diary.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * ハッシュで分割したディレクトリに保存する日記画像ストア
+ * <p>
+ * 画像パスの先頭2文字・次の2文字を2階層のディレクトリとし、元画像は{@code images/blobs/ab/cd/abcd….png}、
+ * 縮小画像は{@code images/variants/{サイズ}/ab/cd/abcd….png}に保存する。
+ * 画像パスはSHA-256のため、1つのディレクトリのエントリ数は画像の件数の1/65536程度に収まる
+ */
+@Component
+@ConditionalOnProperty(name = "diary.image.store", havingValue = "sharded", matchIfMissing = true)
+public class DiaryShardedFileImageStore implements DiaryImageStore {
+    private static final String BLOB_DIR_NAME = "blobs";
+    private static final String VARIANT_DIR_NAME = "variants";
+    private static final int SHARD_DEPTH = 2;
+    private static final int SHARD_NAME_LENGTH = 2;
+
+    private final Path imageDirPath;
+    private final DiaryStorageMetrics diaryStorageMetrics;
+
+    public DiaryShardedFileImageStore(
+            @Value("${diary.image.dir}") Path imageDirPath,
+            DiaryStorageMetrics diaryStorageMetrics) {
+        this.imageDirPath = imageDirPath;
+        this.diaryStorageMetrics = diaryStorageMetrics;
+    }
+
+    @Override
+    public boolean exists(String imagePath, int size) {
+        return Files.exists(resolve(imagePath, size));
+    }
+
+    @Override
+    public void put(String imagePath, int size, Path filePath) throws IOException {
+        Path targetFilePath = resolve(imagePath, size);
+        diaryStorageMetrics.record("create_directories", () -> Files.createDirectories(targetFilePath.getParent()));
+        Files.move(filePath, targetFilePath, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * 元画像へのハードリンクとして作成し、内容を複製しない
+     */
+    @Override
+    public void putOriginalAs(String imagePath, int size) throws IOException {
+        Path targetFilePath = resolve(imagePath, size);
+        diaryStorageMetrics.record("create_directories", () -> Files.createDirectories(targetFilePath.getParent()));
+        Path tmpFilePath = targetFilePath.resolveSibling(UUID.randomUUID() + ".tmp");
+        try {
+            Files.createLink(tmpFilePath, resolve(imagePath, ORIGINAL));
+            Files.move(tmpFilePath, targetFilePath, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpFilePath);
+        }
+    }
+
+    @Override
+    public Resource get(String imagePath, int size) {
+        return new FileSystemResource(resolve(imagePath, size));
+    }
+
+    @Override
+    public boolean delete(String imagePath, int size) throws IOException {
+        return Files.deleteIfExists(resolve(imagePath, size));
+    }
+
+    @Override
+    public void deleteAll(String imagePath) throws IOException {
+        Files.deleteIfExists(resolve(imagePath, ORIGINAL));
+        for (int size : listVariantSizes()) {
+            Files.deleteIfExists(resolve(imagePath, size));
+        }
+    }
+
+    @Override
+    public Stream<StoredImage> list() throws IOException {
+        Stream<StoredImage> storedImages = list(imageDirPath.resolve(BLOB_DIR_NAME), ORIGINAL);
+        for (int size : listVariantSizes()) {
+            storedImages = Stream.concat(storedImages, list(getVariantDirPath(size), size));
+        }
+        return storedImages;
+    }
+
+    /**
+     * 分割したディレクトリ内の画像を列挙
+     *
+     * @param dirPath ディレクトリパス
+     * @param size    縮小後の長辺のピクセル数（元画像は{@link #ORIGINAL}）
+     * @return 保存されている画像のストリーム
+     * @throws IOException 列挙できない場合
+     */
+    private Stream<StoredImage> list(Path dirPath, int size) throws IOException {
+        if (!Files.isDirectory(dirPath)) {
+            return Stream.empty();
+        }
+        // 分割前の形式で直下に保存された画像・作成中の一時ファイルは含めない
+        return Files.find(dirPath, SHARD_DEPTH + 1, (filePath, attributes) ->
+                        attributes.isRegularFile()
+                                && filePath.getNameCount() - dirPath.getNameCount() == SHARD_DEPTH + 1
+                                && DiaryImageBlobService.isBlobName(filePath.getFileName().toString()))
+                .map(filePath -> {
+                    try {
+                        return new StoredImage(
+                                filePath.getFileName().toString(), size, Files.getLastModifiedTime(filePath).toInstant());
+                    } catch (IOException e) {
+                        // 走査中に削除された場合
+                        return null;
+                    }
+                })
+                .filter(Objects::nonNull);
+    }
+
+    /**
+     * 縮小画像のサイズを列挙
+     *
+     * @return 縮小画像のディレクトリがあるサイズのリスト
+     * @throws IOException 列挙できない場合
+     */
+    private List<Integer> listVariantSizes() throws IOException {
+        Path variantDirPath = imageDirPath.resolve(VARIANT_DIR_NAME);
+        if (!Files.isDirectory(variantDirPath)) {
+            return List.of();
+        }
+        try (Stream<Path> sizeDirPaths = Files.list(variantDirPath)) {
+            return sizeDirPaths
+                    .map(sizeDirPath -> sizeDirPath.getFileName().toString())
+                    .filter(name -> name.matches("\\d+"))
+                    .map(Integer::valueOf)
+                    .toList();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * 画像のファイルパスを取得
+     *
+     * @param imagePath 画像パス
+     * @param size      縮小後の長辺のピクセル数（元画像は{@link #ORIGINAL}）
+     * @return ファイルパス
+     */
+    Path resolve(String imagePath, int size) {
+        Path filePath = size == ORIGINAL ? imageDirPath.resolve(BLOB_DIR_NAME) : getVariantDirPath(size);
+        for (int depth = 0; depth < SHARD_DEPTH; depth++) {
+            filePath = filePath.resolve(imagePath.substring(depth * SHARD_NAME_LENGTH, (depth + 1) * SHARD_NAME_LENGTH));
+        }
+        return filePath.resolve(imagePath);
+    }
+
+    /**
+     * 縮小画像のディレクトリのパスを取得
+     *
+     * @param size 縮小後の長辺のピクセル数
+     * @return ディレクトリパス
+     */
+    private Path getVariantDirPath(int size) {
+        return imageDirPath.resolve(VARIANT_DIR_NAME).resolve(String.valueOf(size));
+    }
+}
@@ -0,0 +1,86 @@
+package com.genki.rest_api.diary.service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+
+/**
+ * 日記画像のファイル操作のメトリクス
+ * <p>
+ * ファイル操作ごとの所要時間を{@code diary.storage}（operation・outcomeタグ付き）、
+ * アップロード・配信した画像のサイズを{@code diary.image.uploaded.bytes}・{@code diary.image.served.bytes}として記録する
+ */
+@Component
+public class DiaryStorageMetrics {
+    private final MeterRegistry meterRegistry;
+    private final DistributionSummary uploadedBytes;
+    private final DistributionSummary servedBytes;
+
+    /**
+     * ファイル操作
+     *
+     * @param <T> 戻り値の型
+     */
+    @FunctionalInterface
+    public interface StorageOperation<T> {
+        T run() throws IOException;
+    }
+
+    public DiaryStorageMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        this.uploadedBytes = DistributionSummary.builder("diary.image.uploaded.bytes")
+                .description("アップロードされた画像のサイズ")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.servedBytes = DistributionSummary.builder("diary.image.served.bytes")
+                .description("配信した画像のサイズ")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    /**
+     * ファイル操作を実行して所要時間を記録
+     *
+     * @param operation 操作名（create_directories, transfer, preallocate, upload_chunk, delete_recursively, load_segments）
+     * @param action    ファイル操作
+     * @param <T>       戻り値の型
+     * @return ファイル操作の戻り値
+     * @throws IOException ファイル操作に失敗した場合（outcome=errorとして記録する）
+     */
+    public <T> T record(String operation, StorageOperation<T> action) throws IOException {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = "error";
+        try {
+            T result = action.run();
+            outcome = "success";
+            return result;
+        } finally {
+            sample.stop(Timer.builder("diary.storage")
+                    .description("画像ファイル操作の所要時間")
+                    .tag("operation", operation)
+                    .tag("outcome", outcome)
+                    .register(meterRegistry));
+        }
+    }
+
+    /**
+     * アップロードされた画像のサイズを記録
+     *
+     * @param bytes バイト数
+     */
+    public void recordUploadedBytes(long bytes) {
+        uploadedBytes.record(bytes);
+    }
+
+    /**
+     * 配信した画像のサイズを記録
+     *
+     * @param bytes バイト数
+     */
+    public void recordServedBytes(long bytes) {
+        servedBytes.record(bytes);
+    }
+}
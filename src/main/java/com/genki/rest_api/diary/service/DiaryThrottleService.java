@@ -0,0 +1,222 @@
+package com.genki.rest_api.diary.service;
+
+import com.genki.rest_api.diary.exception.DiaryThrottledException;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.MessageSource;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * リクエストの流量制限サービス
+ * <p>
+ * エンドポイントの種類・クライアントごとのトークンバケットでリクエスト数とバイト数を制限し、
+ * 超えた場合はトークンが足りるまでの時間をRetry-Afterとして429 Too Many Requestsを返す。
+ * 種類ごとの同時実行数がmax-concurrentに達している場合は、クライアントによらず過負荷として受け付けない。
+ * 受け付けなかったリクエストは{@code diary.throttle.rejected}（endpoint・reasonタグ付き）として記録する
+ */
+@Service
+public class DiaryThrottleService {
+    private final MessageSource messageSource;
+    private final MeterRegistry meterRegistry;
+    private final Map<EndpointClass, Policy> policyMap = new EnumMap<>(EndpointClass.class);
+
+    /**
+     * クライアントごとのトークンバケット（一定時間リクエストのないクライアントは削除する）
+     */
+    private final Cache<BucketKey, DiaryTokenBucket> bucketCache;
+
+    /**
+     * エンドポイントの種類
+     */
+    public enum EndpointClass {
+        /**
+         * 画像のアップロードを伴う登録・更新、分割アップロードの開始・チャンクの送信
+         */
+        UPLOAD
+    }
+
+    /**
+     * エンドポイントの種類ごとの制限
+     *
+     * @param requestBurst      連続して受け付けるリクエスト数
+     * @param requestsPerSecond 1秒あたりのリクエスト数
+     * @param byteBurst         連続して受け付けるバイト数
+     * @param bytesPerSecond    1秒あたりのバイト数
+     * @param concurrency       同時実行数のセマフォ
+     * @param rejectedByRate    流量制限で受け付けなかった件数
+     * @param rejectedByLoad    過負荷で受け付けなかった件数
+     */
+    private record Policy(
+            double requestBurst,
+            double requestsPerSecond,
+            double byteBurst,
+            double bytesPerSecond,
+            Semaphore concurrency,
+            Counter rejectedByRate,
+            Counter rejectedByLoad) {
+    }
+
+    /**
+     * トークンバケットのキー
+     *
+     * @param endpointClass エンドポイントの種類
+     * @param client        クライアント
+     */
+    private record BucketKey(EndpointClass endpointClass, String client) {
+    }
+
+    public DiaryThrottleService(
+            MessageSource messageSource,
+            MeterRegistry meterRegistry,
+            @Value("${diary.throttle.upload.request-burst}") int uploadRequestBurst,
+            @Value("${diary.throttle.upload.requests-per-second}") double uploadRequestsPerSecond,
+            @Value("${diary.throttle.upload.byte-burst}") DataSize uploadByteBurst,
+            @Value("${diary.throttle.upload.bytes-per-second}") DataSize uploadBytesPerSecond,
+            @Value("${diary.throttle.upload.max-concurrent}") int uploadMaxConcurrent,
+            @Value("${diary.throttle.max-clients}") long maxClients,
+            @Value("${diary.throttle.client-idle-timeout}") Duration clientIdleTimeout) {
+        this.messageSource = messageSource;
+        this.meterRegistry = meterRegistry;
+        this.bucketCache = Caffeine.newBuilder()
+                .maximumSize(maxClients)
+                .expireAfterAccess(clientIdleTimeout)
+                .build();
+        policyMap.put(EndpointClass.UPLOAD, createPolicy(
+                EndpointClass.UPLOAD, uploadRequestBurst, uploadRequestsPerSecond,
+                uploadByteBurst.toBytes(), uploadBytesPerSecond.toBytes(), uploadMaxConcurrent));
+    }
+
+    /**
+     * 制限を作成し、メトリクスを登録
+     *
+     * @param endpointClass     エンドポイントの種類
+     * @param requestBurst      連続して受け付けるリクエスト数
+     * @param requestsPerSecond 1秒あたりのリクエスト数
+     * @param byteBurst         連続して受け付けるバイト数
+     * @param bytesPerSecond    1秒あたりのバイト数
+     * @param maxConcurrent     同時実行数の上限
+     * @return 制限
+     */
+    private Policy createPolicy(
+            EndpointClass endpointClass,
+            double requestBurst,
+            double requestsPerSecond,
+            double byteBurst,
+            double bytesPerSecond,
+            int maxConcurrent) {
+        String endpoint = endpointClass.name().toLowerCase(Locale.ROOT);
+        Semaphore concurrency = new Semaphore(maxConcurrent);
+        Gauge.builder("diary.throttle.in.flight", concurrency, semaphore -> maxConcurrent - semaphore.availablePermits())
+                .description("実行中のリクエスト数")
+                .tag("endpoint", endpoint)
+                .register(meterRegistry);
+        return new Policy(
+                requestBurst,
+                requestsPerSecond,
+                byteBurst,
+                bytesPerSecond,
+                concurrency,
+                rejectedCounter(endpoint, "rate_limited"),
+                rejectedCounter(endpoint, "overloaded"));
+    }
+
+    /**
+     * 受け付けなかったリクエスト数のカウンターを登録
+     *
+     * @param endpoint エンドポイントの種類
+     * @param reason   理由（rate_limited, overloaded）
+     * @return カウンター
+     */
+    private Counter rejectedCounter(String endpoint, String reason) {
+        return Counter.builder("diary.throttle.rejected")
+                .description("受け付けなかったリクエスト数")
+                .tag("endpoint", endpoint)
+                .tag("reason", reason)
+                .register(meterRegistry);
+    }
+
+    /**
+     * リクエストを受け付ける
+     * <p>
+     * 受け付けた場合は処理の完了後に必ずreleaseを呼ぶこと
+     *
+     * @param endpointClass エンドポイントの種類
+     * @param client        クライアント（IPアドレス）
+     * @param bytes         リクエストのバイト数（不明な場合は0）
+     * @throws DiaryThrottledException 流量制限を超えた、または過負荷の場合
+     */
+    public void acquire(EndpointClass endpointClass, String client, long bytes) {
+        acquire(endpointClass, client, true, bytes);
+    }
+
+    /**
+     * リクエストを受け付ける
+     * <p>
+     * 受け付けた場合は処理の完了後に必ずreleaseを呼ぶこと。
+     * 分割アップロードのチャンクのように、1件の操作を複数のリクエストに分けて送信する場合はリクエスト数を消費しない
+     *
+     * @param endpointClass エンドポイントの種類
+     * @param client        クライアント（IPアドレス）
+     * @param countsRequest リクエスト数を消費するか（falseの場合はバイト数のみ消費する）
+     * @param bytes         リクエストのバイト数（不明な場合は0）
+     * @throws DiaryThrottledException 流量制限を超えた、または過負荷の場合
+     */
+    public void acquire(EndpointClass endpointClass, String client, boolean countsRequest, long bytes) {
+        Policy policy = policyMap.get(endpointClass);
+        // 同時実行数の上限に達している場合は待たせずに破棄する。クライアントのトークンは消費しない
+        if (!policy.concurrency().tryAcquire()) {
+            policy.rejectedByLoad().increment();
+            throw createException("errors.api.diary.overloaded", Duration.ofSeconds(1));
+        }
+        long now = System.nanoTime();
+        DiaryTokenBucket diaryTokenBucket = bucketCache.get(new BucketKey(endpointClass, client), key ->
+                new DiaryTokenBucket(policy.requestBurst(), policy.requestsPerSecond(),
+                        policy.byteBurst(), policy.bytesPerSecond(), now));
+        long waitNanos = diaryTokenBucket.tryAcquire(countsRequest ? 1 : 0, Math.max(0, bytes), now);
+        if (waitNanos > 0) {
+            policy.concurrency().release();
+            policy.rejectedByRate().increment();
+            throw createException("errors.api.diary.throttled", Duration.ofNanos(waitNanos));
+        }
+    }
+
+    /**
+     * 受け付けたリクエストの完了を通知
+     *
+     * @param endpointClass エンドポイントの種類
+     */
+    public void release(EndpointClass endpointClass) {
+        policyMap.get(endpointClass).concurrency().release();
+    }
+
+    /**
+     * 流量制限の例外を作成
+     *
+     * @param code       メッセージコード
+     * @param retryAfter 再試行までの待ち時間
+     * @return 例外
+     */
+    private DiaryThrottledException createException(String code, Duration retryAfter) {
+        // Retry-Afterは秒単位のため切り上げる
+        long retryAfterSeconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(retryAfter.toNanos() + 999_999_999));
+        return new DiaryThrottledException(
+                messageSource.getMessage(
+                        code,
+                        new Object[]{retryAfterSeconds},
+                        Locale.getDefault()
+                ),
+                Duration.ofSeconds(retryAfterSeconds));
+    }
+}
@@ -0,0 +1,61 @@
+package com.genki.rest_api.diary.service;
+
+/**
+ * リクエスト数とバイト数のトークンバケット
+ * <p>
+ * 1回のリクエストでリクエストのトークンを1つ（バイト数のみ制限する場合は0）、バイトのトークンをリクエストのバイト数だけ消費し、
+ * 両方が足りる場合のみ受け付ける。トークンは経過時間に応じて容量まで補充する
+ */
+class DiaryTokenBucket {
+    private final double requestCapacity;
+    private final double requestsPerNano;
+    private final double byteCapacity;
+    private final double bytesPerNano;
+
+    private double requestTokens;
+    private double byteTokens;
+    private long refilledAt;
+
+    /**
+     * @param requestCapacity   リクエスト数の容量（連続して受け付けられるリクエスト数）
+     * @param requestsPerSecond 1秒あたりに補充するリクエスト数
+     * @param byteCapacity      バイト数の容量
+     * @param bytesPerSecond    1秒あたりに補充するバイト数
+     * @param now               作成時刻（System.nanoTime()）
+     */
+    DiaryTokenBucket(double requestCapacity, double requestsPerSecond, double byteCapacity, double bytesPerSecond, long now) {
+        this.requestCapacity = requestCapacity;
+        this.requestsPerNano = requestsPerSecond / 1e9;
+        this.byteCapacity = byteCapacity;
+        this.bytesPerNano = bytesPerSecond / 1e9;
+        this.requestTokens = requestCapacity;
+        this.byteTokens = byteCapacity;
+        this.refilledAt = now;
+    }
+
+    /**
+     * トークンを消費
+     * <p>
+     * 容量を超えるバイト数のリクエストは、バケットが満杯の場合に容量分のトークンを消費して受け付ける
+     *
+     * @param requests 消費するリクエスト数（0または1）
+     * @param bytes    リクエストのバイト数
+     * @param now      現在時刻（System.nanoTime()）
+     * @return 0=受け付けた, 正の値=トークンが足りるまでの待ち時間（ナノ秒）
+     */
+    synchronized long tryAcquire(int requests, long bytes, long now) {
+        long elapsed = Math.max(0, now - refilledAt);
+        requestTokens = Math.min(requestCapacity, requestTokens + elapsed * requestsPerNano);
+        byteTokens = Math.min(byteCapacity, byteTokens + elapsed * bytesPerNano);
+        refilledAt = now;
+
+        double byteCost = Math.min(bytes, byteCapacity);
+        if (requestTokens >= requests && byteTokens >= byteCost) {
+            requestTokens -= requests;
+            byteTokens -= byteCost;
+            return 0;
+        }
+        double waitNanos = Math.max((requests - requestTokens) / requestsPerNano, (byteCost - byteTokens) / bytesPerNano);
+        return Math.max(1, (long) Math.ceil(waitNanos));
+    }
+}
@@ -5,9 +5,34 @@ create table if not exists diary
   content varchar(1000) not null comment '本文',
   image_path text comment '画像パス',
   created_at datetime not null default current_timestamp comment '作成日時',
-  updated_at datetime not null default current_timestamp on update current_timestamp comment '更新日時',
+  updated_at datetime(6) not null default current_timestamp(6) on update current_timestamp(6) comment '更新日時',
   primary key (id),
-  unique key (title)
+  unique key (title),
+  key idx_diary_created_at_id (created_at, id)
 ) engine = innodb
   charset utf8mb4
-  collate utf8mb4_bin comment '日記テーブル';
\ No newline at end of file
+  collate utf8mb4_bin comment '日記テーブル';
+
+create table if not exists diary_image_blob
+(
+  image_path varchar(100) not null comment '画像パス',
+  reference_count int not null default 0 comment '参照件数',
+  content_type varchar(50) comment 'MIMEタイプ',
+  content_length bigint comment 'バイト数',
+  width int comment '幅のピクセル数',
+  height int comment '高さのピクセル数',
+  created_at datetime not null default current_timestamp comment '作成日時',
+  primary key (image_path)
+) engine = innodb
+  charset utf8mb4
+  collate utf8mb4_bin comment '日記画像ブロブテーブル';
+
+create table if not exists diary_file_deletion
+(
+  id bigint unsigned not null auto_increment comment 'ID',
+  image_path varchar(255) not null comment '画像パス',
+  created_at datetime not null default current_timestamp comment '作成日時',
+  primary key (id)
+) engine = innodb
+  charset utf8mb4
+  collate utf8mb4_bin comment '日記画像削除テーブル';
@@ -0,0 +1,150 @@
+package com.genki.rest_api.diary.configuration;
+
+import com.genki.rest_api.diary.repository.DiaryReplicaDataSource;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.persistence.EntityManagerFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.orm.jpa.EntityManagerFactoryUtils;
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+import org.springframework.orm.jpa.vendor.HibernateJpaVendorAdapter;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 読み取り専用トランザクションのレプリカへの振り分けの確認
+ * <p>
+ * プライマリ・レプリカを2つの組み込みDBで代用し、どちらのDBから読み取ったかをnodeテーブルの値で判定する。
+ * アプリケーションと同じくJPAのトランザクションマネージャーで読み取り専用トランザクションを開始する
+ */
+class DataSourceConfigTests {
+    private static final String LAG_QUERY = "select seconds from replica_lag";
+
+    private final List<LocalContainerEntityManagerFactoryBean> entityManagerFactoryList = new ArrayList<>();
+    private EmbeddedDatabase primaryDataSource;
+    private EmbeddedDatabase replicaDataSource;
+
+    @BeforeEach
+    void setUp() {
+        primaryDataSource = createDatabase("primary");
+        replicaDataSource = createDatabase("replica");
+        JdbcTemplate replicaJdbcTemplate = new JdbcTemplate(replicaDataSource);
+        replicaJdbcTemplate.execute("create table replica_lag (seconds int)");
+        replicaJdbcTemplate.update("insert into replica_lag (seconds) values (0)");
+    }
+
+    @AfterEach
+    void tearDown() {
+        entityManagerFactoryList.forEach(LocalContainerEntityManagerFactoryBean::destroy);
+        primaryDataSource.shutdown();
+        replicaDataSource.shutdown();
+    }
+
+    @Test
+    void readOnlyTransactionReadsReplica() {
+        EntityManagerFactory entityManagerFactory = createEntityManagerFactory(createReplicaDataSource(LAG_QUERY, true));
+
+        assertThat(readNode(entityManagerFactory, true)).isEqualTo("replica");
+        assertThat(readNode(entityManagerFactory, false)).isEqualTo("primary");
+    }
+
+    @Test
+    void lagOverMaxLagFallsBackToPrimary() {
+        DiaryReplicaDataSource diaryReplicaDataSource = createReplicaDataSource(LAG_QUERY, true);
+        EntityManagerFactory entityManagerFactory = createEntityManagerFactory(diaryReplicaDataSource);
+
+        new JdbcTemplate(replicaDataSource).update("update replica_lag set seconds = 10");
+        diaryReplicaDataSource.checkLag();
+        assertThat(readNode(entityManagerFactory, true)).isEqualTo("primary");
+
+        new JdbcTemplate(replicaDataSource).update("update replica_lag set seconds = 1");
+        diaryReplicaDataSource.checkLag();
+        assertThat(readNode(entityManagerFactory, true)).isEqualTo("replica");
+    }
+
+    @Test
+    void unknownLagFallsBackToPrimary() {
+        DiaryReplicaDataSource diaryReplicaDataSource = createReplicaDataSource("select seconds from missing_table", true);
+        EntityManagerFactory entityManagerFactory = createEntityManagerFactory(diaryReplicaDataSource);
+
+        assertThat(readNode(entityManagerFactory, true)).isEqualTo("primary");
+    }
+
+    @Test
+    void fallbackDisabledKeepsReadingReplica() {
+        DiaryReplicaDataSource diaryReplicaDataSource = createReplicaDataSource(LAG_QUERY, false);
+        EntityManagerFactory entityManagerFactory = createEntityManagerFactory(diaryReplicaDataSource);
+
+        new JdbcTemplate(replicaDataSource).update("update replica_lag set seconds = 10");
+        diaryReplicaDataSource.checkLag();
+        assertThat(readNode(entityManagerFactory, true)).isEqualTo("replica");
+    }
+
+    /**
+     * nodeテーブルに名前を登録した組み込みDBを作成
+     *
+     * @param name DBの名前
+     * @return 組み込みDB
+     */
+    private EmbeddedDatabase createDatabase(String name) {
+        EmbeddedDatabase database = new EmbeddedDatabaseBuilder()
+                .setType(EmbeddedDatabaseType.H2)
+                .generateUniqueName(true)
+                .build();
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(database);
+        jdbcTemplate.execute("create table node (name varchar(10))");
+        jdbcTemplate.update("insert into node (name) values (?)", name);
+        return database;
+    }
+
+    private DiaryReplicaDataSource createReplicaDataSource(String lagQuery, boolean fallbackOnLag) {
+        DiaryReplicaDataSource diaryReplicaDataSource = new DiaryReplicaDataSource(
+                primaryDataSource, replicaDataSource, new SimpleMeterRegistry(), lagQuery, Duration.ofSeconds(5), fallbackOnLag);
+        diaryReplicaDataSource.afterPropertiesSet();
+        diaryReplicaDataSource.checkLag();
+        return diaryReplicaDataSource;
+    }
+
+    /**
+     * 振り分けるデータソースを使うエンティティマネージャーファクトリーを作成
+     *
+     * @param diaryReplicaDataSource 読み取り専用トランザクション用のデータソース
+     * @return エンティティマネージャーファクトリー
+     */
+    private EntityManagerFactory createEntityManagerFactory(DiaryReplicaDataSource diaryReplicaDataSource) {
+        LocalContainerEntityManagerFactoryBean entityManagerFactoryBean = new LocalContainerEntityManagerFactoryBean();
+        entityManagerFactoryBean.setDataSource(new DataSourceConfig().dataSource(primaryDataSource, diaryReplicaDataSource));
+        entityManagerFactoryBean.setJpaVendorAdapter(new HibernateJpaVendorAdapter());
+        entityManagerFactoryBean.setPackagesToScan("com.genki.rest_api.diary.entity");
+        entityManagerFactoryBean.afterPropertiesSet();
+        entityManagerFactoryList.add(entityManagerFactoryBean);
+        return entityManagerFactoryBean.getObject();
+    }
+
+    /**
+     * JPAのトランザクション内でnodeテーブルを読み込み
+     *
+     * @param entityManagerFactory エンティティマネージャーファクトリー
+     * @param readOnly             読み取り専用トランザクションか
+     * @return 読み取ったDBの名前
+     */
+    private String readNode(EntityManagerFactory entityManagerFactory, boolean readOnly) {
+        TransactionTemplate transactionTemplate = new TransactionTemplate(new JpaTransactionManager(entityManagerFactory));
+        transactionTemplate.setReadOnly(readOnly);
+        return transactionTemplate.execute(status -> (String) EntityManagerFactoryUtils
+                .getTransactionalEntityManager(entityManagerFactory)
+                .createNativeQuery("select name from node")
+                .getSingleResult());
+    }
+}
@@ -0,0 +1,303 @@
+package com.genki.rest_api.diary.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.genki.rest_api.diary.entity.DiaryEntity;
+import com.genki.rest_api.diary.repository.DiaryRepository;
+import com.genki.rest_api.diary.service.DiaryImageStore;
+import com.genki.rest_api.diary.service.DiaryJsonCache;
+import com.genki.rest_api.diary.service.DiaryService;
+import com.genki.rest_api.diary.service.DiaryServiceTestBuilder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.ServletRegistration;
+import org.apache.coyote.AbstractProtocol;
+import org.apache.tomcat.util.threads.VirtualThreadExecutor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServer;
+import org.springframework.context.annotation.AnnotationConfigUtils;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.context.support.GenericWebApplicationContext;
+import org.springframework.web.servlet.DispatcherServlet;
+import org.springframework.web.servlet.config.annotation.EnableWebMvc;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 画像の読み込みが遅い場合の日記画像取得APIの負荷試験
+ * <p>
+ * Tomcatのリクエスト処理をプラットフォームスレッドのプール（デフォルトの最大200スレッド）で行う場合と
+ * 仮想スレッドで行う場合とで、スループットと99パーセンタイルのレイテンシを比較する。
+ * 日記サービス・画像ブロブサービス・画像キャッシュは本番と同じ実装を使い、画像は画像ストアのファイルから毎回読み込む
+ * （画像キャッシュの対象外の大きさとする）。ネットワークストレージを想定して、ファイルの読み込みの開始にIMAGE_READ_LATENCYの遅延を加える。
+ * 日記はキャッシュから返すため、DB（リポジトリ）は最初の1回のみ参照する。
+ * 時間がかかるため{@code mvn test -Dtest=DiaryControllerLoadTests -DloadTest=true}で実行した場合のみ行う
+ */
+@EnabledIfSystemProperty(named = "loadTest", matches = "true")
+class DiaryControllerLoadTests {
+    private static final long ID = 1;
+    private static final int PLATFORM_THREADS = 200;
+    private static final int CONCURRENCY = 400;
+    private static final int REQUESTS_PER_CLIENT = 5;
+    private static final Duration IMAGE_READ_LATENCY = Duration.ofMillis(100);
+
+    @TempDir
+    private Path imageDirPath;
+    private DiaryServiceTestBuilder diaryServiceTestBuilder;
+    private DiaryService diaryService;
+    private long imageLength;
+
+    /**
+     * 負荷試験の結果
+     *
+     * @param throughput 1秒あたりのリクエスト数
+     * @param p99Millis  99パーセンタイルのレイテンシ（ミリ秒）
+     */
+    private record Result(double throughput, long p99Millis) {
+    }
+
+    @BeforeEach
+    void setUp() throws IOException {
+        byte[] image = png();
+        imageLength = image.length;
+        DiaryEntity diaryEntity = new DiaryEntity();
+        DiaryRepository diaryRepository = mock(DiaryRepository.class);
+        when(diaryRepository.findById(anyLong())).thenReturn(Optional.of(diaryEntity));
+        diaryServiceTestBuilder = new DiaryServiceTestBuilder(imageDirPath)
+                .diaryRepository(diaryRepository)
+                // 画像より小さい上限として、毎回画像ストアから読み込む
+                .imageCache(DataSize.ofMegabytes(1), DataSize.ofBytes(imageLength - 1))
+                .diaryImageStore(SlowDiaryImageStore::new);
+        diaryService = diaryServiceTestBuilder.build();
+
+        diaryEntity.setId(ID);
+        diaryEntity.setTitle("title");
+        diaryEntity.setContent("content");
+        diaryEntity.setImagePath(diaryServiceTestBuilder.getDiaryImageBlobService().store(new ByteArrayInputStream(image), "png"));
+        diaryEntity.setCreatedAt(LocalDateTime.now());
+        diaryEntity.setUpdatedAt(diaryEntity.getCreatedAt());
+    }
+
+    @AfterEach
+    void tearDown() {
+        diaryServiceTestBuilder.getDiaryImageVariantService().shutdown();
+    }
+
+    @Test
+    void virtualThreadsServeSlowImagesWithHigherThroughputAndLowerTailLatency() throws Exception {
+        Result platformThreads = run(false);
+        Result virtualThreads = run(true);
+
+        // プラットフォームスレッドは同時にPLATFORM_THREADS件までしか待機できないため、1秒あたり約PLATFORM_THREADS / 0.1件で頭打ちになる
+        assertThat(virtualThreads.throughput())
+                .as("virtual threads %s, platform threads %s", virtualThreads, platformThreads)
+                .isGreaterThan(platformThreads.throughput());
+        assertThat(virtualThreads.p99Millis())
+                .as("virtual threads %s, platform threads %s", virtualThreads, platformThreads)
+                .isLessThan(platformThreads.p99Millis());
+    }
+
+    /**
+     * Tomcatを起動し、同時接続数CONCURRENCYで日記画像取得APIを呼び出す
+     *
+     * @param virtualThreadsEnabled true=仮想スレッド, false=プラットフォームスレッドのプール
+     * @return 負荷試験の結果
+     */
+    private Result run(boolean virtualThreadsEnabled) throws Exception {
+        TomcatServletWebServerFactory factory = new TomcatServletWebServerFactory(0);
+        if (virtualThreadsEnabled) {
+            // spring.threads.virtual.enabled=trueの場合にSpring Bootが行う設定と同じ
+            factory.addProtocolHandlerCustomizers(protocol -> protocol.setExecutor(new VirtualThreadExecutor("tomcat-handler-")));
+        } else {
+            factory.addConnectorCustomizers(connector ->
+                    ((AbstractProtocol<?>) connector.getProtocolHandler()).setMaxThreads(PLATFORM_THREADS));
+        }
+
+        // テストごとに作成した日記サービスをBeanとして登録するため、GenericWebApplicationContextで組み立てる
+        GenericWebApplicationContext context = new GenericWebApplicationContext();
+        AnnotationConfigUtils.registerAnnotationConfigProcessors(context);
+        context.registerBean(WebConfig.class);
+        context.registerBean(DiaryService.class, () -> diaryService);
+        WebServer webServer = factory.getWebServer(servletContext -> {
+            ServletRegistration.Dynamic registration = servletContext.addServlet("dispatcher", new DispatcherServlet(context));
+            registration.addMapping("/");
+            registration.setLoadOnStartup(1);
+        });
+        webServer.start();
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor();
+             HttpClient httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).executor(clients).build()) {
+            HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + webServer.getPort() + "/diary/" + ID + "/image")).build();
+            send(httpClient, request, clients, 1);
+
+            long[] latencies = new long[CONCURRENCY * REQUESTS_PER_CLIENT];
+            long start = System.nanoTime();
+            send(httpClient, request, clients, REQUESTS_PER_CLIENT, latencies);
+            long elapsed = System.nanoTime() - start;
+
+            Arrays.sort(latencies);
+            long p99 = latencies[(int) Math.ceil(latencies.length * 0.99) - 1];
+            return new Result(latencies.length / (elapsed / 1e9), Duration.ofNanos(p99).toMillis());
+        } finally {
+            webServer.stop();
+            context.close();
+        }
+    }
+
+    private void send(HttpClient httpClient, HttpRequest request, ExecutorService clients, int requestsPerClient) throws Exception {
+        send(httpClient, request, clients, requestsPerClient, new long[CONCURRENCY * requestsPerClient]);
+    }
+
+    /**
+     * CONCURRENCY件のクライアントがそれぞれrequestsPerClient件のリクエストを順に送信
+     *
+     * @param latencies 各リクエストのレイテンシ（ナノ秒）の格納先
+     */
+    private void send(HttpClient httpClient, HttpRequest request, ExecutorService clients, int requestsPerClient, long[] latencies)
+            throws Exception {
+        AtomicInteger index = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < CONCURRENCY; i++) {
+            futures.add(clients.submit(() -> {
+                for (int j = 0; j < requestsPerClient; j++) {
+                    long start = System.nanoTime();
+                    HttpResponse<byte[]> response = httpClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
+                    latencies[index.getAndIncrement()] = System.nanoTime() - start;
+                    assertThat(response.statusCode()).isEqualTo(200);
+                    assertThat(response.body()).hasSize((int) imageLength);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+    @Configuration
+    @EnableWebMvc
+    static class WebConfig {
+        @Bean
+        DiaryJsonCache diaryJsonCache() {
+            return new DiaryJsonCache(
+                    new ObjectMapper().findAndRegisterModules(), new SimpleMeterRegistry(),
+                    DataSize.ofMegabytes(1), false, DataSize.ofKilobytes(1));
+        }
+
+        @Bean
+        DiaryController diaryController(DiaryService diaryService, DiaryJsonCache diaryJsonCache) {
+            return new DiaryController(diaryService, diaryJsonCache, ZoneId.of("Asia/Tokyo"));
+        }
+    }
+
+    /**
+     * 圧縮の効かない約16KBの画像
+     *
+     * @return PNG
+     */
+    private static byte[] png() throws IOException {
+        BufferedImage image = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(0);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+        return png.toByteArray();
+    }
+
+    /**
+     * ファイルの読み込みの開始にIMAGE_READ_LATENCYかかる画像ストア（ネットワークストレージ上の画像を想定）
+     */
+    private record SlowDiaryImageStore(DiaryImageStore diaryImageStore) implements DiaryImageStore {
+        @Override
+        public boolean exists(String imagePath, int size) {
+            return diaryImageStore.exists(imagePath, size);
+        }
+
+        @Override
+        public void put(String imagePath, int size, Path filePath) throws IOException {
+            diaryImageStore.put(imagePath, size, filePath);
+        }
+
+        @Override
+        public void putOriginalAs(String imagePath, int size) throws IOException {
+            diaryImageStore.putOriginalAs(imagePath, size);
+        }
+
+        @Override
+        public Resource get(String imagePath, int size) {
+            Path filePath;
+            try {
+                filePath = diaryImageStore.get(imagePath, size).getFile().toPath();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return new FileSystemResource(filePath) {
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    try {
+                        Thread.sleep(IMAGE_READ_LATENCY);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                    return super.getInputStream();
+                }
+            };
+        }
+
+        @Override
+        public boolean delete(String imagePath, int size) throws IOException {
+            return diaryImageStore.delete(imagePath, size);
+        }
+
+        @Override
+        public void deleteAll(String imagePath) throws IOException {
+            diaryImageStore.deleteAll(imagePath);
+        }
+
+        @Override
+        public Stream<StoredImage> list() throws IOException {
+            return diaryImageStore.list();
+        }
+    }
+}
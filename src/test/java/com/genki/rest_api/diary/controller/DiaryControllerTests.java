@@ -0,0 +1,127 @@
+package com.genki.rest_api.diary.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.genki.rest_api.diary.dto.DiaryResponseDto;
+import com.genki.rest_api.diary.service.DiaryImage;
+import com.genki.rest_api.diary.service.DiaryJsonCache;
+import com.genki.rest_api.diary.service.DiaryService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.util.unit.DataSize;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+class DiaryControllerTests {
+    private static final long ID = 1;
+    private static final ZoneId ZONE_ID = ZoneId.of("Asia/Tokyo");
+    private static final LocalDateTime UPDATED_AT = LocalDateTime.of(2024, 12, 1, 9, 0);
+    private static final String IMAGE_PATH = "ab".repeat(32) + ".png";
+
+    private DiaryService diaryService;
+    private MockMvc mockMvc;
+
+    @BeforeEach
+    void setUp() {
+        diaryService = mock(DiaryService.class);
+        DiaryJsonCache diaryJsonCache = new DiaryJsonCache(
+                new ObjectMapper().findAndRegisterModules(), new SimpleMeterRegistry(),
+                DataSize.ofMegabytes(1), true, DataSize.ofBytes(0));
+        mockMvc = MockMvcBuilders.standaloneSetup(new DiaryController(diaryService, diaryJsonCache, ZONE_ID)).build();
+        givenDiary(UPDATED_AT);
+        when(diaryService.getImageById(eq(ID), isNull()))
+                .thenReturn(new DiaryImage(IMAGE_PATH, IMAGE_PATH, new ByteArrayResource(new byte[]{1, 2, 3})));
+        when(diaryService.getImageResource(any(), anyLong())).thenReturn(new ByteArrayResource(new byte[]{1, 2, 3}));
+        when(diaryService.getMediaType(anyString())).thenReturn(MediaType.IMAGE_PNG);
+    }
+
+    @Test
+    void lastModifiedUsesConfiguredTimeZone() throws Exception {
+        long expected = ZonedDateTime.of(UPDATED_AT, ZONE_ID).toInstant().toEpochMilli();
+
+        mockMvc.perform(get("/diary/{id}", ID))
+                .andExpect(status().isOk())
+                .andExpect(header().dateValue(HttpHeaders.LAST_MODIFIED, expected));
+        mockMvc.perform(get("/diary/{id}/image", ID))
+                .andExpect(status().isOk())
+                .andExpect(header().dateValue(HttpHeaders.LAST_MODIFIED, expected));
+    }
+
+    @Test
+    void imageValidatorsBothChangeWhenDiaryIsUpdated() throws Exception {
+        String eTag = mockMvc.perform(get("/diary/{id}/image", ID))
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        mockMvc.perform(get("/diary/{id}/image", ID).header(HttpHeaders.IF_NONE_MATCH, eTag))
+                .andExpect(status().isNotModified());
+
+        // 本文のみ更新した場合も、Last-Modifiedと同じくETagが変わる
+        givenDiary(UPDATED_AT.plusMinutes(1));
+
+        String updatedETag = mockMvc.perform(get("/diary/{id}/image", ID).header(HttpHeaders.IF_NONE_MATCH, eTag))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        assertThat(updatedETag).isNotEqualTo(eTag);
+    }
+
+    @Test
+    void gzipResponseHasItsOwnETag() throws Exception {
+        String eTag = mockMvc.perform(get("/diary/{id}", ID))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist(HttpHeaders.CONTENT_ENCODING))
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        String gzipETag = mockMvc.perform(get("/diary/{id}", ID).header(HttpHeaders.ACCEPT_ENCODING, "gzip"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_ENCODING, "gzip"))
+                .andExpect(header().string(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING))
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+
+        assertThat(gzipETag).isEqualTo(eTag.replaceFirst("\"$", "-gz\""));
+        // 圧縮しないレスポンスのETagでは、圧縮したレスポンスの304を返さない
+        mockMvc.perform(get("/diary/{id}", ID)
+                        .header(HttpHeaders.ACCEPT_ENCODING, "gzip")
+                        .header(HttpHeaders.IF_NONE_MATCH, eTag))
+                .andExpect(status().isOk());
+        mockMvc.perform(get("/diary/{id}", ID)
+                        .header(HttpHeaders.ACCEPT_ENCODING, "gzip")
+                        .header(HttpHeaders.IF_NONE_MATCH, gzipETag))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string(HttpHeaders.ETAG, gzipETag))
+                .andExpect(header().string(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING));
+        mockMvc.perform(get("/diary/{id}", ID).header(HttpHeaders.IF_NONE_MATCH, gzipETag))
+                .andExpect(status().isOk());
+    }
+
+    @Test
+    void dateOutsideDatetimeRangeIsRejected() throws Exception {
+        mockMvc.perform(get("/diary/").param("to", "0999-12-31"))
+                .andExpect(status().isBadRequest());
+        mockMvc.perform(get("/diary/").param("from", "0999-12-31").param("view", "summary"))
+                .andExpect(status().isBadRequest());
+        mockMvc.perform(get("/diary/calendar").param("year", "10000").param("month", "1"))
+                .andExpect(status().isBadRequest());
+    }
+
+    private void givenDiary(LocalDateTime updatedAt) {
+        when(diaryService.getDiaryById(ID))
+                .thenReturn(new DiaryResponseDto(ID, "title", "content", IMAGE_PATH, UPDATED_AT, updatedAt));
+    }
+}
@@ -0,0 +1,298 @@
+package com.genki.rest_api.diary.controller;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.genki.rest_api.diary.dto.DiaryChangeEventDto;
+import com.genki.rest_api.diary.dto.DiaryResponseDto;
+import com.genki.rest_api.diary.exceptionhandler.ApiExceptionHandler;
+import com.genki.rest_api.diary.service.DiaryChangeFeed;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.Filter;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.springframework.context.support.StaticMessageSource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * 日記変更フィードAPIの検証
+ * <p>
+ * 実際のSseEmitterを通して、配信・resetイベント・Last-Event-IDからの再送・切断済みの接続の解放・接続数の上限を確認する。
+ * 切断は、切断後の書き込みをIOExceptionとするレスポンスで再現する
+ */
+@Timeout(10)
+class DiaryStreamControllerTests {
+    private static final long ID = 1;
+    private static final int MAX_CONNECTIONS = 2;
+    private static final Pattern EVENT_ID_PATTERN = Pattern.compile("^id:(.+)$", Pattern.MULTILINE);
+    private static final String DELETED_EVENT_DATA = "{\"type\":\"deleted\",\"id\":1}";
+
+    /**
+     * リクエストごとのレスポンス（リクエスト順）
+     */
+    private final List<DisconnectableResponse> responses = new ArrayList<>();
+
+    private ObjectMapper objectMapper;
+    private SimpleMeterRegistry meterRegistry;
+    private DiaryChangeFeed diaryChangeFeed;
+    private MockMvc mockMvc;
+
+    @BeforeEach
+    void setUp() {
+        StaticMessageSource messageSource = new StaticMessageSource();
+        messageSource.setUseCodeAsDefaultMessage(true);
+        // 本番と同じく、nullのプロパティは出力しない
+        objectMapper = Jackson2ObjectMapperBuilder.json()
+                .serializationInclusion(JsonInclude.Include.NON_NULL)
+                .build();
+        meterRegistry = new SimpleMeterRegistry();
+        diaryChangeFeed = new DiaryChangeFeed(
+                objectMapper, messageSource, meterRegistry, 3, MAX_CONNECTIONS, Duration.ofMinutes(1));
+        Filter disconnectableResponseFilter = (request, response, chain) -> {
+            DisconnectableResponse disconnectableResponse = new DisconnectableResponse((HttpServletResponse) response);
+            responses.add(disconnectableResponse);
+            chain.doFilter(request, disconnectableResponse);
+        };
+        mockMvc = MockMvcBuilders.standaloneSetup(new DiaryStreamController(diaryChangeFeed))
+                .setControllerAdvice(new ApiExceptionHandler(messageSource))
+                .addFilters(disconnectableResponseFilter)
+                .build();
+    }
+
+    @AfterEach
+    void tearDown() {
+        diaryChangeFeed.close();
+    }
+
+    @Test
+    void publishedEventsAreDeliveredToEverySubscriber() throws Exception {
+        MvcResult first = subscribe(null);
+        MvcResult second = subscribe(null);
+        LocalDateTime now = LocalDateTime.now();
+        DiaryResponseDto diary = new DiaryResponseDto(ID, "title", "content", null, now, now);
+
+        diaryChangeFeed.publish(DiaryChangeFeed.ChangeType.CREATED, ID, diary);
+        diaryChangeFeed.publish(DiaryChangeFeed.ChangeType.DELETED, ID, null);
+        awaitUntil(() -> getEventIds(first).size() == 2 && getEventIds(second).size() == 2);
+
+        List<String> eventIds = getEventIds(first);
+        assertThat(first.getResponse().getContentType()).startsWith(MediaType.TEXT_EVENT_STREAM_VALUE);
+        assertThat(getContent(first)).isEqualTo(
+                event(eventIds.get(0), "created",
+                        objectMapper.writeValueAsString(new DiaryChangeEventDto("created", ID, diary)))
+                        + event(eventIds.get(1), "deleted", DELETED_EVENT_DATA));
+        assertThat(getContent(second)).isEqualTo(getContent(first));
+    }
+
+    @Test
+    void eventsAfterLastEventIdAreReplayedOnReconnect() throws Exception {
+        MvcResult first = subscribe(null);
+        diaryChangeFeed.publish(DiaryChangeFeed.ChangeType.DELETED, ID, null);
+        diaryChangeFeed.publish(DiaryChangeFeed.ChangeType.DELETED, ID + 1, null);
+        awaitUntil(() -> getEventIds(first).size() == 2);
+        List<String> eventIds = getEventIds(first);
+
+        // 1件目を受信した後に切断したクライアントの再接続
+        MvcResult reconnected = subscribe(eventIds.get(0));
+        awaitUntil(() -> !getEventIds(reconnected).isEmpty());
+
+        assertThat(getContent(reconnected))
+                .isEqualTo(event(eventIds.get(1), "deleted", "{\"type\":\"deleted\",\"id\":2}"));
+        assertThat(meterRegistry.get("diary.stream.resets").counter().count()).isZero();
+    }
+
+    @Test
+    void resetIsSentWhenLastEventIdCannotBeReplayed() throws Exception {
+        // 再起動前のイベントID
+        MvcResult mvcResult = subscribe("0-42");
+        awaitUntil(() -> getContent(mvcResult).contains("event:reset"));
+        diaryChangeFeed.publish(DiaryChangeFeed.ChangeType.DELETED, ID, null);
+        awaitUntil(() -> getEventIds(mvcResult).size() == 2);
+
+        // resetの後は最新のイベントから配信を続ける
+        List<String> eventIds = getEventIds(mvcResult);
+        assertThat(getContent(mvcResult)).isEqualTo(
+                event(eventIds.get(0), "reset", "") + event(eventIds.get(1), "deleted", DELETED_EVENT_DATA));
+        assertThat(meterRegistry.get("diary.stream.resets").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void deadClientIsReleasedOnHeartbeat() throws Exception {
+        MvcResult alive = subscribe(null);
+        subscribe(null);
+        // コンテナから通知されないまま、クライアントが切断している
+        responses.get(1).disconnect();
+        assertThat(getConnections()).isEqualTo(2);
+
+        diaryChangeFeed.sendHeartbeats();
+        awaitUntil(() -> getConnections() == 1);
+        awaitUntil(() -> !getContent(alive).isEmpty());
+
+        assertThat(getContent(alive)).isEqualTo(":heartbeat\n\n");
+    }
+
+    @Test
+    void connectionsOverMaxAreRejectedUntilOneIsReleased() throws Exception {
+        subscribe(null);
+        subscribe(null);
+
+        // EventSourceと同じくtext/event-streamのみを受け付けるリクエストにも、JSONで429を返す
+        String body = mockMvc.perform(get("/diary/stream").accept(MediaType.TEXT_EVENT_STREAM))
+                .andExpect(status().isTooManyRequests())
+                .andExpect(header().string(HttpHeaders.RETRY_AFTER, "60"))
+                .andReturn().getResponse().getContentAsString(StandardCharsets.UTF_8);
+        assertThat(body).contains("errors.api.diary.stream.too.many");
+        assertThat(getConnections()).isEqualTo(MAX_CONNECTIONS);
+
+        // 切断を検出した分の枠が空く
+        responses.get(0).disconnect();
+        diaryChangeFeed.sendHeartbeats();
+        awaitUntil(() -> getConnections() == 1);
+        subscribe(null);
+    }
+
+    /**
+     * 日記変更フィードに接続
+     *
+     * @param lastEventId 最後に受信したイベントID（初回接続の場合はnull）
+     * @return 非同期処理中のリクエストの結果
+     */
+    private MvcResult subscribe(String lastEventId) throws Exception {
+        MockHttpServletRequestBuilder requestBuilder = get("/diary/stream").accept(MediaType.TEXT_EVENT_STREAM);
+        if (lastEventId != null) {
+            requestBuilder.header("Last-Event-ID", lastEventId);
+        }
+        return mockMvc.perform(requestBuilder)
+                .andExpect(status().isOk())
+                .andExpect(request().asyncStarted())
+                .andReturn();
+    }
+
+    private double getConnections() {
+        return meterRegistry.get("diary.stream.connections").gauge().value();
+    }
+
+    /**
+     * ここまでに受信した内容を取得（配信用のスレッドが書き込み中のレスポンスを読み込む）
+     *
+     * @param mvcResult リクエストの結果
+     * @return 受信した内容
+     */
+    private static String getContent(MvcResult mvcResult) {
+        return new String(mvcResult.getResponse().getContentAsByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static List<String> getEventIds(MvcResult mvcResult) {
+        List<String> eventIds = new ArrayList<>();
+        Matcher matcher = EVENT_ID_PATTERN.matcher(getContent(mvcResult));
+        while (matcher.find()) {
+            eventIds.add(matcher.group(1));
+        }
+        return eventIds;
+    }
+
+    private static String event(String id, String name, String data) {
+        return "id:" + id + "\nevent:" + name + "\ndata:" + data + "\n\n";
+    }
+
+    /**
+     * 配信用のスレッドでの送信が終わるまで待つ（タイムアウトはクラスの{@link Timeout}で判定する）
+     *
+     * @param condition 終了条件
+     */
+    private static void awaitUntil(BooleanSupplier condition) throws InterruptedException {
+        while (!condition.getAsBoolean()) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * 切断を再現できるレスポンス
+     * <p>
+     * 切断後の書き込みは、切断済みのソケットへの書き込みと同じくIOExceptionとする
+     */
+    private static final class DisconnectableResponse extends HttpServletResponseWrapper {
+        private volatile boolean disconnected;
+
+        private DisconnectableResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        private void disconnect() {
+            disconnected = true;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            ServletOutputStream outputStream = super.getOutputStream();
+            return new ServletOutputStream() {
+                @Override
+                public boolean isReady() {
+                    return outputStream.isReady();
+                }
+
+                @Override
+                public void setWriteListener(WriteListener writeListener) {
+                    outputStream.setWriteListener(writeListener);
+                }
+
+                @Override
+                public void write(int b) throws IOException {
+                    checkConnected();
+                    outputStream.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    checkConnected();
+                    outputStream.write(b, off, len);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    checkConnected();
+                    outputStream.flush();
+                }
+            };
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            checkConnected();
+            super.flushBuffer();
+        }
+
+        private void checkConnected() throws IOException {
+            if (disconnected) {
+                throw new IOException("Broken pipe");
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.genki.rest_api.diary.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * 日記レスポンスDTOリストのJSONシリアライズのベンチマーク
+ * <p>
+ * application.propertiesと同じくnullのプロパティを出力せず、spring.jackson.serialization.indent-outputの有無を比較する
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiaryResponseDtoSerializationBenchmark {
+    @Param({"100", "10000"})
+    private int diaryCount;
+
+    @Param({"true", "false"})
+    private boolean indentOutput;
+
+    private ObjectWriter objectWriter;
+    private List<DiaryResponseDto> diaryResponseDtoList;
+
+    @Setup
+    public void setUp() {
+        objectWriter = Jackson2ObjectMapperBuilder.json()
+                .serializationInclusion(JsonInclude.Include.NON_NULL)
+                .indentOutput(indentOutput)
+                .build()
+                .writer();
+        LocalDateTime now = LocalDateTime.now();
+        diaryResponseDtoList = IntStream.range(0, diaryCount)
+                .mapToObj(id -> new DiaryResponseDto(
+                        id,
+                        "日記タイトル" + id,
+                        "今日は晴れていたので公園まで散歩した。".repeat(10),
+                        id % 2 == 0 ? null : id + ".png",
+                        now,
+                        now))
+                .toList();
+    }
+
+    @Benchmark
+    public void serialize() throws IOException {
+        objectWriter.writeValue(OutputStream.nullOutputStream(), diaryResponseDtoList);
+    }
+}
@@ -0,0 +1,93 @@
+package com.genki.rest_api.diary.interceptor;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.genki.rest_api.diary.controller.DiaryController;
+import com.genki.rest_api.diary.exceptionhandler.ApiExceptionHandler;
+import com.genki.rest_api.diary.service.DiaryJsonCache;
+import com.genki.rest_api.diary.service.DiaryService;
+import com.genki.rest_api.diary.service.DiaryThrottleService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.support.StaticMessageSource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.time.ZoneId;
+
+import static org.mockito.Mockito.mock;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * 流量制限のインターセプター・例外ハンドラーを通した429 Too Many Requestsの検証
+ * <p>
+ * 補充は1時間に1件・1バイトとし、テスト中にトークンが補充されないようにする
+ */
+class DiaryThrottleInterceptorTests {
+    private static final DataSize MAX_REQUEST_SIZE = DataSize.ofKilobytes(8);
+
+    @Test
+    void requestsOverBurstAreRejectedWithRetryAfter() throws Exception {
+        MockMvc mockMvc = createMockMvc(2, DataSize.ofMegabytes(1));
+
+        mockMvc.perform(registerDiary("192.0.2.1")).andExpect(status().isCreated());
+        mockMvc.perform(registerDiary("192.0.2.1")).andExpect(status().isCreated());
+        mockMvc.perform(registerDiary("192.0.2.1"))
+                .andExpect(status().isTooManyRequests())
+                .andExpect(header().string(HttpHeaders.RETRY_AFTER, "3600"));
+        // 他のクライアントは制限されない
+        mockMvc.perform(registerDiary("192.0.2.2")).andExpect(status().isCreated());
+    }
+
+    @Test
+    void requestWithoutContentLengthIsChargedMaxRequestSize() throws Exception {
+        MockMvc mockMvc = createMockMvc(10, DataSize.ofKilobytes(12));
+
+        mockMvc.perform(registerDiary("192.0.2.1")).andExpect(status().isCreated());
+        mockMvc.perform(registerDiary("192.0.2.1"))
+                .andExpect(status().isTooManyRequests())
+                .andExpect(header().exists(HttpHeaders.RETRY_AFTER));
+    }
+
+    private MockMvc createMockMvc(int requestBurst, DataSize byteBurst) {
+        StaticMessageSource messageSource = new StaticMessageSource();
+        messageSource.setUseCodeAsDefaultMessage(true);
+        DiaryThrottleService diaryThrottleService = new DiaryThrottleService(
+                messageSource, new SimpleMeterRegistry(), requestBurst, 1 / 3600.0, byteBurst, DataSize.ofBytes(1), 10,
+                100, Duration.ofMinutes(10));
+        DiaryJsonCache diaryJsonCache = new DiaryJsonCache(
+                new ObjectMapper().findAndRegisterModules(), new SimpleMeterRegistry(),
+                DataSize.ofMegabytes(1), false, DataSize.ofKilobytes(1));
+        return MockMvcBuilders
+                .standaloneSetup(new DiaryController(mock(DiaryService.class), diaryJsonCache, ZoneId.of("Asia/Tokyo")))
+                .setControllerAdvice(new ApiExceptionHandler(messageSource))
+                .addInterceptors(new DiaryThrottleInterceptor(diaryThrottleService, MAX_REQUEST_SIZE))
+                .build();
+    }
+
+    /**
+     * 日記登録のリクエストを作成
+     * <p>
+     * 本文を持たないリクエストとし、Content-Lengthのないchunkedのリクエストと同じくmax-request-sizeを消費させる
+     *
+     * @param remoteAddr クライアントのIPアドレス
+     * @return リクエスト
+     */
+    private static RequestBuilder registerDiary(String remoteAddr) {
+        return multipart("/diary/")
+                .file(new MockMultipartFile("diaryImage", "a.png", "image/png", new byte[]{1, 2, 3}))
+                .param("title", "title")
+                .param("content", "content")
+                .with(request -> {
+                    request.setRemoteAddr(remoteAddr);
+                    request.setContent(null);
+                    return request;
+                });
+    }
+}
@@ -0,0 +1,96 @@
+package com.genki.rest_api.diary.repository;
+
+import com.genki.rest_api.diary.entity.DiaryEntity;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 日記一括登録のバッチサイズごとのスループットの計測
+ * <p>
+ * 設定されたDBに日記を登録して計測し、登録した日記はロールバックする。
+ * 設定されたバッチサイズ（diary.batch.size）で登録した場合に、JPAのsave・1件ずつのINSERTより十分速いことを確認する（計測結果はアサーションの説明に含める）。
+ * 時間がかかるため{@code mvn test -Dtest=DiaryBatchRepositoryBenchmarkTests -Dbenchmark=true}で実行した場合のみ行う
+ */
+@SpringBootTest
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class DiaryBatchRepositoryBenchmarkTests {
+    private static final int DIARY_COUNT = 5000;
+    private static final int[] BATCH_SIZES = {1, 10, 50, 100, 500, 1000};
+    /**
+     * バッチで登録した場合に最低限期待する、1件ずつ登録した場合に対するスループットの倍率
+     */
+    private static final double MIN_SPEEDUP = 2;
+
+    @Autowired
+    private DiaryBatchRepository diaryBatchRepository;
+    @Autowired
+    private DiaryRepository diaryRepository;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Test
+    void batchingIsFasterThanSingleInserts() {
+        // JITのウォームアップ
+        measure(diaryEntityList -> diaryBatchRepository.insertAll(diaryEntityList, 100));
+
+        double jpaSaveThroughput = measure(diaryEntityList -> diaryEntityList.forEach(diaryRepository::save));
+        Map<Integer, Double> throughputByBatchSize = new LinkedHashMap<>();
+        for (int batchSize : BATCH_SIZES) {
+            throughputByBatchSize.put(batchSize, measure(diaryEntityList -> diaryBatchRepository.insertAll(diaryEntityList, batchSize)));
+        }
+        double configuredThroughput = measure(diaryBatchRepository::insertAll);
+        String result = "diaries/s: JPA save=%.0f, by batch size=%s, diary.batch.size=%.0f"
+                .formatted(jpaSaveThroughput, throughputByBatchSize, configuredThroughput);
+
+        // IDENTITYで採番するJPAのsaveはバッチにならないため、1件ずつのINSERTと同程度になる
+        assertThat(configuredThroughput).as(result)
+                .isGreaterThan(jpaSaveThroughput * MIN_SPEEDUP)
+                .isGreaterThan(throughputByBatchSize.get(1) * MIN_SPEEDUP);
+    }
+
+    /**
+     * DIARY_COUNT件の日記を登録してロールバックし、1秒あたりの登録件数を計測
+     *
+     * @param insert 登録処理
+     * @return 1秒あたりの登録件数
+     */
+    private double measure(Consumer<List<DiaryEntity>> insert) {
+        LocalDateTime now = LocalDateTime.now();
+        List<DiaryEntity> diaryEntityList = IntStream.range(0, DIARY_COUNT)
+                .mapToObj(i -> {
+                    DiaryEntity diaryEntity = new DiaryEntity();
+                    diaryEntity.setTitle(UUID.randomUUID().toString());
+                    diaryEntity.setContent("benchmark " + i);
+                    diaryEntity.setCreatedAt(now);
+                    diaryEntity.setUpdatedAt(now);
+                    return diaryEntity;
+                })
+                .toList();
+
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        long elapsed = transactionTemplate.execute(status -> {
+            long start = System.nanoTime();
+            insert.accept(diaryEntityList);
+            diaryRepository.flush();
+            long end = System.nanoTime();
+            status.setRollbackOnly();
+            return end - start;
+        });
+        assertThat(diaryEntityList).allSatisfy(diaryEntity -> assertThat(diaryEntity.getId()).isPositive());
+        return DIARY_COUNT / (elapsed / 1e9);
+    }
+}
@@ -0,0 +1,185 @@
+package com.genki.rest_api.diary.repository;
+
+import com.genki.rest_api.diary.dto.DiaryCalendarDayResponseDto;
+import com.genki.rest_api.diary.dto.DiarySummaryResponseDto;
+import com.genki.rest_api.diary.entity.DiaryEntity;
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.data.domain.Limit;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+/**
+ * キーセットページングの検証
+ * <p>
+ * schema.sqlはMySQL用のため実行せず、組み込みDBにエンティティからスキーマを作成する。
+ * 日時はDB上の日時（hibernate.jdbc.time_zoneの日時）で指定し、JVMのデフォルトのタイムゾーンによらず同じ結果になることを確認する
+ */
+@DataJpaTest(properties = "spring.sql.init.mode=never")
+class DiaryRepositoryTests {
+    private static final LocalDateTime BASE = LocalDateTime.of(2024, 1, 1, 0, 0);
+
+    @Autowired
+    private DiaryRepository diaryRepository;
+    @Autowired
+    private EntityManager entityManager;
+    @Value("${spring.jpa.properties.hibernate.jdbc.time_zone}")
+    private ZoneId jdbcZoneId;
+
+    /**
+     * 作成日時の降順・IDの降順に並べた日記ID
+     */
+    private List<Long> expectedIdList;
+
+    @BeforeEach
+    void setUp() {
+        // 3件は作成日時が同じ（IDで順序が決まる）
+        long older = insert("older", BASE);
+        long tie1 = insert("tie", BASE.plusHours(1));
+        long tie2 = insert("tie", BASE.plusHours(1));
+        long tie3 = insert("tie", BASE.plusHours(1));
+        long newer = insert("newer", BASE.plusHours(2));
+        expectedIdList = List.of(newer, tie3, tie2, tie1, older);
+    }
+
+    @Test
+    void pagesWalkTiesOnCreatedAtWithoutSkipsOrDuplicates() {
+        List<Long> idList = new ArrayList<>();
+        List<DiaryEntity> page = diaryRepository.findByOrderByCreatedAtDescIdDesc(Limit.of(2));
+        while (!page.isEmpty()) {
+            page.forEach(diaryEntity -> idList.add(diaryEntity.getId()));
+            DiaryEntity last = page.getLast();
+            page = diaryRepository.findPageAfter(last.getCreatedAt(), last.getId(), Limit.of(2));
+        }
+
+        assertThat(idList).isEqualTo(expectedIdList);
+    }
+
+    @Test
+    void cursorInsideTieReturnsRemainingTiesThenOlder() {
+        DiaryEntity cursor = diaryRepository.findById(expectedIdList.get(2)).orElseThrow();
+
+        assertThat(diaryRepository.findPageAfter(cursor.getCreatedAt(), cursor.getId(), Limit.of(10)))
+                .extracting(DiaryEntity::getId)
+                .containsExactly(expectedIdList.get(3), expectedIdList.get(4));
+        assertThat(diaryRepository.findSummaryPageByTitleContainingAfter(
+                "tie", cursor.getCreatedAt(), cursor.getId(), Limit.of(10)))
+                .extracting(DiarySummaryResponseDto::id)
+                .containsExactly(expectedIdList.get(3));
+    }
+
+    @Test
+    void pageAfterLastDiaryIsEmpty() {
+        DiaryEntity last = diaryRepository.findById(expectedIdList.getLast()).orElseThrow();
+
+        assertThat(diaryRepository.findPageAfter(last.getCreatedAt(), last.getId(), Limit.of(2))).isEmpty();
+        assertThat(diaryRepository.findSummaryPageAfter(last.getCreatedAt(), last.getId(), Limit.of(2))).isEmpty();
+    }
+
+    @Test
+    void pageBetweenStopsAtLowerBound() {
+        assertThat(diaryRepository.findPageBetween(
+                fromDb(BASE.plusHours(1)), fromDb(BASE.plusHours(3)), null, fromDb(BASE.plusHours(3)), 0, Limit.of(10)))
+                .extracting(DiaryEntity::getId)
+                .containsExactlyElementsOf(expectedIdList.subList(0, 4));
+    }
+
+    @Test
+    void calendarCountsDiariesPerCreatedDate() {
+        insert("last second", BASE.minusSeconds(1));
+        insert("next month", BASE.plusMonths(1));
+
+        assertThat(diaryRepository.countByCreatedDate(fromDb(BASE.minusMonths(1)), fromDb(BASE)))
+                .extracting(DiaryCalendarDayResponseDto::date, DiaryCalendarDayResponseDto::count)
+                .containsExactly(tuple(LocalDate.of(2023, 12, 31), 1L));
+        assertThat(diaryRepository.countByCreatedDate(fromDb(BASE), fromDb(BASE.plusMonths(1))))
+                .extracting(DiaryCalendarDayResponseDto::date, DiaryCalendarDayResponseDto::count)
+                .containsExactly(tuple(LocalDate.of(2024, 1, 1), 5L));
+    }
+
+    @Test
+    void lastSecondOfDatetimeRangeIsWithinMaxCreatedAt() {
+        LocalDateTime last = LocalDate.of(9999, 12, 31).atTime(23, 59, 59);
+        LocalDateTime max = fromDb(LocalDate.of(9999, 12, 31).atTime(23, 59, 59, 999_999_000));
+        long id = insert("last", last);
+
+        assertThat(diaryRepository.findSummaryPageBetween(
+                fromDb(LocalDate.of(9999, 12, 31).atStartOfDay()), max, null, max, 0, Limit.of(10)))
+                .extracting(DiarySummaryResponseDto::id)
+                .containsExactly(id);
+        assertThat(diaryRepository.countByCreatedDate(fromDb(LocalDate.of(9999, 12, 1).atStartOfDay()), max))
+                .extracting(DiaryCalendarDayResponseDto::date, DiaryCalendarDayResponseDto::count)
+                .containsExactly(tuple(LocalDate.of(9999, 12, 31), 1L));
+    }
+
+    @Test
+    void updatesWithinSameSecondHaveDifferentUpdatedAt() {
+        long id = expectedIdList.get(0);
+
+        // 1秒以内に続けて更新する
+        LocalDateTime first = update(id, "1回目の更新");
+        LocalDateTime second = update(id, "2回目の更新");
+
+        assertThat(second).isAfter(first);
+    }
+
+    /**
+     * 日記の本文を更新し、保存された更新日時を取得
+     *
+     * @param id      ID
+     * @param content 本文
+     * @return DBから読み込んだ更新日時
+     */
+    private LocalDateTime update(long id, String content) {
+        DiaryEntity diaryEntity = diaryRepository.findById(id).orElseThrow();
+        diaryEntity.setContent(content);
+        diaryRepository.saveAndFlush(diaryEntity);
+        entityManager.clear();
+        return diaryRepository.findById(id).orElseThrow().getUpdatedAt();
+    }
+
+    /**
+     * 作成日時を指定して日記を登録
+     * <p>
+     * 作成日時は登録時に現在日時で上書きされるため、登録後に更新する
+     *
+     * @param title     日記タイトル
+     * @param createdAt 作成日時（DB上の日時）
+     * @return ID
+     */
+    private long insert(String title, LocalDateTime createdAt) {
+        DiaryEntity diaryEntity = new DiaryEntity();
+        diaryEntity.setTitle(title);
+        diaryEntity.setContent(title);
+        long id = diaryRepository.saveAndFlush(diaryEntity).getId();
+        entityManager.createQuery("update DiaryEntity d set d.createdAt = :createdAt where d.id = :id")
+                .setParameter("createdAt", fromDb(createdAt))
+                .setParameter("id", id)
+                .executeUpdate();
+        entityManager.clear();
+        return id;
+    }
+
+    /**
+     * DB上の日時（hibernate.jdbc.time_zoneの日時）と同じ時刻を表すエンティティの日時
+     * <p>
+     * HibernateはLocalDateTimeをJVMのデフォルトのタイムゾーンの日時としてhibernate.jdbc.time_zoneの日時に変換するため、逆の変換をして渡す
+     *
+     * @param dbDateTime DB上の日時
+     * @return JVMのデフォルトのタイムゾーンの日時
+     */
+    private LocalDateTime fromDb(LocalDateTime dbDateTime) {
+        return dbDateTime.atZone(jdbcZoneId).withZoneSameInstant(ZoneId.systemDefault()).toLocalDateTime();
+    }
+}
@@ -0,0 +1,68 @@
+package com.genki.rest_api.diary.service;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.genki.rest_api.diary.dto.DiaryResponseDto;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.support.StaticMessageSource;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+class DiaryChangeFeedTests {
+    private DiaryChangeFeed diaryChangeFeed;
+
+    @BeforeEach
+    void setUp() {
+        // 本番と同じく、nullのプロパティは出力しない
+        diaryChangeFeed = new DiaryChangeFeed(
+                Jackson2ObjectMapperBuilder.json().serializationInclusion(JsonInclude.Include.NON_NULL).build(),
+                new StaticMessageSource(), new SimpleMeterRegistry(), 3, 10, Duration.ofMinutes(1));
+    }
+
+    @AfterEach
+    void tearDown() {
+        diaryChangeFeed.close();
+    }
+
+    @Test
+    void eventsAfterLastEventIdAreReplayed() {
+        LocalDateTime now = LocalDateTime.now();
+        diaryChangeFeed.publish(DiaryChangeFeed.ChangeType.CREATED, 1,
+                new DiaryResponseDto(1, "title", "content", null, now, now));
+        diaryChangeFeed.publish(DiaryChangeFeed.ChangeType.DELETED, 1, null);
+
+        assertThat(diaryChangeFeed.getEventsAfter(1))
+                .extracting(DiaryChangeFeed.Event::name, DiaryChangeFeed.Event::data)
+                .containsExactly(tuple("deleted", "{\"type\":\"deleted\",\"id\":1}"));
+        assertThat(diaryChangeFeed.getEventsAfter(0)).hasSize(2);
+        assertThat(diaryChangeFeed.getEventsAfter(2)).isEmpty();
+    }
+
+    @Test
+    void eventsNoLongerBufferedAreNotReplayed() {
+        for (int i = 1; i <= 5; i++) {
+            diaryChangeFeed.publish(DiaryChangeFeed.ChangeType.DELETED, i, null);
+        }
+
+        // バッファには直近3件（連番3〜5）のみ残っている
+        assertThat(diaryChangeFeed.getEventsAfter(1)).isNull();
+        assertThat(diaryChangeFeed.getEventsAfter(2))
+                .extracting(DiaryChangeFeed.Event::sequence)
+                .containsExactly(3L, 4L, 5L);
+        assertThat(diaryChangeFeed.getEventsAfter(6)).isNull();
+    }
+
+    @Test
+    void eventIdOfAnotherBootIsNotAccepted() {
+        assertThat(diaryChangeFeed.parseEventId(diaryChangeFeed.formatEventId(42))).isEqualTo(42);
+        assertThat(diaryChangeFeed.parseEventId("0-42")).isNull();
+        assertThat(diaryChangeFeed.parseEventId("42")).isNull();
+    }
+}
@@ -0,0 +1,195 @@
+package com.genki.rest_api.diary.service;
+
+import com.genki.rest_api.diary.entity.DiaryFileDeletionEntity;
+import com.genki.rest_api.diary.repository.DiaryFileDeletionRepository;
+import com.genki.rest_api.diary.repository.DiaryImageBlobRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.context.support.StaticMessageSource;
+import org.springframework.dao.PessimisticLockingFailureException;
+import org.springframework.data.domain.Limit;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 画像削除の登録（アウトボックス）と、コミット後の削除・再試行の検証
+ * <p>
+ * 登録した行は削除リポジトリのモックがID順に保持する
+ */
+@Timeout(10)
+class DiaryFileDeletionServiceTests {
+    private final ConcurrentSkipListMap<Long, DiaryFileDeletionEntity> table = new ConcurrentSkipListMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    @TempDir
+    private Path imageDirPath;
+    private DiaryImageBlobRepository diaryImageBlobRepository;
+    private DiaryImageBlobService diaryImageBlobService;
+    private DiaryFileDeletionService diaryFileDeletionService;
+
+    @BeforeEach
+    void setUp() {
+        DiaryFileDeletionRepository diaryFileDeletionRepository = mock(DiaryFileDeletionRepository.class);
+        when(diaryFileDeletionRepository.save(any(DiaryFileDeletionEntity.class))).thenAnswer(invocation -> {
+            DiaryFileDeletionEntity diaryFileDeletionEntity = invocation.getArgument(0);
+            diaryFileDeletionEntity.setId(sequence.incrementAndGet());
+            table.put(diaryFileDeletionEntity.getId(), diaryFileDeletionEntity);
+            return diaryFileDeletionEntity;
+        });
+        when(diaryFileDeletionRepository.findByIdGreaterThanOrderByIdAsc(anyLong(), any(Limit.class)))
+                .thenAnswer(invocation -> table.tailMap(invocation.<Long>getArgument(0), false).values().stream()
+                        .limit(invocation.<Limit>getArgument(1).max())
+                        .toList());
+        doAnswer(invocation -> table.remove(invocation.<Long>getArgument(0)))
+                .when(diaryFileDeletionRepository).deleteById(anyLong());
+
+        StaticMessageSource messageSource = new StaticMessageSource();
+        messageSource.setUseCodeAsDefaultMessage(true);
+        DiaryStorageMetrics diaryStorageMetrics = new DiaryStorageMetrics(new SimpleMeterRegistry());
+        diaryImageBlobRepository = mock(DiaryImageBlobRepository.class);
+        diaryImageBlobService = new DiaryImageBlobService(
+                diaryImageBlobRepository,
+                messageSource,
+                mock(PlatformTransactionManager.class),
+                diaryStorageMetrics,
+                new DiaryShardedFileImageStore(imageDirPath, diaryStorageMetrics),
+                imageDirPath);
+        diaryFileDeletionService = new DiaryFileDeletionService(
+                diaryFileDeletionRepository, diaryImageBlobService, diaryStorageMetrics, false);
+    }
+
+    @AfterEach
+    void tearDown() {
+        diaryFileDeletionService.shutdown();
+    }
+
+    @Test
+    void drainDeletesAllQueuedImagesAcrossBatches() throws Exception {
+        String imagePath = diaryImageBlobService.store(new ByteArrayInputStream(png()), "png");
+        List<Path> legacyDirPathList = new ArrayList<>();
+        // 1回の読み込み件数（100件）を超える件数を登録する
+        IntStream.rangeClosed(1, 250).forEach(id -> legacyDirPathList.add(createLegacyImage(id)));
+
+        diaryFileDeletionService.enqueueBlob(imagePath);
+        legacyDirPathList.forEach(legacyDirPath ->
+                diaryFileDeletionService.enqueueLegacy(Long.parseLong(legacyDirPath.getFileName().toString()), null));
+        awaitUntil(table::isEmpty);
+
+        assertThat(diaryImageBlobService.exists(imagePath, DiaryImageStore.ORIGINAL)).isFalse();
+        assertThat(legacyDirPathList).allSatisfy(legacyDirPath -> assertThat(legacyDirPath).doesNotExist());
+    }
+
+    @Test
+    void failedDeletionStaysQueuedUntilRetried() throws Exception {
+        String imagePath = diaryImageBlobService.store(new ByteArrayInputStream(png()), "png");
+        AtomicBoolean locked = new AtomicBoolean(true);
+        when(diaryImageBlobRepository.findForUpdate(anyString())).thenAnswer(invocation -> {
+            if (locked.get()) {
+                throw new PessimisticLockingFailureException("lock wait timeout");
+            }
+            return Optional.empty();
+        });
+        Path legacyDirPath = createLegacyImage(1);
+
+        diaryFileDeletionService.enqueueBlob(imagePath);
+        // ID順に削除するため、後に登録した画像が削除された時点で先の画像の削除は終わっている
+        diaryFileDeletionService.enqueueLegacy(1, null);
+        awaitUntil(() -> Files.notExists(legacyDirPath));
+        awaitUntil(() -> table.size() == 1);
+
+        assertThat(table.firstEntry().getValue().getImagePath()).isEqualTo(imagePath);
+        assertThat(diaryImageBlobService.exists(imagePath, DiaryImageStore.ORIGINAL)).isTrue();
+
+        // 定期的な再試行
+        locked.set(false);
+        diaryFileDeletionService.requestDrain();
+        awaitUntil(table::isEmpty);
+
+        assertThat(diaryImageBlobService.exists(imagePath, DiaryImageStore.ORIGINAL)).isFalse();
+    }
+
+    @Test
+    void legacyDirIsQueuedOnlyIfItExists() throws Exception {
+        Path legacyDirPath = createLegacyImage(1);
+
+        diaryFileDeletionService.enqueueLegacyDirIfExists(2);
+        diaryFileDeletionService.enqueueLegacyDirIfExists(1);
+        awaitUntil(() -> Files.notExists(legacyDirPath));
+        awaitUntil(table::isEmpty);
+
+        assertThat(sequence.get()).isEqualTo(1);
+    }
+
+    @Test
+    void pathOutsideImageDirIsNotDeleted() throws Exception {
+        Path outsideFilePath = Files.writeString(imageDirPath.resolveSibling(imageDirPath.getFileName() + ".txt"), "keep");
+        try {
+            diaryFileDeletionService.enqueueLegacy(1, "../../" + outsideFilePath.getFileName());
+            awaitUntil(table::isEmpty);
+
+            assertThat(outsideFilePath).exists();
+        } finally {
+            Files.deleteIfExists(outsideFilePath);
+        }
+    }
+
+    /**
+     * 旧形式の日記IDごとのディレクトリに画像を作成
+     *
+     * @param id ID
+     * @return ディレクトリパス
+     */
+    private Path createLegacyImage(long id) {
+        try {
+            Path legacyDirPath = Files.createDirectories(diaryImageBlobService.getLegacyImageDirPath(id));
+            Files.write(legacyDirPath.resolve("image.png"), png());
+            return legacyDirPath;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * バックグラウンドの削除が終わるまで待つ（タイムアウトはクラスの{@link Timeout}で判定する）
+     *
+     * @param condition 終了条件
+     */
+    private static void awaitUntil(BooleanSupplier condition) throws InterruptedException {
+        while (!condition.getAsBoolean()) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static byte[] png() throws IOException {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB), "png", png);
+        return png.toByteArray();
+    }
+}
@@ -0,0 +1,176 @@
+package com.genki.rest_api.diary.service;
+
+import com.genki.rest_api.diary.entity.DiaryImageBlobEntity;
+import com.genki.rest_api.diary.repository.DiaryImageBlobRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.support.StaticMessageSource;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 画像の参照件数と、行ロックによる保存・削除の直列化の検証
+ * <p>
+ * 参照件数の更新はMySQLのINSERT ... ON DUPLICATE KEY UPDATEのため、組み込みDBをMySQL互換モードで使う。
+ * 複数のトランザクションを並行して実行するため、テストメソッドはトランザクション外で実行する
+ */
+@DataJpaTest(properties = {
+        "spring.sql.init.mode=never",
+        "spring.datasource.url=jdbc:h2:mem:diary-image-blob;MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1",
+        "spring.datasource.driver-class-name=org.h2.Driver",
+        "spring.datasource.username=sa",
+        "spring.datasource.password="})
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class DiaryImageBlobServiceTests {
+    private static final int CONCURRENCY = 8;
+
+    @Autowired
+    private DiaryImageBlobRepository diaryImageBlobRepository;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+    @TempDir
+    private Path imageDirPath;
+    private TransactionTemplate transactionTemplate;
+    private DiaryImageBlobService diaryImageBlobService;
+
+    @BeforeEach
+    void setUp() {
+        diaryImageBlobRepository.deleteAll();
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        StaticMessageSource messageSource = new StaticMessageSource();
+        messageSource.setUseCodeAsDefaultMessage(true);
+        DiaryStorageMetrics diaryStorageMetrics = new DiaryStorageMetrics(new SimpleMeterRegistry());
+        diaryImageBlobService = new DiaryImageBlobService(
+                diaryImageBlobRepository,
+                messageSource,
+                transactionManager,
+                diaryStorageMetrics,
+                new DiaryShardedFileImageStore(imageDirPath, diaryStorageMetrics),
+                imageDirPath);
+    }
+
+    @Test
+    void sameImageIsStoredOnceAndDeletedWithLastReference() throws IOException {
+        byte[] image = png(10, 10);
+        String imagePath = inTransaction(() -> diaryImageBlobService.store(new ByteArrayInputStream(image), "png"));
+        String sameImagePath = inTransaction(() -> diaryImageBlobService.store(new ByteArrayInputStream(image), "png"));
+
+        assertThat(sameImagePath).isEqualTo(imagePath);
+        assertThat(referenceCount(imagePath)).isEqualTo(2);
+        assertThat(diaryImageBlobService.exists(imagePath, DiaryImageStore.ORIGINAL)).isTrue();
+
+        releaseAndDelete(imagePath);
+        assertThat(referenceCount(imagePath)).isEqualTo(1);
+        assertThat(diaryImageBlobService.exists(imagePath, DiaryImageStore.ORIGINAL)).isTrue();
+
+        releaseAndDelete(imagePath);
+        assertThat(diaryImageBlobRepository.findById(imagePath)).isEmpty();
+        assertThat(diaryImageBlobService.exists(imagePath, DiaryImageStore.ORIGINAL)).isFalse();
+    }
+
+    @Test
+    void deletedImageIsStoredAgainWhenReused() throws IOException {
+        byte[] image = png(20, 10);
+        String imagePath = inTransaction(() -> diaryImageBlobService.store(new ByteArrayInputStream(image), "png"));
+        releaseAndDelete(imagePath);
+
+        String reusedImagePath = inTransaction(() -> diaryImageBlobService.store(new ByteArrayInputStream(image), "png"));
+
+        assertThat(reusedImagePath).isEqualTo(imagePath);
+        assertThat(referenceCount(imagePath)).isEqualTo(1);
+        assertThat(diaryImageBlobService.getResource(imagePath, DiaryImageStore.ORIGINAL).getContentAsByteArray())
+                .isEqualTo(image);
+        assertThat(diaryImageBlobService.getMetadata(imagePath)).get()
+                .extracting(DiaryImageMetadata::width, DiaryImageMetadata::height)
+                .containsExactly(20, 10);
+    }
+
+    @Test
+    void rolledBackStoreDeletesUnreferencedImage() throws IOException {
+        byte[] image = png(30, 10);
+        String imagePath = transactionTemplate.execute(status -> {
+            status.setRollbackOnly();
+            return diaryImageBlobService.store(new ByteArrayInputStream(image), "png");
+        });
+
+        assertThat(diaryImageBlobRepository.findById(imagePath)).isEmpty();
+        assertThat(diaryImageBlobService.exists(imagePath, DiaryImageStore.ORIGINAL)).isFalse();
+    }
+
+    @Test
+    void concurrentReleasesOfSameImageDeleteItOnlyAfterLastReference() throws Exception {
+        byte[] image = png(40, 10);
+        String imagePath = null;
+        for (int i = 0; i < CONCURRENCY; i++) {
+            imagePath = inTransaction(() -> diaryImageBlobService.store(new ByteArrayInputStream(image), "png"));
+        }
+        String releasedImagePath = imagePath;
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futureList = new ArrayList<>();
+        try (ExecutorService executor = Executors.newFixedThreadPool(CONCURRENCY)) {
+            for (int i = 0; i < CONCURRENCY; i++) {
+                futureList.add(executor.submit(() -> {
+                    start.await();
+                    releaseAndDelete(releasedImagePath);
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futureList) {
+                future.get();
+            }
+        }
+
+        assertThat(diaryImageBlobRepository.findById(imagePath)).isEmpty();
+        assertThat(diaryImageBlobService.exists(imagePath, DiaryImageStore.ORIGINAL)).isFalse();
+    }
+
+    /**
+     * 参照件数を1減らしてコミットし、参照されなくなっていれば削除（日記の削除と削除キューの処理と同じ順序）
+     *
+     * @param imagePath 画像パス
+     */
+    private void releaseAndDelete(String imagePath) {
+        transactionTemplate.executeWithoutResult(status -> diaryImageBlobService.release(imagePath));
+        diaryImageBlobService.deleteIfUnreferenced(imagePath);
+    }
+
+    private int referenceCount(String imagePath) {
+        return diaryImageBlobRepository.findById(imagePath).map(DiaryImageBlobEntity::getReferenceCount).orElse(0);
+    }
+
+    private <T> T inTransaction(Supplier<T> action) {
+        return transactionTemplate.execute(status -> action.get());
+    }
+
+    private static byte[] png(int width, int height) throws IOException {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", png);
+        return png.toByteArray();
+    }
+}
@@ -0,0 +1,97 @@
+package com.genki.rest_api.diary.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DiaryImageCacheTests {
+    private static final String IMAGE_PATH = "ab".repeat(32) + ".png";
+
+    @TempDir
+    private Path imageDirPath;
+    private SimpleMeterRegistry meterRegistry;
+    private DiaryImageCache diaryImageCache;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        diaryImageCache = new DiaryImageCache(meterRegistry, DataSize.ofKilobytes(64), DataSize.ofKilobytes(4), 100);
+    }
+
+    @Test
+    void cachedImageIsServedWithoutReadingStore() throws IOException {
+        Path filePath = write("image", new byte[]{1, 2, 3});
+        DiaryImage diaryImage = new DiaryImage(IMAGE_PATH, IMAGE_PATH, new FileSystemResource(filePath));
+
+        assertThat(diaryImageCache.get(diaryImage).getContentAsByteArray()).containsExactly(1, 2, 3);
+        assertThat(diaryImageCache.get(diaryImage).getContentAsByteArray()).containsExactly(1, 2, 3);
+        Files.delete(filePath);
+
+        Resource resource = diaryImageCache.get(diaryImage);
+        assertThat(resource).isInstanceOf(DiaryByteBufferResource.class);
+        assertThat(resource.getContentAsByteArray()).containsExactly(1, 2, 3);
+        assertThat(meterRegistry.get("cache.gets").tag("cache", "diary.image").tag("result", "hit")
+                .functionCounter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void imageReadOnceIsNotBuffered() throws IOException {
+        Resource fileResource = new FileSystemResource(write("image", new byte[]{1, 2, 3}));
+        DiaryImage diaryImage = new DiaryImage(IMAGE_PATH, IMAGE_PATH, fileResource);
+
+        // 初めて読まれた画像はダイレクトバッファを確保せずに元のリソースを返す
+        assertThat(diaryImageCache.get(diaryImage)).isSameAs(fileResource);
+        assertThat(meterRegistry.get("diary.image.cache.bytes").gauge().value()).isZero();
+
+        // 2度目の読み込みでキャッシュする
+        assertThat(diaryImageCache.get(diaryImage)).isInstanceOf(DiaryByteBufferResource.class);
+        assertThat(meterRegistry.get("diary.image.cache.bytes").gauge().value()).isEqualTo(3);
+        assertThat(meterRegistry.get("cache.gets").tag("cache", "diary.image").tag("result", "miss")
+                .functionCounter().count()).isEqualTo(2);
+    }
+
+    @Test
+    void imageLargerThanMaxEntrySizeIsNotCached() throws IOException {
+        Resource fileResource = new FileSystemResource(write("large", new byte[8192]));
+        DiaryImage diaryImage = new DiaryImage(IMAGE_PATH, IMAGE_PATH, fileResource);
+
+        assertThat(diaryImageCache.get(diaryImage)).isSameAs(fileResource);
+        assertThat(diaryImageCache.get(diaryImage)).isSameAs(fileResource);
+    }
+
+    @Test
+    void invalidateRemovesOriginalAndVariants() throws IOException {
+        Path originalFilePath = write("original", new byte[]{1});
+        Path variantFilePath = write("variant", new byte[]{2});
+        DiaryImage original = new DiaryImage(IMAGE_PATH, IMAGE_PATH, new FileSystemResource(originalFilePath));
+        DiaryImage variant = new DiaryImage("128/" + IMAGE_PATH, IMAGE_PATH, new FileSystemResource(variantFilePath));
+        for (int i = 0; i < 2; i++) {
+            diaryImageCache.get(original);
+            diaryImageCache.get(variant);
+        }
+        Files.delete(originalFilePath);
+        Files.delete(variantFilePath);
+
+        diaryImageCache.invalidate(IMAGE_PATH);
+
+        // キャッシュから削除されたため、削除済みのファイルを読みに行く
+        assertThat(diaryImageCache.get(original).isReadable()).isFalse();
+        assertThat(diaryImageCache.get(variant).isReadable()).isFalse();
+    }
+
+    private Path write(String name, byte[] image) throws IOException {
+        Path filePath = imageDirPath.resolve(name);
+        Files.write(filePath, image);
+        return filePath;
+    }
+}
@@ -0,0 +1,96 @@
+package com.genki.rest_api.diary.service;
+
+import com.genki.rest_api.diary.repository.DiaryImageBlobRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.context.support.StaticMessageSource;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+class DiaryImageLayoutMigratorTests {
+    private static final String IMAGE_PATH = "ab".repeat(32) + ".png";
+
+    @TempDir
+    private Path imageDirPath;
+    private DiaryShardedFileImageStore diaryImageStore;
+    private byte[] originalImage;
+    private byte[] variantImage;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        diaryImageStore = new DiaryShardedFileImageStore(
+                imageDirPath, new DiaryStorageMetrics(new SimpleMeterRegistry()));
+        originalImage = png(200, 100);
+        variantImage = png(128, 64);
+        Files.createDirectories(imageDirPath.resolve("blobs"));
+        Files.write(imageDirPath.resolve("blobs").resolve(IMAGE_PATH), originalImage);
+        Files.createDirectories(imageDirPath.resolve("variants/128"));
+        Files.write(imageDirPath.resolve("variants/128").resolve(IMAGE_PATH), variantImage);
+    }
+
+    @Test
+    void unshardedImagesAreReadableUntilMigrated() throws IOException {
+        DiaryImageBlobService diaryImageBlobService = createDiaryImageBlobService();
+        assertThat(diaryImageBlobService.isUnshardedImagesRemaining()).isTrue();
+        assertThat(diaryImageBlobService.exists(IMAGE_PATH, DiaryImageStore.ORIGINAL)).isTrue();
+        assertThat(diaryImageBlobService.getResource(IMAGE_PATH, DiaryImageStore.ORIGINAL).getContentAsByteArray())
+                .isEqualTo(originalImage);
+
+        assertThat(new DiaryImageLayoutMigrator(diaryImageBlobService).migrate()).isEqualTo(2);
+
+        assertThat(diaryImageBlobService.isUnshardedImagesRemaining()).isFalse();
+        assertThat(diaryImageStore.resolve(IMAGE_PATH, DiaryImageStore.ORIGINAL))
+                .isEqualTo(imageDirPath.resolve("blobs/ab/ab").resolve(IMAGE_PATH))
+                .hasBinaryContent(originalImage);
+        assertThat(diaryImageBlobService.getResource(IMAGE_PATH, 128).getContentAsByteArray()).isEqualTo(variantImage);
+        assertThat(imageDirPath.resolve("blobs").resolve(IMAGE_PATH)).doesNotExist();
+        try (Stream<DiaryImageStore.StoredImage> storedImages = diaryImageStore.list()) {
+            assertThat(storedImages.map(DiaryImageStore.StoredImage::size)).containsExactlyInAnyOrder(0, 128);
+        }
+        // 移行済みのため、再起動後は分割前の形式のファイルを確認しない
+        assertThat(createDiaryImageBlobService().isUnshardedImagesRemaining()).isFalse();
+    }
+
+    @Test
+    void imageAlreadyInStoreIsNotOverwritten() throws IOException {
+        Path shardedFilePath = diaryImageStore.resolve(IMAGE_PATH, DiaryImageStore.ORIGINAL);
+        Files.createDirectories(shardedFilePath.getParent());
+        Files.write(shardedFilePath, originalImage);
+        DiaryImageBlobService diaryImageBlobService = createDiaryImageBlobService();
+
+        new DiaryImageLayoutMigrator(diaryImageBlobService).migrate();
+
+        assertThat(shardedFilePath).hasBinaryContent(originalImage);
+        assertThat(imageDirPath.resolve("blobs").resolve(IMAGE_PATH)).doesNotExist();
+    }
+
+    private DiaryImageBlobService createDiaryImageBlobService() {
+        StaticMessageSource messageSource = new StaticMessageSource();
+        messageSource.setUseCodeAsDefaultMessage(true);
+        return new DiaryImageBlobService(
+                mock(DiaryImageBlobRepository.class),
+                messageSource,
+                mock(PlatformTransactionManager.class),
+                new DiaryStorageMetrics(new SimpleMeterRegistry()),
+                diaryImageStore,
+                imageDirPath);
+    }
+
+    private static byte[] png(int width, int height) throws IOException {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", png);
+        return png.toByteArray();
+    }
+}
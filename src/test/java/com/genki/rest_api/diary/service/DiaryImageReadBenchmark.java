@@ -0,0 +1,97 @@
+package com.genki.rest_api.diary.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.util.unit.DataSize;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 日記画像の読み込みのベンチマーク
+ * <p>
+ * 画像全体をbyte[]に読み込む方法と、FileSystemResourceからレスポンスへ転送する方法、
+ * 画像キャッシュのダイレクトバッファから転送する方法を画像サイズごとに比較する
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiaryImageReadBenchmark {
+    @Param({"16384", "1048576", "8388608"})
+    private int imageSize;
+
+    private DiaryService diaryService;
+    private DiaryService cachedDiaryService;
+    private Path imageDirPath;
+    private Path imageFilePath;
+
+    @Setup
+    public void setUp() throws IOException {
+        imageDirPath = Files.createTempDirectory("diary-image-benchmark");
+        // キャッシュしないサービスと、すべての画像サイズをキャッシュするサービスを比較する
+        diaryService = new DiaryServiceTestBuilder(imageDirPath)
+                .imageCache(DataSize.ofBytes(0), DataSize.ofBytes(0))
+                .build();
+        cachedDiaryService = new DiaryServiceTestBuilder(imageDirPath)
+                .imageCache(DataSize.ofMegabytes(64), DataSize.ofMegabytes(16))
+                .build();
+
+        // 画素を乱数で埋め、圧縮後もおよそimageSizeとなるPNG
+        int side = (int) Math.sqrt(imageSize / 3.0);
+        BufferedImage bufferedImage = new BufferedImage(side, side, BufferedImage.TYPE_INT_RGB);
+        bufferedImage.setRGB(0, 0, side, side, new Random(0).ints(side * side).toArray(), 0, side);
+        ByteArrayOutputStream image = new ByteArrayOutputStream();
+        ImageIO.write(bufferedImage, "png", image);
+        imageFilePath = Files.createTempFile(imageDirPath, "image", ".png");
+        Files.write(imageFilePath, image.toByteArray());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileSystemUtils.deleteRecursively(imageDirPath);
+    }
+
+    @Benchmark
+    public byte[] readAllBytes() throws IOException {
+        return Files.readAllBytes(imageFilePath);
+    }
+
+    @Benchmark
+    public long transferResource() throws IOException {
+        try (InputStream inputStream = diaryService.getImageResource(
+                new DiaryImage("image.png", "image.png", new FileSystemResource(imageFilePath)), 1).getInputStream()) {
+            return inputStream.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    @Benchmark
+    public long transferCachedResource() throws IOException {
+        try (InputStream inputStream = cachedDiaryService.getImageResource(
+                new DiaryImage("image.png", "image.png", new FileSystemResource(imageFilePath)), 1).getInputStream()) {
+            return inputStream.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.genki.rest_api.diary.service;
+
+import com.genki.rest_api.diary.entity.DiaryEntity;
+import com.genki.rest_api.diary.entity.DiaryImageBlobEntity;
+import com.genki.rest_api.diary.repository.DiaryImageBlobRepository;
+import com.genki.rest_api.diary.repository.DiaryRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.context.support.StaticMessageSource;
+import org.springframework.data.domain.Limit;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 孤立した画像の削除の検証
+ * <p>
+ * 参照されている画像・更新からmin-age経過していない画像は削除せず、それ以外の画像のみ削除することを確認する
+ */
+class DiaryImageReconcilerTests {
+    private static final Duration MIN_AGE = Duration.ofHours(1);
+    private static final FileTime OLD = FileTime.from(Instant.now().minus(Duration.ofDays(1)));
+
+    /**
+     * 日記テーブル（ID順）
+     */
+    private final Map<Long, DiaryEntity> table = new TreeMap<>();
+    /**
+     * 参照件数が1以上の画像パス
+     */
+    private final Map<String, Integer> referenceCounts = new TreeMap<>();
+
+    @TempDir
+    private Path imageDirPath;
+    private DiaryImageBlobService diaryImageBlobService;
+    private DiaryImageReconciler diaryImageReconciler;
+
+    @BeforeEach
+    void setUp() {
+        DiaryRepository diaryRepository = mock(DiaryRepository.class);
+        when(diaryRepository.findByIdGreaterThanAndImagePathIsNotNullOrderByIdAsc(anyLong(), any(Limit.class)))
+                .thenAnswer(invocation -> table.values().stream()
+                        .filter(diaryEntity -> diaryEntity.getId() > invocation.<Long>getArgument(0))
+                        .limit(invocation.<Limit>getArgument(1).max())
+                        .toList());
+        DiaryImageBlobRepository diaryImageBlobRepository = mock(DiaryImageBlobRepository.class);
+        when(diaryImageBlobRepository.findAllById(any()))
+                .thenAnswer(invocation -> invocation.<Collection<String>>getArgument(0).stream()
+                        .filter(referenceCounts::containsKey)
+                        .map(imagePath -> {
+                            DiaryImageBlobEntity diaryImageBlobEntity = new DiaryImageBlobEntity();
+                            diaryImageBlobEntity.setImagePath(imagePath);
+                            diaryImageBlobEntity.setReferenceCount(referenceCounts.get(imagePath));
+                            return diaryImageBlobEntity;
+                        })
+                        .toList());
+
+        StaticMessageSource messageSource = new StaticMessageSource();
+        messageSource.setUseCodeAsDefaultMessage(true);
+        DiaryStorageMetrics diaryStorageMetrics = new DiaryStorageMetrics(new SimpleMeterRegistry());
+        DiaryImageStore diaryImageStore = new DiaryShardedFileImageStore(imageDirPath, diaryStorageMetrics);
+        diaryImageBlobService = new DiaryImageBlobService(
+                diaryImageBlobRepository,
+                messageSource,
+                mock(PlatformTransactionManager.class),
+                diaryStorageMetrics,
+                diaryImageStore,
+                imageDirPath);
+        diaryImageReconciler = new DiaryImageReconciler(
+                diaryRepository, diaryImageBlobService, diaryImageStore, MIN_AGE, 2, 10_000);
+    }
+
+    @AfterEach
+    void tearDown() {
+        diaryImageReconciler.shutdown();
+    }
+
+    @Test
+    void orphanImagesOlderThanMinAgeAreDeleted() throws IOException {
+        String orphanImagePath = storeOldImage(10);
+        diaryImageBlobService.putOriginalAsVariant(orphanImagePath, 128);
+        Path oldTmpFilePath = createTmpFile(OLD);
+        Path orphanLegacyFilePath = createLegacyFile(1, "orphan.png", OLD);
+
+        diaryImageReconciler.reconcile();
+
+        assertThat(diaryImageBlobService.exists(orphanImagePath, DiaryImageStore.ORIGINAL)).isFalse();
+        assertThat(diaryImageBlobService.exists(orphanImagePath, 128)).isFalse();
+        assertThat(oldTmpFilePath).doesNotExist();
+        assertThat(orphanLegacyFilePath).doesNotExist();
+        // 空になった旧形式のディレクトリも削除する
+        assertThat(orphanLegacyFilePath.getParent()).doesNotExist();
+    }
+
+    @Test
+    void referencedImagesAreNotDeleted() throws IOException {
+        // 参照件数の行がなくても、日記から参照されていれば削除しない
+        String referencedByDiaryImagePath = storeOldImage(20);
+        addDiary(1, referencedByDiaryImagePath);
+        // 日記の更新のコミット前など、参照件数のみ増えている画像も削除しない
+        String referencedByCountImagePath = storeOldImage(30);
+        diaryImageBlobService.putOriginalAsVariant(referencedByCountImagePath, 128);
+        referenceCounts.put(referencedByCountImagePath, 1);
+        Path referencedLegacyFilePath = createLegacyFile(2, "image.png", OLD);
+        addDiary(2, "image.png");
+        // 1ページ（500件）より後ろの日記から参照されている画像
+        for (long id = 3; id < 1000; id++) {
+            addDiary(id, "image.png");
+        }
+        String referencedOnLastPageImagePath = storeOldImage(40);
+        addDiary(1000, referencedOnLastPageImagePath);
+
+        assertThat(diaryImageReconciler.reconcile()).isZero();
+
+        assertThat(diaryImageBlobService.exists(referencedByDiaryImagePath, DiaryImageStore.ORIGINAL)).isTrue();
+        assertThat(diaryImageBlobService.exists(referencedByCountImagePath, DiaryImageStore.ORIGINAL)).isTrue();
+        assertThat(diaryImageBlobService.exists(referencedByCountImagePath, 128)).isTrue();
+        assertThat(referencedLegacyFilePath).exists();
+        assertThat(diaryImageBlobService.exists(referencedOnLastPageImagePath, DiaryImageStore.ORIGINAL)).isTrue();
+    }
+
+    @Test
+    void imagesWrittenWithinMinAgeAreNotDeleted() throws IOException {
+        String newImagePath = diaryImageBlobService.store(new ByteArrayInputStream(png(50)), "png");
+        Path newTmpFilePath = createTmpFile(FileTime.from(Instant.now()));
+        Path newLegacyFilePath = createLegacyFile(1, "new.png", FileTime.from(Instant.now()));
+
+        assertThat(diaryImageReconciler.reconcile()).isZero();
+
+        assertThat(diaryImageBlobService.exists(newImagePath, DiaryImageStore.ORIGINAL)).isTrue();
+        assertThat(newTmpFilePath).exists();
+        assertThat(newLegacyFilePath).exists();
+    }
+
+    /**
+     * 更新からmin-age以上経過した画像を保存（参照件数は登録しない）
+     *
+     * @param width 幅のピクセル数（画像ごとに内容を変えるため）
+     * @return 画像パス
+     */
+    private String storeOldImage(int width) throws IOException {
+        String imagePath = diaryImageBlobService.store(new ByteArrayInputStream(png(width)), "png");
+        Files.setLastModifiedTime(
+                diaryImageBlobService.getResource(imagePath, DiaryImageStore.ORIGINAL).getFile().toPath(), OLD);
+        return imagePath;
+    }
+
+    private Path createTmpFile(FileTime lastModifiedTime) throws IOException {
+        Path tmpFilePath = Files.createTempFile(diaryImageBlobService.createTmpDir(), "upload", ".tmp");
+        Files.setLastModifiedTime(tmpFilePath, lastModifiedTime);
+        return tmpFilePath;
+    }
+
+    private Path createLegacyFile(long id, String fileName, FileTime lastModifiedTime) throws IOException {
+        Path legacyFilePath = Files.createDirectories(diaryImageBlobService.getLegacyImageDirPath(id)).resolve(fileName);
+        Files.write(legacyFilePath, png(60));
+        Files.setLastModifiedTime(legacyFilePath, lastModifiedTime);
+        return legacyFilePath;
+    }
+
+    private void addDiary(long id, String imagePath) {
+        DiaryEntity diaryEntity = new DiaryEntity();
+        diaryEntity.setId(id);
+        diaryEntity.setImagePath(imagePath);
+        table.put(id, diaryEntity);
+    }
+
+    private static byte[] png(int width) throws IOException {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, 10, BufferedImage.TYPE_INT_RGB), "png", png);
+        return png.toByteArray();
+    }
+}
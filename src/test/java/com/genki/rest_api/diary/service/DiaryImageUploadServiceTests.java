@@ -0,0 +1,232 @@
+package com.genki.rest_api.diary.service;
+
+import com.genki.rest_api.diary.dto.DiaryImageUploadResponseDto;
+import com.genki.rest_api.diary.exception.DiaryNotFoundException;
+import com.genki.rest_api.diary.exception.DiaryThrottledException;
+import com.genki.rest_api.diary.exception.DiaryUploadChecksumMismatchException;
+import com.genki.rest_api.diary.exception.DiaryUploadConflictException;
+import com.genki.rest_api.diary.form.DiaryImageUploadForm;
+import com.genki.rest_api.diary.repository.DiaryImageBlobRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.context.support.StaticMessageSource;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.util.unit.DataSize;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class DiaryImageUploadServiceTests {
+    private static final long ID = 1L;
+    private static final String CLIENT = "192.0.2.1";
+    private static final int MAX_UPLOADS = 3;
+    private static final int MAX_UPLOADS_PER_CLIENT = 2;
+
+    @TempDir
+    private Path imageDirPath;
+    private final AtomicReference<byte[]> savedImage = new AtomicReference<>();
+    private final AtomicReference<byte[]> savedSha256 = new AtomicReference<>();
+    private DiaryImageUploadService diaryImageUploadService;
+
+    @BeforeEach
+    void setUp() {
+        StaticMessageSource messageSource = new StaticMessageSource();
+        messageSource.setUseCodeAsDefaultMessage(true);
+        DiaryStorageMetrics diaryStorageMetrics = new DiaryStorageMetrics(new SimpleMeterRegistry());
+        DiaryImageBlobService diaryImageBlobService = new DiaryImageBlobService(
+                mock(DiaryImageBlobRepository.class),
+                messageSource,
+                mock(PlatformTransactionManager.class),
+                diaryStorageMetrics,
+                new DiaryShardedFileImageStore(imageDirPath, diaryStorageMetrics),
+                imageDirPath);
+        DiaryService diaryService = mock(DiaryService.class);
+        when(diaryService.getDiaryImageExtension(anyString())).thenReturn("png");
+        when(diaryService.saveUploadedDiaryImage(anyLong(), any(Path.class), any(byte[].class), anyString()))
+                .thenAnswer(invocation -> {
+                    Path uploadFilePath = invocation.getArgument(1);
+                    savedImage.set(Files.readAllBytes(uploadFilePath));
+                    savedSha256.set(invocation.getArgument(2));
+                    Files.delete(uploadFilePath);
+                    return null;
+                });
+        diaryImageUploadService = new DiaryImageUploadService(
+                diaryService, diaryImageBlobService, diaryStorageMetrics, messageSource,
+                DataSize.ofMegabytes(1), MAX_UPLOADS, MAX_UPLOADS_PER_CLIENT, Duration.ofHours(1));
+    }
+
+    @Test
+    void chunksAreWrittenAtOffsetsAndHashedIncrementally() throws NoSuchAlgorithmException {
+        byte[] image = png(200_000);
+        DiaryImageUploadResponseDto started = diaryImageUploadService.start(ID, form(image.length, null), CLIENT);
+
+        assertThat(diaryImageUploadService.append(ID, started.uploadId(), 0, chunk(image, 0, 70_000)).offset())
+                .isEqualTo(70_000);
+        assertThat(diaryImageUploadService.append(ID, started.uploadId(), 70_000, chunk(image, 70_000, image.length)).offset())
+                .isEqualTo(image.length);
+        diaryImageUploadService.complete(ID, started.uploadId());
+
+        assertThat(savedImage.get()).isEqualTo(image);
+        assertThat(savedSha256.get()).isEqualTo(MessageDigest.getInstance("SHA-256").digest(image));
+        assertThatThrownBy(() -> diaryImageUploadService.get(ID, started.uploadId()))
+                .isInstanceOf(DiaryNotFoundException.class);
+    }
+
+    @Test
+    void interruptedChunkCanBeResumedFromReceivedOffset() {
+        byte[] image = png(200_000);
+        DiaryImageUploadResponseDto started = diaryImageUploadService.start(ID, form(image.length, sha256Hex(image)), CLIENT);
+
+        // 100,000バイト目を読み込んだ時点で通信が切れる
+        InputStream brokenStream = new InputStream() {
+            private final InputStream delegate = chunk(image, 0, 100_000);
+
+            @Override
+            public int read() throws IOException {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = delegate.read(b, off, len);
+                if (read == -1) {
+                    throw new IOException("connection reset");
+                }
+                return read;
+            }
+        };
+        assertThatThrownBy(() -> diaryImageUploadService.append(ID, started.uploadId(), 0, brokenStream))
+                .isInstanceOf(RuntimeException.class);
+
+        long offset = diaryImageUploadService.get(ID, started.uploadId()).offset();
+        assertThat(offset).isEqualTo(100_000);
+        diaryImageUploadService.append(ID, started.uploadId(), offset, chunk(image, (int) offset, image.length));
+        diaryImageUploadService.complete(ID, started.uploadId());
+
+        assertThat(savedImage.get()).isEqualTo(image);
+    }
+
+    @Test
+    void chunkWithWrongOffsetIsRejected() {
+        byte[] image = png(1000);
+        DiaryImageUploadResponseDto started = diaryImageUploadService.start(ID, form(image.length, null), CLIENT);
+        diaryImageUploadService.append(ID, started.uploadId(), 0, chunk(image, 0, 500));
+
+        assertThatThrownBy(() -> diaryImageUploadService.append(ID, started.uploadId(), 400, chunk(image, 400, 1000)))
+                .isInstanceOfSatisfying(DiaryUploadConflictException.class, e -> assertThat(e.getOffset()).isEqualTo(500));
+        assertThatThrownBy(() -> diaryImageUploadService.complete(ID, started.uploadId()))
+                .isInstanceOfSatisfying(DiaryUploadConflictException.class, e -> assertThat(e.getOffset()).isEqualTo(500));
+        assertThatThrownBy(() -> diaryImageUploadService.get(ID + 1, started.uploadId()))
+                .isInstanceOf(DiaryNotFoundException.class);
+    }
+
+    @Test
+    void checksumMismatchDiscardsUpload() throws IOException {
+        byte[] image = png(1000);
+        byte[] expected = Arrays.copyOf(image, image.length);
+        expected[0] ^= 1;
+        DiaryImageUploadResponseDto started = diaryImageUploadService.start(ID, form(image.length, sha256Hex(expected)), CLIENT);
+        diaryImageUploadService.append(ID, started.uploadId(), 0, chunk(image, 0, image.length));
+
+        assertThatThrownBy(() -> diaryImageUploadService.complete(ID, started.uploadId()))
+                .isInstanceOf(DiaryUploadChecksumMismatchException.class);
+        assertThat(savedImage.get()).isNull();
+        try (var files = Files.list(imageDirPath.resolve("uploads"))) {
+            assertThat(files).isEmpty();
+        }
+    }
+
+    @Test
+    void uploadsOverMaxAreRejectedWithoutDiscardingExistingOnes() {
+        byte[] image = png(1000);
+        DiaryImageUploadResponseDto started = diaryImageUploadService.start(ID, form(image.length, null), CLIENT);
+        diaryImageUploadService.append(ID, started.uploadId(), 0, chunk(image, 0, 500));
+        diaryImageUploadService.start(ID, form(image.length, null), "192.0.2.2");
+        diaryImageUploadService.start(ID, form(image.length, null), "192.0.2.3");
+
+        assertThatThrownBy(() -> diaryImageUploadService.start(ID, form(image.length, null), "192.0.2.4"))
+                .isInstanceOfSatisfying(DiaryThrottledException.class, e ->
+                        assertThat(e.getRetryAfter()).isPositive());
+
+        // 既存のアップロードは続けられる
+        diaryImageUploadService.append(ID, started.uploadId(), 500, chunk(image, 500, image.length));
+        diaryImageUploadService.complete(ID, started.uploadId());
+        assertThat(savedImage.get()).isEqualTo(image);
+        // 完了した分の枠が空く
+        diaryImageUploadService.start(ID, form(image.length, null), "192.0.2.4");
+    }
+
+    @Test
+    void uploadsOverMaxPerClientAreRejectedOnlyForThatClient() {
+        DiaryImageUploadResponseDto started = diaryImageUploadService.start(ID, form(1000, null), CLIENT);
+        diaryImageUploadService.start(ID, form(1000, null), CLIENT);
+
+        assertThatThrownBy(() -> diaryImageUploadService.start(ID, form(1000, null), CLIENT))
+                .isInstanceOf(DiaryThrottledException.class);
+        // 他のクライアントは開始できる
+        diaryImageUploadService.start(ID, form(1000, null), "192.0.2.2");
+
+        // 中止した分の枠が空く
+        diaryImageUploadService.cancel(ID, started.uploadId());
+        diaryImageUploadService.start(ID, form(1000, null), CLIENT);
+    }
+
+    private DiaryImageUploadForm form(long size, String sha256) {
+        return new DiaryImageUploadForm("a.png", size, sha256);
+    }
+
+    private InputStream chunk(byte[] image, int from, int to) {
+        return new ByteArrayInputStream(image, from, to - from);
+    }
+
+    /**
+     * 指定したサイズ以上のPNG画像を作成（圧縮で小さくならないよう、画素は乱数で埋める）
+     *
+     * @param minSize 最小サイズ
+     * @return PNG画像
+     */
+    private byte[] png(int minSize) {
+        int side = (int) Math.sqrt(minSize / 3.0) + 1;
+        BufferedImage bufferedImage = new BufferedImage(side, side, BufferedImage.TYPE_INT_RGB);
+        bufferedImage.setRGB(0, 0, side, side, new Random(minSize).ints(side * side).toArray(), 0, side);
+        try {
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            ImageIO.write(bufferedImage, "png", png);
+            return png.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private String sha256Hex(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.genki.rest_api.diary.service;
+
+import com.genki.rest_api.diary.repository.DiaryImageBlobRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.context.support.StaticMessageSource;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+@Timeout(10)
+class DiaryImageVariantServiceTests {
+    private static final long MAX_PIXELS = 400 * 400;
+
+    @TempDir
+    private Path imageDirPath;
+    private SimpleMeterRegistry meterRegistry;
+    private DiaryImageBlobService diaryImageBlobService;
+    private DiaryImageVariantService diaryImageVariantService;
+
+    @BeforeEach
+    void setUp() {
+        StaticMessageSource messageSource = new StaticMessageSource();
+        messageSource.setUseCodeAsDefaultMessage(true);
+        meterRegistry = new SimpleMeterRegistry();
+        DiaryStorageMetrics diaryStorageMetrics = new DiaryStorageMetrics(meterRegistry);
+        diaryImageBlobService = new DiaryImageBlobService(
+                mock(DiaryImageBlobRepository.class),
+                messageSource,
+                mock(PlatformTransactionManager.class),
+                diaryStorageMetrics,
+                new DiaryShardedFileImageStore(imageDirPath, diaryStorageMetrics),
+                imageDirPath);
+        diaryImageVariantService = new DiaryImageVariantService(
+                diaryImageBlobService, diaryStorageMetrics, meterRegistry,
+                new int[]{512, 128, 1024}, MAX_PIXELS, 1, 10);
+    }
+
+    @AfterEach
+    void tearDown() {
+        diaryImageVariantService.shutdown();
+    }
+
+    @Test
+    void variantsKeepAspectRatioAndLargerSizesReuseOriginal() throws Exception {
+        String imagePath = store(png(600, 150));
+
+        diaryImageVariantService.generate(imagePath);
+        awaitUntil(() -> diaryImageBlobService.exists(imagePath, 1024));
+
+        assertThat(size(imagePath, 128)).containsExactly(128, 32);
+        assertThat(size(imagePath, 512)).containsExactly(512, 128);
+        assertThat(diaryImageBlobService.getResource(imagePath, 1024).getContentAsByteArray())
+                .isEqualTo(diaryImageBlobService.getResource(imagePath, DiaryImageStore.ORIGINAL).getContentAsByteArray());
+    }
+
+    @Test
+    void resolveReturnsSmallestVariantNotSmallerThanRequestedSize() throws Exception {
+        String imagePath = store(png(600, 150));
+
+        // 作成前は元画像を返し、作成を登録する
+        assertThat(diaryImageVariantService.resolve(1, imagePath, 100).key()).isEqualTo(imagePath);
+        awaitUntil(() -> diaryImageBlobService.exists(imagePath, 1024));
+
+        assertThat(diaryImageVariantService.resolve(1, imagePath, 100).key()).isEqualTo("128/" + imagePath);
+        assertThat(diaryImageVariantService.resolve(1, imagePath, 129).key()).isEqualTo("512/" + imagePath);
+        assertThat(diaryImageVariantService.resolve(1, imagePath, null).key()).isEqualTo(imagePath);
+    }
+
+    @Test
+    void imageOverPixelLimitIsNotDecoded() throws Exception {
+        String imagePath = store(png(401, 400));
+
+        diaryImageVariantService.generate(imagePath);
+        awaitUntil(() -> meterRegistry.counter("diary.image.variant.oversized").count() == 1);
+
+        assertThat(diaryImageBlobService.exists(imagePath, 128)).isFalse();
+        assertThat(diaryImageBlobService.exists(imagePath, 1024)).isFalse();
+        assertThat(diaryImageVariantService.resolve(1, imagePath, 100).key()).isEqualTo(imagePath);
+    }
+
+    @Test
+    void brokenImageIsSkipped() throws Exception {
+        String imagePath = store(png(600, 150));
+        String brokenImagePath = store(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n', 0, 0});
+
+        diaryImageVariantService.generate(brokenImagePath);
+        diaryImageVariantService.generate(imagePath);
+        awaitUntil(() -> diaryImageBlobService.exists(imagePath, 1024));
+
+        // ワーカーは1つのため、先に登録した壊れた画像の処理は終わっている
+        assertThat(diaryImageBlobService.exists(brokenImagePath, 128)).isFalse();
+    }
+
+    private String store(byte[] image) {
+        return diaryImageBlobService.store(new ByteArrayInputStream(image), "png");
+    }
+
+    private int[] size(String imagePath, int size) throws IOException {
+        try (InputStream inputStream = diaryImageBlobService.getResource(imagePath, size).getInputStream()) {
+            BufferedImage image = ImageIO.read(inputStream);
+            return new int[]{image.getWidth(), image.getHeight()};
+        }
+    }
+
+    /**
+     * バックグラウンドの作成が終わるまで待つ（タイムアウトはクラスの{@link Timeout}で判定する）
+     *
+     * @param condition 終了条件
+     */
+    private static void awaitUntil(BooleanSupplier condition) throws InterruptedException {
+        while (!condition.getAsBoolean()) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static byte[] png(int width, int height) throws IOException {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB), "png", png);
+        return png.toByteArray();
+    }
+}
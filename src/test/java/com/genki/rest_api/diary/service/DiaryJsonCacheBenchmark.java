@@ -0,0 +1,75 @@
+package com.genki.rest_api.diary.service;
+
+import com.genki.rest_api.diary.dto.DiaryResponseDto;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * 日記一覧のJSON作成のベンチマーク
+ * <p>
+ * 毎回シリアライズする場合と、キャッシュ済みの日記ごとのJSONから組み立てる場合を比較する
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiaryJsonCacheBenchmark {
+    @Param({"100", "10000"})
+    private int diaryCount;
+
+    private ObjectMapper objectMapper;
+    private DiaryJsonCache diaryJsonCache;
+    private List<DiaryResponseDto> diaryResponseDtoList;
+
+    @Setup
+    public void setUp() {
+        objectMapper = Jackson2ObjectMapperBuilder.json()
+                .serializationInclusion(JsonInclude.Include.NON_NULL)
+                .build();
+        diaryJsonCache = new DiaryJsonCache(
+                objectMapper, new SimpleMeterRegistry(), DataSize.ofMegabytes(64), false, DataSize.ofKilobytes(1));
+        LocalDateTime now = LocalDateTime.now();
+        diaryResponseDtoList = IntStream.range(0, diaryCount)
+                .mapToObj(id -> new DiaryResponseDto(
+                        id,
+                        "日記タイトル" + id,
+                        "今日は晴れていたので公園まで散歩した。".repeat(10),
+                        id % 2 == 0 ? null : id + ".png",
+                        now,
+                        now))
+                .toList();
+        diaryJsonCache.getListJson(diaryResponseDtoList);
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        return objectMapper.writeValueAsBytes(diaryResponseDtoList);
+    }
+
+    @Benchmark
+    public byte[] cachedFragments() {
+        return diaryJsonCache.getListJson(diaryResponseDtoList);
+    }
+}
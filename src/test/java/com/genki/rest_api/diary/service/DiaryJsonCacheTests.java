@@ -0,0 +1,124 @@
+package com.genki.rest_api.diary.service;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.genki.rest_api.diary.dto.DiaryPageResponseDto;
+import com.genki.rest_api.diary.dto.DiaryResponseDto;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 日記JSONキャッシュの検証
+ * <p>
+ * キャッシュから組み立てたJSONが、本番と同じ設定（nullのプロパティを出力しない）のObjectMapperの出力と一致することを確認する
+ */
+class DiaryJsonCacheTests {
+    private static final LocalDateTime CREATED_AT = LocalDateTime.of(2024, 12, 1, 9, 0);
+    private static final DataSize GZIP_MIN_SIZE = DataSize.ofBytes(200);
+
+    private ObjectMapper objectMapper;
+    private DiaryJsonCache diaryJsonCache;
+
+    @BeforeEach
+    void setUp() {
+        objectMapper = Jackson2ObjectMapperBuilder.json()
+                .serializationInclusion(JsonInclude.Include.NON_NULL)
+                .build();
+        diaryJsonCache = new DiaryJsonCache(
+                objectMapper, new SimpleMeterRegistry(), DataSize.ofMegabytes(1), true, GZIP_MIN_SIZE);
+    }
+
+    @Test
+    void diaryJsonMatchesObjectMapper() throws IOException {
+        DiaryResponseDto diaryResponseDto = diary(1, "今日は晴れ", "ab".repeat(32) + ".png", CREATED_AT);
+        DiaryResponseDto noImageDiaryResponseDto = diary(2, "\"引用\"と改行\n", null, CREATED_AT);
+
+        assertJson(diaryJsonCache.getJson(diaryResponseDto), diaryResponseDto);
+        // 2回目はキャッシュから返す
+        assertJson(diaryJsonCache.getJson(diaryResponseDto), diaryResponseDto);
+        assertJson(diaryJsonCache.getJson(noImageDiaryResponseDto), noImageDiaryResponseDto);
+    }
+
+    @Test
+    void listJsonMatchesObjectMapper() throws IOException {
+        List<DiaryResponseDto> diaryResponseDtoList = List.of(
+                diary(1, "1件目", null, CREATED_AT),
+                diary(2, "2件目", "image.png", CREATED_AT));
+
+        assertJson(diaryJsonCache.getListJson(diaryResponseDtoList), diaryResponseDtoList);
+        assertJson(diaryJsonCache.getListJson(diaryResponseDtoList.subList(0, 1)), diaryResponseDtoList.subList(0, 1));
+        assertJson(diaryJsonCache.getListJson(List.of()), List.of());
+    }
+
+    @Test
+    void pageJsonMatchesObjectMapper() throws IOException {
+        List<DiaryResponseDto> diaryResponseDtoList = List.of(
+                diary(1, "1件目", null, CREATED_AT),
+                diary(2, "2件目", "image.png", CREATED_AT));
+        DiaryPageResponseDto<DiaryResponseDto> page = new DiaryPageResponseDto<>(diaryResponseDtoList, "cursor\"1");
+        DiaryPageResponseDto<DiaryResponseDto> lastPage = new DiaryPageResponseDto<>(diaryResponseDtoList, null);
+        DiaryPageResponseDto<DiaryResponseDto> emptyPage = new DiaryPageResponseDto<>(List.of(), null);
+
+        assertJson(diaryJsonCache.getPageJson(page), page);
+        assertJson(diaryJsonCache.getPageJson(lastPage), lastPage);
+        assertJson(diaryJsonCache.getPageJson(emptyPage), emptyPage);
+    }
+
+    @Test
+    void updatedOrMigratedDiaryIsSerializedAgain() throws IOException {
+        diaryJsonCache.getJson(diary(1, "更新前", "image.png", CREATED_AT));
+
+        DiaryResponseDto updatedDiaryResponseDto = diary(1, "更新後", "image.png", CREATED_AT.plusMinutes(1));
+        assertJson(diaryJsonCache.getJson(updatedDiaryResponseDto), updatedDiaryResponseDto);
+
+        // 画像の移行は更新日時を変えない
+        DiaryResponseDto migratedDiaryResponseDto = diary(1, "更新後", "ab".repeat(32) + ".png", CREATED_AT.plusMinutes(1));
+        assertJson(diaryJsonCache.getJson(migratedDiaryResponseDto), migratedDiaryResponseDto);
+    }
+
+    @Test
+    void diaryUpdatedTwiceInSameSecondIsSerializedAgain() throws IOException {
+        // 更新日時は秒未満（マイクロ秒）のみ異なる
+        DiaryResponseDto firstUpdatedDiaryResponseDto = diary(1, "1回目の更新", null, CREATED_AT.plusNanos(100_000));
+        DiaryResponseDto secondUpdatedDiaryResponseDto = diary(1, "2回目の更新", null, CREATED_AT.plusNanos(200_000));
+
+        assertJson(diaryJsonCache.getJson(firstUpdatedDiaryResponseDto), firstUpdatedDiaryResponseDto);
+        assertJson(diaryJsonCache.getJson(secondUpdatedDiaryResponseDto), secondUpdatedDiaryResponseDto);
+    }
+
+    @Test
+    void gzipIsCreatedOnlyForJsonOverMinSize() throws IOException {
+        DiaryResponseDto diaryResponseDto = diary(1, "今日は晴れていたので公園まで散歩した。".repeat(10), null, CREATED_AT);
+        DiaryResponseDto smallDiaryResponseDto = diary(2, "短い", null, CREATED_AT);
+
+        byte[] gzip = diaryJsonCache.getGzip(diaryResponseDto);
+
+        assertThat(gzip).isNotNull();
+        try (InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(gzip))) {
+            assertJson(inputStream.readAllBytes(), diaryResponseDto);
+        }
+        assertThat(diaryJsonCache.getGzip(diaryResponseDto)).isSameAs(gzip);
+        assertThat(diaryJsonCache.getGzip(smallDiaryResponseDto)).isNull();
+    }
+
+    private void assertJson(byte[] json, Object expected) throws IOException {
+        assertThat(new String(json, StandardCharsets.UTF_8)).isEqualTo(objectMapper.writeValueAsString(expected));
+    }
+
+    private static DiaryResponseDto diary(long id, String content, String imagePath, LocalDateTime updatedAt) {
+        return new DiaryResponseDto(id, "タイトル" + id, content, imagePath, CREATED_AT, updatedAt);
+    }
+}
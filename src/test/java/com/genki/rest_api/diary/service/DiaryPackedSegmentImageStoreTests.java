@@ -0,0 +1,279 @@
+package com.genki.rest_api.diary.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DiaryPackedSegmentImageStoreTests {
+    private static final String IMAGE_PATH_A = "aa".repeat(32) + ".png";
+    private static final String IMAGE_PATH_B = "bb".repeat(32) + ".png";
+    private static final String IMAGE_PATH_C = "cc".repeat(32) + ".png";
+    /**
+     * 削除レコードが大きくなるよう、キーを長くした画像パス
+     */
+    private static final String LONG_IMAGE_PATH_D = "d".repeat(1494) + ".png";
+    private static final String LONG_IMAGE_PATH_E = "e".repeat(1494) + ".png";
+    private static final String LONG_IMAGE_PATH_F = "f".repeat(1494) + ".png";
+
+    @TempDir
+    private Path imageDirPath;
+    private DiaryPackedSegmentImageStore diaryImageStore;
+
+    @AfterEach
+    void tearDown() {
+        if (diaryImageStore != null) {
+            diaryImageStore.close();
+        }
+    }
+
+    @Test
+    void smallImagesArePackedAndLargeImagesAreStoredAsFiles() throws IOException {
+        diaryImageStore = open();
+        byte[] small = randomBytes(1000);
+        byte[] large = randomBytes(5000);
+        diaryImageStore.put(IMAGE_PATH_A, DiaryImageStore.ORIGINAL, write(small));
+        diaryImageStore.put(IMAGE_PATH_B, DiaryImageStore.ORIGINAL, write(large));
+        diaryImageStore.putOriginalAs(IMAGE_PATH_A, 128);
+
+        assertThat(diaryImageStore.get(IMAGE_PATH_A, DiaryImageStore.ORIGINAL))
+                .isInstanceOf(DiaryByteBufferResource.class);
+        assertThat(diaryImageStore.get(IMAGE_PATH_A, DiaryImageStore.ORIGINAL).getInputStream().readAllBytes())
+                .isEqualTo(small);
+        assertThat(diaryImageStore.get(IMAGE_PATH_A, 128).getContentAsByteArray()).isEqualTo(small);
+        assertThat(diaryImageStore.get(IMAGE_PATH_B, DiaryImageStore.ORIGINAL).getContentAsByteArray()).isEqualTo(large);
+        assertThat(imageDirPath.resolve("blobs/bb/bb").resolve(IMAGE_PATH_B)).exists();
+        assertThat(imageDirPath.resolve("blobs/aa/aa").resolve(IMAGE_PATH_A)).doesNotExist();
+        try (Stream<DiaryImageStore.StoredImage> storedImages = diaryImageStore.list()) {
+            assertThat(storedImages.map(DiaryImageStore.StoredImage::imagePath))
+                    .containsExactlyInAnyOrder(IMAGE_PATH_A, IMAGE_PATH_A, IMAGE_PATH_B);
+        }
+    }
+
+    @Test
+    void indexIsRebuiltFromSegmentsAfterRestart() throws IOException {
+        diaryImageStore = open();
+        byte[] imageA = randomBytes(1000);
+        byte[] imageC = randomBytes(4000);
+        // 1セグメントに8KBまでしか入らないため、封印済みのセグメントと書き込み中のセグメントにまたがる
+        diaryImageStore.put(IMAGE_PATH_A, DiaryImageStore.ORIGINAL, write(imageA));
+        diaryImageStore.put(IMAGE_PATH_B, DiaryImageStore.ORIGINAL, write(randomBytes(4000)));
+        diaryImageStore.put(IMAGE_PATH_C, DiaryImageStore.ORIGINAL, write(imageC));
+        diaryImageStore.deleteAll(IMAGE_PATH_B);
+        diaryImageStore.close();
+
+        diaryImageStore = open();
+
+        assertThat(diaryImageStore.exists(IMAGE_PATH_B, DiaryImageStore.ORIGINAL)).isFalse();
+        assertThat(diaryImageStore.get(IMAGE_PATH_A, DiaryImageStore.ORIGINAL).getContentAsByteArray()).isEqualTo(imageA);
+        assertThat(diaryImageStore.get(IMAGE_PATH_C, DiaryImageStore.ORIGINAL).getContentAsByteArray()).isEqualTo(imageC);
+    }
+
+    @Test
+    void compactionReclaimsDeletedImages() throws IOException {
+        diaryImageStore = open();
+        byte[] imageA = randomBytes(1000);
+        diaryImageStore.put(IMAGE_PATH_A, DiaryImageStore.ORIGINAL, write(imageA));
+        diaryImageStore.put(IMAGE_PATH_B, DiaryImageStore.ORIGINAL, write(randomBytes(4000)));
+        diaryImageStore.put(IMAGE_PATH_C, DiaryImageStore.ORIGINAL, write(randomBytes(4000)));
+        diaryImageStore.delete(IMAGE_PATH_B, DiaryImageStore.ORIGINAL);
+        long segmentCount = countSegments();
+
+        assertThat(diaryImageStore.compact()).isEqualTo(1);
+
+        assertThat(countSegments()).isEqualTo(segmentCount - 1);
+        assertThat(diaryImageStore.get(IMAGE_PATH_A, DiaryImageStore.ORIGINAL).getContentAsByteArray()).isEqualTo(imageA);
+        diaryImageStore.close();
+        diaryImageStore = open();
+        assertThat(diaryImageStore.exists(IMAGE_PATH_B, DiaryImageStore.ORIGINAL)).isFalse();
+        assertThat(diaryImageStore.get(IMAGE_PATH_A, DiaryImageStore.ORIGINAL).getContentAsByteArray()).isEqualTo(imageA);
+    }
+
+    @Test
+    void truncatedRecordAtTailOfActiveSegmentIsDiscarded() throws IOException {
+        diaryImageStore = open();
+        byte[] imageA = randomBytes(1000);
+        byte[] imageB = randomBytes(2000);
+        diaryImageStore.put(IMAGE_PATH_A, DiaryImageStore.ORIGINAL, write(imageA));
+        diaryImageStore.put(IMAGE_PATH_B, DiaryImageStore.ORIGINAL, write(imageB));
+        diaryImageStore.close();
+        // Bのデータの書き込み途中で停止した
+        Path segmentPath = getSegmentPath(0);
+        byte[] segment = Files.readAllBytes(segmentPath);
+        Files.write(segmentPath, Arrays.copyOf(segment, indexOf(segment, imageB) + 100));
+
+        diaryImageStore = open();
+
+        assertThat(diaryImageStore.exists(IMAGE_PATH_B, DiaryImageStore.ORIGINAL)).isFalse();
+        assertThat(diaryImageStore.get(IMAGE_PATH_A, DiaryImageStore.ORIGINAL).getContentAsByteArray()).isEqualTo(imageA);
+        assertAppendResumesAfterLastValidRecord(imageA);
+    }
+
+    @Test
+    void corruptedRecordAtTailOfActiveSegmentIsDiscarded() throws IOException {
+        diaryImageStore = open();
+        byte[] imageA = randomBytes(1000);
+        byte[] imageB = randomBytes(2000);
+        diaryImageStore.put(IMAGE_PATH_A, DiaryImageStore.ORIGINAL, write(imageA));
+        diaryImageStore.put(IMAGE_PATH_B, DiaryImageStore.ORIGINAL, write(imageB));
+        diaryImageStore.close();
+        // Bのデータが壊れた（CRC32が一致しない）
+        Path segmentPath = getSegmentPath(0);
+        byte[] segment = Files.readAllBytes(segmentPath);
+        segment[indexOf(segment, imageB) + 100] ^= 1;
+        Files.write(segmentPath, segment);
+
+        diaryImageStore = open();
+
+        assertThat(diaryImageStore.exists(IMAGE_PATH_B, DiaryImageStore.ORIGINAL)).isFalse();
+        assertThat(diaryImageStore.get(IMAGE_PATH_A, DiaryImageStore.ORIGINAL).getContentAsByteArray()).isEqualTo(imageA);
+        assertAppendResumesAfterLastValidRecord(imageA);
+    }
+
+    @Test
+    void compactionStoppedBeforeDeletingSegmentIsResumedAfterRestart() throws IOException {
+        diaryImageStore = open();
+        byte[] imageA = randomBytes(1000);
+        byte[] imageC = randomBytes(4000);
+        diaryImageStore.put(IMAGE_PATH_A, DiaryImageStore.ORIGINAL, write(imageA));
+        diaryImageStore.put(IMAGE_PATH_B, DiaryImageStore.ORIGINAL, write(randomBytes(4000)));
+        diaryImageStore.put(IMAGE_PATH_C, DiaryImageStore.ORIGINAL, write(imageC));
+        diaryImageStore.delete(IMAGE_PATH_B, DiaryImageStore.ORIGINAL);
+        Path segmentPath = getSegmentPath(0);
+        byte[] segment = Files.readAllBytes(segmentPath);
+        assertThat(diaryImageStore.compact()).isEqualTo(1);
+        diaryImageStore.close();
+        // Aを書き込み中のセグメントへ移した後、元のセグメントを削除する前に停止した
+        Files.write(segmentPath, segment);
+
+        diaryImageStore = open();
+
+        assertThat(diaryImageStore.exists(IMAGE_PATH_B, DiaryImageStore.ORIGINAL)).isFalse();
+        assertThat(diaryImageStore.get(IMAGE_PATH_A, DiaryImageStore.ORIGINAL).getContentAsByteArray()).isEqualTo(imageA);
+        assertThat(diaryImageStore.get(IMAGE_PATH_C, DiaryImageStore.ORIGINAL).getContentAsByteArray()).isEqualTo(imageC);
+        try (Stream<DiaryImageStore.StoredImage> storedImages = diaryImageStore.list()) {
+            assertThat(storedImages.map(DiaryImageStore.StoredImage::imagePath))
+                    .containsExactlyInAnyOrder(IMAGE_PATH_A, IMAGE_PATH_C);
+        }
+        // 移し終えた元のセグメントは不要なバイト数のみのため、次の圧縮で削除する
+        assertThat(diaryImageStore.compact()).isEqualTo(1);
+        assertThat(segmentPath).doesNotExist();
+        diaryImageStore.close();
+        diaryImageStore = open();
+        assertThat(diaryImageStore.exists(IMAGE_PATH_B, DiaryImageStore.ORIGINAL)).isFalse();
+        assertThat(diaryImageStore.get(IMAGE_PATH_A, DiaryImageStore.ORIGINAL).getContentAsByteArray()).isEqualTo(imageA);
+    }
+
+    @Test
+    void carriedDeleteRecordsAreNotCompactedUntilTargetSegmentIsDeleted() throws IOException {
+        diaryImageStore = open();
+        // セグメント0: A・D・E（D・Eを削除しても不要なバイト数は半分未満）
+        diaryImageStore.put(IMAGE_PATH_A, DiaryImageStore.ORIGINAL, write(randomBytes(4000)));
+        diaryImageStore.put(LONG_IMAGE_PATH_D, DiaryImageStore.ORIGINAL, write(randomBytes(100)));
+        diaryImageStore.put(LONG_IMAGE_PATH_E, DiaryImageStore.ORIGINAL, write(randomBytes(100)));
+        // セグメント1: B・Dの削除レコード・Bの削除レコード・C・Cの削除レコード
+        diaryImageStore.put(IMAGE_PATH_B, DiaryImageStore.ORIGINAL, write(randomBytes(4000)));
+        diaryImageStore.delete(LONG_IMAGE_PATH_D, DiaryImageStore.ORIGINAL);
+        diaryImageStore.delete(IMAGE_PATH_B, DiaryImageStore.ORIGINAL);
+        diaryImageStore.put(IMAGE_PATH_C, DiaryImageStore.ORIGINAL, write(randomBytes(900)));
+        diaryImageStore.delete(IMAGE_PATH_C, DiaryImageStore.ORIGINAL);
+        // セグメント2: Eの削除レコード
+        diaryImageStore.delete(LONG_IMAGE_PATH_E, DiaryImageStore.ORIGINAL);
+
+        // セグメント1を圧縮し、Dの削除レコードをセグメント2へ引き継ぐ
+        assertThat(diaryImageStore.compact()).isEqualTo(1);
+        // セグメント2をD・Eの削除レコードのみで封印する
+        byte[] imageF = randomBytes(4096);
+        diaryImageStore.put(LONG_IMAGE_PATH_F, DiaryImageStore.ORIGINAL, write(imageF));
+
+        // セグメント0が残っている間は削除レコードが必要なため、圧縮しない
+        assertThat(diaryImageStore.compact()).isZero();
+        diaryImageStore.close();
+        diaryImageStore = open();
+        assertThat(diaryImageStore.compact()).isZero();
+        assertThat(diaryImageStore.exists(LONG_IMAGE_PATH_D, DiaryImageStore.ORIGINAL)).isFalse();
+        assertThat(diaryImageStore.exists(LONG_IMAGE_PATH_E, DiaryImageStore.ORIGINAL)).isFalse();
+
+        // セグメント0を削除すると、削除レコードのみのセグメント2も続けて圧縮する
+        diaryImageStore.delete(IMAGE_PATH_A, DiaryImageStore.ORIGINAL);
+        assertThat(diaryImageStore.compact()).isEqualTo(2);
+        assertThat(countSegments()).isEqualTo(1);
+        diaryImageStore.close();
+        diaryImageStore = open();
+        assertThat(diaryImageStore.exists(IMAGE_PATH_A, DiaryImageStore.ORIGINAL)).isFalse();
+        assertThat(diaryImageStore.exists(LONG_IMAGE_PATH_D, DiaryImageStore.ORIGINAL)).isFalse();
+        assertThat(diaryImageStore.exists(LONG_IMAGE_PATH_E, DiaryImageStore.ORIGINAL)).isFalse();
+        assertThat(diaryImageStore.get(LONG_IMAGE_PATH_F, DiaryImageStore.ORIGINAL).getContentAsByteArray()).isEqualTo(imageF);
+    }
+
+    /**
+     * 再起動後の追記が最後の完全なレコードの後ろから始まり、次の再起動後も読めることを確認
+     *
+     * @param imageA 再起動前から残っている画像
+     */
+    private void assertAppendResumesAfterLastValidRecord(byte[] imageA) throws IOException {
+        byte[] imageC = randomBytes(1500);
+        diaryImageStore.put(IMAGE_PATH_C, DiaryImageStore.ORIGINAL, write(imageC));
+        diaryImageStore.close();
+
+        diaryImageStore = open();
+
+        assertThat(diaryImageStore.exists(IMAGE_PATH_B, DiaryImageStore.ORIGINAL)).isFalse();
+        assertThat(diaryImageStore.get(IMAGE_PATH_A, DiaryImageStore.ORIGINAL).getContentAsByteArray()).isEqualTo(imageA);
+        assertThat(diaryImageStore.get(IMAGE_PATH_C, DiaryImageStore.ORIGINAL).getContentAsByteArray()).isEqualTo(imageC);
+    }
+
+    private DiaryPackedSegmentImageStore open() throws IOException {
+        return new DiaryPackedSegmentImageStore(
+                imageDirPath, DataSize.ofBytes(8192), DataSize.ofBytes(4096), 0.5,
+                new DiaryStorageMetrics(new SimpleMeterRegistry()), new SimpleMeterRegistry());
+    }
+
+    private Path write(byte[] image) throws IOException {
+        Path filePath = Files.createTempFile(imageDirPath, "image", ".tmp");
+        Files.write(filePath, image);
+        return filePath;
+    }
+
+    private Path getSegmentPath(long id) {
+        return imageDirPath.resolve("segments").resolve(DiaryImageSegment.getFileName(id));
+    }
+
+    /**
+     * セグメントファイル内の画像のデータの先頭位置を取得
+     *
+     * @param segment セグメントファイルの内容
+     * @param image   画像
+     * @return データの先頭位置
+     */
+    private static int indexOf(byte[] segment, byte[] image) {
+        for (int i = 0; i + image.length <= segment.length; i++) {
+            if (Arrays.equals(segment, i, i + image.length, image, 0, image.length)) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("image is not found in segment");
+    }
+
+    private long countSegments() throws IOException {
+        try (Stream<Path> paths = Files.list(imageDirPath.resolve("segments"))) {
+            return paths.count();
+        }
+    }
+
+    private byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,180 @@
+package com.genki.rest_api.diary.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 全文検索のベンチマーク
+ * <p>
+ * 転置インデックスによる検索と、LIKE '%検索語%'と同じく全件の本文を部分一致で走査する検索を日記件数ごとに比較する。
+ * selectLikeは同じ日記をMySQLのdiary_search_benchmarkテーブルに登録し、実際にLIKEで検索する
+ * （接続先は-Dbenchmark.datasource.url・username・passwordで指定する。件数が異なる場合のみ登録し直す）
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx8g")
+public class DiarySearchIndexBenchmark {
+    private static final String CHARACTERS = "あいうえおかきくけこさしすせそたちつてとなにぬねのはひふへほまみむめもやゆよらりるれろわをん日記天気散歩公園友達映画";
+    private static final int CONTENT_LENGTH = 1000;
+    private static final int LIMIT = 20;
+
+    @Param({"10000", "100000", "1000000"})
+    private int diaryCount;
+
+    private DiarySearchIndex diarySearchIndex;
+    private List<String> contentList;
+    private String query;
+
+    @Setup
+    public void setUp() {
+        diarySearchIndex = new DiarySearchIndex();
+        contentList = new ArrayList<>(diaryCount);
+        Random random = new Random(0);
+        diarySearchIndex.rebuild(sink -> {
+            for (int id = 0; id < diaryCount; id++) {
+                String content = createContent(random);
+                contentList.add(content);
+                sink.put(id, "", content);
+            }
+        });
+        query = createQuery(contentList.get(diaryCount / 2));
+    }
+
+    @Benchmark
+    public List<DiarySearchIndex.Hit> searchIndex() {
+        return diarySearchIndex.search(query, LIMIT);
+    }
+
+    @Benchmark
+    public List<Integer> scanContains() {
+        List<Integer> idList = new ArrayList<>();
+        for (int id = 0; id < contentList.size(); id++) {
+            if (contentList.get(id).contains(query)) {
+                idList.add(id);
+            }
+        }
+        return idList;
+    }
+
+    @Benchmark
+    public List<Long> selectLike(Database database) throws SQLException {
+        List<Long> idList = new ArrayList<>();
+        database.selectLike.setString(1, "%" + database.query + "%");
+        try (ResultSet resultSet = database.selectLike.executeQuery()) {
+            while (resultSet.next()) {
+                idList.add(resultSet.getLong(1));
+            }
+        }
+        return idList;
+    }
+
+    /**
+     * LIKEで検索するMySQLのテーブル
+     */
+    @State(Scope.Benchmark)
+    public static class Database {
+        private Connection connection;
+        private PreparedStatement selectLike;
+        private String query;
+
+        @Setup(Level.Trial)
+        public void setUp(DiarySearchIndexBenchmark benchmark) throws SQLException {
+            connection = DriverManager.getConnection(
+                    System.getProperty("benchmark.datasource.url",
+                            "jdbc:mysql://localhost:3306/spring_dev?useSSL=false&serverTimezone=UTC&rewriteBatchedStatements=true"),
+                    System.getProperty("benchmark.datasource.username", "root"),
+                    System.getProperty("benchmark.datasource.password", "password"));
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("""
+                        create table if not exists diary_search_benchmark (
+                            id bigint primary key,
+                            content text not null
+                        )""");
+                long count;
+                try (ResultSet resultSet = statement.executeQuery("select count(*) from diary_search_benchmark")) {
+                    resultSet.next();
+                    count = resultSet.getLong(1);
+                }
+                if (count != benchmark.diaryCount) {
+                    statement.execute("truncate table diary_search_benchmark");
+                    insert(benchmark.contentList);
+                }
+            }
+            query = benchmark.query;
+            selectLike = connection.prepareStatement("select id from diary_search_benchmark where content like ?");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws SQLException {
+            connection.close();
+        }
+
+        private void insert(List<String> contentList) throws SQLException {
+            connection.setAutoCommit(false);
+            try (PreparedStatement insert = connection.prepareStatement(
+                    "insert into diary_search_benchmark (id, content) values (?, ?)")) {
+                for (int id = 0; id < contentList.size(); id++) {
+                    insert.setLong(1, id);
+                    insert.setString(2, contentList.get(id));
+                    insert.addBatch();
+                    if ((id + 1) % 1000 == 0) {
+                        insert.executeBatch();
+                    }
+                }
+                insert.executeBatch();
+                connection.commit();
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * ランダムな本文を作成
+     *
+     * @param random 乱数
+     * @return 本文
+     */
+    private static String createContent(Random random) {
+        StringBuilder content = new StringBuilder(CONTENT_LENGTH);
+        for (int i = 0; i < CONTENT_LENGTH; i++) {
+            content.append(CHARACTERS.charAt(random.nextInt(CHARACTERS.length())));
+        }
+        return content.toString();
+    }
+
+    /**
+     * 本文の一部を検索語にする
+     *
+     * @param content 本文
+     * @return 検索語
+     */
+    private static String createQuery(String content) {
+        return content.substring(CONTENT_LENGTH / 2, CONTENT_LENGTH / 2 + 3);
+    }
+}
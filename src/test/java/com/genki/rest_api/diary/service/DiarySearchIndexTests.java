@@ -0,0 +1,129 @@
+package com.genki.rest_api.diary.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.stream.LongStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class DiarySearchIndexTests {
+    private final DiarySearchIndex diarySearchIndex = new DiarySearchIndex();
+
+    @Test
+    void tokenizeSplitsIntoBigramsAndUnigrams() {
+        assertThat(DiarySearchIndex.tokenize("ＡＢc", false)).containsExactly(bigram('a', 'b'), bigram('b', 'c'));
+        assertThat(DiarySearchIndex.tokenize("ab c", false)).containsExactly(bigram('a', 'b'), 'c');
+        assertThat(DiarySearchIndex.tokenize("ab c", true)).containsExactly('a', bigram('a', 'b'), 'b', 'c');
+        assertThat(DiarySearchIndex.tokenize(" \t", true)).isEmpty();
+        assertThat(DiarySearchIndex.tokenize(null, true)).isEmpty();
+    }
+
+    @Test
+    void searchRequiresAllBigrams() {
+        diarySearchIndex.put(1, "", "今日は公園を散歩した");
+        diarySearchIndex.put(2, "", "公園で映画を見た");
+
+        assertThat(diarySearchIndex.search("公園", 10)).extracting(DiarySearchIndex.Hit::id).containsExactlyInAnyOrder(1L, 2L);
+        assertThat(diarySearchIndex.search("公園 散歩", 10)).extracting(DiarySearchIndex.Hit::id).containsExactly(1L);
+        assertThat(diarySearchIndex.search("散", 10)).extracting(DiarySearchIndex.Hit::id).containsExactly(1L);
+        assertThat(diarySearchIndex.search("公散", 10)).isEmpty();
+        assertThat(diarySearchIndex.search(" ", 10)).isEmpty();
+    }
+
+    @Test
+    void titleMatchesAndFrequentTermsRankHigher() {
+        diarySearchIndex.put(1, "", "天気");
+        diarySearchIndex.put(2, "天気", "");
+        diarySearchIndex.put(3, "", "天気 天気");
+        diarySearchIndex.put(4, "", "天気");
+
+        // タイトルの重みは3、同じスコアはIDの降順
+        assertThat(diarySearchIndex.search("天気", 10))
+                .extracting(DiarySearchIndex.Hit::id)
+                .containsExactly(2L, 3L, 4L, 1L);
+        assertThat(diarySearchIndex.search("天気", 2))
+                .extracting(DiarySearchIndex.Hit::id)
+                .containsExactly(2L, 3L);
+    }
+
+    @Test
+    void rareTermsWeighMoreThanCommonTerms() {
+        diarySearchIndex.put(1, "", "日記 日記 映画");
+        diarySearchIndex.put(2, "", "日記 映画 映画");
+        diarySearchIndex.put(3, "", "日記");
+
+        // 「日記」は全件に含まれるため、「映画」の出現回数が多い日記が上位になる
+        assertThat(diarySearchIndex.search("日記 映画", 10))
+                .extracting(DiarySearchIndex.Hit::id)
+                .containsExactly(2L, 1L);
+    }
+
+    @Test
+    void updateReplacesAndRemoveDeletes() {
+        diarySearchIndex.put(1, "", "公園");
+        diarySearchIndex.put(1, "", "映画");
+        diarySearchIndex.put(2, "", "公園");
+        diarySearchIndex.remove(2);
+        diarySearchIndex.remove(3);
+
+        assertThat(diarySearchIndex.search("公園", 10)).isEmpty();
+        assertThat(diarySearchIndex.search("映画", 10)).extracting(DiarySearchIndex.Hit::id).containsExactly(1L);
+        assertThat(diarySearchIndex.size()).isEqualTo(1);
+    }
+
+    @Test
+    void repeatedUpdatesKeepResultsAfterCompaction() {
+        LongStream.range(0, 100).forEach(id -> diarySearchIndex.put(id, "", "公園 " + id));
+        for (int i = 0; i < 50; i++) {
+            LongStream.range(0, 100).forEach(id -> diarySearchIndex.put(id, "", id % 2 == 0 ? "公園" : "映画"));
+        }
+        LongStream.range(0, 10).forEach(diarySearchIndex::remove);
+
+        assertThat(diarySearchIndex.size()).isEqualTo(90);
+        assertThat(diarySearchIndex.search("公園", 100))
+                .extracting(DiarySearchIndex.Hit::id)
+                .containsExactlyInAnyOrderElementsOf(LongStream.range(10, 100).filter(id -> id % 2 == 0).boxed().toList());
+        assertThat(diarySearchIndex.search("映画", 100)).hasSize(45);
+    }
+
+    @Test
+    void changesDuringRebuildAreNotOverwrittenByLoadedRows() {
+        diarySearchIndex.put(1, "", "公園");
+
+        diarySearchIndex.rebuild(sink -> {
+            // 読み込み中も構築前のインデックスで検索できる
+            assertThat(diarySearchIndex.search("公園", 10)).extracting(DiarySearchIndex.Hit::id).containsExactly(1L);
+            // 読み込み中にコミットされた更新・削除
+            diarySearchIndex.put(2, "", "映画");
+            diarySearchIndex.remove(3);
+            sink.put(1, "", "散歩");
+            sink.put(2, "", "公園");
+            sink.put(3, "", "公園");
+        });
+
+        assertThat(diarySearchIndex.search("散歩", 10)).extracting(DiarySearchIndex.Hit::id).containsExactly(1L);
+        assertThat(diarySearchIndex.search("映画", 10)).extracting(DiarySearchIndex.Hit::id).containsExactly(2L);
+        assertThat(diarySearchIndex.search("公園", 10)).isEmpty();
+        assertThat(diarySearchIndex.size()).isEqualTo(2);
+    }
+
+    @Test
+    void failedRebuildKeepsCurrentIndex() {
+        diarySearchIndex.put(1, "", "公園");
+
+        assertThatThrownBy(() -> diarySearchIndex.rebuild(sink -> {
+            sink.put(2, "", "公園");
+            throw new IllegalStateException("stream closed");
+        })).isInstanceOf(IllegalStateException.class);
+
+        assertThat(diarySearchIndex.search("公園", 10)).extracting(DiarySearchIndex.Hit::id).containsExactly(1L);
+        // 失敗後も再構築できる
+        diarySearchIndex.rebuild(sink -> sink.put(3, "", "映画"));
+        assertThat(diarySearchIndex.search("映画", 10)).extracting(DiarySearchIndex.Hit::id).containsExactly(3L);
+    }
+
+    private static long bigram(int first, int second) {
+        return ((long) first << Integer.SIZE) | second;
+    }
+}
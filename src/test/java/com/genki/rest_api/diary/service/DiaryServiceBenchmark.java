@@ -0,0 +1,84 @@
+package com.genki.rest_api.diary.service;
+
+import com.genki.rest_api.diary.dto.DiaryResponseDto;
+import com.genki.rest_api.diary.entity.DiaryEntity;
+import com.genki.rest_api.diary.exception.DiaryImageNotSupportedException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.MediaType;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 日記サービスのリクエストごとに実行される処理のベンチマーク
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiaryServiceBenchmark {
+    private DiaryService diaryService;
+    private DiaryEntity diaryEntity;
+    private Path imageDirPath;
+
+    @Setup
+    public void setUp() throws IOException {
+        imageDirPath = Files.createTempDirectory("diary-service-benchmark");
+        diaryService = new DiaryServiceTestBuilder(imageDirPath).build();
+
+        diaryEntity = new DiaryEntity();
+        diaryEntity.setId(1);
+        diaryEntity.setTitle("今日の日記");
+        diaryEntity.setContent("今日は晴れていたので公園まで散歩した。".repeat(20));
+        diaryEntity.setImagePath("0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef.jpg");
+        diaryEntity.setCreatedAt(LocalDateTime.now());
+        diaryEntity.setUpdatedAt(LocalDateTime.now());
+
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileSystemUtils.deleteRecursively(imageDirPath);
+    }
+
+    @Benchmark
+    public DiaryResponseDto toResponseDto() {
+        return DiaryResponseDto.of(diaryEntity);
+    }
+
+    @Benchmark
+    public MediaType getMediaType() {
+        return diaryService.getMediaType("photo.JPG");
+    }
+
+    @Benchmark
+    public String getSupportedExtension() {
+        return diaryService.getDiaryImageExtension("photo.JPG");
+    }
+
+    @Benchmark
+    public DiaryImageNotSupportedException getUnsupportedExtension() {
+        try {
+            diaryService.getDiaryImageExtension("document.pdf");
+            throw new IllegalStateException("pdf is supported");
+        } catch (DiaryImageNotSupportedException e) {
+            return e;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.genki.rest_api.diary.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.genki.rest_api.diary.dto.DiaryResponseDto;
+import com.genki.rest_api.diary.repository.DiaryBatchRepository;
+import com.genki.rest_api.diary.repository.DiaryImageBlobRepository;
+import com.genki.rest_api.diary.repository.DiaryReplicaDataSource;
+import com.genki.rest_api.diary.repository.DiaryRepository;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.persistence.EntityManager;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.context.support.StaticMessageSource;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.util.function.UnaryOperator;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * テスト・ベンチマーク用の日記サービスの組み立て
+ * <p>
+ * DBを使わずに日記サービスを作成する。リポジトリ・エンティティマネージャー・削除サービスは指定しない場合モックとし、
+ * 画像は指定したディレクトリの{@link DiaryShardedFileImageStore}に保存する。
+ * メッセージはコードをそのまま返す
+ */
+public class DiaryServiceTestBuilder {
+    /**
+     * DBの日時のタイムゾーン（本番のhibernate.jdbc.time_zoneと同じ）
+     */
+    public static final ZoneId JDBC_ZONE_ID = ZoneId.of("Asia/Tokyo");
+
+    private final Path imageDirPath;
+    private DiaryRepository diaryRepository = mock(DiaryRepository.class);
+    private Cache<Long, DiaryResponseDto> diaryCache = Caffeine.newBuilder().maximumSize(100).recordStats().build();
+    private DataSize imageCacheMaximumSize = DataSize.ofMegabytes(1);
+    private DataSize imageCacheMaxEntrySize = DataSize.ofKilobytes(64);
+    private UnaryOperator<DiaryImageStore> diaryImageStoreDecorator = UnaryOperator.identity();
+    private MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private DiaryImageBlobService diaryImageBlobService;
+    private DiaryImageVariantService diaryImageVariantService;
+
+    /**
+     * @param imageDirPath 画像ディレクトリ
+     */
+    public DiaryServiceTestBuilder(Path imageDirPath) {
+        this.imageDirPath = imageDirPath;
+    }
+
+    public DiaryServiceTestBuilder diaryRepository(DiaryRepository diaryRepository) {
+        this.diaryRepository = diaryRepository;
+        return this;
+    }
+
+    public DiaryServiceTestBuilder diaryCache(Cache<Long, DiaryResponseDto> diaryCache) {
+        this.diaryCache = diaryCache;
+        return this;
+    }
+
+    /**
+     * @param maximumSize  画像キャッシュの合計サイズの上限
+     * @param maxEntrySize キャッシュする画像の最大サイズ
+     */
+    public DiaryServiceTestBuilder imageCache(DataSize maximumSize, DataSize maxEntrySize) {
+        this.imageCacheMaximumSize = maximumSize;
+        this.imageCacheMaxEntrySize = maxEntrySize;
+        return this;
+    }
+
+    /**
+     * @param diaryImageStoreDecorator 画像ストアを包む処理（読み込みの遅延を加える場合など）
+     */
+    public DiaryServiceTestBuilder diaryImageStore(UnaryOperator<DiaryImageStore> diaryImageStoreDecorator) {
+        this.diaryImageStoreDecorator = diaryImageStoreDecorator;
+        return this;
+    }
+
+    public DiaryServiceTestBuilder meterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        return this;
+    }
+
+    /**
+     * 日記サービスを作成
+     *
+     * @return 日記サービス
+     */
+    public DiaryService build() {
+        StaticMessageSource messageSource = new StaticMessageSource();
+        messageSource.setUseCodeAsDefaultMessage(true);
+        DiaryStorageMetrics diaryStorageMetrics = new DiaryStorageMetrics(meterRegistry);
+        diaryImageBlobService = new DiaryImageBlobService(
+                mock(DiaryImageBlobRepository.class),
+                messageSource,
+                mock(PlatformTransactionManager.class),
+                diaryStorageMetrics,
+                diaryImageStoreDecorator.apply(new DiaryShardedFileImageStore(imageDirPath, diaryStorageMetrics)),
+                imageDirPath);
+        diaryImageVariantService = new DiaryImageVariantService(
+                diaryImageBlobService, diaryStorageMetrics, meterRegistry, new int[]{128}, 40_000_000, 1, 10);
+        return new DiaryService(
+                diaryRepository,
+                mock(DiaryBatchRepository.class),
+                messageSource,
+                mock(EntityManager.class),
+                new ObjectMapper(),
+                new DiarySearchIndex(),
+                diaryCache,
+                diaryImageBlobService,
+                diaryImageVariantService,
+                new DiaryImageCache(meterRegistry, imageCacheMaximumSize, imageCacheMaxEntrySize, 1000),
+                mock(DiaryFileDeletionService.class),
+                diaryStorageMetrics,
+                new DiaryChangeFeed(
+                        new ObjectMapper().findAndRegisterModules(), messageSource, meterRegistry, 100, 100,
+                        Duration.ofMinutes(1)),
+                new StaticListableBeanFactory().getBeanProvider(DiaryReplicaDataSource.class),
+                JDBC_ZONE_ID);
+    }
+
+    /**
+     * 作成した日記サービスの画像ブロブサービスを取得
+     *
+     * @return 画像ブロブサービス
+     */
+    public DiaryImageBlobService getDiaryImageBlobService() {
+        return diaryImageBlobService;
+    }
+
+    /**
+     * 作成した日記サービスの縮小画像サービスを取得（終了時に{@link DiaryImageVariantService#shutdown()}で停止する）
+     *
+     * @return 縮小画像サービス
+     */
+    public DiaryImageVariantService getDiaryImageVariantService() {
+        return diaryImageVariantService;
+    }
+}
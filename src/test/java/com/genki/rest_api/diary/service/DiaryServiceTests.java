@@ -0,0 +1,372 @@
+package com.genki.rest_api.diary.service;
+
+import com.genki.rest_api.diary.dto.DiaryResponseDto;
+import com.genki.rest_api.diary.entity.DiaryEntity;
+import com.genki.rest_api.diary.exception.DiaryImageNotSupportedException;
+import com.genki.rest_api.diary.exception.DiaryNotFoundException;
+import com.genki.rest_api.diary.form.DiaryBatchRegistrationForm;
+import com.genki.rest_api.diary.form.DiaryRegistrationForm;
+import com.genki.rest_api.diary.form.DiaryUpdateForm;
+import com.genki.rest_api.diary.repository.DiaryRepository;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.ResourceRegion;
+import org.springframework.data.domain.Limit;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.HttpRange;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.ResourceHttpMessageConverter;
+import org.springframework.http.converter.ResourceRegionHttpMessageConverter;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class DiaryServiceTests {
+    private static final long ID = 987_654_321L;
+
+    private final Map<Long, DiaryEntity> table = new ConcurrentHashMap<>();
+    @TempDir
+    private Path imageDirPath;
+    private DiaryRepository diaryRepository;
+    private Cache<Long, DiaryResponseDto> diaryCache;
+    private DiaryServiceTestBuilder diaryServiceTestBuilder;
+    private DiaryService diaryService;
+
+    @BeforeEach
+    void setUp() {
+        diaryRepository = mock(DiaryRepository.class);
+        when(diaryRepository.findById(anyLong()))
+                .thenAnswer(invocation -> Optional.ofNullable(table.get(invocation.<Long>getArgument(0))).map(this::copy));
+        when(diaryRepository.save(any(DiaryEntity.class)))
+                .thenAnswer(invocation -> {
+                    DiaryEntity diaryEntity = invocation.getArgument(0);
+                    table.put(diaryEntity.getId(), copy(diaryEntity));
+                    return diaryEntity;
+                });
+        doAnswer(invocation -> table.remove(invocation.<DiaryEntity>getArgument(0).getId()))
+                .when(diaryRepository).delete(any(DiaryEntity.class));
+
+        diaryCache = Caffeine.newBuilder().maximumSize(100).recordStats().build();
+        diaryServiceTestBuilder = new DiaryServiceTestBuilder(imageDirPath)
+                .diaryRepository(diaryRepository)
+                .diaryCache(diaryCache);
+        diaryService = diaryServiceTestBuilder.build();
+
+        DiaryEntity diaryEntity = new DiaryEntity();
+        diaryEntity.setId(ID);
+        diaryEntity.setTitle("old title");
+        diaryEntity.setContent("old content");
+        table.put(ID, diaryEntity);
+    }
+
+    @AfterEach
+    void tearDown() {
+        diaryServiceTestBuilder.getDiaryImageVariantService().shutdown();
+    }
+
+    @Test
+    void getDiaryByIdReadsDatabaseOnlyOnMiss() {
+        diaryService.getDiaryById(ID);
+        diaryService.getDiaryById(ID);
+        diaryService.getDiaryById(ID);
+
+        verify(diaryRepository, times(1)).findById(ID);
+        assertThat(diaryCache.stats().hitCount()).isEqualTo(2);
+        assertThat(diaryCache.stats().missCount()).isEqualTo(1);
+    }
+
+    @Test
+    void updateIsVisibleToNextRead() {
+        assertThat(diaryService.getDiaryById(ID).title()).isEqualTo("old title");
+
+        diaryService.updateDiary(ID, new DiaryUpdateForm("new title", null), emptyImage());
+
+        assertThat(diaryService.getDiaryById(ID).title()).isEqualTo("new title");
+    }
+
+    @Test
+    void imageSaveIsVisibleToNextRead() throws IOException {
+        assertThat(diaryService.getDiaryById(ID).imagePath()).isNull();
+
+        MockMultipartFile image = new MockMultipartFile("diaryImage", "a.png", "image/png", png(40, 30));
+        diaryService.updateDiary(ID, new DiaryUpdateForm(null, null), image);
+
+        assertThat(diaryService.getImageById(ID).imagePath()).endsWith(".png");
+    }
+
+    @Test
+    void imageWithoutSupportedSignatureIsRejected() {
+        // 拡張子がpngでも、内容がPNG・JPEG・GIFでなければ保存しない
+        MockMultipartFile image = new MockMultipartFile("diaryImage", "a.png", "image/png", new byte[]{1, 2, 3});
+
+        assertThatThrownBy(() -> diaryService.updateDiary(ID, new DiaryUpdateForm(null, null), image))
+                .isInstanceOf(DiaryImageNotSupportedException.class)
+                .hasMessage("errors.api.diary.image.format.not.supported");
+        assertThat(diaryService.getDiaryById(ID).imagePath()).isNull();
+    }
+
+    @Test
+    void imageMetadataIsDetectedFromContent() throws IOException {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(40, 30, BufferedImage.TYPE_INT_RGB), "png", png);
+        // 拡張子と内容が異なる場合は内容から判定した形式で保存する
+        MockMultipartFile image = new MockMultipartFile("diaryImage", "a.jpg", "image/jpeg", png.toByteArray());
+        diaryService.updateDiary(ID, new DiaryUpdateForm(null, null), image);
+
+        DiaryImage diaryImage = diaryService.getImageById(ID);
+
+        assertThat(diaryImage.imagePath()).endsWith(".png");
+        assertThat(diaryImage.metadata())
+                .isEqualTo(new DiaryImageMetadata(MediaType.IMAGE_PNG_VALUE, png.size(), 40, 30));
+        // 元画像の長辺以上のサイズを要求した場合は縮小画像を確認せずに元画像を返す
+        assertThat(diaryService.getImageById(ID, 128).key()).isEqualTo(diaryImage.imagePath());
+    }
+
+    @Test
+    void batchRegistrationTruncatesTimestampsToColumnPrecision() {
+        List<DiaryResponseDto> diaryResponseDtoList = diaryService.registerDiaries(new DiaryBatchRegistrationForm(
+                List.of(new DiaryRegistrationForm("title 1", "content 1"), new DiaryRegistrationForm("title 2", "content 2"))));
+
+        assertThat(diaryResponseDtoList).allSatisfy(diaryResponseDto -> {
+            assertThat(diaryResponseDto.createdAt().getNano()).isZero();
+            assertThat(diaryResponseDto.updatedAt()).isEqualTo(diaryResponseDto.createdAt());
+        });
+    }
+
+    @Test
+    void dateRangeIncludesBothEndDays() {
+        diaryService.getDiaryPage(null, LocalDate.of(2024, 12, 1), LocalDate.of(2024, 12, 31), 10, null);
+
+        LocalDateTime end = fromDb(LocalDate.of(2025, 1, 1).atStartOfDay());
+        verify(diaryRepository).findPageBetween(
+                eq(fromDb(LocalDate.of(2024, 12, 1).atStartOfDay())), eq(end), isNull(), eq(end), eq(0L), any(Limit.class));
+    }
+
+    @Test
+    void dateRangeEndingOnLastSupportedDayStaysWithinDatetimeRange() {
+        LocalDateTime max = fromDb(LocalDate.of(9999, 12, 31).atTime(23, 59, 59, 999_999_000));
+
+        diaryService.getDiaryPage(null, null, LocalDate.of(9999, 12, 31), 10, null);
+        diaryService.getDiarySummaryPage(null, LocalDate.of(9999, 12, 31), null, 10, null);
+        diaryService.getCalendar(9999, 12);
+
+        verify(diaryRepository).findPageBetween(
+                eq(fromDb(LocalDate.of(1000, 1, 1).atStartOfDay())), eq(max), isNull(), eq(max), eq(0L), any(Limit.class));
+        verify(diaryRepository).findSummaryPageBetween(
+                eq(fromDb(LocalDate.of(9999, 12, 31).atStartOfDay())), eq(max), isNull(), eq(max), eq(0L), any(Limit.class));
+        verify(diaryRepository).countByCreatedDate(fromDb(LocalDate.of(9999, 12, 1).atStartOfDay()), max);
+    }
+
+    @Test
+    void calendarCoversWholeMonthInJdbcTimeZone() {
+        diaryService.getCalendar(2024, 2);
+
+        // JVMのデフォルトのタイムゾーンによらず、Asia/Tokyoの月の始まり・終わりの時刻で絞り込む
+        ArgumentCaptor<LocalDateTime> from = ArgumentCaptor.forClass(LocalDateTime.class);
+        ArgumentCaptor<LocalDateTime> to = ArgumentCaptor.forClass(LocalDateTime.class);
+        verify(diaryRepository).countByCreatedDate(from.capture(), to.capture());
+        assertThat(from.getValue().atZone(ZoneId.systemDefault()).toInstant())
+                .isEqualTo(Instant.parse("2024-01-31T15:00:00Z"));
+        assertThat(to.getValue().atZone(ZoneId.systemDefault()).toInstant())
+                .isEqualTo(Instant.parse("2024-02-29T15:00:00Z"));
+    }
+
+    @Test
+    void deleteIsVisibleToNextRead() {
+        diaryService.getDiaryById(ID);
+
+        diaryService.deleteDiary(ID);
+
+        assertThatThrownBy(() -> diaryService.getDiaryById(ID)).isInstanceOf(DiaryNotFoundException.class);
+    }
+
+    @Test
+    @Timeout(10)
+    void readLoadingBeforeUpdateDoesNotLeaveStaleEntry() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch saved = new CountDownLatch(1);
+        AtomicBoolean first = new AtomicBoolean(true);
+        when(diaryRepository.findById(anyLong())).thenAnswer(invocation -> {
+            Optional<DiaryEntity> row = Optional.ofNullable(table.get(invocation.<Long>getArgument(0))).map(this::copy);
+            if (first.getAndSet(false)) {
+                // 更新前の行を読み込んだ状態で、更新が保存されるまでキャッシュへの登録を止める
+                loading.countDown();
+                saved.await();
+            }
+            return row;
+        });
+        doAnswer(invocation -> {
+            DiaryEntity diaryEntity = invocation.getArgument(0);
+            table.put(diaryEntity.getId(), copy(diaryEntity));
+            saved.countDown();
+            return diaryEntity;
+        }).when(diaryRepository).save(any(DiaryEntity.class));
+
+        Thread reader = Thread.ofPlatform().start(() -> diaryService.getDiaryById(ID));
+        loading.await();
+        // 保存後にキャッシュから削除するため、削除は読み込み中のエントリの登録を待ってから行われる
+        // （保存前に削除しようとすると、保存を待つ読み込みと互いに待ち合ってタイムアウトする）
+        diaryService.updateDiary(ID, new DiaryUpdateForm("new title", null), emptyImage());
+        reader.join();
+
+        assertThat(diaryService.getDiaryById(ID).title()).isEqualTo("new title");
+    }
+
+    @Test
+    void updateInTransactionEvictsAfterCommit() {
+        diaryService.getDiaryById(ID);
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            diaryService.updateDiary(ID, new DiaryUpdateForm("new title", null), emptyImage());
+            // コミット前は更新前の日記を返す
+            assertThat(diaryService.getDiaryById(ID).title()).isEqualTo("old title");
+            TransactionSynchronizationManager.getSynchronizations().forEach(TransactionSynchronization::afterCommit);
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+
+        assertThat(diaryService.getDiaryById(ID).title()).isEqualTo("new title");
+    }
+
+    @Test
+    void imageIsServedWithoutBufferingWholeFile() throws IOException {
+        // 約8MBのPNG
+        byte[] png = png(1700, 1700);
+        int imageSize = png.length;
+        MockMultipartFile image = new MockMultipartFile("diaryImage", "a.png", "image/png", png);
+        diaryService.updateDiary(ID, new DiaryUpdateForm(null, null), image);
+        ResourceHttpMessageConverter resourceConverter = new ResourceHttpMessageConverter();
+        ResourceRegionHttpMessageConverter regionConverter = new ResourceRegionHttpMessageConverter();
+        // クラスロード等の初回のみの割り当てを計測対象から除く
+        serveImage(resourceConverter, regionConverter);
+
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long before = threadMXBean.getCurrentThreadAllocatedBytes();
+        long written = serveImage(resourceConverter, regionConverter);
+        long allocated = threadMXBean.getCurrentThreadAllocatedBytes() - before;
+
+        assertThat(written).isEqualTo(imageSize + 1024);
+        assertThat(allocated).isLessThan(imageSize / 16);
+    }
+
+    /**
+     * 日記画像の全体と先頭1KBの範囲を書き込み、書き込んだバイト数を返す
+     */
+    private long serveImage(ResourceHttpMessageConverter resourceConverter,
+                            ResourceRegionHttpMessageConverter regionConverter) throws IOException {
+        Resource resource = diaryService.getImageResource(diaryService.getImageById(ID), ID);
+        CountingOutputMessage outputMessage = new CountingOutputMessage();
+        resourceConverter.write(resource, MediaType.IMAGE_PNG, outputMessage);
+        ResourceRegion resourceRegion = HttpRange.createByteRange(0, 1023).toResourceRegion(resource);
+        regionConverter.write(resourceRegion, MediaType.IMAGE_PNG, outputMessage);
+        return outputMessage.count;
+    }
+
+    private static class CountingOutputMessage implements HttpOutputMessage {
+        private final HttpHeaders httpHeaders = new HttpHeaders();
+        private long count;
+
+        @Override
+        public OutputStream getBody() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) {
+                    count++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    count += len;
+                }
+            };
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return httpHeaders;
+        }
+    }
+
+    /**
+     * PNG画像を作成（圧縮で小さくならないよう、画素は乱数で埋める）
+     *
+     * @param width  幅のピクセル数
+     * @param height 高さのピクセル数
+     * @return PNG画像
+     */
+    private static byte[] png(int width, int height) throws IOException {
+        BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        bufferedImage.setRGB(0, 0, width, height, new Random(width).ints(width * height).toArray(), 0, width);
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(bufferedImage, "png", png);
+        return png.toByteArray();
+    }
+
+    /**
+     * DB上の日時（hibernate.jdbc.time_zoneの日時）と同じ時刻を表すエンティティの日時
+     *
+     * @param dbDateTime DB上の日時
+     * @return JVMのデフォルトのタイムゾーンの日時
+     */
+    private static LocalDateTime fromDb(LocalDateTime dbDateTime) {
+        return dbDateTime.atZone(DiaryServiceTestBuilder.JDBC_ZONE_ID)
+                .withZoneSameInstant(ZoneId.systemDefault())
+                .toLocalDateTime();
+    }
+
+    private MockMultipartFile emptyImage() {
+        return new MockMultipartFile("diaryImage", new byte[0]);
+    }
+
+    private DiaryEntity copy(DiaryEntity source) {
+        DiaryEntity diaryEntity = new DiaryEntity();
+        diaryEntity.setId(source.getId());
+        diaryEntity.setTitle(source.getTitle());
+        diaryEntity.setContent(source.getContent());
+        diaryEntity.setImagePath(source.getImagePath());
+        diaryEntity.setCreatedAt(source.getCreatedAt());
+        diaryEntity.setUpdatedAt(source.getUpdatedAt());
+        return diaryEntity;
+    }
+}
@@ -0,0 +1,123 @@
+package com.genki.rest_api.diary.service;
+
+import com.genki.rest_api.diary.exception.DiaryThrottledException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.support.StaticMessageSource;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class DiaryThrottleServiceTests {
+    private static final DiaryThrottleService.EndpointClass UPLOAD = DiaryThrottleService.EndpointClass.UPLOAD;
+
+    private SimpleMeterRegistry meterRegistry;
+    private DiaryThrottleService diaryThrottleService;
+
+    @BeforeEach
+    void setUp() {
+        StaticMessageSource messageSource = new StaticMessageSource();
+        messageSource.setUseCodeAsDefaultMessage(true);
+        meterRegistry = new SimpleMeterRegistry();
+        // 補充は1時間に1件・1KBとし、テスト中にトークンが補充されないようにする
+        diaryThrottleService = new DiaryThrottleService(
+                messageSource, meterRegistry, 3, 1 / 3600.0, DataSize.ofKilobytes(10), DataSize.ofBytes(1), 2,
+                100, Duration.ofMinutes(10));
+    }
+
+    @Test
+    void requestsOverBurstAreRejectedWithRetryAfter() {
+        for (int i = 0; i < 3; i++) {
+            diaryThrottleService.acquire(UPLOAD, "client", 0);
+            diaryThrottleService.release(UPLOAD);
+        }
+
+        assertThatThrownBy(() -> diaryThrottleService.acquire(UPLOAD, "client", 0))
+                .isInstanceOfSatisfying(DiaryThrottledException.class, e ->
+                        assertThat(e.getRetryAfter()).isGreaterThan(Duration.ofMinutes(59)));
+        assertThat(rejectedCount("rate_limited")).isEqualTo(1);
+        // 他のクライアントは制限されない
+        diaryThrottleService.acquire(UPLOAD, "other", 0);
+    }
+
+    @Test
+    void bytesOverBurstAreRejected() {
+        diaryThrottleService.acquire(UPLOAD, "client", DataSize.ofKilobytes(8).toBytes());
+        diaryThrottleService.release(UPLOAD);
+
+        assertThatThrownBy(() -> diaryThrottleService.acquire(UPLOAD, "client", DataSize.ofKilobytes(8).toBytes()))
+                .isInstanceOf(DiaryThrottledException.class);
+        // 残りのバイト数に収まるリクエストは受け付ける
+        diaryThrottleService.acquire(UPLOAD, "client", DataSize.ofKilobytes(1).toBytes());
+    }
+
+    @Test
+    void chunksConsumeOnlyBytes() {
+        // リクエスト数の容量（3件）を超えても、バイト数が足りる間は受け付ける
+        for (int i = 0; i < 5; i++) {
+            diaryThrottleService.acquire(UPLOAD, "client", false, DataSize.ofKilobytes(2).toBytes());
+            diaryThrottleService.release(UPLOAD);
+        }
+
+        assertThatThrownBy(() -> diaryThrottleService.acquire(UPLOAD, "client", false, 1))
+                .isInstanceOf(DiaryThrottledException.class);
+        // チャンクはリクエスト数を消費していない
+        for (int i = 0; i < 3; i++) {
+            diaryThrottleService.acquire(UPLOAD, "client", 0);
+            diaryThrottleService.release(UPLOAD);
+        }
+    }
+
+    @Test
+    void requestsOverMaxConcurrentAreShed() {
+        diaryThrottleService.acquire(UPLOAD, "client1", 0);
+        diaryThrottleService.acquire(UPLOAD, "client2", 0);
+
+        assertThatThrownBy(() -> diaryThrottleService.acquire(UPLOAD, "client3", 0))
+                .isInstanceOfSatisfying(DiaryThrottledException.class, e ->
+                        assertThat(e.getRetryAfter()).isEqualTo(Duration.ofSeconds(1)));
+        assertThat(rejectedCount("overloaded")).isEqualTo(1);
+
+        diaryThrottleService.release(UPLOAD);
+        diaryThrottleService.acquire(UPLOAD, "client3", 0);
+    }
+
+    @Test
+    void concurrentRequestsNeverExceedBurst() throws InterruptedException {
+        AtomicInteger acceptedCount = new AtomicInteger();
+        CountDownLatch startLatch = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 100; i++) {
+            executor.execute(() -> {
+                try {
+                    startLatch.await();
+                    diaryThrottleService.acquire(UPLOAD, "client", 0);
+                    acceptedCount.incrementAndGet();
+                    diaryThrottleService.release(UPLOAD);
+                } catch (DiaryThrottledException ignored) {
+                    // 制限により受け付けなかった
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        startLatch.countDown();
+        executor.shutdown();
+        assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(acceptedCount.get()).isLessThanOrEqualTo(3);
+    }
+
+    private double rejectedCount(String reason) {
+        return meterRegistry.get("diary.throttle.rejected").tag("endpoint", "upload").tag("reason", reason).counter().count();
+    }
+}